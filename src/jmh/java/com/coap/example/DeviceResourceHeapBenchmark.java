@@ -0,0 +1,71 @@
+package com.coap.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个设备一个资源节点（tree）和所有设备共用一个通配资源（wildcard）的常驻堆内存
+ * <p>
+ * mvn -Pjmh compile exec:exec -Djmh.args="DeviceResourceHeap"，每次迭代结束时输出建好资源、
+ * GC 之后的堆增量除以设备数；wildcard 模式下设备只在 getChild 时出现，常驻的只有一个节点
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class DeviceResourceHeapBenchmark {
+
+    @Param({"tree", "wildcard"})
+    private String mode;
+
+    @Param({"1000000"})
+    private int devices;
+
+    private SimpleCoapResource root;
+    private long before;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        root = null;
+        gc();
+        before = used();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        gc();
+        System.out.println(">>>>> RETAINED: [" + (used() - before) / devices + "] BYTES PER DEVICE, [" + mode + "]");
+        root = null;
+    }
+
+    @Benchmark
+    public SimpleCoapResource build() {
+        SimpleCoapResource devices = new NotAllowedCoapResource("devices");
+        if ("tree".equals(mode)) {
+            for (int i = 0; i < this.devices; i++) {
+                devices.add(new SimpleCoapResource(Integer.toString(i)));
+            }
+        } else {
+            devices.setWildcard(new SimpleCoapResource("*"));
+        }
+        root = devices;
+        return root;
+    }
+
+    private static long used() {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        return memoryMXBean.getHeapMemoryUsage().getUsed();
+    }
+
+    private static void gc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SimpleCoapServer#getBusinessCoapResource} 每次请求的反射分发开销
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private SimpleCoapResource resource;
+    private NoopEndpoint endpoint;
+    private AddressEndpointContext sourceContext;
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        Object coapHandler = new ManyRoutesCoapHandler();
+        Method method = ManyRoutesCoapHandler.class.getMethod("a",
+                org.eclipse.californium.core.server.resources.CoapExchange.class);
+        resource = new SimpleCoapServer().getBusinessCoapResource(coapHandler, method,
+                method.getAnnotation(CoapMapping.class), Collections.emptyList(), "a0");
+        endpoint = new NoopEndpoint();
+        sourceContext = new AddressEndpointContext(new InetSocketAddress("127.0.0.1", 5684));
+    }
+
+    @Benchmark
+    public Exchange dispatch() {
+        Request request = Request.newGet();
+        request.setURI("coap://127.0.0.1/m00/a0?foo=bar");
+        request.setSourceContext(sourceContext);
+        Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE, Runnable::run);
+        exchange.setEndpoint(endpoint);
+        resource.handleRequest(exchange);
+        return exchange;
+    }
+
+    @Benchmark
+    public Exchange dispatchNotAllowed() {
+        Request request = new Request(CoAP.Code.DELETE);
+        request.setSourceContext(sourceContext);
+        Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE, Runnable::run);
+        exchange.setEndpoint(endpoint);
+        resource.handleRequest(exchange);
+        return exchange;
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.coap.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IOUtil} 读写文件的基准测试
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IOUtilBenchmark {
+
+    @Param({"1024", "65536"})
+    private int size;
+
+    private byte[] bytes;
+    private String filePath;
+
+    @Setup
+    public void setup() throws IOException {
+        bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        File file = File.createTempFile("ioutil", ".bin");
+        file.deleteOnExit();
+        filePath = file.getAbsolutePath();
+        IOUtil.write2File(bytes, filePath);
+    }
+
+    @TearDown
+    public void tearDown() {
+        new File(filePath).delete();
+    }
+
+    @Benchmark
+    public void write2File() throws IOException {
+        IOUtil.write2File(bytes, filePath);
+    }
+
+    @Benchmark
+    public byte[] file2Bytes() throws IOException {
+        return IOUtil.file2Bytes(filePath);
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+/**
+ * 基准测试用的 handler：50 个类级别 url × 4 个方法 × 10 个方法级别 url，共 2000 条路由
+ * <p>
+ * 没有标注 {@link CoapHandler}，避免被 Spring 扫描到
+ */
+@CoapMapping({
+        "/m00", "/m01", "/m02", "/m03", "/m04", "/m05", "/m06", "/m07", "/m08", "/m09",
+        "/m10", "/m11", "/m12", "/m13", "/m14", "/m15", "/m16", "/m17", "/m18", "/m19",
+        "/m20", "/m21", "/m22", "/m23", "/m24", "/m25", "/m26", "/m27", "/m28", "/m29",
+        "/m30", "/m31", "/m32", "/m33", "/m34", "/m35", "/m36", "/m37", "/m38", "/m39",
+        "/m40", "/m41", "/m42", "/m43", "/m44", "/m45", "/m46", "/m47", "/m48", "/m49"})
+public class ManyRoutesCoapHandler {
+
+    @CoapMapping({"/a0", "/a1", "/a2", "/a3", "/a4", "/a5", "/a6", "/a7", "/a8", "/a9"})
+    public void a(CoapExchange exchange) {
+        exchange.respond("A");
+    }
+
+    @CoapMapping({"/b0", "/b1", "/b2", "/b3", "/b4", "/b5", "/b6", "/b7", "/b8", "/b9"})
+    public void b(CoapExchange exchange) {
+        exchange.respond("B");
+    }
+
+    @CoapMapping({"/c0", "/c1", "/c2", "/c3", "/c4", "/c5", "/c6", "/c7", "/c8", "/c9"})
+    public void c(CoapExchange exchange) {
+        exchange.respond("C");
+    }
+
+    @CoapMapping({"/d0", "/d1", "/d2", "/d3", "/d4", "/d5", "/d6", "/d7", "/d8", "/d9"})
+    public void d(CoapExchange exchange) {
+        exchange.respond("D");
+    }
+
+}
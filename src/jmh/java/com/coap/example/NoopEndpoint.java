@@ -0,0 +1,117 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.Token;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.EndpointObserver;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.californium.core.observe.NotificationListener;
+import org.eclipse.californium.core.server.MessageDeliverer;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * 什么都不发送的 {@link Endpoint}，基准测试中用来吞掉响应
+ */
+public class NoopEndpoint implements Endpoint {
+
+    private final NetworkConfig config = NetworkConfig.createStandardWithoutFile();
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public boolean isStarted() {
+        return true;
+    }
+
+    @Override
+    public void setExecutors(ScheduledExecutorService mainExecutor, ScheduledExecutorService secondaryExecutor) {
+    }
+
+    @Override
+    public void addObserver(EndpointObserver obs) {
+    }
+
+    @Override
+    public void removeObserver(EndpointObserver obs) {
+    }
+
+    @Override
+    public void addNotificationListener(NotificationListener lis) {
+    }
+
+    @Override
+    public void removeNotificationListener(NotificationListener lis) {
+    }
+
+    @Override
+    public void addInterceptor(MessageInterceptor interceptor) {
+    }
+
+    @Override
+    public void removeInterceptor(MessageInterceptor interceptor) {
+    }
+
+    @Override
+    public List<MessageInterceptor> getInterceptors() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void sendRequest(Request request) {
+    }
+
+    @Override
+    public void sendResponse(Exchange exchange, Response response) {
+    }
+
+    @Override
+    public void sendEmptyMessage(Exchange exchange, EmptyMessage message) {
+    }
+
+    @Override
+    public void setMessageDeliverer(MessageDeliverer deliverer) {
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return null;
+    }
+
+    @Override
+    public URI getUri() {
+        return null;
+    }
+
+    @Override
+    public NetworkConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public void cancelObservation(Token token) {
+    }
+
+}
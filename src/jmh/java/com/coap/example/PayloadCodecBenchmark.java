@@ -0,0 +1,116 @@
+package com.coap.example;
+
+import com.alibaba.fastjson.JSON;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各 payload 格式的编解码开销，text 为原来 getRequestText() + JSON 字符串解析的方式
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadCodecBenchmark {
+
+    private JsonPayloadCodec jsonPayloadCodec;
+    private CborPayloadCodec cborPayloadCodec;
+    private Reading reading;
+    private byte[] jsonPayload;
+    private byte[] cborPayload;
+
+    @Setup
+    public void setup() throws IOException {
+        jsonPayloadCodec = new JsonPayloadCodec();
+        cborPayloadCodec = new CborPayloadCodec();
+        reading = new Reading();
+        reading.setDeviceId("device-0001");
+        reading.setTimestamp(1571815062000L);
+        reading.setValue(23.5);
+        List<Double> samples = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            samples.add(20.0 + i / 4.0);
+        }
+        reading.setSamples(samples);
+        jsonPayload = jsonPayloadCodec.encode(reading);
+        cborPayload = cborPayloadCodec.encode(reading);
+    }
+
+    @Benchmark
+    public Object decodeJsonText() {
+        return JSON.parseObject(new String(jsonPayload, StandardCharsets.UTF_8), Reading.class);
+    }
+
+    @Benchmark
+    public Object decodeJsonBytes() {
+        return jsonPayloadCodec.decode(jsonPayload, Reading.class);
+    }
+
+    @Benchmark
+    public Object decodeCbor() throws IOException {
+        return cborPayloadCodec.decode(cborPayload, Reading.class);
+    }
+
+    @Benchmark
+    public byte[] encodeJsonText() {
+        return JSON.toJSONString(reading).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeJsonBytes() {
+        return jsonPayloadCodec.encode(reading);
+    }
+
+    @Benchmark
+    public byte[] encodeCbor() throws IOException {
+        return cborPayloadCodec.encode(reading);
+    }
+
+    public static class Reading {
+
+        private String deviceId;
+        private long timestamp;
+        private double value;
+        private List<Double> samples;
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public void setDeviceId(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public void setTimestamp(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        public void setValue(double value) {
+            this.value = value;
+        }
+
+        public List<Double> getSamples() {
+            return samples;
+        }
+
+        public void setSamples(List<Double> samples) {
+            this.samples = samples;
+        }
+    }
+
+}
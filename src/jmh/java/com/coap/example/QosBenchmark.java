@@ -0,0 +1,130 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 持续的固件下载压力下告警请求的延迟，看 SampleTime 输出的 p0.99
+ * <p>
+ * prioritized 为 false 时告警请求和下载进同一个队列、线程不设预算，相当于不分级调度
+ * <pre>
+ * mvn -Pjmh compile exec:exec -Djmh.args="QosBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QosBenchmark {
+
+    private static final int THREADS = 8;
+
+    @Param({"true", "false"})
+    private boolean prioritized;
+
+    /**
+     * 同时排队的下载请求数
+     */
+    @Param({"64"})
+    private int downloads;
+
+    private CoapRequestScheduler scheduler;
+    private SimpleCoapResource alarm;
+    private SimpleCoapResource firmware;
+    private CoapQos alarmQos;
+    private NoopEndpoint endpoint;
+    private AddressEndpointContext sourceContext;
+    private List<Thread> loaders;
+    private volatile boolean loading;
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        int[] budgets = prioritized ? new int[]{THREADS, THREADS, THREADS / 2} : new int[]{THREADS, THREADS, THREADS};
+        scheduler = new CoapRequestScheduler(THREADS, 4096, new int[]{8, 4, 1}, budgets);
+        scheduler.start();
+        alarmQos = prioritized ? CoapQos.CONTROL : CoapQos.BULK;
+        alarm = resource("alarm");
+        firmware = resource("firmware");
+        endpoint = new NoopEndpoint();
+        sourceContext = new AddressEndpointContext(new InetSocketAddress("127.0.0.1", 5684));
+
+        loading = true;
+        Semaphore permits = new Semaphore(downloads);
+        loaders = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Thread loader = new Thread(() -> {
+                while (loading) {
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Exchange exchange = exchange("firmware");
+                    if (!scheduler.execute(CoapQos.BULK, () -> {
+                        firmware.handleRequest(exchange);
+                        permits.release();
+                    })) {
+                        permits.release();
+                    }
+                }
+            }, "QosLoader#" + i);
+            loader.setDaemon(true);
+            loader.start();
+            loaders.add(loader);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        loading = false;
+        for (Thread loader : loaders) {
+            loader.interrupt();
+            loader.join();
+        }
+        scheduler.stop();
+    }
+
+    @Benchmark
+    public Object alarm() throws Exception {
+        Exchange exchange = exchange("alarm");
+        CompletableFuture<Exchange> done = new CompletableFuture<>();
+        if (!scheduler.execute(alarmQos, () -> {
+            alarm.handleRequest(exchange);
+            done.complete(exchange);
+        })) {
+            throw new IllegalStateException("Rejected");
+        }
+        return done.get();
+    }
+
+    private SimpleCoapResource resource(String name) throws NoSuchMethodException {
+        Method method = QosCoapHandler.class.getMethod(name, CoapExchange.class);
+        // 没有注入调度器的 SimpleCoapServer 直接在调用线程执行 handler，调度由基准测试自己做
+        return new SimpleCoapServer().getBusinessCoapResource(new QosCoapHandler(), method,
+                method.getAnnotation(CoapMapping.class), Collections.emptyList(), name);
+    }
+
+    private Exchange exchange(String name) {
+        Request request = Request.newGet();
+        request.setURI("coap://127.0.0.1/qos/" + name);
+        request.setSourceContext(sourceContext);
+        Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE, Runnable::run);
+        exchange.setEndpoint(endpoint);
+        return exchange;
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import java.util.zip.CRC32;
+
+/**
+ * 基准测试用的 handler：一个轻量的告警路由和一个耗 CPU 的固件下载路由
+ * <p>
+ * 没有标注 {@link CoapHandler}，避免被 Spring 扫描到
+ */
+@CoapMapping("/qos")
+public class QosCoapHandler {
+
+    private static final byte[] FIRMWARE = new byte[256 * 1024];
+
+    @CoapMapping(value = "/alarm", qos = CoapQos.CONTROL)
+    public void alarm(CoapExchange exchange) {
+        exchange.respond("ACK");
+    }
+
+    /**
+     * 每次请求都对整个固件算一遍校验和，模拟读盘、压缩、切块的开销
+     */
+    @CoapMapping(value = "/firmware", qos = CoapQos.BULK)
+    public void firmware(CoapExchange exchange) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(FIRMWARE, 0, FIRMWARE.length);
+        exchange.respond(Long.toHexString(crc32.getValue()));
+    }
+
+}
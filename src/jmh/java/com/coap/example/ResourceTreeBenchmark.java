@@ -0,0 +1,59 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.server.resources.Resource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SimpleCoapResource} 子节点查找与 add/traverse 合并的基准测试
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceTreeBenchmark {
+
+    @Param({"10", "1000"})
+    private int children;
+
+    private SimpleCoapResource parent;
+    private String[] names;
+    private int index;
+
+    @Setup
+    public void setup() {
+        parent = new NotAllowedCoapResource("coap");
+        names = new String[children];
+        for (int i = 0; i < children; i++) {
+            names[i] = "child" + i;
+            parent.add(new NotAllowedCoapResource(names[i]));
+        }
+    }
+
+    @Benchmark
+    public Resource getChild() {
+        index = (index + 1) % names.length;
+        return parent.getChild(names[index]);
+    }
+
+    /**
+     * 两棵同名的子树合并，模拟启动时 adjustParentChild 对同一前缀的反复合并
+     */
+    @Benchmark
+    public SimpleCoapResource addAndTraverse() {
+        SimpleCoapResource left = new NotAllowedCoapResource("coap");
+        SimpleCoapResource right = new NotAllowedCoapResource("coap");
+        for (int i = 0; i < children; i++) {
+            if (i % 2 == 0) {
+                left.add(new NotAllowedCoapResource(names[i]));
+            } else {
+                right.add(new NotAllowedCoapResource(names[i]));
+            }
+        }
+        return left.add(right);
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.coap.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动时扫描路由、构建路由树的基准测试，共 2000 条路由
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouteBuildBenchmark {
+
+    private SimpleCoapServer simpleCoapServer;
+    private Collection<Object> coapHandlers;
+    private List<CoapRoute> coapRoutes;
+
+    @Setup
+    public void setup() {
+        simpleCoapServer = new SimpleCoapServer();
+        coapHandlers = Arrays.asList(new ManyRoutesCoapHandler());
+        coapRoutes = simpleCoapServer.scanCoapRoutes(coapHandlers);
+    }
+
+    @Benchmark
+    public List<CoapRoute> scanCoapRoutes() {
+        return simpleCoapServer.scanCoapRoutes(coapHandlers);
+    }
+
+    @Benchmark
+    public SimpleCoapResource buildCoapResource() {
+        return simpleCoapServer.buildCoapResource(coapRoutes);
+    }
+
+}
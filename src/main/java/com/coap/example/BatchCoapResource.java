@@ -0,0 +1,295 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 批量请求：一个 POST 里带多个子请求（{@link CoapBatchRequest} 数组，JSON 或 CBOR），
+ * 子请求按路由分发给和单个请求相同的资源树，响应为同样编码的 {@link CoapBatchResponse} 数组。
+ * <p>
+ * 同一个资源上的子请求按顺序执行（前一个响应后才分发下一个，handler 交给 {@link CoapRequestScheduler}
+ * 异步执行时也一样），不同资源上的子请求并行执行。外层响应总是 2.05，每个子请求的结果看各自的响应码。
+ * <p>
+ * 所有子请求响应后（或超时后）再异步发送外层响应，不占用协议栈线程等待。每个子请求和单个请求一样经过
+ * {@link CoapRateLimiter}，被限流的子请求得到它给出的响应码。
+ */
+public class BatchCoapResource extends SimpleCoapResource {
+
+    private static Logger logger = LoggerFactory.getLogger(BatchCoapResource.class);
+
+    private final Resource root;
+    private final PayloadCodecRegistry payloadCodecRegistry;
+    private final int maxSize;
+    private final long timeout;
+    private final ScheduledExecutorService executor;
+    private final CoapServerDrainer coapServerDrainer;
+    private final CoapRateLimiter coapRateLimiter;
+
+    BatchCoapResource(String name, Resource root, PayloadCodecRegistry payloadCodecRegistry, int maxSize,
+                      long timeout, int threads) {
+        this(name, root, payloadCodecRegistry, maxSize, timeout, threads, null, null);
+    }
+
+    /**
+     * @param root    资源树的根，子请求从这里查找资源
+     * @param maxSize 一次最多多少个子请求，超过时以 4.13 拒绝
+     * @param timeout 等待所有子请求响应的最长时间（毫秒），超时的子请求响应 5.03
+     * @param threads 并行执行子请求的线程数
+     * @param coapServerDrainer 不为 null 时，外层响应发送之前批量请求算作一个执行中的 handler
+     * @param coapRateLimiter 不为 null 时每个子请求都要经过它
+     */
+    BatchCoapResource(String name, Resource root, PayloadCodecRegistry payloadCodecRegistry, int maxSize,
+                      long timeout, int threads, CoapServerDrainer coapServerDrainer,
+                      CoapRateLimiter coapRateLimiter) {
+        super(name);
+        this.root = root;
+        this.payloadCodecRegistry = payloadCodecRegistry;
+        this.maxSize = maxSize;
+        this.timeout = timeout;
+        this.executor = Executors.newScheduledThreadPool(threads, new NamedThreadFactory("CoapBatch#"));
+        this.coapServerDrainer = coapServerDrainer;
+        this.coapRateLimiter = coapRateLimiter;
+    }
+
+    @Override
+    public void handlePOST(CoapExchange exchange) {
+        OptionSet options = exchange.getRequestOptions();
+        int contentFormat = options.getContentFormat();
+        if (contentFormat == MediaTypeRegistry.UNDEFINED) {
+            contentFormat = PayloadCodecRegistry.DEFAULT_CONTENT_FORMAT;
+        }
+        PayloadCodec codec = payloadCodecRegistry.get(contentFormat);
+        if (codec == null || !codec.supports(CoapBatchRequest[].class)) {
+            exchange.respond(CoAP.ResponseCode.UNSUPPORTED_CONTENT_FORMAT);
+            return;
+        }
+        PayloadCodec responseCodec = options.hasAccept() ? payloadCodecRegistry.get(options.getAccept()) : codec;
+        if (responseCodec == null || !responseCodec.supports(CoapBatchResponse[].class)) {
+            exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE);
+            return;
+        }
+
+        CoapBatchRequest[] batchRequests;
+        try {
+            batchRequests = (CoapBatchRequest[]) codec.decode(exchange.getRequestPayload(), CoapBatchRequest[].class);
+        } catch (IOException | RuntimeException e) {
+            logger.warn(">>>>> BATCH_DECODE_ERROR: [{}]", e.getMessage());
+            exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Malformed batch");
+            return;
+        }
+        if (batchRequests == null || batchRequests.length == 0) {
+            exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Empty batch");
+            return;
+        }
+        if (batchRequests.length > maxSize) {
+            exchange.respond(CoAP.ResponseCode.REQUEST_ENTITY_TOO_LARGE, "Batch size exceeds " + maxSize);
+            return;
+        }
+
+        // 外层响应可能要等到超时，先回空 ACK，CON 请求的客户端不再重传整个批量请求
+        exchange.accept();
+        if (coapServerDrainer != null) {
+            coapServerDrainer.enterHandler();
+        }
+        execute(exchange.advanced().getRequest(), batchRequests).whenComplete((batchResponses, throwable) -> {
+            try {
+                if (throwable != null) {
+                    logger.error(">>>>> BATCH_EXECUTE_ERROR: [{}]", throwable.getMessage());
+                    exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
+                    return;
+                }
+                exchange.respond(CoAP.ResponseCode.CONTENT, responseCodec.encode(batchResponses),
+                        responseCodec.getContentFormat());
+            } catch (IOException e) {
+                logger.error(">>>>> BATCH_ENCODE_ERROR: [{}]", e.getMessage());
+                exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
+            } finally {
+                if (coapServerDrainer != null) {
+                    coapServerDrainer.exitHandler();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return 所有子请求都有结果（响应或超时）时完成
+     */
+    private CompletableFuture<CoapBatchResponse[]> execute(Request batchRequest, CoapBatchRequest[] batchRequests) {
+        int size = batchRequests.length;
+        CoapBatchResponse[] batchResponses = new CoapBatchResponse[size];
+        // 和子请求下标对应，没有分发的子请求为 null
+        List<CompletableFuture<Response>> futures = new ArrayList<>(Collections.nCopies(size, null));
+        List<CompletableFuture<Response>> pending = new ArrayList<>(size);
+        // 按资源分组，组内保持子请求的顺序
+        Map<Resource, List<BatchExchange>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            BatchExchange batchExchange;
+            try {
+                batchExchange = new BatchExchange(newRequest(batchRequest, batchRequests[i]), future);
+            } catch (IllegalArgumentException e) {
+                batchResponses[i] = new CoapBatchResponse(CoAP.ResponseCode.BAD_REQUEST.toString(), null, null);
+                continue;
+            }
+            Resource resource = findResource(batchExchange.getRequest().getOptions().getUriPath());
+            if (resource == null) {
+                batchResponses[i] = new CoapBatchResponse(CoAP.ResponseCode.NOT_FOUND.toString(), null, null);
+                continue;
+            }
+            Response rejected = coapRateLimiter == null ? null
+                    : coapRateLimiter.admit(batchExchange.getRequest(), coapServerDrainer == null ? 0
+                    : coapServerDrainer.getInFlightHandlers());
+            if (rejected != null) {
+                batchResponses[i] = toBatchResponse(rejected);
+                continue;
+            }
+            futures.set(i, future);
+            pending.add(future);
+            groups.computeIfAbsent(resource, key -> new ArrayList<>()).add(batchExchange);
+        }
+
+        Iterator<Map.Entry<Resource, List<BatchExchange>>> iterator = groups.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Resource, List<BatchExchange>> group = iterator.next();
+            Runnable task = () -> deliverInOrder(group.getKey(), group.getValue(), 0);
+            if (iterator.hasNext()) {
+                executor.execute(task);
+            } else {
+                // 最后一组在当前线程执行，只有一组时不切换线程
+                task.run();
+            }
+        }
+
+        // 超时还没有响应的子请求响应 5.03，已经响应的不受影响
+        ScheduledFuture<?> timer = executor.schedule(() -> pending.forEach(future ->
+                future.complete(new Response(CoAP.ResponseCode.SERVICE_UNAVAILABLE))), timeout, TimeUnit.MILLISECONDS);
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            timer.cancel(false);
+            for (int i = 0; i < size; i++) {
+                if (futures.get(i) != null) {
+                    batchResponses[i] = toBatchResponse(futures.get(i).join());
+                }
+            }
+            return batchResponses;
+        });
+    }
+
+    private Request newRequest(Request batchRequest, CoapBatchRequest coapBatchRequest) {
+        String method = coapBatchRequest.getMethod();
+        String path = coapBatchRequest.getPath();
+        if (path == null) {
+            throw new IllegalArgumentException("Missing path");
+        }
+        Request request = new Request(method == null ? CoAP.Code.POST : CoAP.Code.valueOf(method.toUpperCase()));
+        request.setSourceContext(batchRequest.getSourceContext());
+        // 限流时按外层请求的接收时间计算排队时间
+        request.setNanoTimestamp(batchRequest.getNanoTimestamp());
+        int index = path.indexOf('?');
+        OptionSet options = request.getOptions();
+        options.setUriPath(index < 0 ? path : path.substring(0, index));
+        if (index >= 0) {
+            options.setUriQuery(path.substring(index + 1));
+        }
+        if (coapBatchRequest.getContentFormat() != null) {
+            options.setContentFormat(coapBatchRequest.getContentFormat());
+        }
+        if (coapBatchRequest.getPayload() != null) {
+            request.setPayload(coapBatchRequest.getPayload());
+        }
+        return request;
+    }
+
+    private Resource findResource(List<String> uriPath) {
+        Resource current = root;
+        for (String name : uriPath) {
+            current = current.getChild(name);
+            if (current == null || current == this) {
+                // 不允许批量请求嵌套
+                return null;
+            }
+        }
+        return current == root ? null : current;
+    }
+
+    /**
+     * 分发同一资源上的第 index 个子请求，它响应（或超时）后再分发下一个
+     */
+    private void deliverInOrder(Resource resource, List<BatchExchange> batchExchanges, int index) {
+        if (index >= batchExchanges.size()) {
+            return;
+        }
+        BatchExchange batchExchange = batchExchanges.get(index);
+        if (!batchExchange.future.isDone()) {
+            deliver(resource, batchExchange);
+        }
+        // 下一个在批量线程上分发，不占用响应前一个子请求的线程
+        batchExchange.future.whenCompleteAsync((response, throwable) ->
+                deliverInOrder(resource, batchExchanges, index + 1), executor);
+    }
+
+    private void deliver(Resource resource, BatchExchange batchExchange) {
+        try {
+            resource.handleRequest(batchExchange);
+        } catch (RuntimeException e) {
+            logger.error(">>>>> BATCH_DELIVER_ERROR: [{}] [{}]", resource.getURI(), e.getMessage());
+            batchExchange.sendResponse(new Response(CoAP.ResponseCode.INTERNAL_SERVER_ERROR));
+        }
+    }
+
+    private static CoapBatchResponse toBatchResponse(Response response) {
+        OptionSet options = response.getOptions();
+        return new CoapBatchResponse(response.getCode().toString(),
+                options.hasContentFormat() ? options.getContentFormat() : null,
+                response.getPayloadSize() == 0 ? null : response.getPayload());
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 子请求的交互，响应不经过 endpoint 发送，而是交给批量请求收集
+     */
+    private static final class BatchExchange extends Exchange {
+
+        private final CompletableFuture<Response> future;
+
+        private BatchExchange(Request request, CompletableFuture<Response> future) {
+            super(request, Origin.REMOTE, Runnable::run);
+            this.future = future;
+        }
+
+        @Override
+        public void sendAccept() {
+        }
+
+        @Override
+        public void sendReject() {
+            future.complete(new Response(CoAP.ResponseCode.BAD_REQUEST));
+        }
+
+        /**
+         * 业务 handler 在 {@link CoapRequestScheduler} 上失败时，{@link SimpleCoapServer} 回 5.00，也从这里完成子请求，
+         * 同组后面的子请求不用等到超时；子请求已经有结果时忽略
+         */
+        @Override
+        public void sendResponse(Response response) {
+            future.complete(response);
+        }
+
+    }
+
+}
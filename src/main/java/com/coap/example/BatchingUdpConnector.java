@@ -0,0 +1,263 @@
+package com.coap.example;
+
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.EndpointContext;
+import org.eclipse.californium.elements.EndpointContextMatcher;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 批量收发的 UDP 连接器，用于不加密的 coap://
+ * <p>
+ * Californium 的 UDPConnector 每个接收线程阻塞在 receive 上，每个报文唤醒一次线程、分配一个新的缓冲区；
+ * 发送由调用方线程直接完成。这里用一个非阻塞的 {@link DatagramChannel}：
+ * 接收线程被唤醒后一次读空 socket 里已到达的报文（最多 batchSize 个），读入复用的直接缓冲区，整批交给协议栈；
+ * 发送先进入 {@link MpscArrayQueue}，发送线程一次取出一批，用复用的直接缓冲区写出，队列满时发送失败。
+ * <p>
+ * JDK 没有 recvmmsg/sendmmsg，每个报文仍然是一次系统调用，省下的是线程唤醒、缓冲区分配和发送方的锁竞争。
+ */
+public class BatchingUdpConnector implements Connector {
+
+    private static Logger logger = LoggerFactory.getLogger(BatchingUdpConnector.class);
+
+    private final InetSocketAddress bindAddress;
+    private final int batchSize;
+    private final int datagramSize;
+    private final int queueCapacity;
+    private final int socketBufferSize;
+
+    private volatile RawDataChannel receiver;
+    private volatile EndpointContextMatcher endpointContextMatcher;
+    private volatile boolean running;
+    private DatagramChannel channel;
+    private Selector selector;
+    private MpscArrayQueue<RawData> outbound;
+    private Thread receiverThread;
+    private Thread senderThread;
+    private InetSocketAddress localAddress;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong receiveBatches = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sendBatches = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param batchSize        一次唤醒最多收发的报文数
+     * @param datagramSize     单个报文的最大字节数，和 UDP_CONNECTOR_DATAGRAM_SIZE 一致
+     * @param queueCapacity    发送队列容量
+     * @param socketBufferSize socket 收发缓冲区大小，0 表示使用系统默认值
+     */
+    public BatchingUdpConnector(InetSocketAddress bindAddress, int batchSize, int datagramSize, int queueCapacity,
+                                int socketBufferSize) {
+        this.bindAddress = bindAddress;
+        this.batchSize = batchSize;
+        this.datagramSize = datagramSize;
+        this.queueCapacity = queueCapacity;
+        this.socketBufferSize = socketBufferSize;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        channel = DatagramChannel.open();
+        if (socketBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferSize);
+        }
+        channel.bind(bindAddress);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        localAddress = (InetSocketAddress) channel.getLocalAddress();
+        outbound = new MpscArrayQueue<>(queueCapacity);
+        running = true;
+
+        receiverThread = new Thread(this::receive, "CoapUdpReceiver");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+        senderThread = new Thread(this::flush, "CoapUdpSender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+        logger.info(">>>>> UDP_CONNECTOR_START: [{}] BATCH_SIZE [{}]", localAddress, batchSize);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        LockSupport.unpark(senderThread);
+        try {
+            receiverThread.join(TimeUnit.SECONDS.toMillis(1));
+            senderThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            logger.warn(">>>>> UDP_CONNECTOR_CLOSE_ERROR: [{}]", e.getMessage());
+        }
+        logger.info(">>>>> UDP_CONNECTOR_STOP: RECEIVED [{}] IN [{}] BATCHES SENT [{}] IN [{}] BATCHES DROPPED [{}]",
+                received.get(), receiveBatches.get(), sent.get(), sendBatches.get(), dropped.get());
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+    }
+
+    @Override
+    public void send(RawData message) {
+        if (!running) {
+            message.onError(new IOException("Connector not running"));
+            return;
+        }
+        EndpointContextMatcher matcher = endpointContextMatcher;
+        if (matcher != null && !matcher.isToBeSent(message.getEndpointContext(), null)) {
+            message.onError(new IOException("Endpoint context of " + message.getInetSocketAddress()
+                    + " does not match"));
+            return;
+        }
+        if (!outbound.offer(message)) {
+            dropped.incrementAndGet();
+            message.onError(new IOException("Send queue full"));
+            return;
+        }
+        LockSupport.unpark(senderThread);
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(datagramSize);
+        List<RawData> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                for (int i = 0; i < batchSize; i++) {
+                    buffer.clear();
+                    SocketAddress source = channel.receive(buffer);
+                    if (source == null) {
+                        break;
+                    }
+                    buffer.flip();
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    EndpointContext context = new AddressEndpointContext((InetSocketAddress) source);
+                    batch.add(RawData.inbound(bytes, context, false, System.nanoTime()));
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn(">>>>> UDP_RECEIVE_ERROR: [{}]", e.getMessage());
+                }
+            }
+            if (!batch.isEmpty()) {
+                received.addAndGet(batch.size());
+                receiveBatches.incrementAndGet();
+                RawDataChannel receiver = this.receiver;
+                if (receiver != null) {
+                    batch.forEach(receiver::receiveData);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(datagramSize);
+        while (running || outbound.size() > 0) {
+            int count = outbound.drain(message -> write(buffer, message), batchSize);
+            if (count > 0) {
+                sent.addAndGet(count);
+                sendBatches.incrementAndGet();
+            } else if (running) {
+                // send 和 stop 放入报文或停止后都会 unpark，这里只是兜底，空闲时不用频繁醒来
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private void write(ByteBuffer buffer, RawData message) {
+        InetSocketAddress destination = message.getInetSocketAddress();
+        try {
+            if (message.getSize() > buffer.capacity()) {
+                throw new IOException("Datagram of " + message.getSize() + " bytes exceeds " + buffer.capacity());
+            }
+            buffer.clear();
+            buffer.put(message.getBytes());
+            buffer.flip();
+            message.onContextEstablished(new AddressEndpointContext(destination));
+            if (channel.send(buffer, destination) == 0) {
+                // socket 发送缓冲区满，和内核丢包一样交给 CoAP 重传
+                dropped.incrementAndGet();
+            }
+            message.onSent();
+        } catch (IOException e) {
+            message.onError(e);
+        }
+    }
+
+    @Override
+    public void setRawDataReceiver(RawDataChannel receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void setEndpointContextMatcher(EndpointContextMatcher matcher) {
+        this.endpointContextMatcher = matcher;
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return localAddress == null ? bindAddress : localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return "UDP";
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getReceiveBatches() {
+        return receiveBatches.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getSendBatches() {
+        return sendBatches.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+}
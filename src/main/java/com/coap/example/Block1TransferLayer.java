@@ -0,0 +1,270 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Outbox;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.stack.BaseCoapStack;
+import org.eclipse.californium.core.network.stack.BlockwiseLayer;
+import org.eclipse.californium.core.network.stack.CongestionControlLayer;
+import org.eclipse.californium.core.network.stack.ExchangeCleanupLayer;
+import org.eclipse.californium.core.network.stack.Layer;
+import org.eclipse.californium.core.network.stack.ObserveLayer;
+import org.eclipse.californium.core.network.stack.ReliabilityLayer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * 放在 BlockwiseLayer 下面，接收 {@link BlockwiseTransferStore} 负责的路径上的 Block1 上传
+ * <p>
+ * 中间的块存进 {@link BlockwiseTransferStore} 后直接回 2.31 Continue，不经过 BlockwiseLayer；
+ * 最后一块到达时组装出完整的请求（去掉 Block1，和 BlockwiseLayer 组装的一样）往上交，响应带上最后一块的 Block1。
+ * 组装后的请求不带 Block1，BlockwiseLayer 只照常处理响应的 Block2。
+ * 多块上传的第 0 块到达时经过 {@link SimpleMessageDeliverer#admitTransfer} 的排空和限流检查，
+ * 组装出的请求带着 {@link SimpleMessageDeliverer#ADMITTED_TRANSFER} 标记，不再检查；请求体在响应发出或者处理失败前
+ * 一直计入 {@link BlockwiseTransferStore} 的内存上限。
+ * <p>
+ * 块的位置接不上、Content-Format 变了或者传输已经被清除时返回 4.08，请求体超过上限时返回 4.13 和 Size1，
+ * 请求体暂时预留不到内存时返回 5.03。
+ */
+public class Block1TransferLayer implements Layer {
+
+    private static Logger logger = LoggerFactory.getLogger(Block1TransferLayer.class);
+
+    private final BlockwiseTransferStore blockwiseTransferStore;
+    /**
+     * 已经交给 handler、还没有响应的请求体
+     */
+    private final Map<Exchange, byte[]> bodies = new ConcurrentHashMap<>();
+    private Layer upper;
+    private Layer lower;
+
+    public Block1TransferLayer(BlockwiseTransferStore blockwiseTransferStore) {
+        this.blockwiseTransferStore = blockwiseTransferStore;
+    }
+
+    @Override
+    public void receiveRequest(Exchange exchange, Request request) {
+        BlockOption block1 = request.getOptions().getBlock1();
+        if (block1 == null || !blockwiseTransferStore.accepts(request)) {
+            upper.receiveRequest(exchange, request);
+            return;
+        }
+        OptionSet options = request.getOptions();
+        int maxBodySize = blockwiseTransferStore.getMaxBodySize();
+        long end = (long) block1.getOffset() + request.getPayloadSize();
+        if ((options.hasSize1() && options.getSize1() > maxBodySize) || end > maxBodySize) {
+            BlockwiseTransferStore.Transfer transfer = blockwiseTransferStore.get(getKey(request));
+            if (transfer != null) {
+                blockwiseTransferStore.abort(transfer);
+            }
+            Response response = Response.createResponse(request, CoAP.ResponseCode.REQUEST_ENTITY_TOO_LARGE);
+            response.setPayload("body too large, can process " + maxBodySize + " bytes max");
+            response.getOptions().setSize1(maxBodySize);
+            respond(exchange, response);
+            return;
+        }
+
+        if (block1.getNum() == 0 && block1.isM()) {
+            Response rejected = blockwiseTransferStore.admit(request);
+            if (rejected != null) {
+                rejected.setDestinationContext(request.getSourceContext());
+                respond(exchange, rejected);
+                return;
+            }
+        }
+
+        String key = getKey(request);
+        BlockwiseTransferStore.Transfer transfer = block1.getNum() == 0
+                ? blockwiseTransferStore.open(key, options.getContentFormat()) : blockwiseTransferStore.get(key);
+        if (transfer == null) {
+            respondIncomplete(exchange, request, "no transfer in progress");
+            return;
+        }
+        byte[] body = null;
+        boolean deferred = false;
+        synchronized (transfer) {
+            try {
+                if (transfer.getContentFormat() != options.getContentFormat()) {
+                    blockwiseTransferStore.abort(transfer);
+                    respondIncomplete(exchange, request, "unexpected Content-Format");
+                    return;
+                }
+                if (!blockwiseTransferStore.append(transfer, block1.getOffset(), request.getPayload())) {
+                    logger.warn(">>>>> BLOCK1_OUT_OF_ORDER: [{}] OFFSET [{}] HAVE [{}]", key, block1.getOffset(),
+                            transfer.getLength());
+                    blockwiseTransferStore.abort(transfer);
+                    respondIncomplete(exchange, request, "wrong block number");
+                    return;
+                }
+                if (!block1.isM()) {
+                    body = blockwiseTransferStore.complete(transfer);
+                    deferred = body == null;
+                }
+            } catch (IOException e) {
+                logger.error(">>>>> BLOCK1_SPILL_ERROR: [{}] [{}]", key, e.getMessage());
+                blockwiseTransferStore.abort(transfer);
+                respond(exchange, Response.createResponse(request, CoAP.ResponseCode.INTERNAL_SERVER_ERROR));
+                return;
+            }
+        }
+        if (deferred) {
+            Response response = Response.createResponse(request, CoAP.ResponseCode.SERVICE_UNAVAILABLE);
+            response.getOptions().setMaxAge(1);
+            respond(exchange, response);
+            return;
+        }
+        if (body == null) {
+            Response response = Response.createResponse(request, CoAP.ResponseCode.CONTINUE);
+            response.getOptions().setBlock1(block1.getSzx(), true, block1.getNum());
+            respond(exchange, response);
+            return;
+        }
+
+        Request assembled = new Request(request.getCode());
+        assembled.setSourceContext(request.getSourceContext());
+        assembled.setType(request.getType());
+        assembled.setMID(request.getMID());
+        assembled.setToken(request.getToken());
+        assembled.setScheme(request.getScheme());
+        assembled.setNanoTimestamp(request.getNanoTimestamp());
+        assembled.setOptions(new OptionSet(options));
+        assembled.getOptions().removeBlock1();
+        assembled.getOptions().removeSize1();
+        assembled.setPayload(body);
+        if (block1.getNum() > 0) {
+            // 只有第 0 块通过了检查才会开始传输，后面的块才能接上
+            assembled.setUserContext(Collections.singletonMap(SimpleMessageDeliverer.ADMITTED_TRANSFER, "true"));
+        }
+        exchange.setBlock1ToAck(block1);
+        exchange.setRequest(assembled);
+        bodies.put(exchange, body);
+        try {
+            upper.receiveRequest(exchange, assembled);
+        } catch (RuntimeException e) {
+            // 在协议栈线程上直接执行的资源抛出异常时不会响应，请求体在这里归还
+            release(exchange);
+            throw e;
+        }
+    }
+
+    @Override
+    public void sendResponse(Exchange exchange, Response response) {
+        release(exchange);
+        BlockOption block1 = exchange.getBlock1ToAck();
+        if (block1 != null && !response.getOptions().hasBlock1()) {
+            // 要分 Block2 的大响应已经由 BlockwiseLayer 带上了 Block1，其余的响应在这里带上
+            exchange.setBlock1ToAck(null);
+            response.getOptions().setBlock1(block1);
+        }
+        lower.sendResponse(exchange, response);
+    }
+
+    /**
+     * 请求已经响应或者处理失败，归还它的请求体占用的内存
+     */
+    private void release(Exchange exchange) {
+        byte[] body = bodies.remove(exchange);
+        if (body != null) {
+            blockwiseTransferStore.releaseBody(body);
+        }
+    }
+
+    private void respondIncomplete(Exchange exchange, Request request, String message) {
+        Response response = Response.createResponse(request, CoAP.ResponseCode.REQUEST_ENTITY_INCOMPLETE);
+        response.setPayload(message);
+        respond(exchange, response);
+    }
+
+    private void respond(Exchange exchange, Response response) {
+        exchange.setCurrentResponse(response);
+        lower.sendResponse(exchange, response);
+    }
+
+    /**
+     * 同一个对端对同一个 URI（路径和查询）的块属于一个传输，和 BlockwiseLayer 一样不看 token
+     */
+    private static String getKey(Request request) {
+        OptionSet options = request.getOptions();
+        return request.getSourceContext().getPeerAddress() + "/" + options.getUriPathString() + "?"
+                + options.getUriQueryString();
+    }
+
+    @Override
+    public void sendRequest(Exchange exchange, Request request) {
+        lower.sendRequest(exchange, request);
+    }
+
+    @Override
+    public void sendEmptyMessage(Exchange exchange, EmptyMessage message) {
+        lower.sendEmptyMessage(exchange, message);
+    }
+
+    @Override
+    public void receiveResponse(Exchange exchange, Response response) {
+        upper.receiveResponse(exchange, response);
+    }
+
+    @Override
+    public void receiveEmptyMessage(Exchange exchange, EmptyMessage message) {
+        upper.receiveEmptyMessage(exchange, message);
+    }
+
+    /**
+     * 和 AbstractLayer 一样双向连接，Layer.TopDownBuilder 只调用上层的 setLowerLayer
+     */
+    @Override
+    public void setLowerLayer(Layer layer) {
+        if (lower != layer) {
+            lower = layer;
+            layer.setUpperLayer(this);
+        }
+    }
+
+    @Override
+    public void setUpperLayer(Layer layer) {
+        if (upper != layer) {
+            upper = layer;
+            layer.setLowerLayer(this);
+        }
+    }
+
+    @Override
+    public void setExecutors(ScheduledExecutorService mainExecutor, ScheduledExecutorService secondaryExecutor) {
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Californium 的 CoapUdpStack，在 BlockwiseLayer 和 ReliabilityLayer 之间加上 {@link Block1TransferLayer}
+     */
+    public static class UdpStack extends BaseCoapStack {
+
+        public UdpStack(NetworkConfig config, Outbox outbox, BlockwiseTransferStore blockwiseTransferStore) {
+            super(outbox);
+            Layer reliabilityLayer = config.getBoolean(NetworkConfig.Keys.USE_CONGESTION_CONTROL)
+                    ? CongestionControlLayer.newImplementation(config) : new ReliabilityLayer(config);
+            setLayers(new Layer[]{new ExchangeCleanupLayer(config), new ObserveLayer(config),
+                    new BlockwiseLayer(config), new Block1TransferLayer(blockwiseTransferStore), reliabilityLayer});
+        }
+
+    }
+
+}
@@ -0,0 +1,499 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Outbox;
+import org.eclipse.californium.core.network.CoapStackFactory;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.stack.CoapStack;
+import org.eclipse.californium.core.network.stack.CoapTcpStack;
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 有内存上限的 Block1 传输状态（上传到指定路径的 blockwise 请求）
+ * <p>
+ * Californium 的 BlockwiseLayer 把每个传输收到的块放在堆里，直到 BLOCKWISE_STATUS_LIFETIME（300 秒）后才清除，
+ * 大量并发或中途放弃的上传会占住很多内存。这里的传输由 {@link Block1TransferLayer} 接收：
+ * <ul>
+ * <li>所有传输在内存里的缓冲区合计不超过 maxMemory，超出时把这个传输已经收到的部分写到临时文件，之后的块直接追加到文件；</li>
+ * <li>超过 idleTimeout 没有新块的传输被清除，传输数达到 maxTransfers 时清除最久没有新块的传输；</li>
+ * <li>{@link #getMemoryBytes()} 和 {@link #getSpilledBytes()} 是进行中的传输占用的内存和磁盘字节数。</li>
+ * </ul>
+ * 最后一块到达时把整个请求体读回内存交给资源，handler 的参数本来就是完整的 byte[]。交出去的请求体仍然计入 maxMemory，
+ * 直到响应发出；读回临时文件里的请求体之前先预留内存，预留不到时最后一块返回 5.03，传输保留，设备重发最后一块即可。
+ * 大于 maxMemory 的请求体只在没有别的内存占用时读回，同一时刻最多一个。
+ * <p>
+ * 多块上传在第 0 块到达时经过 {@link SimpleMessageDeliverer#admitTransfer} 的排空和限流检查。
+ * <p>
+ * 作为 {@link CoapStackFactory} 给 UDP 和 DTLS endpoint 建协议栈，TCP endpoint 仍用 Californium 默认的协议栈。
+ */
+@Component
+public class BlockwiseTransferStore implements CoapStackFactory {
+
+    private static Logger logger = LoggerFactory.getLogger(BlockwiseTransferStore.class);
+
+    @Value("${coap.blockwise.paths:coap/upload}")
+    private String paths = "coap/upload";
+
+    @Value("${coap.blockwise.max-memory:33554432}")
+    private long maxMemory = 33554432;
+
+    @Value("${coap.blockwise.max-body-size:16777216}")
+    private int maxBodySize = 16777216;
+
+    @Value("${coap.blockwise.max-transfers:10000}")
+    private int maxTransfers = 10000;
+
+    @Value("${coap.blockwise.idle-timeout:30000}")
+    private long idleTimeout = 30000;
+
+    @Value("${coap.blockwise.spill-dir:}")
+    private String spillDir = "";
+
+    @Value("${coap.blockwise.report-interval:60000}")
+    private long reportInterval = 60000;
+
+    private final LinkedHashMap<String, Transfer> transfers = new LinkedHashMap<>(16, 0.75f, true);
+    private Set<String> pathSet = Collections.emptySet();
+    private Path spillDirectory;
+    private ScheduledExecutorService sweeper;
+    private volatile SimpleMessageDeliverer messageDeliverer;
+
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+
+    public BlockwiseTransferStore() {
+    }
+
+    public BlockwiseTransferStore(String paths, long maxMemory, int maxBodySize, int maxTransfers, long idleTimeout,
+                                  Path spillDirectory) {
+        this.paths = paths;
+        this.maxMemory = maxMemory;
+        this.maxBodySize = maxBodySize;
+        this.maxTransfers = maxTransfers;
+        this.idleTimeout = idleTimeout;
+        this.spillDir = spillDirectory.toString();
+        this.reportInterval = 0;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Set<String> pathSet = new HashSet<>();
+        for (String path : paths.split(",")) {
+            path = path.trim();
+            while (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            if (!path.isEmpty()) {
+                pathSet.add(path);
+            }
+        }
+        this.pathSet = pathSet;
+        spillDirectory = spillDir.isEmpty() ? Paths.get(System.getProperty("java.io.tmpdir"), "coap-blockwise")
+                : Paths.get(spillDir);
+        Files.createDirectories(spillDirectory);
+        sweeper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("BlockwiseTransferStore#"));
+        long sweepInterval = Math.max(100, idleTimeout / 4);
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        if (reportInterval > 0) {
+            sweeper.scheduleWithFixedDelay(this::report, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+        }
+        logger.info(">>>>> BLOCKWISE_STORE_START: PATHS [{}] MAX_MEMORY [{}] MAX_BODY_SIZE [{}] SPILL_DIR [{}]",
+                pathSet, maxMemory, maxBodySize, spillDirectory.toAbsolutePath());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweeper == null) {
+            return;
+        }
+        sweeper.shutdownNow();
+        sweeper = null;
+        List<Transfer> removed;
+        synchronized (transfers) {
+            removed = new ArrayList<>(transfers.values());
+            transfers.clear();
+        }
+        removed.forEach(this::release);
+        logger.info(">>>>> BLOCKWISE_STORE_STOP: [{}]", getMetrics());
+    }
+
+    @Override
+    public CoapStack createCoapStack(String protocol, NetworkConfig config, Outbox outbox,
+                                     Object customStackArgument) {
+        if (CoAP.isTcpProtocol(protocol)) {
+            return new CoapTcpStack(config, outbox);
+        }
+        return new Block1TransferLayer.UdpStack(config, outbox, this);
+    }
+
+    /**
+     * 这个请求的 Block1 传输是否由这里接收
+     */
+    public boolean accepts(Request request) {
+        return pathSet.contains(request.getOptions().getUriPathString());
+    }
+
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public void setMessageDeliverer(SimpleMessageDeliverer messageDeliverer) {
+        this.messageDeliverer = messageDeliverer;
+    }
+
+    /**
+     * 开始一个多块上传之前的检查，见 {@link SimpleMessageDeliverer#admitTransfer}
+     *
+     * @return 要直接返回给第 0 块的响应，null 表示可以开始
+     */
+    Response admit(Request request) {
+        SimpleMessageDeliverer messageDeliverer = this.messageDeliverer;
+        return messageDeliverer == null ? null : messageDeliverer.admitTransfer(request);
+    }
+
+    /**
+     * 收到第 0 块时开始一个传输，同一个对端对同一个 URI 进行中的传输被替换
+     */
+    Transfer open(String key, int contentFormat) {
+        Transfer transfer = new Transfer(key, contentFormat);
+        Transfer previous;
+        Transfer eldest = null;
+        synchronized (transfers) {
+            previous = transfers.put(key, transfer);
+            if (transfers.size() > maxTransfers) {
+                Iterator<Transfer> iterator = transfers.values().iterator();
+                eldest = iterator.next();
+                iterator.remove();
+            }
+        }
+        if (previous != null) {
+            release(previous);
+        }
+        if (eldest != null) {
+            evicted.incrementAndGet();
+            release(eldest);
+            logger.warn(">>>>> BLOCKWISE_EVICT: [{}] TOO MANY TRANSFERS", eldest.key);
+        }
+        return transfer;
+    }
+
+    Transfer get(String key) {
+        synchronized (transfers) {
+            return transfers.get(key);
+        }
+    }
+
+    /**
+     * 追加一块，调用方持有 transfer 的锁
+     *
+     * @return false 表示块的位置和已经收到的字节数接不上
+     */
+    boolean append(Transfer transfer, int offset, byte[] block) throws IOException {
+        if (transfer.closed) {
+            return false;
+        }
+        long length = transfer.getLength();
+        if (offset < length && offset + block.length <= length) {
+            // 重传的块（响应丢了，客户端换了 MID 重发），已经收到过
+            transfer.lastActive = System.currentTimeMillis();
+            return true;
+        }
+        if (offset != length) {
+            return false;
+        }
+        if (transfer.file == null && length + block.length > transfer.buffer.length
+                && !grow(transfer, (int) length + block.length)) {
+            spill(transfer);
+        }
+        if (transfer.file != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            while (buffer.hasRemaining()) {
+                transfer.file.write(buffer, transfer.fileLength + buffer.position());
+            }
+            transfer.fileLength += block.length;
+            spilledBytes.addAndGet(block.length);
+        } else {
+            System.arraycopy(block, 0, transfer.buffer, transfer.length, block.length);
+            transfer.length += block.length;
+        }
+        transfer.lastActive = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * 最后一块已经追加，取出整个请求体并结束传输，调用方持有 transfer 的锁
+     * <p>
+     * 返回的请求体按长度计入内存，响应发出后调用 {@link #releaseBody} 归还
+     *
+     * @return null 表示临时文件里的请求体预留不到内存，传输保留，重发的最后一块会再次调用
+     */
+    byte[] complete(Transfer transfer) throws IOException {
+        if (transfer.file == null) {
+            byte[] body = transfer.length == transfer.buffer.length ? transfer.buffer
+                    : Arrays.copyOf(transfer.buffer, transfer.length);
+            // 缓冲区容量换成请求体长度，不经过 release 归还
+            memoryBytes.addAndGet(body.length - transfer.buffer.length);
+            transfer.buffer = null;
+            finish(transfer);
+            return body;
+        }
+        if (!reserve(transfer.fileLength)) {
+            deferred.incrementAndGet();
+            logger.warn(">>>>> BLOCKWISE_DEFER: [{}] BYTES [{}] MEMORY [{}]", transfer.key, transfer.fileLength,
+                    memoryBytes.get());
+            return null;
+        }
+        try {
+            ByteBuffer body = ByteBuffer.allocate((int) transfer.fileLength);
+            while (body.hasRemaining()) {
+                if (transfer.file.read(body, body.position()) < 0) {
+                    throw new IOException("Spill file [" + transfer.path + "] is truncated.");
+                }
+            }
+            finish(transfer);
+            return body.array();
+        } catch (IOException e) {
+            memoryBytes.addAndGet(-transfer.fileLength);
+            throw e;
+        }
+    }
+
+    /**
+     * handler 对 {@link #complete} 交出的请求体已经响应，归还它占用的内存
+     */
+    void releaseBody(byte[] body) {
+        memoryBytes.addAndGet(-body.length);
+    }
+
+    private void finish(Transfer transfer) {
+        remove(transfer);
+        completed.incrementAndGet();
+        release(transfer);
+    }
+
+    /**
+     * 出错的传输直接丢弃
+     */
+    void abort(Transfer transfer) {
+        remove(transfer);
+        release(transfer);
+    }
+
+    private void remove(Transfer transfer) {
+        synchronized (transfers) {
+            transfers.remove(transfer.key, transfer);
+        }
+    }
+
+    /**
+     * 缓冲区按两倍扩容，预留不到内存时返回 false
+     */
+    private boolean grow(Transfer transfer, int required) {
+        int capacity = (int) Math.min(maxBodySize, Math.max(required, (long) transfer.buffer.length * 2));
+        int delta = capacity - transfer.buffer.length;
+        while (true) {
+            long used = memoryBytes.get();
+            if (used + delta > maxMemory) {
+                return false;
+            }
+            if (memoryBytes.compareAndSet(used, used + delta)) {
+                break;
+            }
+        }
+        transfer.buffer = Arrays.copyOf(transfer.buffer, capacity);
+        return true;
+    }
+
+    /**
+     * 为读回临时文件里的请求体预留内存，超过 maxMemory 的请求体只在没有别的内存占用时预留
+     */
+    private boolean reserve(long length) {
+        while (true) {
+            long used = memoryBytes.get();
+            if (used + length > maxMemory && used > 0) {
+                return false;
+            }
+            if (memoryBytes.compareAndSet(used, used + length)) {
+                return true;
+            }
+        }
+    }
+
+    private void spill(Transfer transfer) throws IOException {
+        transfer.path = Files.createTempFile(spillDirectory, "block1-", ".part");
+        transfer.file = FileChannel.open(transfer.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer buffer = ByteBuffer.wrap(transfer.buffer, 0, transfer.length);
+        while (buffer.hasRemaining()) {
+            transfer.file.write(buffer, buffer.position());
+        }
+        transfer.fileLength = transfer.length;
+        spilledBytes.addAndGet(transfer.length);
+        memoryBytes.addAndGet(-transfer.buffer.length);
+        transfer.buffer = null;
+        transfer.length = 0;
+        spilled.incrementAndGet();
+        logger.info(">>>>> BLOCKWISE_SPILL: [{}] BYTES [{}] MEMORY [{}]", transfer.key, transfer.fileLength,
+                memoryBytes.get());
+    }
+
+    private void release(Transfer transfer) {
+        synchronized (transfer) {
+            if (transfer.closed) {
+                return;
+            }
+            transfer.closed = true;
+            if (transfer.buffer != null) {
+                memoryBytes.addAndGet(-transfer.buffer.length);
+                transfer.buffer = null;
+            }
+            if (transfer.file != null) {
+                spilledBytes.addAndGet(-transfer.fileLength);
+                try {
+                    transfer.file.close();
+                    Files.deleteIfExists(transfer.path);
+                } catch (IOException e) {
+                    logger.warn(">>>>> BLOCKWISE_SPILL_DELETE_ERROR: [{}] [{}]", transfer.path, e.getMessage());
+                }
+                transfer.file = null;
+            }
+        }
+    }
+
+    /**
+     * 清除超过 idleTimeout 没有新块的传输，不等 BLOCKWISE_STATUS_LIFETIME
+     */
+    void sweep() {
+        long deadline = System.currentTimeMillis() - idleTimeout;
+        List<Transfer> expired = new ArrayList<>();
+        synchronized (transfers) {
+            Iterator<Transfer> iterator = transfers.values().iterator();
+            while (iterator.hasNext()) {
+                Transfer transfer = iterator.next();
+                if (transfer.lastActive < deadline) {
+                    iterator.remove();
+                    expired.add(transfer);
+                }
+            }
+        }
+        for (Transfer transfer : expired) {
+            release(transfer);
+        }
+        if (!expired.isEmpty()) {
+            evicted.addAndGet(expired.size());
+            logger.info(">>>>> BLOCKWISE_EXPIRE: [{}] TRANSFERS", expired.size());
+        }
+    }
+
+    private void report() {
+        if (getTransfers() > 0) {
+            logger.info(">>>>> BLOCKWISE_REPORT: [{}]", getMetrics());
+        }
+    }
+
+    public int getTransfers() {
+        synchronized (transfers) {
+            return transfers.size();
+        }
+    }
+
+    /**
+     * 进行中的传输在内存里占用的字节数（缓冲区容量），加上已经交给 handler、还没有响应的请求体
+     */
+    public long getMemoryBytes() {
+        return memoryBytes.get();
+    }
+
+    /**
+     * 进行中的传输写到临时文件的字节数
+     */
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * 请求体预留不到内存，最后一块返回 5.03 的次数
+     */
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("transfers", (long) getTransfers());
+        metrics.put("memoryBytes", getMemoryBytes());
+        metrics.put("spilledBytes", getSpilledBytes());
+        metrics.put("completed", getCompleted());
+        metrics.put("spilled", getSpilled());
+        metrics.put("evicted", getEvicted());
+        metrics.put("deferred", getDeferred());
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * 一个对端对一个 URI 进行中的上传
+     */
+    static class Transfer {
+
+        private final String key;
+        private final int contentFormat;
+        private volatile long lastActive = System.currentTimeMillis();
+        private byte[] buffer = new byte[0];
+        private int length;
+        private Path path;
+        private FileChannel file;
+        private long fileLength;
+        private boolean closed;
+
+        Transfer(String key, int contentFormat) {
+            this.key = key;
+            this.contentFormat = contentFormat;
+        }
+
+        int getContentFormat() {
+            return contentFormat;
+        }
+
+        long getLength() {
+            return file == null ? length : fileLength;
+        }
+
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import java.util.function.Consumer;
+
+/**
+ * 在 handler 响应时拿到一份响应的拷贝，供缓存、合并请求等场景复用
+ */
+class CapturingCoapExchange extends CoapExchange {
+
+    private final Consumer<Response> listener;
+    private Long maxAge;
+    private byte[] eTag;
+
+    CapturingCoapExchange(Exchange exchange, CoapResource resource, Consumer<Response> listener) {
+        super(exchange, resource);
+        this.listener = listener;
+    }
+
+    @Override
+    public void setMaxAge(long age) {
+        super.setMaxAge(age);
+        this.maxAge = age;
+    }
+
+    @Override
+    public void setETag(byte[] tag) {
+        super.setETag(tag);
+        this.eTag = tag;
+    }
+
+    @Override
+    public void respond(Response response) {
+        // 响应交给协议栈之后可能被其它线程修改，所以先拷贝
+        listener.accept(copy(response, maxAge, eTag));
+        super.respond(response);
+    }
+
+    /**
+     * 拷贝响应的 code、payload 和 option，去掉和某次交互相关的 block、observe option
+     */
+    static Response copy(Response response, Long maxAge, byte[] eTag) {
+        Response copy = new Response(response.getCode());
+        copy.setPayload(response.getPayload());
+        OptionSet options = new OptionSet(response.getOptions());
+        options.removeBlock1();
+        options.removeBlock2();
+        options.removeObserve();
+        options.removeSize1();
+        options.removeSize2();
+        if (maxAge != null && !options.hasMaxAge()) {
+            options.setMaxAge(maxAge);
+        }
+        if (eTag != null && options.getETagCount() == 0) {
+            options.addETag(eTag);
+        }
+        copy.setOptions(options);
+        return copy;
+    }
+
+    static Response copy(Response response) {
+        return copy(response, null, null);
+    }
+
+}
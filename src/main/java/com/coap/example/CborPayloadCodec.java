@@ -0,0 +1,41 @@
+package com.coap.example;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * application/cbor，使用 jackson 的流式 CBOR 解析器，编码时复用 jackson 的 BufferRecycler
+ */
+@Component
+public class CborPayloadCodec implements PayloadCodec {
+
+    private final ObjectMapper objectMapper = new ObjectMapper(new CBORFactory())
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Override
+    public int getContentFormat() {
+        return MediaTypeRegistry.APPLICATION_CBOR;
+    }
+
+    @Override
+    public boolean supports(Type type) {
+        return true;
+    }
+
+    @Override
+    public Object decode(byte[] payload, Type type) throws IOException {
+        return objectMapper.readValue(payload, objectMapper.constructType(type));
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        return objectMapper.writeValueAsBytes(value);
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.coap.example;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * 集群节点之间复制状态的通道，{@link CoapCluster} 通过它广播 DTLS 会话和观察关系的变化
+ * <p>
+ * 容器中有 ClusterTransport 类型的 bean 时使用它，否则配置了 coap.cluster.peers 时使用 {@link UdpClusterTransport}。
+ * 一个进程里跑多个节点（例如测试）时用 {@link InMemoryClusterTransport}。
+ * 消息可能丢失、重复或乱序，{@link CoapCluster} 的每条消息都是幂等的，新节点加入时再做一次全量同步。
+ */
+public interface ClusterTransport extends AutoCloseable {
+
+    /**
+     * @param receiver 收到其它节点的消息时调用，不会收到自己发出的消息
+     */
+    void start(Consumer<byte[]> receiver) throws IOException;
+
+    /**
+     * 发给所有其它节点，不阻塞等待对方收到
+     */
+    void send(byte[] message);
+
+    @Override
+    default void close() throws IOException {
+    }
+
+}
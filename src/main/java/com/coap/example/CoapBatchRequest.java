@@ -0,0 +1,60 @@
+package com.coap.example;
+
+/**
+ * 批量请求中的一个子请求
+ */
+public class CoapBatchRequest {
+
+    /**
+     * GET、POST、PUT 等，缺省为 POST
+     */
+    private String method;
+
+    /**
+     * 路由，可以带 query，例如 "coap/foo?foo=1"
+     */
+    private String path;
+
+    /**
+     * payload 的 content-format，缺省为 {@link org.eclipse.californium.core.coap.MediaTypeRegistry#UNDEFINED}
+     */
+    private Integer contentFormat;
+
+    /**
+     * CBOR 中为字节串，JSON 中为 base64 字符串
+     */
+    private byte[] payload;
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public Integer getContentFormat() {
+        return contentFormat;
+    }
+
+    public void setContentFormat(Integer contentFormat) {
+        this.contentFormat = contentFormat;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+
+}
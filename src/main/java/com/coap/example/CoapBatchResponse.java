@@ -0,0 +1,50 @@
+package com.coap.example;
+
+/**
+ * 批量请求中一个子请求的响应，和子请求按下标一一对应
+ */
+public class CoapBatchResponse {
+
+    /**
+     * 响应码，例如 "2.05"
+     */
+    private String code;
+
+    private Integer contentFormat;
+
+    private byte[] payload;
+
+    public CoapBatchResponse() {
+    }
+
+    public CoapBatchResponse(String code, Integer contentFormat, byte[] payload) {
+        this.code = code;
+        this.contentFormat = contentFormat;
+        this.payload = payload;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    public Integer getContentFormat() {
+        return contentFormat;
+    }
+
+    public void setContentFormat(Integer contentFormat) {
+        this.contentFormat = contentFormat;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+
+}
@@ -0,0 +1,613 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Token;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.server.MessageDeliverer;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResourceObserver;
+import org.eclipse.californium.elements.util.DatagramReader;
+import org.eclipse.californium.elements.util.DatagramWriter;
+import org.eclipse.californium.scandium.dtls.ConnectionIdGenerator;
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.MultiNodeConnectionIdGenerator;
+import org.eclipse.californium.scandium.dtls.SessionCache;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.SessionTicket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.Principal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 集群模式：多个节点在同一个 UDP 负载均衡后面时，共享 DTLS 会话和观察关系
+ * <p>
+ * <ul>
+ * <li>节点号写在 DTLS Connection ID 的第一个字节（{@link MultiNodeConnectionIdGenerator}），
+ * 负载均衡按 CID 把报文送回建立连接的节点，设备换了 NAT 地址也不用重新握手，见 {@link #getNodeId(byte[])}；</li>
+ * <li>握手完成的会话票据复制到所有节点（{@link SessionCache}），报文到了别的节点（例如原节点下线）时，
+ * 设备用原来的会话 ID 做简化握手即可恢复，不需要完整握手和证书/PSK 校验；</li>
+ * <li>建立的观察关系复制到所有节点，设备的请求到了新节点时，新节点用原来的 token 重新注册它在别的节点上的观察关系，
+ * 之后的通知由新节点发出；原节点还在时收到复制消息后取消自己的那一份。</li>
+ * </ul>
+ * 节点之间的通道见 {@link ClusterTransport}。每条复制消息带着发送节点的序号，序号在同一个节点上严格递增，
+ * 并且不小于发送时刻的微秒数，节点重启后也不会变小。收到的消息序号已经见过、落在最近 64 个序号之前，
+ * 或者比 maxMessageAge 还旧的直接丢弃，截获的 SESSION_REMOVE、OBSERVE_PUT 等消息重放不会改动状态。
+ */
+@Component
+public class CoapCluster implements SessionCache {
+
+    private static Logger logger = LoggerFactory.getLogger(CoapCluster.class);
+
+    private static final int SESSION_PUT = 1;
+    private static final int SESSION_REMOVE = 2;
+    private static final int OBSERVE_PUT = 3;
+    private static final int OBSERVE_REMOVE = 4;
+    private static final int SYNC = 5;
+
+    @Autowired(required = false)
+    private ClusterTransport clusterTransport;
+
+    @Value("${coap.cluster.enabled:false}")
+    private boolean enabled = false;
+
+    @Value("${coap.cluster.node-id:0}")
+    private int nodeId = 0;
+
+    @Value("${coap.cluster.cid-length:6}")
+    private int cidLength = 6;
+
+    @Value("${coap.cluster.max-sessions:150000}")
+    private int maxSessions = 150000;
+
+    @Value("${coap.cluster.port:5690}")
+    private int port = 5690;
+
+    @Value("${coap.cluster.peers:}")
+    private String peers = "";
+
+    @Value("${coap.cluster.secret:}")
+    private String secret = "";
+
+    @Value("${coap.cluster.max-message-age:60000}")
+    private long maxMessageAge = 60000;
+
+    private final LinkedHashMap<SessionId, Replica> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Map<Token, Observe>> observes = new ConcurrentHashMap<>();
+    private final Map<String, ObserveRelation> relations = new ConcurrentHashMap<>();
+    private final ResourceObserver relationReplicator = new RelationReplicator();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Integer, ReplayWindow> replayWindows = new ConcurrentHashMap<>();
+
+    private final AtomicLong restored = new AtomicLong();
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    public CoapCluster() {
+    }
+
+    public CoapCluster(int nodeId, int cidLength, int maxSessions, ClusterTransport clusterTransport) {
+        this.enabled = true;
+        this.nodeId = nodeId;
+        this.cidLength = cidLength;
+        this.maxSessions = maxSessions;
+        this.clusterTransport = clusterTransport;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (nodeId < 0 || nodeId > 0xFF) {
+            throw new IllegalStateException(">>>>> Cluster node id [" + nodeId + "] is not in [0, 255].");
+        }
+        if (clusterTransport == null) {
+            if (peers.trim().isEmpty()) {
+                throw new IllegalStateException(">>>>> Cluster peers are not configured.");
+            }
+            clusterTransport = new UdpClusterTransport(new InetSocketAddress(port), parsePeers(peers), secret);
+        }
+        clusterTransport.start(this::receive);
+        // 向已有的节点要它们的状态
+        send(SYNC, out -> {
+        });
+        logger.info(">>>>> CLUSTER_START: NODE [{}] CID [{}] BYTES", nodeId, cidLength);
+    }
+
+    @PreDestroy
+    public void stop() throws Exception {
+        if (clusterTransport != null) {
+            clusterTransport.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 第一个字节是本节点号的 CID，其它节点的 CID 在本节点上读不出来
+     */
+    public ConnectionIdGenerator getConnectionIdGenerator() {
+        return new MultiNodeConnectionIdGenerator(nodeId, cidLength);
+    }
+
+    /**
+     * @return 发出这个 CID 的节点号
+     */
+    public static int getNodeId(byte[] connectionId) {
+        return connectionId[0] & 0xFF;
+    }
+
+    /**
+     * 挂在可观察的资源上，复制资源上观察关系的建立和取消
+     */
+    public ResourceObserver getResourceObserver() {
+        return relationReplicator;
+    }
+
+    // --------------------------------- DTLS 会话 ---------------------------------
+
+    @Override
+    public void put(DTLSSession session) {
+        SessionId sessionId = session.getSessionIdentifier();
+        if (sessionId == null || sessionId.isEmpty()) {
+            return;
+        }
+        DatagramWriter writer = new DatagramWriter();
+        session.getSessionTicket().encode(writer);
+        byte[] ticket = writer.toByteArray();
+        putSession(sessionId, new Replica(nodeId, ticket));
+        send(SESSION_PUT, out -> {
+            writeBytes(out, sessionId.getBytes());
+            writeBytes(out, ticket);
+        });
+    }
+
+    @Override
+    public SessionTicket get(SessionId sessionId) {
+        Replica replica;
+        synchronized (sessions) {
+            replica = sessions.get(sessionId);
+        }
+        return replica == null ? null : SessionTicket.decode(new DatagramReader(replica.ticket));
+    }
+
+    @Override
+    public void remove(SessionId sessionId) {
+        Replica replica;
+        synchronized (sessions) {
+            replica = sessions.remove(sessionId);
+        }
+        if (replica != null) {
+            send(SESSION_REMOVE, out -> writeBytes(out, sessionId.getBytes()));
+        }
+    }
+
+    private void putSession(SessionId sessionId, Replica replica) {
+        synchronized (sessions) {
+            sessions.put(sessionId, replica);
+            Iterator<Replica> iterator = sessions.values().iterator();
+            while (sessions.size() > maxSessions && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    // --------------------------------- 观察关系 ---------------------------------
+
+    /**
+     * 请求到了本节点的设备在别的节点上有观察关系时，在本节点用原来的 token 重新注册，
+     * 注册的响应作为一次通知发给设备。由 {@link SimpleMessageDeliverer} 在分发请求之前调用。
+     * <p>
+     * 只恢复协议（endpoint 的 scheme）和设备身份（DTLS 认证的 principal）都和建立时相同的观察关系，
+     * 只有地址相同的请求接不走别人的观察关系。
+     */
+    public void restore(Exchange exchange, MessageDeliverer deliverer) {
+        if (!enabled || observes.isEmpty()) {
+            return;
+        }
+        Request request = exchange.getRequest();
+        String peer = toPeer(request.getSourceContext().getPeerAddress());
+        Map<Token, Observe> peerObserves = observes.get(peer);
+        if (peerObserves == null) {
+            return;
+        }
+        String scheme = getScheme(exchange);
+        String principal = getPrincipal(request);
+        for (Observe observe : peerObserves.values()) {
+            if (!observe.scheme.equals(scheme) || !observe.principal.equals(principal)) {
+                // 地址相同但换了协议或者身份，例如用明文 coap:// 请求想接走 DTLS 上的观察关系，或者伪造的源地址
+                continue;
+            }
+            if (observe.node == nodeId || !peerObserves.remove(observe.token, observe)
+                    || observe.token.equals(request.getToken())) {
+                // 本节点的、已经被别的请求认领的，或者设备正在用同一个 token 重新注册
+                continue;
+            }
+            Request registration = Request.newGet();
+            registration.setType(CoAP.Type.NON);
+            registration.setToken(observe.token);
+            registration.getOptions().setUriPath(observe.path);
+            if (!observe.query.isEmpty()) {
+                registration.getOptions().setUriQuery(observe.query);
+            }
+            if (observe.accept >= 0) {
+                registration.getOptions().setAccept(observe.accept);
+            }
+            registration.setObserve();
+            registration.setSourceContext(request.getSourceContext());
+            Exchange restoredExchange = new Exchange(registration, Exchange.Origin.REMOTE, Runnable::run);
+            restoredExchange.setEndpoint(exchange.getEndpoint());
+            restored.incrementAndGet();
+            logger.info(">>>>> CLUSTER_OBSERVE_RESTORE: [{}] [{}] FROM NODE [{}]", peer, observe.path, observe.node);
+            restoredExchange.execute(() -> deliverer.deliverRequest(restoredExchange));
+        }
+    }
+
+    private void putObserve(String peer, Observe observe) {
+        observes.computeIfAbsent(peer, key -> new ConcurrentHashMap<>()).put(observe.token, observe);
+    }
+
+    private void removeObserve(String peer, Token token, int node) {
+        observes.computeIfPresent(peer, (key, peerObserves) -> {
+            Observe observe = peerObserves.get(token);
+            if (observe != null && observe.node == node) {
+                peerObserves.remove(token);
+            }
+            return peerObserves.isEmpty() ? null : peerObserves;
+        });
+    }
+
+    /**
+     * 跟随资源上观察关系的建立和取消
+     */
+    private class RelationReplicator implements ResourceObserver {
+
+        @Override
+        public void changedName(String old) {
+        }
+
+        @Override
+        public void changedPath(String old) {
+        }
+
+        @Override
+        public void addedChild(Resource child) {
+        }
+
+        @Override
+        public void removedChild(Resource child) {
+        }
+
+        @Override
+        public void addedObserveRelation(ObserveRelation relation) {
+            Request request = relation.getExchange().getRequest();
+            String peer = toPeer(relation.getSource());
+            Observe observe = new Observe(nodeId, request.getToken(), request.getOptions().getUriPathString(),
+                    request.getOptions().getUriQueryString(),
+                    request.getOptions().hasAccept() ? request.getOptions().getAccept() : -1,
+                    getScheme(relation.getExchange()), getPrincipal(request));
+            relations.put(key(peer, observe.token), relation);
+            putObserve(peer, observe);
+            send(OBSERVE_PUT, out -> {
+                out.writeUTF(peer);
+                writeObserve(out, observe);
+            });
+        }
+
+        @Override
+        public void removedObserveRelation(ObserveRelation relation) {
+            Token token = relation.getExchange().getRequest().getToken();
+            String peer = toPeer(relation.getSource());
+            if (!relations.remove(key(peer, token), relation)) {
+                // 已经交给别的节点
+                return;
+            }
+            removeObserve(peer, token, nodeId);
+            send(OBSERVE_REMOVE, out -> {
+                out.writeUTF(peer);
+                writeBytes(out, token.getBytes());
+            });
+        }
+
+    }
+
+    // --------------------------------- 复制消息 ---------------------------------
+
+    /**
+     * 消息格式：type(1) node(1) sequence(8) body，字节数组为 length(2) bytes
+     */
+    private void receive(byte[] message) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+            int type = in.readUnsignedByte();
+            int node = in.readUnsignedByte();
+            if (node == nodeId) {
+                logger.warn(">>>>> CLUSTER_DUPLICATE_NODE: [{}]", node);
+                return;
+            }
+            long sequence = in.readLong();
+            if (!isFresh(node, sequence)) {
+                replayed.incrementAndGet();
+                logger.warn(">>>>> CLUSTER_REPLAY: [{}] SEQUENCE [{}] FROM NODE [{}]", type, sequence, node);
+                return;
+            }
+            switch (type) {
+                case SESSION_PUT:
+                    putSession(new SessionId(readBytes(in)), new Replica(node, readBytes(in)));
+                    break;
+                case SESSION_REMOVE:
+                    synchronized (sessions) {
+                        sessions.remove(new SessionId(readBytes(in)));
+                    }
+                    break;
+                case OBSERVE_PUT: {
+                    String peer = in.readUTF();
+                    Observe observe = readObserve(in, node);
+                    putObserve(peer, observe);
+                    ObserveRelation relation = relations.remove(key(peer, observe.token));
+                    if (relation != null) {
+                        // 设备换到了别的节点，本节点不再发通知
+                        moved.incrementAndGet();
+                        logger.info(">>>>> CLUSTER_OBSERVE_MOVED: [{}] [{}] TO NODE [{}]", peer, observe.path, node);
+                        relation.cancel();
+                    }
+                    break;
+                }
+                case OBSERVE_REMOVE:
+                    removeObserve(in.readUTF(), new Token(readBytes(in)), node);
+                    break;
+                case SYNC:
+                    sync();
+                    break;
+                default:
+                    logger.warn(">>>>> CLUSTER_UNKNOWN_MESSAGE: [{}] FROM NODE [{}]", type, node);
+            }
+        } catch (IOException e) {
+            logger.warn(">>>>> CLUSTER_MALFORMED_MESSAGE: [{}]", e.toString());
+        }
+    }
+
+    /**
+     * 把本节点产生的状态发给新加入的节点
+     */
+    private void sync() {
+        List<Map.Entry<SessionId, Replica>> own = new ArrayList<>();
+        synchronized (sessions) {
+            sessions.entrySet().stream().filter(entry -> entry.getValue().node == nodeId).forEach(own::add);
+        }
+        own.forEach(entry -> send(SESSION_PUT, out -> {
+            writeBytes(out, entry.getKey().getBytes());
+            writeBytes(out, entry.getValue().ticket);
+        }));
+        observes.forEach((peer, peerObserves) -> peerObserves.values().stream()
+                .filter(observe -> observe.node == nodeId)
+                .forEach(observe -> send(OBSERVE_PUT, out -> {
+                    out.writeUTF(peer);
+                    writeObserve(out, observe);
+                })));
+    }
+
+    private void send(int type, Body body) {
+        ClusterTransport clusterTransport = this.clusterTransport;
+        if (!enabled || clusterTransport == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeByte(nodeId);
+            out.writeLong(sequence.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis() * 1000)));
+            body.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        clusterTransport.send(bytes.toByteArray());
+    }
+
+    /**
+     * 序号不小于发送时刻的微秒数，太旧的消息不用看窗口就能丢弃，本节点重启丢了窗口也挡得住之前截获的消息
+     */
+    private boolean isFresh(int node, long sequence) {
+        if (sequence / 1000 < System.currentTimeMillis() - maxMessageAge) {
+            return false;
+        }
+        return replayWindows.computeIfAbsent(node, key -> new ReplayWindow()).accept(sequence);
+    }
+
+    private static void writeObserve(DataOutputStream out, Observe observe) throws IOException {
+        writeBytes(out, observe.token.getBytes());
+        out.writeUTF(observe.path);
+        out.writeUTF(observe.query);
+        out.writeInt(observe.accept);
+        out.writeUTF(observe.scheme);
+        out.writeUTF(observe.principal);
+    }
+
+    private static Observe readObserve(DataInputStream in, int node) throws IOException {
+        return new Observe(node, new Token(readBytes(in)), in.readUTF(), in.readUTF(), in.readInt(), in.readUTF(),
+                in.readUTF());
+    }
+
+    /**
+     * 接收请求的 endpoint 的协议，例如 coap、coaps
+     */
+    private static String getScheme(Exchange exchange) {
+        Endpoint endpoint = exchange.getEndpoint();
+        return endpoint == null ? "" : endpoint.getUri().getScheme();
+    }
+
+    /**
+     * DTLS 握手认证的设备身份，明文请求没有身份
+     */
+    private static String getPrincipal(Request request) {
+        Principal identity = request.getSourceContext().getPeerIdentity();
+        return identity == null ? "" : identity.getName();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String toPeer(InetSocketAddress address) {
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    private static String key(String peer, Token token) {
+        return peer + "#" + token.getAsString();
+    }
+
+    private static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (!peer.isEmpty()) {
+                int separator = peer.lastIndexOf(':');
+                addresses.add(new InetSocketAddress(peer.substring(0, separator),
+                        Integer.parseInt(peer.substring(separator + 1))));
+            }
+        }
+        return addresses;
+    }
+
+    // --------------------------------- 统计 ---------------------------------
+
+    public int getSessions() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    public int getObserves() {
+        return observes.values().stream().mapToInt(Map::size).sum();
+    }
+
+    public int getLocalObserves() {
+        return relations.size();
+    }
+
+    public long getRestored() {
+        return restored.get();
+    }
+
+    public long getMoved() {
+        return moved.get();
+    }
+
+    /**
+     * 按重放丢弃的复制消息数
+     */
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    private interface Body {
+
+        void write(DataOutputStream out) throws IOException;
+
+    }
+
+    /**
+     * 一个发送节点最近收到的序号，和 DTLS 的防重放窗口一样：UDP 乱序到达的消息只要在最近 64 个序号以内仍然接受
+     */
+    private static class ReplayWindow {
+
+        private long highest = -1;
+        /**
+         * 第 i 位表示序号 highest - i 已经收到
+         */
+        private long received;
+
+        synchronized boolean accept(long sequence) {
+            if (sequence > highest) {
+                long shift = sequence - highest;
+                received = shift >= Long.SIZE ? 1 : received << shift | 1;
+                highest = sequence;
+                return true;
+            }
+            long offset = highest - sequence;
+            if (offset >= Long.SIZE || (received & 1L << offset) != 0) {
+                return false;
+            }
+            received |= 1L << offset;
+            return true;
+        }
+
+    }
+
+    /**
+     * 某个节点产生的会话票据
+     */
+    private static class Replica {
+
+        private final int node;
+        private final byte[] ticket;
+
+        Replica(int node, byte[] ticket) {
+            this.node = node;
+            this.ticket = ticket;
+        }
+
+    }
+
+    /**
+     * 某个节点上的一个观察关系，足够在别的节点上重新注册
+     */
+    private static class Observe {
+
+        private final int node;
+        private final Token token;
+        private final String path;
+        private final String query;
+        private final int accept;
+        /**
+         * 建立观察关系的 endpoint 的协议和设备身份，恢复时必须相同
+         */
+        private final String scheme;
+        private final String principal;
+
+        Observe(int node, Token token, String path, String query, int accept, String scheme, String principal) {
+            this.node = node;
+            this.token = token;
+            this.path = path;
+            this.query = query;
+            this.accept = accept;
+            this.scheme = scheme;
+            this.principal = principal;
+        }
+
+    }
+
+}
@@ -0,0 +1,271 @@
+package com.coap.example;
+
+import com.coap.example.CredentialsUtil.Mode;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptorAdapter;
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.SingleNodeConnectionIdGenerator;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 客户端 endpoint 池，按服务器地址和认证方式复用 DTLS endpoint
+ * <p>
+ * 每次请求新建 {@link DTLSConnector} 都要做一次完整握手。池中的 endpoint 保持 DTLS 会话，
+ * 同一服务器、同一认证方式的 {@link CoapClient} 共用一个 endpoint，只有第一个请求需要握手。
+ * 连接启用 CID（RFC 9146），客户端的 NAT 映射变化后会话仍然有效，不需要重新握手。
+ * <p>
+ * 所有 endpoint 共用一组线程池。没有客户端在用、超过 idleTimeout 没有收发消息的 endpoint 会被销毁，
+ * 下次使用时重新创建。从池中拿到的 {@link CoapClient} 用完后调用 shutdown 归还，不要销毁它的 endpoint。
+ */
+public class CoapEndpointPool {
+
+    private static Logger logger = LoggerFactory.getLogger(CoapEndpointPool.class);
+
+    private static final List<Mode> SUPPORTED_MODES = Arrays.asList(Mode.PSK, Mode.ECDHE_PSK, Mode.RPK, Mode.X509,
+            Mode.RPK_TRUST, Mode.X509_TRUST);
+
+    private final long idleTimeout;
+    private final int cidLength;
+    private final NetworkConfig config;
+    private final ScheduledExecutorService mainExecutor;
+    private final ScheduledExecutorService secondaryExecutor;
+    private final ConcurrentHashMap<String, PooledEndpoint> endpoints = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * @param idleTimeout 空闲多久后销毁 endpoint，单位毫秒
+     * @param cidLength   本端 CID 长度，0 表示只支持对端的 CID
+     * @param threads     所有 endpoint 共用的协议栈线程数
+     */
+    public CoapEndpointPool(long idleTimeout, int cidLength, int threads) {
+        this.idleTimeout = idleTimeout;
+        this.cidLength = cidLength;
+        this.config = NetworkConfig.getStandard();
+        this.mainExecutor = Executors.newScheduledThreadPool(threads, new NamedThreadFactory("CoapPool#"));
+        this.secondaryExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("CoapPoolTimer#"));
+        long period = Math.max(1000, idleTimeout / 2);
+        secondaryExecutor.scheduleWithFixedDelay(this::expireIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 客户端持有 endpoint 的租约，shutdown 之前 endpoint 不会因为空闲被销毁
+     *
+     * @param uri  coaps://host:port/path?query
+     * @param mode 认证方式
+     * @return 共用池中 endpoint 的客户端
+     */
+    public CoapClient client(String uri, Mode mode) throws IOException {
+        PooledEndpoint pooled = lease(key(uri, mode), mode, true);
+        return new CoapClient(uri) {
+            private final AtomicBoolean released = new AtomicBoolean();
+
+            @Override
+            public void shutdown() {
+                super.shutdown();
+                if (released.compareAndSet(false, true)) {
+                    pooled.release();
+                }
+            }
+        }.setEndpoint(pooled.endpoint);
+    }
+
+    /**
+     * 不持有租约，空闲超过 idleTimeout 后 endpoint 可能被销毁
+     *
+     * @return uri 所在服务器、mode 认证方式的 endpoint，没有时创建并启动
+     */
+    public CoapEndpoint acquire(String uri, Mode mode) throws IOException {
+        return lease(key(uri, mode), mode, false).endpoint;
+    }
+
+    /**
+     * 查找、创建、启动和刷新 lastUsed 都在 compute 里完成，和 {@link #expireIdle()} 的检查与移除互斥
+     */
+    private PooledEndpoint lease(String key, Mode mode, boolean lease) throws IOException {
+        try {
+            return endpoints.compute(key, (k, pooled) -> {
+                boolean create = pooled == null;
+                if (create) {
+                    pooled = new PooledEndpoint(newEndpoint(mode));
+                }
+                if (!pooled.endpoint.isStarted()) {
+                    try {
+                        pooled.endpoint.start();
+                    } catch (IOException e) {
+                        if (create) {
+                            pooled.endpoint.destroy();
+                        }
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                (create ? created : hits).incrementAndGet();
+                pooled.touch();
+                if (lease) {
+                    pooled.leases.incrementAndGet();
+                }
+                return pooled;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static String key(String uri, Mode mode) throws IOException {
+        try {
+            URI parsed = new URI(uri);
+            return parsed.getScheme() + "://" + parsed.getHost() + ":" + parsed.getPort() + "|" + mode;
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URI " + uri, e);
+        }
+    }
+
+    private CoapEndpoint newEndpoint(Mode mode) {
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setClientOnly();
+        builder.setSniEnabled(false);
+        builder.setRecommendedCipherSuitesOnly(false);
+        builder.setConnectionIdGenerator(new SingleNodeConnectionIdGenerator(cidLength));
+        List<Mode> modes = CredentialsUtil.parse(new String[]{mode.toString()}, CredentialsUtil.DEFAULT_CLIENT_MODES,
+                SUPPORTED_MODES);
+        if (modes.contains(Mode.PSK) || modes.contains(Mode.ECDHE_PSK)) {
+            builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY,
+                    CredentialsUtil.OPEN_PSK_SECRET));
+        } else {
+            builder.setSupportedCipherSuites(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256);
+        }
+        CredentialsUtil.setupCredentials(builder, CredentialsUtil.CLIENT_NAME, modes);
+        CoapEndpoint endpoint = new CoapEndpoint.Builder().setNetworkConfig(config)
+                .setConnector(new DTLSConnector(builder.build())).build();
+        endpoint.setExecutors(mainExecutor, secondaryExecutor);
+        return endpoint;
+    }
+
+    /**
+     * 销毁没有租约、空闲超过 idleTimeout 的 endpoint
+     */
+    void expireIdle() {
+        long deadline = System.currentTimeMillis() - idleTimeout;
+        for (String key : endpoints.keySet()) {
+            PooledEndpoint[] removed = new PooledEndpoint[1];
+            endpoints.computeIfPresent(key, (k, pooled) -> {
+                if (pooled.leases.get() > 0 || pooled.lastUsed.get() >= deadline) {
+                    return pooled;
+                }
+                removed[0] = pooled;
+                return null;
+            });
+            if (removed[0] != null) {
+                removed[0].endpoint.destroy();
+                expired.incrementAndGet();
+                logger.info(">>>>> ENDPOINT_EXPIRED: [{}]", key);
+            }
+        }
+    }
+
+    public void shutdown() {
+        secondaryExecutor.shutdownNow();
+        endpoints.values().forEach(pooled -> pooled.endpoint.destroy());
+        endpoints.clear();
+        mainExecutor.shutdownNow();
+        logger.info(">>>>> ENDPOINT_POOL_SHUTDOWN: [{}]", getMetrics());
+    }
+
+    public int getSize() {
+        return endpoints.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("size", (long) getSize());
+        metrics.put("hits", getHits());
+        metrics.put("created", getCreated());
+        metrics.put("expired", getExpired());
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * 池中的 endpoint，收发任何消息都刷新 lastUsed
+     */
+    private static class PooledEndpoint extends MessageInterceptorAdapter {
+
+        private final CoapEndpoint endpoint;
+        private final AtomicLong lastUsed = new AtomicLong(System.currentTimeMillis());
+        private final AtomicInteger leases = new AtomicInteger();
+
+        PooledEndpoint(CoapEndpoint endpoint) {
+            this.endpoint = endpoint;
+            endpoint.addInterceptor(this);
+        }
+
+        void touch() {
+            lastUsed.set(System.currentTimeMillis());
+        }
+
+        /**
+         * 空闲时间从最后一个租约归还时算起
+         */
+        void release() {
+            touch();
+            leases.decrementAndGet();
+        }
+
+        @Override
+        public void sendRequest(Request request) {
+            touch();
+        }
+
+        @Override
+        public void receiveResponse(Response response) {
+            touch();
+        }
+
+        @Override
+        public void receiveEmptyMessage(EmptyMessage message) {
+            touch();
+        }
+
+    }
+
+}
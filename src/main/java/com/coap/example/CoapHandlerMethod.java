@@ -0,0 +1,214 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.Type;
+
+/**
+ * 路由对应的 handler 方法，参数和返回值的处理方式在构建路由时确定好，请求时不再反射分析方法签名
+ * <p>
+ * 参数为 {@link CoapExchange} 时传入当前交互；标注了 {@link CoapQuery}、{@link CoapPath}、{@link ContentFormat}
+ * 的参数从请求的 option 中取值；其它参数（包括 {@link CoapPayload}）按请求的 content-format 从 payload 解码。
+ * 返回值不为 null 时，按 Accept（没有则按请求的 content-format）编码后以 2.05 响应。
+ */
+final class CoapHandlerMethod {
+
+    /**
+     * 从请求中取出一个参数
+     */
+    @FunctionalInterface
+    interface ArgumentResolver {
+        Object resolve(CoapRequestContext context) throws IOException;
+    }
+
+    /**
+     * 把 query、path 中的字符串转换成参数类型
+     */
+    @FunctionalInterface
+    private interface Converter {
+        Object convert(String value);
+    }
+
+    private final Object coapHandler;
+    private final Method method;
+    private final PayloadCodecRegistry payloadCodecRegistry;
+    private final ArgumentResolver[] argumentResolvers;
+    private final boolean returnsValue;
+
+    CoapHandlerMethod(Object coapHandler, Method method, PayloadCodecRegistry payloadCodecRegistry) {
+        this.coapHandler = coapHandler;
+        this.method = method;
+        this.payloadCodecRegistry = payloadCodecRegistry;
+        Parameter[] parameters = method.getParameters();
+        this.argumentResolvers = new ArgumentResolver[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            argumentResolvers[i] = getArgumentResolver(parameters[i]);
+        }
+        this.returnsValue = method.getReturnType() != void.class;
+    }
+
+    Method getMethod() {
+        return method;
+    }
+
+    private ArgumentResolver getArgumentResolver(Parameter parameter) {
+        Class<?> type = parameter.getType();
+        if (type == CoapExchange.class) {
+            return CoapRequestContext::getExchange;
+        }
+
+        CoapQuery coapQuery = parameter.getAnnotation(CoapQuery.class);
+        if (coapQuery != null) {
+            String name = coapQuery.value();
+            if (name.isEmpty()) {
+                checkType(parameter, String.class);
+                return CoapRequestContext::getQueryString;
+            }
+            boolean required = coapQuery.required() || type.isPrimitive();
+            Converter converter = getConverter(parameter);
+            return context -> {
+                String value = context.getQueryParameter(name);
+                if (value == null) {
+                    if (required) {
+                        throw new CoapResponseException(CoAP.ResponseCode.BAD_REQUEST,
+                                "Missing query parameter " + name);
+                    }
+                    return null;
+                }
+                return convert(converter, name, value);
+            };
+        }
+
+        CoapPath coapPath = parameter.getAnnotation(CoapPath.class);
+        if (coapPath != null) {
+            int index = coapPath.value();
+            if (index < 0) {
+                checkType(parameter, String.class);
+                return context -> context.getOptions().getUriPathString();
+            }
+            boolean required = type.isPrimitive();
+            Converter converter = getConverter(parameter);
+            String name = "path[" + index + "]";
+            return context -> {
+                String value = context.getPathSegment(index);
+                if (value == null) {
+                    // 基本类型不能传 null，和缺少必填的查询参数一样回 4.00
+                    if (required) {
+                        throw new CoapResponseException(CoAP.ResponseCode.BAD_REQUEST, "Missing " + name);
+                    }
+                    return null;
+                }
+                return convert(converter, name, value);
+            };
+        }
+
+        if (parameter.isAnnotationPresent(ContentFormat.class)) {
+            checkType(parameter, int.class);
+            return context -> context.getOptions().getContentFormat();
+        }
+
+        if (type == byte[].class) {
+            return CoapRequestContext::getPayload;
+        }
+        Type genericType = parameter.getParameterizedType();
+        return context -> decode(context, genericType);
+    }
+
+    private Converter getConverter(Parameter parameter) {
+        Class<?> type = parameter.getType();
+        if (type == String.class) {
+            return value -> value;
+        } else if (type == int.class || type == Integer.class) {
+            return Integer::valueOf;
+        } else if (type == long.class || type == Long.class) {
+            return Long::valueOf;
+        } else if (type == double.class || type == Double.class) {
+            return Double::valueOf;
+        } else if (type == boolean.class || type == Boolean.class) {
+            return Boolean::valueOf;
+        }
+        throw new IllegalStateException(">>>>> Unsupported parameter type [" + type + "] of [" + method + "]");
+    }
+
+    private void checkType(Parameter parameter, Class<?> type) {
+        if (parameter.getType() != type) {
+            throw new IllegalStateException(">>>>> Parameter [" + parameter + "] of [" + method + "] must be " + type);
+        }
+    }
+
+    private static Object convert(Converter converter, String name, String value) {
+        try {
+            return converter.convert(value);
+        } catch (IllegalArgumentException e) {
+            throw new CoapResponseException(CoAP.ResponseCode.BAD_REQUEST, "Malformed parameter " + name, e);
+        }
+    }
+
+    private Object decode(CoapRequestContext context, Type type) throws IOException {
+        byte[] payload = context.getPayload();
+        if (payload == null || payload.length == 0) {
+            return null;
+        }
+        int contentFormat = context.getOptions().getContentFormat();
+        if (contentFormat == MediaTypeRegistry.UNDEFINED) {
+            contentFormat = PayloadCodecRegistry.DEFAULT_CONTENT_FORMAT;
+        }
+        PayloadCodec codec = payloadCodecRegistry.get(contentFormat);
+        if (codec == null || !codec.supports(type)) {
+            throw new CoapResponseException(CoAP.ResponseCode.UNSUPPORTED_CONTENT_FORMAT,
+                    "Unsupported content-format " + MediaTypeRegistry.toString(contentFormat));
+        }
+        try {
+            return codec.decode(payload, type);
+        } catch (IOException | RuntimeException e) {
+            throw new CoapResponseException(CoAP.ResponseCode.BAD_REQUEST, "Malformed payload", e);
+        }
+    }
+
+    /**
+     * 调用 handler 方法，handler 抛出的异常原样抛出
+     */
+    void invoke(CoapExchange exchange) throws Exception {
+        CoapRequestContext context = new CoapRequestContext(exchange);
+        Object[] args = new Object[argumentResolvers.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = argumentResolvers[i].resolve(context);
+        }
+        Object result;
+        try {
+            result = method.invoke(coapHandler, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        if (returnsValue && result != null) {
+            respond(exchange, result);
+        }
+    }
+
+    private void respond(CoapExchange exchange, Object result) throws IOException {
+        OptionSet options = exchange.getRequestOptions();
+        PayloadCodec codec;
+        if (options.hasAccept()) {
+            codec = payloadCodecRegistry.get(options.getAccept());
+            if (codec == null || !codec.supports(result.getClass())) {
+                throw new CoapResponseException(CoAP.ResponseCode.NOT_ACCEPTABLE,
+                        "Not acceptable " + MediaTypeRegistry.toString(options.getAccept()));
+            }
+        } else {
+            codec = payloadCodecRegistry.get(options.getContentFormat());
+            if (codec == null || !codec.supports(result.getClass())) {
+                codec = payloadCodecRegistry.get(PayloadCodecRegistry.DEFAULT_CONTENT_FORMAT);
+            }
+        }
+        exchange.respond(CoAP.ResponseCode.CONTENT, codec.encode(result), codec.getContentFormat());
+    }
+
+}
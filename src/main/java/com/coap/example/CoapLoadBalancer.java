@@ -0,0 +1,566 @@
+package com.coap.example;
+
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.eclipse.californium.scandium.dtls.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按 DTLS Connection ID 转发的 UDP 负载均衡，代替 nginx.conf 里按来源地址保持会话的 stream 代理
+ * <p>
+ * 后端是开启了集群模式的 {@link SimpleCoapServer}，节点号写在 CID 的第一个字节（见 {@link CoapCluster}）：
+ * <ul>
+ * <li>带 CID 的记录（content type 25）按 CID 里的节点号转发，设备换了 NAT 地址也回到建立连接的节点；</li>
+ * <li>握手等不带 CID 的记录按来源地址保持在同一个后端，新地址按地址哈希选一个健康的后端；</li>
+ * <li>节点不健康时它的 CID 记录转给别的节点，设备用复制过来的会话票据做简化握手后继续。</li>
+ * </ul>
+ * 每个设备地址一个上游 socket，后端看到的来源地址和设备一一对应；空闲超过 sessionTimeout 的上游 socket 被关闭。
+ * <p>
+ * 一个线程用 {@link Selector} 收发：每次唤醒一个 socket 最多读 batchSize 个报文到缓冲池的直接缓冲区，整批转发后归还。
+ * 健康检查定期给每个后端发一个不带 cookie 的 ClientHello，DTLS 服务端无状态地回 HelloVerifyRequest，
+ * 连续 healthFailures 次没有回应的后端标记为不健康，恢复回应后重新启用。
+ */
+@Component
+public class CoapLoadBalancer {
+
+    private static Logger logger = LoggerFactory.getLogger(CoapLoadBalancer.class);
+
+    private static final int RECORD_HEADER_LENGTH = 13;
+    private static final int CID_OFFSET = 11;
+
+    @Value("${coap.lb.enabled:false}")
+    private boolean enabled = false;
+
+    @Value("${coap.lb.port:5683}")
+    private int port = 5683;
+
+    @Value("${coap.lb.backends:}")
+    private String backends = "";
+
+    @Value("${coap.lb.cid-length:6}")
+    private int cidLength = 6;
+
+    @Value("${coap.lb.batch-size:64}")
+    private int batchSize = 64;
+
+    @Value("${coap.lb.datagram-size:2048}")
+    private int datagramSize = 2048;
+
+    @Value("${coap.lb.max-sessions:100000}")
+    private int maxSessions = 100000;
+
+    @Value("${coap.lb.session-timeout:300000}")
+    private long sessionTimeout = 300000;
+
+    @Value("${coap.lb.health-interval:5000}")
+    private long healthInterval = 5000;
+
+    @Value("${coap.lb.health-timeout:1000}")
+    private int healthTimeout = 1000;
+
+    @Value("${coap.lb.health-failures:3}")
+    private int healthFailures = 3;
+
+    private final Map<Integer, Backend> backendsByNode = new LinkedHashMap<>();
+    private final Map<SocketAddress, Session> sessions = new HashMap<>();
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+    private final List<Datagram> batch = new ArrayList<>();
+
+    private volatile boolean running;
+    private DatagramChannel front;
+    private Selector selector;
+    private Thread forwarderThread;
+    private ScheduledExecutorService healthChecker;
+    private InetSocketAddress localAddress;
+
+    private final AtomicLong upstream = new AtomicLong();
+    private final AtomicLong downstream = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong cidRouted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sessionCount = new AtomicLong();
+
+    public CoapLoadBalancer() {
+    }
+
+    /**
+     * @param backends 节点号到后端地址
+     */
+    public CoapLoadBalancer(int port, Map<Integer, InetSocketAddress> backends, int cidLength, int batchSize,
+                            long sessionTimeout, long healthInterval, int healthTimeout, int healthFailures) {
+        this.enabled = true;
+        this.port = port;
+        backends.forEach((node, address) -> backendsByNode.put(node, new Backend(node, address)));
+        this.cidLength = cidLength;
+        this.batchSize = batchSize;
+        this.sessionTimeout = sessionTimeout;
+        this.healthInterval = healthInterval;
+        this.healthTimeout = healthTimeout;
+        this.healthFailures = healthFailures;
+    }
+
+    @PostConstruct
+    public synchronized void start() throws IOException {
+        if (!enabled || running) {
+            return;
+        }
+        if (backendsByNode.isEmpty()) {
+            parseBackends(backends).forEach((node, address) -> backendsByNode.put(node, new Backend(node, address)));
+        }
+        if (backendsByNode.isEmpty()) {
+            throw new IllegalStateException(">>>>> Load balancer backends are not configured.");
+        }
+        front = DatagramChannel.open();
+        front.bind(new InetSocketAddress(port));
+        front.configureBlocking(false);
+        localAddress = (InetSocketAddress) front.getLocalAddress();
+        selector = Selector.open();
+        front.register(selector, SelectionKey.OP_READ);
+        running = true;
+
+        forwarderThread = new Thread(this::forward, "CoapLoadBalancer");
+        forwarderThread.setDaemon(true);
+        forwarderThread.start();
+        healthChecker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("CoapLbHealth#"));
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, healthInterval, healthInterval,
+                TimeUnit.MILLISECONDS);
+        logger.info(">>>>> LB_START: [{}] BACKENDS [{}]", localAddress, backendsByNode.values());
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        healthChecker.shutdownNow();
+        selector.wakeup();
+        try {
+            forwarderThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            for (Session session : sessions.values()) {
+                session.channel.close();
+            }
+            sessions.clear();
+            selector.close();
+            front.close();
+        } catch (IOException e) {
+            logger.warn(">>>>> LB_CLOSE_ERROR: [{}]", e.getMessage());
+        }
+        logger.info(">>>>> LB_STOP: UP [{}] DOWN [{}] BATCHES [{}] CID_ROUTED [{}] DROPPED [{}]", upstream.get(),
+                downstream.get(), batches.get(), cidRouted.get(), dropped.get());
+    }
+
+    // --------------------------------- 转发 ---------------------------------
+
+    private void forward() {
+        long nextSweep = System.currentTimeMillis() + sessionTimeout;
+        while (running) {
+            try {
+                selector.select(Math.max(1, Math.min(sessionTimeout, 1000)));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    if (session == null) {
+                        receiveFromDevices();
+                    } else {
+                        receiveFromBackend(session);
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn(">>>>> LB_FORWARD_ERROR: [{}]", e.getMessage());
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now >= nextSweep) {
+                sweep(now);
+                nextSweep = now + Math.min(sessionTimeout, 60000);
+            }
+        }
+    }
+
+    private void receiveFromDevices() throws IOException {
+        for (int i = 0; i < batchSize; i++) {
+            ByteBuffer buffer = acquire();
+            SocketAddress source = front.receive(buffer);
+            if (source == null) {
+                release(buffer);
+                break;
+            }
+            buffer.flip();
+            batch.add(new Datagram(buffer, source));
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+        long now = System.currentTimeMillis();
+        for (Datagram datagram : batch) {
+            try {
+                Session session = route(datagram.buffer, datagram.address, now);
+                if (session == null) {
+                    dropped.incrementAndGet();
+                } else if (session.channel.write(datagram.buffer) > 0) {
+                    upstream.incrementAndGet();
+                } else {
+                    // socket 发送缓冲区满，和丢包一样交给 DTLS/CoAP 重传
+                    dropped.incrementAndGet();
+                }
+            } catch (IOException e) {
+                dropped.incrementAndGet();
+                logger.debug(">>>>> LB_UPSTREAM_ERROR: [{}] [{}]", datagram.address, e.getMessage());
+            }
+            release(datagram.buffer);
+        }
+        batch.clear();
+    }
+
+    private void receiveFromBackend(Session session) {
+        for (int i = 0; i < batchSize; i++) {
+            ByteBuffer buffer = acquire();
+            try {
+                if (session.channel.receive(buffer) == null) {
+                    break;
+                }
+                buffer.flip();
+                if (front.send(buffer, session.device) > 0) {
+                    downstream.incrementAndGet();
+                } else {
+                    dropped.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // 后端端口不可达（ICMP），等健康检查处理
+                dropped.incrementAndGet();
+                break;
+            } finally {
+                release(buffer);
+            }
+        }
+        session.lastActive = System.currentTimeMillis();
+    }
+
+    /**
+     * 选出报文的后端，必要时为设备地址新建或换一个上游 socket
+     *
+     * @return null 表示没有可用的后端或会话数已满
+     */
+    private Session route(ByteBuffer datagram, SocketAddress device, long now) throws IOException {
+        Session session = sessions.get(device);
+        Backend backend = null;
+        int node = getNodeId(datagram, cidLength);
+        if (node >= 0) {
+            Backend owner = backendsByNode.get(node);
+            if (owner != null && owner.healthy) {
+                backend = owner;
+                cidRouted.incrementAndGet();
+            }
+        }
+        if (backend == null) {
+            backend = session != null && session.backend.healthy ? session.backend : select(device);
+        }
+        if (backend == null) {
+            return null;
+        }
+        if (session != null && session.backend != backend) {
+            close(session);
+            session = null;
+        }
+        if (session == null) {
+            if (sessions.size() >= maxSessions) {
+                return null;
+            }
+            DatagramChannel channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(backend.address);
+            session = new Session(device, backend, channel);
+            channel.register(selector, SelectionKey.OP_READ, session);
+            sessions.put(device, session);
+            sessionCount.set(sessions.size());
+        }
+        session.lastActive = now;
+        return session;
+    }
+
+    /**
+     * 设备地址在健康后端上的最高随机权重（rendezvous hashing），后端增减时只有少数设备换后端
+     */
+    private Backend select(SocketAddress device) {
+        Backend selected = null;
+        long best = Long.MIN_VALUE;
+        for (Backend backend : backendsByNode.values()) {
+            if (!backend.healthy) {
+                continue;
+            }
+            long weight = mix(device.hashCode() * 31L + backend.node);
+            if (selected == null || weight > best) {
+                selected = backend;
+                best = weight;
+            }
+        }
+        return selected;
+    }
+
+    private void sweep(long now) {
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (now - session.lastActive > sessionTimeout) {
+                iterator.remove();
+                closeChannel(session);
+            }
+        }
+        sessionCount.set(sessions.size());
+    }
+
+    private void close(Session session) {
+        sessions.remove(session.device);
+        closeChannel(session);
+        sessionCount.set(sessions.size());
+    }
+
+    private static void closeChannel(Session session) {
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            logger.debug(">>>>> LB_SESSION_CLOSE_ERROR: [{}]", e.getMessage());
+        }
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = bufferPool.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(datagramSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void release(ByteBuffer buffer) {
+        if (bufferPool.size() < batchSize) {
+            bufferPool.addFirst(buffer);
+        }
+    }
+
+    /**
+     * 报文中第一条 DTLS 记录带 CID 时返回 CID 里的节点号，否则返回 -1
+     * <p>
+     * 带 CID 的记录头：type(1)=25 version(2) epoch(2) sequence(6) cid(cidLength) length(2)
+     */
+    static int getNodeId(ByteBuffer datagram, int cidLength) {
+        int start = datagram.position();
+        if (cidLength <= 0 || datagram.remaining() < RECORD_HEADER_LENGTH + cidLength
+                || datagram.get(start) != ContentType.TLS12_CID.getCode()) {
+            return -1;
+        }
+        return datagram.get(start + CID_OFFSET) & 0xFF;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    // --------------------------------- 健康检查 ---------------------------------
+
+    private void checkHealth() {
+        for (Backend backend : backendsByNode.values()) {
+            boolean alive = probe(backend.address);
+            if (alive) {
+                backend.failures = 0;
+                if (!backend.healthy) {
+                    backend.healthy = true;
+                    logger.info(">>>>> LB_BACKEND_UP: [{}]", backend);
+                }
+            } else if (++backend.failures >= healthFailures && backend.healthy) {
+                backend.healthy = false;
+                logger.warn(">>>>> LB_BACKEND_DOWN: [{}] AFTER [{}] FAILED PROBES", backend, backend.failures);
+            }
+        }
+    }
+
+    /**
+     * 后端对不带 cookie 的 ClientHello 回了任意 DTLS 记录（通常是 HelloVerifyRequest）即为存活
+     */
+    boolean probe(InetSocketAddress address) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(healthTimeout);
+            byte[] clientHello = newClientHello();
+            socket.send(new DatagramPacket(clientHello, clientHello.length, address));
+            byte[] buffer = new byte[datagramSize];
+            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+            socket.receive(response);
+            return response.getLength() >= RECORD_HEADER_LENGTH
+                    && response.getSocketAddress().equals(address);
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            logger.debug(">>>>> LB_PROBE_ERROR: [{}] [{}]", address, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * DTLS 1.2 的最小 ClientHello：TLS_PSK_WITH_AES_128_CCM_8，没有会话 ID、cookie 和扩展
+     */
+    private static byte[] newClientHello() {
+        ByteBuffer body = ByteBuffer.allocate(42);
+        body.put((byte) 0xFE).put((byte) 0xFD);
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        body.put(random);
+        // session_id、cookie
+        body.put((byte) 0).put((byte) 0);
+        body.putShort((short) 2).putShort((short) 0xC0A8);
+        // compression_methods: null
+        body.put((byte) 1).put((byte) 0);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + 12 + body.capacity());
+        record.put((byte) ContentType.HANDSHAKE.getCode()).put((byte) 0xFE).put((byte) 0xFD);
+        // epoch 0、sequence 0
+        record.put(new byte[8]);
+        record.putShort((short) (12 + body.capacity()));
+        // client_hello，整条消息一个分片
+        record.put((byte) 1).put(uint24(body.capacity()));
+        record.putShort((short) 0);
+        record.put(uint24(0)).put(uint24(body.capacity()));
+        record.put(body.array());
+        return record.array();
+    }
+
+    private static byte[] uint24(int value) {
+        return new byte[]{(byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static Map<Integer, InetSocketAddress> parseBackends(String backends) {
+        Map<Integer, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (String backend : backends.split(",")) {
+            backend = backend.trim();
+            if (backend.isEmpty()) {
+                continue;
+            }
+            int equals = backend.indexOf('=');
+            int colon = backend.lastIndexOf(':');
+            if (equals < 0 || colon < equals) {
+                throw new IllegalStateException(">>>>> Backend [" + backend + "] is not node=host:port.");
+            }
+            addresses.put(Integer.parseInt(backend.substring(0, equals)), new InetSocketAddress(
+                    backend.substring(equals + 1, colon), Integer.parseInt(backend.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    // --------------------------------- 统计 ---------------------------------
+
+    public InetSocketAddress getAddress() {
+        return localAddress;
+    }
+
+    public boolean isHealthy(int node) {
+        Backend backend = backendsByNode.get(node);
+        return backend != null && backend.healthy;
+    }
+
+    public long getUpstream() {
+        return upstream.get();
+    }
+
+    public long getDownstream() {
+        return downstream.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getCidRouted() {
+        return cidRouted.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSessions() {
+        return sessionCount.get();
+    }
+
+    private static class Backend {
+
+        private final int node;
+        private final InetSocketAddress address;
+        private volatile boolean healthy = true;
+        private int failures;
+
+        Backend(int node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        @Override
+        public String toString() {
+            return node + "=" + address;
+        }
+
+    }
+
+    /**
+     * 一个设备地址和它的上游 socket，只在转发线程里访问
+     */
+    private static class Session {
+
+        private final SocketAddress device;
+        private final Backend backend;
+        private final DatagramChannel channel;
+        private volatile long lastActive;
+
+        Session(SocketAddress device, Backend backend, DatagramChannel channel) {
+            this.device = device;
+            this.backend = backend;
+            this.channel = channel;
+        }
+
+    }
+
+    private static class Datagram {
+
+        private final ByteBuffer buffer;
+        private final SocketAddress address;
+
+        Datagram(ByteBuffer buffer, SocketAddress address) {
+            this.buffer = buffer;
+            this.address = address;
+        }
+
+    }
+
+}
@@ -13,4 +13,40 @@ public @interface CoapMapping {
 
     CoapMethod[] method() default {};
 
+    /**
+     * 是否缓存 GET/FETCH 的响应，缓存时间取响应的 Max-Age，见 {@link CoapResponseCache}
+     */
+    boolean cacheable() default false;
+
+    /**
+     * 是否合并并发的相同 GET/FETCH 请求，只调用一次 handler，见 {@link CoapResponseCache#coalesce}；
+     * 和 cacheable 同时为 true 时以缓存为准，缓存本身也会合并并发的未命中
+     */
+    boolean singleFlight() default false;
+
+    /**
+     * 是否允许 observe，资源变化后调用 {@link SimpleCoapServer#changed(String)} 通知观察者
+     */
+    boolean observable() default false;
+
+    /**
+     * 是否对要求增量编码的观察者只推送差量，见 {@link ObserveDeltaEncoder}，observable 为 true 时才有意义
+     */
+    boolean observeDelta() default false;
+
+    /**
+     * /.well-known/core 里这个资源的 rt 属性
+     */
+    String[] resourceType() default {};
+
+    /**
+     * /.well-known/core 里这个资源的 if 属性
+     */
+    String[] interfaceDescription() default {};
+
+    /**
+     * 服务等级，见 {@link CoapRequestScheduler}
+     */
+    CoapQos qos() default CoapQos.DEFAULT;
+
 }
@@ -0,0 +1,17 @@
+package com.coap.example;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 绑定 Uri-Path，默认为整个路径（例如 "coap/foo"），指定下标时为对应的一段
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface CoapPath {
+
+    int value() default -1;
+
+}
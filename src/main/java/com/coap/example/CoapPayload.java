@@ -0,0 +1,16 @@
+package com.coap.example;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 绑定请求 payload，byte[] 直接传入，其它类型按 content-format 解码，见 {@link PayloadCodec}
+ * <p>
+ * 没有注解的参数（{@link org.eclipse.californium.core.server.resources.CoapExchange} 除外）同样按 payload 处理
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface CoapPayload {
+}
@@ -0,0 +1,20 @@
+package com.coap.example;
+
+/**
+ * 路由的服务等级，决定请求在 {@link CoapRequestScheduler} 中的调度权重和可以占用的线程数
+ */
+public enum CoapQos {
+
+    /**
+     * 告警、命令等对延迟敏感的请求，权重最高
+     */
+    CONTROL,
+
+    DEFAULT,
+
+    /**
+     * 固件下载、文件上传等大块传输，权重最低，同时占用的线程数受限，不会挤占其他等级的线程
+     */
+    BULK
+
+}
@@ -0,0 +1,25 @@
+package com.coap.example;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 绑定 Uri-Query 参数，支持 String、int、long、double、boolean 及其包装类型
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface CoapQuery {
+
+    /**
+     * 参数名，为空时绑定整个 query 字符串（各参数以 "&" 连接），只能用于 String
+     */
+    String value() default "";
+
+    /**
+     * 参数缺失时是否以 4.00 拒绝请求；基本类型参数缺失时总是拒绝
+     */
+    boolean required() default false;
+
+}
@@ -0,0 +1,293 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.elements.EndpointContext;
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求分发之前的限流和过载保护
+ * <p>
+ * 每个对端（IP + 端口）和每个认证身份（PSK identity、证书或公钥的名称）各有一个令牌桶，
+ * 任何一个桶没有令牌时返回 4.29 和 Max-Age（RFC 8516），一个出错循环发请求的设备占不满协议栈的线程。
+ * 对端和身份分开限流：同一身份换了源端口或地址，仍然受身份的限制。
+ * <p>
+ * 整体过载时不再看是谁发的请求，返回 5.03 和 Max-Age：正在执行的 handler 数达到上限，
+ * 或者请求从连接器收到到分发之间排队超过 maxQueueDelay（客户端已经快要重传了）时全部拒绝；
+ * 进程 CPU 使用率超过上限并且请求开始排队时，按超出的比例随机拒绝，避免在上限附近全开全关来回振荡。
+ * CPU 高但请求没有排队说明还处理得过来，不拒绝。
+ * blockwise 传输的后续块不受限制，已经开始的传输可以完成。
+ */
+@Component
+public class CoapRateLimiter {
+
+    private static Logger logger = LoggerFactory.getLogger(CoapRateLimiter.class);
+
+    private static final int THROTTLED_PEERS_LIMIT = 1024;
+    private static final int REPORT_TOP_PEERS = 10;
+
+    @Value("${coap.limit.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${coap.limit.peer-rate:100}")
+    private double peerRate = 100;
+
+    @Value("${coap.limit.peer-burst:200}")
+    private double peerBurst = 200;
+
+    @Value("${coap.limit.identity-rate:0}")
+    private double identityRate;
+
+    @Value("${coap.limit.identity-burst:400}")
+    private double identityBurst = 400;
+
+    @Value("${coap.limit.max-peers:150000}")
+    private int maxPeers = 150000;
+
+    @Value("${coap.limit.expiry:600000}")
+    private long expiry = 600000;
+
+    @Value("${coap.limit.max-age:1}")
+    private long maxAge = 1;
+
+    @Value("${coap.limit.max-in-flight:256}")
+    private int maxInFlight = 256;
+
+    @Value("${coap.limit.max-queue-delay:1000}")
+    private long maxQueueDelay = 1000;
+
+    @Value("${coap.limit.max-cpu:0.9}")
+    private double maxCpu = 0.9;
+
+    @Value("${coap.limit.shed-max-age:5}")
+    private long shedMaxAge = 5;
+
+    @Value("${coap.limit.report-interval:60000}")
+    private long reportInterval = 60000;
+
+    private TokenBucketMap peerBuckets;
+    private TokenBucketMap identityBuckets;
+    private ScheduledExecutorService sampler;
+    private volatile double cpuLoad;
+
+    private final ConcurrentHashMap<String, AtomicLong> throttledPeers = new ConcurrentHashMap<>();
+    private final AtomicLong allowed = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    public CoapRateLimiter() {
+    }
+
+    public CoapRateLimiter(double peerRate, double peerBurst, double identityRate, double identityBurst,
+                           int maxInFlight, double maxCpu) {
+        this.peerRate = peerRate;
+        this.peerBurst = peerBurst;
+        this.identityRate = identityRate;
+        this.identityBurst = identityBurst;
+        this.maxInFlight = maxInFlight;
+        this.maxCpu = maxCpu;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            logger.info(">>>>> RATE_LIMIT_DISABLED");
+            return;
+        }
+        if (peerRate > 0) {
+            peerBuckets = new TokenBucketMap(maxPeers, peerRate, peerBurst, expiry);
+        }
+        if (identityRate > 0) {
+            identityBuckets = new TokenBucketMap(maxPeers, identityRate, identityBurst, expiry);
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("CoapRateLimiter#"));
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (maxCpu > 0 && maxCpu < 1 && os instanceof com.sun.management.OperatingSystemMXBean) {
+            com.sun.management.OperatingSystemMXBean bean = (com.sun.management.OperatingSystemMXBean) os;
+            sampler.scheduleAtFixedRate(() -> cpuLoad = Math.max(0, bean.getProcessCpuLoad()), 1, 1,
+                    TimeUnit.SECONDS);
+        }
+        if (reportInterval > 0) {
+            sampler.scheduleWithFixedDelay(this::report, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+        }
+        logger.info(">>>>> RATE_LIMIT_START: PEER [{}/s, {}] IDENTITY [{}/s, {}] MAX_IN_FLIGHT [{}] "
+                        + "MAX_QUEUE_DELAY [{}] MAX_CPU [{}]", peerRate, peerBurst, identityRate, identityBurst,
+                maxInFlight, maxQueueDelay, maxCpu);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+            report();
+        }
+    }
+
+    /**
+     * 决定是否处理请求
+     *
+     * @param inFlight 正在执行的 handler 数
+     * @return null 表示放行，否则是应当直接返回的响应
+     */
+    public Response admit(Request request, int inFlight) {
+        if (sampler == null) {
+            return null;
+        }
+        if (overloaded(request, inFlight)) {
+            shed.incrementAndGet();
+            return reject(CoAP.ResponseCode.SERVICE_UNAVAILABLE, shedMaxAge);
+        }
+        EndpointContext context = request.getSourceContext();
+        long now = System.nanoTime();
+        InetSocketAddress peer = context.getPeerAddress();
+        boolean admitted = peerBuckets == null || peerBuckets.tryAcquire(addressKey(peer), now);
+        Principal identity = context.getPeerIdentity();
+        if (admitted && identityBuckets != null && identity != null) {
+            admitted = identityBuckets.tryAcquire(identityKey(identity.getName()), now);
+        }
+        if (admitted) {
+            allowed.incrementAndGet();
+            return null;
+        }
+        throttled.incrementAndGet();
+        countThrottled(identity == null ? peer.toString() : identity.getName() + "@" + peer);
+        return reject(CoAP.ResponseCode.TOO_MANY_REQUESTS, maxAge);
+    }
+
+    private boolean overloaded(Request request, int inFlight) {
+        if (maxInFlight > 0 && inFlight >= maxInFlight) {
+            return true;
+        }
+        long received = request.getNanoTimestamp();
+        if (maxQueueDelay <= 0 || received == 0) {
+            return false;
+        }
+        long queueDelay = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - received);
+        if (queueDelay >= maxQueueDelay) {
+            return true;
+        }
+        double load = cpuLoad;
+        return load > maxCpu && queueDelay >= maxQueueDelay / 4
+                && ThreadLocalRandom.current().nextDouble() < (load - maxCpu) / (1 - maxCpu);
+    }
+
+    private static Response reject(CoAP.ResponseCode code, long maxAge) {
+        Response response = new Response(code);
+        response.getOptions().setMaxAge(maxAge);
+        return response;
+    }
+
+    private void countThrottled(String peer) {
+        AtomicLong count = throttledPeers.get(peer);
+        if (count == null) {
+            if (throttledPeers.size() >= THROTTLED_PEERS_LIMIT) {
+                return;
+            }
+            count = throttledPeers.computeIfAbsent(peer, p -> new AtomicLong());
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * 输出限流统计和被限流最多的对端，然后清空对端统计
+     */
+    private void report() {
+        Map<String, Long> top = getThrottledPeers(REPORT_TOP_PEERS);
+        if (!top.isEmpty() || shed.get() > 0) {
+            logger.warn(">>>>> RATE_LIMIT_REPORT: [{}] TOP_THROTTLED_PEERS [{}]", getMetrics(), top);
+        }
+        throttledPeers.clear();
+    }
+
+    /**
+     * IPv4 地址和端口直接拼成键，IPv6 地址取散列
+     */
+    static long addressKey(InetSocketAddress address) {
+        InetAddress inetAddress = address.getAddress();
+        byte[] bytes = inetAddress == null ? address.getHostString().getBytes() : inetAddress.getAddress();
+        if (inetAddress instanceof Inet4Address) {
+            long ip = ((bytes[0] & 0xffL) << 24) | ((bytes[1] & 0xffL) << 16) | ((bytes[2] & 0xffL) << 8)
+                    | (bytes[3] & 0xffL);
+            return (1L << 48) | (ip << 16) | address.getPort();
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash * 31 + address.getPort();
+    }
+
+    static long identityKey(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public long getAllowed() {
+        return allowed.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getShed() {
+        return shed.get();
+    }
+
+    public int getTrackedPeers() {
+        return peerBuckets == null ? 0 : peerBuckets.size();
+    }
+
+    /**
+     * @return 本统计周期内被限流次数最多的 limit 个对端
+     */
+    public Map<String, Long> getThrottledPeers(int limit) {
+        Map<String, Long> top = new LinkedHashMap<>();
+        throttledPeers.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, AtomicLong> e) -> e.getValue().get()).reversed())
+                .limit(limit)
+                .forEach(e -> top.put(e.getKey(), e.getValue().get()));
+        return top;
+    }
+
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("allowed", getAllowed());
+        metrics.put("throttled", getThrottled());
+        metrics.put("shed", getShed());
+        metrics.put("throttledPeers", (long) throttledPeers.size());
+        metrics.put("trackedPeers", (long) getTrackedPeers());
+        metrics.put("untrackedPeers", peerBuckets == null ? 0 : peerBuckets.getUntracked());
+        metrics.put("cpuPercent", Math.round(cpuLoad * 100));
+        return Collections.unmodifiableMap(metrics);
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import java.util.List;
+
+/**
+ * 一次请求的参数，Uri-Query 只在第一次用到时解析一次，存成平铺的数组，后续查找不再拼接、拆分 option
+ */
+final class CoapRequestContext {
+
+    private final CoapExchange exchange;
+    private final OptionSet options;
+    private String[] queryNames;
+    private String[] queryValues;
+    private String queryString;
+
+    CoapRequestContext(CoapExchange exchange) {
+        this.exchange = exchange;
+        this.options = exchange.getRequestOptions();
+    }
+
+    CoapExchange getExchange() {
+        return exchange;
+    }
+
+    OptionSet getOptions() {
+        return options;
+    }
+
+    byte[] getPayload() {
+        return exchange.getRequestPayload();
+    }
+
+    /**
+     * @return 参数值，没有该参数时返回 null，参数没有 "=" 时返回 ""
+     */
+    String getQueryParameter(String name) {
+        if (queryNames == null) {
+            parseQuery();
+        }
+        for (int i = 0; i < queryNames.length; i++) {
+            if (queryNames[i].equals(name)) {
+                return queryValues[i];
+            }
+        }
+        return null;
+    }
+
+    String getQueryString() {
+        if (queryString == null) {
+            queryString = options.getUriQueryString();
+        }
+        return queryString;
+    }
+
+    private void parseQuery() {
+        List<String> queries = options.getUriQuery();
+        int size = queries.size();
+        String[] names = new String[size];
+        String[] values = new String[size];
+        for (int i = 0; i < size; i++) {
+            String query = queries.get(i);
+            int index = query.indexOf('=');
+            if (index < 0) {
+                names[i] = query;
+                values[i] = "";
+            } else {
+                names[i] = query.substring(0, index);
+                values[i] = query.substring(index + 1);
+            }
+        }
+        queryValues = values;
+        queryNames = names;
+    }
+
+    /**
+     * @return 第 index 段路径，不存在时返回 null
+     */
+    String getPathSegment(int index) {
+        List<String> path = options.getUriPath();
+        return index < path.size() ? path.get(index) : null;
+    }
+
+}
@@ -0,0 +1,297 @@
+package com.coap.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按 {@link CoapQos} 分级调度 handler 调用
+ * <p>
+ * 协议栈线程收到请求后不再直接调用 handler，而是按路由的服务等级放进对应的队列，由一组工作线程执行。
+ * 每个等级有自己的权重和线程预算（同时执行的最大任务数）：
+ * <ul>
+ * <li>多个等级都有任务排队时按权重做平滑加权轮询（smooth weighted round-robin），权重高的等级出队更多，
+ * 但权重低的等级不会饿死；</li>
+ * <li>某个等级执行中的任务数达到预算后，它排队的任务要等自己的任务执行完，空闲的线程留给其他等级。
+ * BULK 的预算小于线程数，大量固件下载也占不满所有线程，告警和命令总有线程可用。</li>
+ * </ul>
+ * 队列满时拒绝，由调用方返回 5.03 和 Max-Age。
+ */
+@Component
+public class CoapRequestScheduler {
+
+    private static Logger logger = LoggerFactory.getLogger(CoapRequestScheduler.class);
+
+    private static final CoapQos[] CLASSES = CoapQos.values();
+
+    @Value("${coap.scheduler.threads:16}")
+    private int threads = 16;
+
+    @Value("${coap.scheduler.capacity:1024}")
+    private int capacity = 1024;
+
+    @Value("${coap.scheduler.max-age:5}")
+    private long maxAge = 5;
+
+    @Value("${coap.scheduler.control-weight:8}")
+    private int controlWeight = 8;
+
+    @Value("${coap.scheduler.default-weight:4}")
+    private int defaultWeight = 4;
+
+    @Value("${coap.scheduler.bulk-weight:1}")
+    private int bulkWeight = 1;
+
+    @Value("${coap.scheduler.control-budget:16}")
+    private int controlBudget = 16;
+
+    @Value("${coap.scheduler.default-budget:12}")
+    private int defaultBudget = 12;
+
+    @Value("${coap.scheduler.bulk-budget:4}")
+    private int bulkBudget = 4;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final List<ArrayDeque<Runnable>> queues = new ArrayList<>(CLASSES.length);
+    private final int[] weights = new int[CLASSES.length];
+    private final int[] budgets = new int[CLASSES.length];
+    private final int[] active = new int[CLASSES.length];
+    private final int[] current = new int[CLASSES.length];
+    private final AtomicLong[] executed = new AtomicLong[CLASSES.length];
+    private final AtomicLong[] rejected = new AtomicLong[CLASSES.length];
+    private final AtomicLong[] queueNanos = new AtomicLong[CLASSES.length];
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running;
+
+    public CoapRequestScheduler() {
+        for (int i = 0; i < CLASSES.length; i++) {
+            queues.add(new ArrayDeque<>());
+            executed[i] = new AtomicLong();
+            rejected[i] = new AtomicLong();
+            queueNanos[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * @param weights 各等级的权重，按 {@link CoapQos} 的顺序
+     * @param budgets 各等级最多同时执行的任务数，按 {@link CoapQos} 的顺序
+     */
+    public CoapRequestScheduler(int threads, int capacity, int[] weights, int[] budgets) {
+        this();
+        this.threads = threads;
+        this.capacity = capacity;
+        this.controlWeight = weights[CoapQos.CONTROL.ordinal()];
+        this.defaultWeight = weights[CoapQos.DEFAULT.ordinal()];
+        this.bulkWeight = weights[CoapQos.BULK.ordinal()];
+        this.controlBudget = budgets[CoapQos.CONTROL.ordinal()];
+        this.defaultBudget = budgets[CoapQos.DEFAULT.ordinal()];
+        this.bulkBudget = budgets[CoapQos.BULK.ordinal()];
+    }
+
+    @PostConstruct
+    public void start() {
+        weights[CoapQos.CONTROL.ordinal()] = Math.max(1, controlWeight);
+        weights[CoapQos.DEFAULT.ordinal()] = Math.max(1, defaultWeight);
+        weights[CoapQos.BULK.ordinal()] = Math.max(1, bulkWeight);
+        budgets[CoapQos.CONTROL.ordinal()] = Math.max(1, Math.min(threads, controlBudget));
+        budgets[CoapQos.DEFAULT.ordinal()] = Math.max(1, Math.min(threads, defaultBudget));
+        budgets[CoapQos.BULK.ordinal()] = Math.max(1, Math.min(threads, bulkBudget));
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "CoapHandler#" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        logger.info(">>>>> SCHEDULER_START: THREADS [{}] WEIGHTS [{}] BUDGETS [{}]", threads,
+                toMap(weights), toMap(budgets));
+    }
+
+    /**
+     * 不再接收新任务，执行完已排队的任务后退出
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        lock.lock();
+        try {
+            running = false;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        workers.clear();
+        logger.info(">>>>> SCHEDULER_STOP: [{}]", getMetrics());
+    }
+
+    /**
+     * @return false 表示队列已满或调度器已停止，任务没有被接收
+     */
+    public boolean execute(CoapQos qos, Runnable task) {
+        int index = qos.ordinal();
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> queue = queues.get(index);
+            if (!running || queue.size() >= capacity) {
+                rejected[index].incrementAndGet();
+                return false;
+            }
+            long enqueued = System.nanoTime();
+            queue.addLast(() -> {
+                queueNanos[index].addAndGet(System.nanoTime() - enqueued);
+                task.run();
+            });
+            if (active[index] < budgets[index]) {
+                available.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 队列满时返回的 Max-Age，单位秒
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    private void work() {
+        while (true) {
+            int index;
+            Runnable task;
+            lock.lock();
+            try {
+                while ((index = next()) < 0) {
+                    if (!running && isEmpty()) {
+                        return;
+                    }
+                    available.await();
+                }
+                task = queues.get(index).pollFirst();
+                active[index]++;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error(">>>>> SCHEDULED_TASK_ERROR: [{}]", CLASSES[index], e);
+            } finally {
+                executed[index].incrementAndGet();
+                lock.lock();
+                try {
+                    active[index]--;
+                    // 这个等级腾出了预算，可能有排队的任务在等
+                    if (!queues.get(index).isEmpty() || (!running && isEmpty())) {
+                        available.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 平滑加权轮询：在有任务排队且没有用满预算的等级中选一个，调用方持有锁
+     *
+     * @return 等级的序号，没有可执行的任务时返回 -1
+     */
+    private int next() {
+        int total = 0;
+        int best = -1;
+        for (int i = 0; i < CLASSES.length; i++) {
+            if (queues.get(i).isEmpty() || active[i] >= budgets[i]) {
+                continue;
+            }
+            current[i] += weights[i];
+            total += weights[i];
+            if (best < 0 || current[i] > current[best]) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            current[best] -= total;
+        }
+        return best;
+    }
+
+    private boolean isEmpty() {
+        for (ArrayDeque<Runnable> queue : queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<CoapQos, Integer> toMap(int[] values) {
+        Map<CoapQos, Integer> map = new LinkedHashMap<>();
+        for (CoapQos qos : CLASSES) {
+            map.put(qos, values[qos.ordinal()]);
+        }
+        return map;
+    }
+
+    public int getQueued(CoapQos qos) {
+        lock.lock();
+        try {
+            return queues.get(qos.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getExecuted(CoapQos qos) {
+        return executed[qos.ordinal()].get();
+    }
+
+    public long getRejected(CoapQos qos) {
+        return rejected[qos.ordinal()].get();
+    }
+
+    /**
+     * @return 平均排队时间，单位微秒
+     */
+    public long getAverageQueueMicros(CoapQos qos) {
+        long count = executed[qos.ordinal()].get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(queueNanos[qos.ordinal()].get() / count);
+    }
+
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        for (CoapQos qos : CLASSES) {
+            String name = qos.name().toLowerCase();
+            metrics.put(name + ".executed", getExecuted(qos));
+            metrics.put(name + ".rejected", getRejected(qos));
+            metrics.put(name + ".queued", (long) getQueued(qos));
+            metrics.put(name + ".queueMicros", getAverageQueueMicros(qos));
+        }
+        return Collections.unmodifiableMap(metrics);
+    }
+
+}
@@ -0,0 +1,386 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 幂等请求（GET/FETCH）的响应缓存
+ * <p>
+ * 只对 {@link CoapMapping#cacheable()} 为 true 的路由生效，缓存 key 为 uri + query + Accept，
+ * 缓存时间取响应的 Max-Age。同一个 key 同一时刻只有一次 handler 调用，并发的请求等这次调用的结果。
+ * 同一路由上的 POST/PUT/DELETE 等非幂等请求会让该路由的缓存失效，handler 也可以主动调用
+ * {@link #invalidate(String)}。失效之前已经开始的调用在失效之后才响应时，响应照常发给请求方但不进缓存。
+ * <p>
+ * {@link CoapMapping#singleFlight()} 为 true 的路由只合并并发的相同请求，不缓存，见 {@link #coalesce}。
+ */
+@Component
+public class CoapResponseCache {
+
+    private static Logger logger = LoggerFactory.getLogger(CoapResponseCache.class);
+
+    /**
+     * 响应没有 Max-Age 时的默认值，RFC 7252 5.10.5
+     */
+    private static final long DEFAULT_MAX_AGE = OptionNumberRegistry.Defaults.MAX_AGE;
+
+    @Value("${coap.cache.capacity:1024}")
+    private int capacity = 1024;
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    private final ConcurrentHashMap<Key, Flight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * 每个路由失效的次数，和 {@link #epoch} 一起由 entries 的锁保护
+     */
+    private final Map<String, Long> generations = new HashMap<>();
+
+    /**
+     * {@link #invalidateAll()} 的次数
+     */
+    private long epoch;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong flightsStarted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * handler 调用
+     */
+    @FunctionalInterface
+    public interface Invoker {
+        void invoke(CoapExchange exchange) throws Exception;
+    }
+
+    /**
+     * 请求是否可以走缓存：GET/FETCH，且不是 observe 请求
+     */
+    public boolean isCacheable(Request request) {
+        CoAP.Code code = request.getCode();
+        return (code == CoAP.Code.GET || code == CoAP.Code.FETCH) && !request.getOptions().hasObserve();
+    }
+
+    /**
+     * 命中缓存时直接响应，否则调用 handler 并缓存其响应
+     */
+    public void execute(Exchange exchange, CoapResource resource, Invoker invoker) throws Exception {
+        Key key = new Key(exchange.getRequest());
+        while (true) {
+            Response cached = get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                new CoapExchange(exchange, resource).respond(cached);
+                return;
+            }
+            Flight flight = new Flight();
+            Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                misses.incrementAndGet();
+                invoke(key, flight, exchange, resource, invoker);
+                return;
+            }
+            if (existing.join(exchange, resource)) {
+                waits.incrementAndGet();
+                return;
+            }
+            // existing 刚结束，重新查一次缓存
+        }
+    }
+
+    /**
+     * 合并并发的相同请求（single-flight）：handler 执行期间到达的相同请求不再调用 handler，
+     * 等这次调用响应后各自收到一份拷贝；调用结束后到达的请求重新调用 handler，响应不会被保留。
+     * <p>
+     * 只适用于响应只取决于 uri、query、Accept 和 ETag 的幂等路由，不能按请求方的身份返回不同内容。
+     */
+    public void coalesce(Exchange exchange, CoapResource resource, Invoker invoker) throws Exception {
+        Key key = new Key(exchange.getRequest());
+        Flight flight = new Flight();
+        while (true) {
+            Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                flightsStarted.incrementAndGet();
+                invoke(key, flight, exchange, resource, invoker, false);
+                return;
+            }
+            if (existing.join(exchange, resource)) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            // existing 刚结束，重新发起一次调用
+        }
+    }
+
+    private void invoke(Key key, Flight flight, Exchange exchange, CoapResource resource, Invoker invoker)
+            throws Exception {
+        invoke(key, flight, exchange, resource, invoker, true);
+    }
+
+    private void invoke(Key key, Flight flight, Exchange exchange, CoapResource resource, Invoker invoker,
+                        boolean store) throws Exception {
+        long generation = store ? getGeneration(key.path) : 0;
+        try {
+            invoker.invoke(new CapturingCoapExchange(exchange, resource, response -> {
+                if (store && CoAP.ResponseCode.isSuccess(response.getCode())) {
+                    put(key, response, generation);
+                }
+                flights.remove(key, flight);
+                flight.complete(response);
+            }));
+        } catch (Exception e) {
+            flights.remove(key, flight);
+            // 等待的请求收到和发起请求相同的错误码
+            Response failure;
+            if (e instanceof CoapResponseException) {
+                failure = new Response(((CoapResponseException) e).getCode());
+                failure.setPayload(e.getMessage());
+            } else {
+                failure = new Response(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
+            }
+            flight.complete(failure);
+            throw e;
+        } finally {
+            // handler 异步响应时不再让新请求等它，已经等待的请求在它响应时照常收到结果
+            flights.remove(key, flight);
+        }
+    }
+
+    private Response get(Key key) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.isExpired()) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        return entry == null ? null : entry.toResponse();
+    }
+
+    /**
+     * 两个计数都只增不减，和不变说明调用期间这个路由没有失效过
+     */
+    private long getGeneration(String path) {
+        synchronized (entries) {
+            return epoch + generations.getOrDefault(path, 0L);
+        }
+    }
+
+    private void put(Key key, Response response, long generation) {
+        OptionSet options = response.getOptions();
+        long maxAge = options.hasMaxAge() ? options.getMaxAge() : DEFAULT_MAX_AGE;
+        if (maxAge <= 0) {
+            return;
+        }
+        Entry entry = new Entry(response, System.nanoTime() + TimeUnit.SECONDS.toNanos(maxAge));
+        synchronized (entries) {
+            if (epoch + generations.getOrDefault(key.path, 0L) != generation) {
+                // 调用期间路由失效了，响应可能是写之前的内容
+                logger.debug(">>>>> CACHE_STALE_FLIGHT: [{}]", key.path);
+                return;
+            }
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * 使某个路由的所有缓存失效
+     *
+     * @param path 路由，例如 "coap/foo"，首尾的 "/" 可有可无
+     */
+    public void invalidate(String path) {
+        String uriPath = trimPath(path);
+        synchronized (entries) {
+            generations.merge(uriPath, 1L, Long::sum);
+            entries.keySet().removeIf(key -> key.path.equals(uriPath));
+        }
+        logger.debug(">>>>> CACHE_INVALIDATE: [{}]", uriPath);
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            epoch++;
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * @return single-flight 路由实际调用 handler 的次数
+     */
+    public long getFlights() {
+        return flightsStarted.get();
+    }
+
+    /**
+     * @return single-flight 路由合并到进行中调用的请求数
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private static String trimPath(String path) {
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static final class Key {
+
+        private final String path;
+        private final String query;
+        private final int accept;
+        private final List<byte[]> etags;
+        private final byte[] fetchPayload;
+
+        private Key(Request request) {
+            OptionSet options = request.getOptions();
+            this.path = options.getUriPathString();
+            this.query = options.getUriQueryString();
+            this.accept = options.getAccept();
+            // 带 ETag 的请求可能得到 2.03，不能和不带 ETag 的请求共用响应
+            this.etags = options.getETags();
+            // FETCH 的 payload 是查询条件的一部分
+            this.fetchPayload = request.getCode() == CoAP.Code.FETCH ? request.getPayload() : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return accept == key.accept && path.equals(key.path) && query.equals(key.query)
+                    && sameETags(etags, key.etags) && Arrays.equals(fetchPayload, key.fetchPayload);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + query.hashCode();
+            result = 31 * result + accept;
+            for (byte[] etag : etags) {
+                result = 31 * result + Arrays.hashCode(etag);
+            }
+            result = 31 * result + Arrays.hashCode(fetchPayload);
+            return result;
+        }
+
+        private static boolean sameETags(List<byte[]> a, List<byte[]> b) {
+            if (a.size() != b.size()) {
+                return false;
+            }
+            for (int i = 0; i < a.size(); i++) {
+                if (!Arrays.equals(a.get(i), b.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Response response;
+        private final long expiresAt;
+
+        private Entry(Response response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expiresAt >= 0;
+        }
+
+        /**
+         * 每次命中都生成新的 Response，Max-Age 为剩余的缓存时间
+         */
+        private Response toResponse() {
+            Response copy = CapturingCoapExchange.copy(response);
+            long remaining = TimeUnit.NANOSECONDS.toSeconds(expiresAt - System.nanoTime());
+            copy.getOptions().setMaxAge(Math.max(0, remaining));
+            return copy;
+        }
+    }
+
+    /**
+     * 一次正在进行的 handler 调用，以及等它结果的请求
+     */
+    private static final class Flight {
+
+        private final List<CoapExchange> waiters = new ArrayList<>();
+        private Response response;
+
+        /**
+         * @return false 表示这次调用已经结束，调用方应重新查缓存
+         */
+        private synchronized boolean join(Exchange exchange, CoapResource resource) {
+            if (response != null) {
+                return false;
+            }
+            waiters.add(new CoapExchange(exchange, resource));
+            return true;
+        }
+
+        private void complete(Response response) {
+            List<CoapExchange> current;
+            synchronized (this) {
+                if (this.response != null) {
+                    return;
+                }
+                this.response = response;
+                current = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            current.forEach(waiter -> waiter.respond(CapturingCoapExchange.copy(response)));
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+
+/**
+ * 需要直接以某个响应码答复客户端的异常，例如 payload 无法解码
+ */
+public class CoapResponseException extends RuntimeException {
+
+    private final CoAP.ResponseCode code;
+
+    public CoapResponseException(CoAP.ResponseCode code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    public CoapResponseException(CoAP.ResponseCode code, String message, Throwable cause) {
+        super(message, cause);
+        this.code = code;
+    }
+
+    public CoAP.ResponseCode getCode() {
+        return code;
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.coap.example;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * 一条路由：url 到 handler 方法的映射
+ */
+final class CoapRoute {
+
+    /**
+     * 去掉首尾 "/" 的 url，例如 "coap/foo"
+     */
+    final String url;
+    final Object coapHandler;
+    final Method method;
+    final CoapMapping coapMapping;
+    final List<Integer> coapMethodValues;
+
+    CoapRoute(String url, Object coapHandler, Method method, CoapMapping coapMapping,
+              List<Integer> coapMethodValues) {
+        this.url = url;
+        this.coapHandler = coapHandler;
+        this.method = method;
+        this.coapMapping = coapMapping;
+        this.coapMethodValues = coapMethodValues;
+    }
+
+    @Override
+    public String toString() {
+        return url + " -> " + method;
+    }
+
+}
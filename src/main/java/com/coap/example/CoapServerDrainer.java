@@ -0,0 +1,124 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptorAdapter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 优雅停机时的排空状态
+ * <p>
+ * 作为 endpoint 的拦截器记录最近一次收到请求的时间以及未完成的 CON 响应（等 ACK 或重传中），
+ * 配合 {@link SimpleCoapServer} 记录的正在执行的 handler 数，判断是否已经排空。
+ * blockwise 传输的后续块会不断刷新最近活动时间，所以只要客户端还在取块，就会一直等到截止时间。
+ */
+public class CoapServerDrainer extends MessageInterceptorAdapter {
+
+    private volatile boolean draining;
+    private volatile long lastActivity = System.nanoTime();
+    private final AtomicInteger inFlightHandlers = new AtomicInteger();
+    private final AtomicInteger pendingResponses = new AtomicInteger();
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public void startDrain() {
+        draining = true;
+    }
+
+    public void enterHandler() {
+        inFlightHandlers.incrementAndGet();
+    }
+
+    public void exitHandler() {
+        inFlightHandlers.decrementAndGet();
+    }
+
+    public int getInFlightHandlers() {
+        return inFlightHandlers.get();
+    }
+
+    public int getPendingResponses() {
+        return pendingResponses.get();
+    }
+
+    /**
+     * 等待排空：没有执行中的 handler、没有未完成的 CON 响应，并且 quietMillis 内没有收到新请求
+     *
+     * @return false 表示到了截止时间仍未排空
+     */
+    public boolean awaitDrained(long timeoutMillis, long quietMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        while (true) {
+            long now = System.nanoTime();
+            if (inFlightHandlers.get() <= 0 && pendingResponses.get() <= 0 && now - lastActivity >= quietNanos) {
+                return true;
+            }
+            if (now - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(50, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now))));
+        }
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+        lastActivity = System.nanoTime();
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+        lastActivity = System.nanoTime();
+        if (response.getType() == CoAP.Type.CON) {
+            pendingResponses.incrementAndGet();
+            response.addMessageObserver(new MessageObserverAdapter() {
+
+                private final AtomicBoolean done = new AtomicBoolean();
+
+                private void done() {
+                    if (done.compareAndSet(false, true)) {
+                        pendingResponses.decrementAndGet();
+                    }
+                }
+
+                @Override
+                public void onAcknowledgement() {
+                    done();
+                }
+
+                @Override
+                public void onReject() {
+                    done();
+                }
+
+                @Override
+                public void onTimeout() {
+                    done();
+                }
+
+                @Override
+                public void onCancel() {
+                    done();
+                }
+
+                @Override
+                public void onSendError(Throwable error) {
+                    done();
+                }
+
+                @Override
+                public void onComplete() {
+                    done();
+                }
+            });
+        }
+    }
+
+}
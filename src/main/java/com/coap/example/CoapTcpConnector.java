@@ -0,0 +1,619 @@
+package com.coap.example;
+
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.EndpointContext;
+import org.eclipse.californium.elements.EndpointContextMatcher;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.eclipse.californium.elements.TcpEndpointContext;
+import org.eclipse.californium.elements.TlsEndpointContext;
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CoAP over TCP/TLS 的连接器，RFC 8323
+ * <p>
+ * 负责 RFC 8323 3.2 的分帧：按 Len/TKL 和扩展长度读出完整的消息交给协议栈，由 Californium 的
+ * TcpDataParser 解析；信令消息（7.xx）在这里处理，不进入协议栈：连接建立后先发送 CSM，
+ * 声明 Max-Message-Size，收到 Ping 回复 Pong，收到 Release/Abort 关闭连接。
+ * 还没有实现 BERT，CSM 里不声明 Block-Wise-Transfer，只记录对端是否声明了它。
+ * <p>
+ * 使用阻塞 IO，每个连接一个读线程，写入按连接加锁，同一连接上的多个请求可以流水线发送。
+ * bindAddress 不为 null 时监听端口，作为服务端；为 null 时作为客户端，发送时按需建立连接。
+ */
+public class CoapTcpConnector implements Connector {
+
+    private static Logger logger = LoggerFactory.getLogger(CoapTcpConnector.class);
+
+    private static final int CODE_CSM = 0xE1;
+    private static final int CODE_PING = 0xE2;
+    private static final int CODE_PONG = 0xE3;
+    private static final int CODE_RELEASE = 0xE4;
+    private static final int CODE_ABORT = 0xE5;
+    private static final int OPTION_MAX_MESSAGE_SIZE = 2;
+    private static final int OPTION_BLOCK_WISE_TRANSFER = 4;
+
+    /**
+     * 对端没有发送 CSM 时的 Max-Message-Size，RFC 8323 5.3.1
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1152;
+
+    private final InetSocketAddress bindAddress;
+    private final SSLContext sslContext;
+    private final int maxMessageSize;
+    private final int maxConnections;
+    private final long idleTimeout;
+    private final int connectTimeout;
+
+    private final ConcurrentHashMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    /**
+     * 正在建立的连接，按对端各自等待，连不上的对端不影响到其他对端的连接
+     */
+    private final ConcurrentHashMap<InetSocketAddress, CompletableFuture<Connection>> connecting =
+            new ConcurrentHashMap<>();
+
+    private volatile RawDataChannel receiver;
+    private volatile EndpointContextMatcher endpointContextMatcher;
+    private volatile boolean running;
+    private ExecutorService executor;
+    private ServerSocket serverSocket;
+
+    /**
+     * @param bindAddress    监听地址，null 表示只作为客户端
+     * @param sslContext     TLS 上下文，null 表示不加密的 TCP
+     * @param maxMessageSize 本端接收的最大消息字节数，在 CSM 中声明
+     * @param maxConnections 最多同时保持的连接数，超过时新连接被直接关闭
+     * @param idleTimeout    连接空闲多久后关闭，单位毫秒，0 表示不关闭
+     * @param connectTimeout 客户端建立连接的超时时间，单位毫秒
+     */
+    public CoapTcpConnector(InetSocketAddress bindAddress, SSLContext sslContext, int maxMessageSize,
+                            int maxConnections, long idleTimeout, int connectTimeout) {
+        this.bindAddress = bindAddress;
+        this.sslContext = sslContext;
+        this.maxMessageSize = maxMessageSize;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.connectTimeout = connectTimeout;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        executor = Executors.newCachedThreadPool(new NamedThreadFactory("CoapTcp#"));
+        if (bindAddress != null) {
+            serverSocket = sslContext == null ? new ServerSocket()
+                    : sslContext.getServerSocketFactory().createServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(bindAddress);
+        }
+        running = true;
+        if (serverSocket != null) {
+            executor.execute(this::accept);
+        }
+        logger.info(">>>>> TCP_CONNECTOR_START: [{}] [{}] MAX_MESSAGE_SIZE [{}]", getProtocol(), getAddress(),
+                maxMessageSize);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.warn(">>>>> TCP_CONNECTOR_CLOSE_ERROR: [{}]", e.getMessage());
+            }
+            serverSocket = null;
+        }
+        new ArrayList<>(connections.values()).forEach(connection -> connection.close(CODE_RELEASE));
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+    }
+
+    @Override
+    public void send(RawData message) {
+        if (!running) {
+            message.onError(new IOException("Connector not running"));
+            return;
+        }
+        InetSocketAddress peer = message.getInetSocketAddress();
+        Connection connection = connections.get(peer);
+        if (connection == null) {
+            if (bindAddress != null) {
+                message.onError(new IOException("No connection to " + peer));
+                return;
+            }
+            message.onConnecting();
+            try {
+                connection = connect(peer);
+            } catch (IOException e) {
+                message.onError(e);
+                return;
+            }
+        }
+        EndpointContextMatcher matcher = endpointContextMatcher;
+        if (matcher != null && !matcher.isToBeSent(message.getEndpointContext(), connection.context)) {
+            message.onError(new IOException("Endpoint context of " + peer + " does not match"));
+            return;
+        }
+        if (message.getSize() > connection.peerMaxMessageSize) {
+            message.onError(new IOException("Message of " + message.getSize() + " bytes exceeds Max-Message-Size "
+                    + connection.peerMaxMessageSize + " of " + peer));
+            return;
+        }
+        message.onContextEstablished(connection.context);
+        try {
+            connection.write(message.getBytes());
+            message.onSent();
+        } catch (IOException e) {
+            connection.close(CODE_ABORT);
+            message.onError(e);
+        }
+    }
+
+    @Override
+    public void setRawDataReceiver(RawDataChannel receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void setEndpointContextMatcher(EndpointContextMatcher matcher) {
+        this.endpointContextMatcher = matcher;
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        ServerSocket serverSocket = this.serverSocket;
+        if (serverSocket != null) {
+            return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+        }
+        return bindAddress == null ? new InetSocketAddress(0) : bindAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return sslContext == null ? "TCP" : "TLS";
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    private void accept() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn(">>>>> TCP_ACCEPT_ERROR: [{}]", e.getMessage());
+                }
+                continue;
+            }
+            if (connections.size() >= maxConnections) {
+                logger.warn(">>>>> TCP_CONNECTION_REJECT: [{}] CONNECTIONS [{}]", socket.getRemoteSocketAddress(),
+                        connections.size());
+                closeQuietly(socket);
+                continue;
+            }
+            // TLS 握手在读线程里做，不阻塞 accept
+            executor.execute(() -> {
+                try {
+                    open(socket).read();
+                } catch (IOException e) {
+                    logger.warn(">>>>> TCP_OPEN_ERROR: [{}] [{}]", socket.getRemoteSocketAddress(), e.getMessage());
+                    closeQuietly(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * 同一对端同时只建立一个连接，其他发送方等它的结果；不同对端的连接互不等待
+     */
+    private Connection connect(InetSocketAddress peer) throws IOException {
+        CompletableFuture<Connection> future = new CompletableFuture<>();
+        CompletableFuture<Connection> pending = connecting.putIfAbsent(peer, future);
+        if (pending != null) {
+            return await(peer, pending);
+        }
+        try {
+            Connection connection = connections.get(peer);
+            if (connection == null) {
+                connection = open(peer);
+            }
+            future.complete(connection);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            connecting.remove(peer, future);
+        }
+    }
+
+    private Connection open(InetSocketAddress peer) throws IOException {
+        Socket socket = sslContext == null ? new Socket() : sslContext.getSocketFactory().createSocket();
+        Connection connection;
+        try {
+            socket.connect(peer, connectTimeout);
+            connection = open(socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        executor.execute(connection::read);
+        try {
+            // 收到服务端的 CSM 之前，消息不能超过默认的 Max-Message-Size，RFC 8323 5.3.1
+            connection.csmReceived.await(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return connection;
+    }
+
+    private static Connection await(InetSocketAddress peer, CompletableFuture<Connection> pending)
+            throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + peer, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Failed to connect to " + peer, cause);
+        }
+    }
+
+    /**
+     * 建立连接的上下文，登记连接，发送本端的 CSM
+     */
+    private Connection open(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        InetSocketAddress peer = (InetSocketAddress) socket.getRemoteSocketAddress();
+        String connectionId = Integer.toHexString(connectionIds.incrementAndGet());
+        EndpointContext context;
+        if (socket instanceof SSLSocket) {
+            SSLSocket sslSocket = (SSLSocket) socket;
+            if (bindAddress != null) {
+                sslSocket.setWantClientAuth(true);
+            }
+            sslSocket.startHandshake();
+            SSLSession session = sslSocket.getSession();
+            Principal principal;
+            try {
+                principal = session.getPeerPrincipal();
+            } catch (SSLPeerUnverifiedException e) {
+                principal = null;
+            }
+            context = new TlsEndpointContext(peer, principal, connectionId, toHex(session.getId()),
+                    session.getCipherSuite());
+        } else {
+            context = new TcpEndpointContext(peer, connectionId);
+        }
+        Connection connection = new Connection(socket, peer, context);
+        Connection previous = connections.put(peer, connection);
+        if (previous != null) {
+            previous.close(CODE_ABORT);
+        }
+        connection.write(csm());
+        logger.debug(">>>>> TCP_CONNECTION_OPEN: [{}] [{}]", peer, connectionId);
+        return connection;
+    }
+
+    /**
+     * 本端的 CSM：Max-Message-Size，RFC 8323 5.3
+     */
+    private byte[] csm() {
+        ByteArrayOutputStream options = new ByteArrayOutputStream();
+        byte[] size = toUint(maxMessageSize);
+        options.write(OPTION_MAX_MESSAGE_SIZE << 4 | size.length);
+        options.write(size, 0, size.length);
+        return signal(CODE_CSM, new byte[0], options.toByteArray());
+    }
+
+    /**
+     * 信令消息的帧，选项部分都很短，长度直接放在 Len 里
+     */
+    private static byte[] signal(int code, byte[] token, byte[] options) {
+        byte[] frame = new byte[2 + token.length + options.length];
+        frame[0] = (byte) (options.length << 4 | token.length);
+        frame[1] = (byte) code;
+        System.arraycopy(token, 0, frame, 2, token.length);
+        System.arraycopy(options, 0, frame, 2 + token.length, options.length);
+        return frame;
+    }
+
+    private static byte[] toUint(int value) {
+        int length = value > 0xFFFFFF ? 4 : value > 0xFFFF ? 3 : value > 0xFF ? 2 : value > 0 ? 1 : 0;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (value >>> (8 * (length - 1 - i)));
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
+
+    private class Connection {
+
+        private final Socket socket;
+        private final InetSocketAddress peer;
+        private final EndpointContext context;
+        private final OutputStream out;
+        private final DataInputStream in;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile int peerMaxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+        private volatile boolean peerBert;
+        private final CountDownLatch csmReceived = new CountDownLatch(1);
+        private volatile boolean released;
+        private volatile boolean closed;
+
+        Connection(Socket socket, InetSocketAddress peer, EndpointContext context) throws IOException {
+            this.socket = socket;
+            this.peer = peer;
+            this.context = context;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (idleTimeout > 0) {
+                socket.setSoTimeout((int) Math.min(idleTimeout, Integer.MAX_VALUE));
+            }
+        }
+
+        synchronized void write(byte[] frame) throws IOException {
+            out.write(frame);
+            out.flush();
+            lastActivity = System.nanoTime();
+        }
+
+        void read() {
+            int reason = CODE_RELEASE;
+            try {
+                while (running && !closed && !released) {
+                    byte[] frame = readFrame();
+                    if (frame == null) {
+                        break;
+                    }
+                    lastActivity = System.nanoTime();
+                    int tkl = frame[0] & 0x0F;
+                    int header = headerLength(frame[0]);
+                    int code = frame[header] & 0xFF;
+                    if (code >>> 5 == 7) {
+                        handleSignal(code, frame, header, tkl);
+                    } else {
+                        RawDataChannel receiver = CoapTcpConnector.this.receiver;
+                        if (receiver != null) {
+                            receiver.receiveData(RawData.inbound(frame, context, false, System.nanoTime()));
+                        }
+                    }
+                }
+                if (released) {
+                    reason = 0;
+                }
+            } catch (EOFException e) {
+                logger.debug(">>>>> TCP_CONNECTION_EOF: [{}]", peer);
+                reason = 0;
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warn(">>>>> TCP_READ_ERROR: [{}] [{}]", peer, e.getMessage());
+                }
+                reason = CODE_ABORT;
+            } finally {
+                close(reason);
+            }
+        }
+
+        /**
+         * @return 完整的一帧，对端关闭或空闲超时时返回 null
+         */
+        private byte[] readFrame() throws IOException {
+            int first;
+            while (true) {
+                try {
+                    first = in.read();
+                    break;
+                } catch (SocketTimeoutException e) {
+                    if (System.nanoTime() - lastActivity >= TimeUnit.MILLISECONDS.toNanos(idleTimeout)) {
+                        logger.debug(">>>>> TCP_CONNECTION_IDLE: [{}]", peer);
+                        return null;
+                    }
+                }
+            }
+            if (first < 0) {
+                return null;
+            }
+            int len = first >>> 4;
+            int tkl = first & 0x0F;
+            long length;
+            byte[] extended;
+            if (len == 13) {
+                extended = new byte[1];
+                in.readFully(extended);
+                length = (extended[0] & 0xFF) + 13;
+            } else if (len == 14) {
+                extended = new byte[2];
+                in.readFully(extended);
+                length = ((extended[0] & 0xFF) << 8 | (extended[1] & 0xFF)) + 269;
+            } else if (len == 15) {
+                extended = new byte[4];
+                in.readFully(extended);
+                length = ((long) (extended[0] & 0xFF) << 24 | (extended[1] & 0xFF) << 16
+                        | (extended[2] & 0xFF) << 8 | (extended[3] & 0xFF)) + 65805;
+            } else {
+                extended = new byte[0];
+                length = len;
+            }
+            if (tkl > 8) {
+                throw new IOException("Invalid token length " + tkl);
+            }
+            if (length > maxMessageSize) {
+                write(signal(CODE_ABORT, new byte[0], new byte[0]));
+                throw new IOException("Message of " + length + " bytes exceeds " + maxMessageSize);
+            }
+            byte[] frame = new byte[1 + extended.length + 1 + tkl + (int) length];
+            frame[0] = (byte) first;
+            System.arraycopy(extended, 0, frame, 1, extended.length);
+            in.readFully(frame, 1 + extended.length, frame.length - 1 - extended.length);
+            return frame;
+        }
+
+        private void handleSignal(int code, byte[] frame, int header, int tkl) throws IOException {
+            switch (code) {
+                case CODE_CSM:
+                    readCsm(frame, header + 1 + tkl);
+                    break;
+                case CODE_PING:
+                    byte[] token = new byte[tkl];
+                    System.arraycopy(frame, header + 1, token, 0, tkl);
+                    write(signal(CODE_PONG, token, new byte[0]));
+                    break;
+                case CODE_PONG:
+                    break;
+                case CODE_RELEASE:
+                case CODE_ABORT:
+                    logger.debug(">>>>> TCP_CONNECTION_RELEASED: [{}] [{}]", peer,
+                            code == CODE_RELEASE ? "7.04" : "7.05");
+                    released = true;
+                    break;
+                default:
+                    logger.debug(">>>>> TCP_UNKNOWN_SIGNAL: [{}] [{}]", peer, code);
+            }
+        }
+
+        /**
+         * 选项的长度都来自对端，越界或使用保留值时按格式错误处理，中止连接
+         */
+        private void readCsm(byte[] frame, int offset) throws IOException {
+            int number = 0;
+            while (offset < frame.length && (frame[offset] & 0xFF) != 0xFF) {
+                int delta = (frame[offset] & 0xFF) >>> 4;
+                int length = frame[offset] & 0x0F;
+                offset++;
+                if (delta == 15 || length == 15) {
+                    throw new IOException("Malformed CSM option from " + peer);
+                }
+                if (delta == 13) {
+                    checkCsm(frame, offset, 1);
+                    delta = (frame[offset++] & 0xFF) + 13;
+                } else if (delta == 14) {
+                    checkCsm(frame, offset, 2);
+                    delta = ((frame[offset] & 0xFF) << 8 | (frame[offset + 1] & 0xFF)) + 269;
+                    offset += 2;
+                }
+                if (length == 13) {
+                    checkCsm(frame, offset, 1);
+                    length = (frame[offset++] & 0xFF) + 13;
+                } else if (length == 14) {
+                    checkCsm(frame, offset, 2);
+                    length = ((frame[offset] & 0xFF) << 8 | (frame[offset + 1] & 0xFF)) + 269;
+                    offset += 2;
+                }
+                checkCsm(frame, offset, length);
+                number += delta;
+                if (number == OPTION_MAX_MESSAGE_SIZE) {
+                    if (length > 4) {
+                        throw new IOException("Malformed Max-Message-Size from " + peer);
+                    }
+                    long value = 0;
+                    for (int i = 0; i < length; i++) {
+                        value = value << 8 | (frame[offset + i] & 0xFF);
+                    }
+                    peerMaxMessageSize = (int) Math.min(value, Integer.MAX_VALUE);
+                } else if (number == OPTION_BLOCK_WISE_TRANSFER) {
+                    peerBert = true;
+                }
+                offset += length;
+            }
+            csmReceived.countDown();
+            logger.debug(">>>>> TCP_CSM: [{}] MAX_MESSAGE_SIZE [{}] BERT [{}]", peer, peerMaxMessageSize, peerBert);
+        }
+
+        /**
+         * 从 offset 开始还要读 length 字节，超出帧时抛出异常
+         */
+        private void checkCsm(byte[] frame, int offset, int length) throws IOException {
+            if (length > frame.length - offset) {
+                throw new IOException("Truncated CSM from " + peer);
+            }
+        }
+
+        /**
+         * @param code 关闭前发送的信令，Release 或 Abort，0 表示不发送
+         */
+        void close(int code) {
+            connections.remove(peer, this);
+            closed = true;
+            if (socket.isClosed()) {
+                return;
+            }
+            if (code != 0) {
+                try {
+                    write(signal(code, new byte[0], new byte[0]));
+                } catch (IOException e) {
+                    // 连接可能已经断开
+                }
+            }
+            closeQuietly(socket);
+        }
+
+    }
+
+    private static int headerLength(byte first) {
+        int len = (first & 0xFF) >>> 4;
+        return len == 13 ? 2 : len == 14 ? 3 : len == 15 ? 5 : 1;
+    }
+
+}
@@ -0,0 +1,365 @@
+package com.coap.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按内容寻址的去重存储：内容按 SHA-256 只存一份，文件名只记录内容的摘要
+ * <p>
+ * 建在 {@link SegmentedUploadStore} 之上，内容存为 "blob:" + 摘要，文件名存为 "name:" + 文件名，值为 32 字节摘要。
+ * 文件名到摘要的映射和每份内容的引用计数都在内存中，启动时由段文件重建，没有文件名引用的内容在启动和覆盖时移除。
+ * 同一份内容的其它编码（例如压缩后的）存为 "variant:" + 编码 + ":" + 摘要，随内容一起移除。
+ * <p>
+ * 下载目录里的文件读过一次后内容也存为 blob，但文件名记在单独的命名空间里（{@link #putDownload}），
+ * 设备上传的同名文件不会替换下载的内容。下载目录本身就是来源，这部分文件名只在内存中，重启后重新读取；
+ * 同时记下读取时文件的修改时间和大小，文件被替换后重新读取。
+ */
+@Component
+public class ContentAddressedStore {
+
+    private static Logger logger = LoggerFactory.getLogger(ContentAddressedStore.class);
+
+    private static final String BLOB_PREFIX = "blob:";
+    private static final String NAME_PREFIX = "name:";
+    private static final String VARIANT_PREFIX = "variant:";
+
+    /**
+     * CoAP ETag 最长 8 字节，RFC 7252 5.10.6
+     */
+    public static final int ETAG_LENGTH = 8;
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    @Autowired
+    private SegmentedUploadStore segmentedUploadStore;
+
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Download> downloads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> references = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> variants = new ConcurrentHashMap<>();
+
+    private final AtomicLong logicalBytes = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+
+    public ContentAddressedStore() {
+    }
+
+    public ContentAddressedStore(SegmentedUploadStore segmentedUploadStore) {
+        this.segmentedUploadStore = segmentedUploadStore;
+    }
+
+    /**
+     * 重建文件名映射和引用计数，把直接存在段文件里的旧上传迁移过来，移除没有引用的内容
+     * <p>
+     * {@link SegmentedUploadStore#remove} 不写记录，迁移过的旧上传重启后还会出现；这时同名的 "name:" 映射已经存在，
+     * 只移除旧记录，不再用旧内容覆盖之后写入的内容
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        List<String> blobs = new ArrayList<>();
+        List<String> variantKeys = new ArrayList<>();
+        List<String> legacy = new ArrayList<>();
+        for (String key : segmentedUploadStore.filenames()) {
+            if (key.startsWith(NAME_PREFIX)) {
+                byte[] hash = segmentedUploadStore.get(key);
+                if (hash != null) {
+                    String hex = toHex(hash);
+                    names.put(key.substring(NAME_PREFIX.length()), hex);
+                    references.merge(hex, 1, Integer::sum);
+                }
+            } else if (key.startsWith(BLOB_PREFIX)) {
+                blobs.add(key);
+            } else if (key.startsWith(VARIANT_PREFIX)) {
+                variantKeys.add(key);
+            } else {
+                legacy.add(key);
+            }
+        }
+        int migrated = 0;
+        for (String key : legacy) {
+            byte[] data = names.containsKey(key) ? null : segmentedUploadStore.get(key);
+            if (data != null) {
+                put(key, data);
+                migrated++;
+            }
+            segmentedUploadStore.remove(key);
+        }
+        int orphans = 0;
+        for (String key : blobs) {
+            if (!references.containsKey(key.substring(BLOB_PREFIX.length()))) {
+                segmentedUploadStore.remove(key);
+                orphans++;
+            }
+        }
+        for (String key : variantKeys) {
+            int index = key.lastIndexOf(':');
+            String coding = key.substring(VARIANT_PREFIX.length(), index);
+            String hex = key.substring(index + 1);
+            if (references.containsKey(hex)) {
+                variants.computeIfAbsent(hex, k -> ConcurrentHashMap.newKeySet()).add(coding);
+            } else {
+                segmentedUploadStore.remove(key);
+                orphans++;
+            }
+        }
+        logger.info(">>>>> CONTENT_STORE_OPEN: FILES [{}] BLOBS [{}] MIGRATED [{}] ORPHANS [{}]", names.size(),
+                references.size(), migrated, orphans);
+    }
+
+    /**
+     * 写入文件，内容已经存在时只记录文件名
+     *
+     * @return 内容的 SHA-256
+     */
+    public byte[] put(String filename, byte[] data) throws IOException {
+        byte[] hash = SHA_256.get().digest(data);
+        return put(filename, data, hash);
+    }
+
+    /**
+     * @param hash 调用方在读取内容时已经算好的 SHA-256
+     */
+    public byte[] put(String filename, byte[] data, byte[] hash) throws IOException {
+        String hex = toHex(hash);
+        logicalBytes.addAndGet(data.length);
+        try {
+            acquire(hex, data);
+            // 同一个文件名的并发写入，内存中的映射和最后写入段文件的记录保持一致
+            String[] previous = new String[1];
+            names.compute(filename, (key, old) -> {
+                try {
+                    segmentedUploadStore.put(NAME_PREFIX + filename, hash);
+                } catch (IOException e) {
+                    release(hex);
+                    throw new UncheckedIOException(e);
+                }
+                previous[0] = old;
+                return hex;
+            });
+            if (previous[0] != null) {
+                release(previous[0]);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return hash;
+    }
+
+    /**
+     * 下载目录里的文件：内容和上传共用去重存储，文件名和上传的文件名分开，只记在内存中
+     *
+     * @param hash         调用方在读取内容时已经算好的 SHA-256
+     * @param lastModified 读取之前文件的修改时间（毫秒）
+     * @param size         读取之前文件的大小
+     */
+    public byte[] putDownload(String filename, byte[] data, byte[] hash, long lastModified, long size)
+            throws IOException {
+        String hex = toHex(hash);
+        try {
+            acquire(hex, data);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Download previous = downloads.put(filename, new Download(hex, lastModified, size));
+        if (previous != null) {
+            release(previous.hex);
+        }
+        return hash;
+    }
+
+    /**
+     * @param lastModified 文件当前的修改时间（毫秒）
+     * @param size         文件当前的大小
+     * @return 下载目录里的文件内容的 SHA-256，还没有读过或者文件读过之后变了时返回 null
+     */
+    public byte[] getDownloadHash(String filename, long lastModified, long size) {
+        Download download = downloads.get(filename);
+        if (download == null || download.lastModified != lastModified || download.size != size) {
+            return null;
+        }
+        return fromHex(download.hex);
+    }
+
+    /**
+     * 增加内容的引用，内容不存在时写入
+     */
+    private void acquire(String hex, byte[] data) {
+        references.compute(hex, (key, count) -> {
+            if (count != null) {
+                deduplicated.incrementAndGet();
+                return count + 1;
+            }
+            try {
+                segmentedUploadStore.put(BLOB_PREFIX + hex, data);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return 1;
+        });
+    }
+
+    private void release(String hex) {
+        references.computeIfPresent(hex, (key, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            segmentedUploadStore.remove(BLOB_PREFIX + hex);
+            Set<String> codings = variants.remove(hex);
+            if (codings != null) {
+                codings.forEach(coding -> segmentedUploadStore.remove(VARIANT_PREFIX + coding + ":" + hex));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return 文件内容，不存在时返回 null
+     */
+    public byte[] get(String filename) throws IOException {
+        String hex = names.get(filename);
+        return hex == null ? null : segmentedUploadStore.get(BLOB_PREFIX + hex);
+    }
+
+    /**
+     * @return 摘要对应的内容，不存在时返回 null
+     */
+    public byte[] getBlob(byte[] hash) throws IOException {
+        return segmentedUploadStore.get(BLOB_PREFIX + toHex(hash));
+    }
+
+    /**
+     * @return 摘要对应内容的大小，不存在时返回 -1
+     */
+    public int getBlobSize(byte[] hash) {
+        return segmentedUploadStore.size(BLOB_PREFIX + toHex(hash));
+    }
+
+    /**
+     * @param coding 编码名，例如 "deflate"
+     * @return 内容的该编码版本，没有时返回 null
+     */
+    public byte[] getVariant(byte[] hash, String coding) throws IOException {
+        String hex = toHex(hash);
+        Set<String> codings = variants.get(hex);
+        return codings == null || !codings.contains(coding) ? null
+                : segmentedUploadStore.get(VARIANT_PREFIX + coding + ":" + hex);
+    }
+
+    /**
+     * 保存内容的某种编码版本，内容已经不存在时忽略
+     */
+    public void putVariant(byte[] hash, String coding, byte[] data) throws IOException {
+        String hex = toHex(hash);
+        try {
+            // 和 release 互斥，避免内容刚被移除又写入它的编码版本
+            references.computeIfPresent(hex, (key, count) -> {
+                try {
+                    segmentedUploadStore.put(VARIANT_PREFIX + coding + ":" + hex, data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                variants.computeIfAbsent(hex, k -> ConcurrentHashMap.newKeySet()).add(coding);
+                return count;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 编码版本的 ETag，和原内容的 ETag 不同
+     */
+    public static byte[] toETag(byte[] hash, String coding) {
+        MessageDigest messageDigest = SHA_256.get();
+        messageDigest.update(hash);
+        messageDigest.update(coding.getBytes(StandardCharsets.UTF_8));
+        return toETag(messageDigest.digest());
+    }
+
+    public boolean contains(String filename) {
+        return names.containsKey(filename);
+    }
+
+    /**
+     * 用摘要的前 {@link #ETAG_LENGTH} 字节作为 ETag
+     */
+    public static byte[] toETag(byte[] hash) {
+        return Arrays.copyOf(hash, ETAG_LENGTH);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getFileCount() {
+        return names.size();
+    }
+
+    public int getBlobCount() {
+        return references.size();
+    }
+
+    public long getLogicalBytes() {
+        return logicalBytes.get();
+    }
+
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(chars);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static final class Download {
+
+        private final String hex;
+        private final long lastModified;
+        private final long size;
+
+        private Download(String hex, long lastModified, long size) {
+            this.hex = hex;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+
+}
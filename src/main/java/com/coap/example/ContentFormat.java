@@ -0,0 +1,15 @@
+package com.coap.example;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 绑定请求的 content-format，参数类型为 int，没有时为
+ * {@link org.eclipse.californium.core.coap.MediaTypeRegistry#UNDEFINED}
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface ContentFormat {
+}
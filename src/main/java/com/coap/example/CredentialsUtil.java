@@ -10,6 +10,7 @@ import org.eclipse.californium.scandium.dtls.pskstore.InMemoryPskStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.cert.Certificate;
@@ -328,4 +329,23 @@ public class CredentialsUtil {
             config.setSupportedCipherSuites(suites);
         }
     }
+
+    /**
+     * Create a SSL context for CoAP over TLS from the demo key store and trust store.
+     *
+     * @param certificateAlias alias for certificate to load as credentials.
+     * @return SSL context, the peers are verified against the demo trust store
+     * @throws IOException              if the stores are missing
+     * @throws GeneralSecurityException if the credentials are invalid
+     */
+    public static SSLContext createSslContext(String certificateAlias) throws IOException, GeneralSecurityException {
+        SslContextUtil.Credentials credentials = SslContextUtil.loadCredentials(
+                SslContextUtil.CLASSPATH_SCHEME + KEY_STORE_LOCATION, certificateAlias, KEY_STORE_PASSWORD,
+                KEY_STORE_PASSWORD);
+        Certificate[] trustedCertificates = SslContextUtil.loadTrustedCertificates(
+                SslContextUtil.CLASSPATH_SCHEME + TRUST_STORE_LOCATION, TRUST_NAME, TRUST_STORE_PASSWORD);
+        return SslContextUtil.createSSLContext(certificateAlias, credentials.getPrivateKey(),
+                credentials.getCertificateChain(), trustedCertificates);
+    }
+
 }
@@ -1,8 +1,15 @@
 package com.coap.example;
 
+import com.alibaba.fastjson.JSONObject;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @CoapHandler
 @CoapMapping("/coap")
@@ -10,22 +17,91 @@ public class DefaultCoapHandler {
 
     private static Logger logger = LoggerFactory.getLogger(DefaultCoapHandler.class);
 
+    @Autowired
+    private IngestionPipeline ingestionPipeline;
+
+    @Autowired
+    private SimpleCoapServer simpleCoapServer;
+
+    private volatile String config = "{}";
+
+    private final Map<String, String> deviceStates = new ConcurrentHashMap<>();
+
     @CoapMapping(value = "/bar")
-    public void bar(CoapExchange exchange) {
-        logger.info(">>>>> URL_PARAM: [{}]", exchange.getRequestOptions().getUriQueryString());
-        logger.info(">>>>> BAR: [{}]", exchange.getQueryParameter("bar"));
-        logger.info(">>>>> CONTENT_FORMAT: [{}]", exchange.getRequestOptions().getContentFormat());
+    public void bar(CoapExchange exchange, @CoapQuery String query, @CoapQuery("bar") String bar,
+                    @ContentFormat int contentFormat) {
+        logger.info(">>>>> URL_PARAM: [{}]", query);
+        logger.info(">>>>> BAR: [{}]", bar);
+        logger.info(">>>>> CONTENT_FORMAT: [{}]", contentFormat);
         logger.info(">>>>> REQUEST_BODY: [{}]", exchange.getRequestText());
         exchange.respond("BAR");
     }
 
     @CoapMapping("/baz")
-    public void baz(CoapExchange exchange) {
-        logger.info(">>>>> URL_PARAM: [{}]", exchange.getRequestOptions().getUriQueryString());
-        logger.info(">>>>> BAZ: [{}]", exchange.getQueryParameter("baz"));
-        logger.info(">>>>> CONTENT_FORMAT: [{}]", exchange.getRequestOptions().getContentFormat());
+    public void baz(CoapExchange exchange, @CoapQuery String query, @CoapQuery("baz") String baz,
+                    @ContentFormat int contentFormat) {
+        logger.info(">>>>> URL_PARAM: [{}]", query);
+        logger.info(">>>>> BAZ: [{}]", baz);
+        logger.info(">>>>> CONTENT_FORMAT: [{}]", contentFormat);
         logger.info(">>>>> REQUEST_BODY: [{}]", exchange.getRequestText());
         exchange.respond("BAZ");
     }
 
+    /**
+     * 遥测数据只入队，由写入管道异步落盘，立即响应 2.04
+     */
+    @CoapMapping(value = "/telemetry", method = CoapMethod.POST)
+    public void telemetry(CoapExchange exchange, @CoapPayload JSONObject record) {
+        if (record == null) {
+            exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Empty record");
+            return;
+        }
+        ingestionPipeline.ingest(exchange, record);
+    }
+
+    /**
+     * 设备配置：GET 读取，可以 observe，Accept 为增量格式的观察者只收到改动的部分；PUT 整体替换并通知观察者
+     */
+    @CoapMapping(value = "/config", method = {CoapMethod.GET, CoapMethod.PUT}, observable = true,
+            observeDelta = true)
+    public void config(CoapExchange exchange) {
+        if (exchange.getRequestCode() == CoAP.Code.PUT) {
+            String text = exchange.getRequestText();
+            if (text.isEmpty()) {
+                exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Empty config");
+                return;
+            }
+            config = text;
+            exchange.respond(CoAP.ResponseCode.CHANGED);
+            simpleCoapServer.changed("coap/config");
+            return;
+        }
+        exchange.respond(CoAP.ResponseCode.CONTENT, config, MediaTypeRegistry.APPLICATION_JSON);
+    }
+
+    /**
+     * 设备状态：所有设备共用一个通配资源，设备再多资源树上也只有一个节点，观察者按设备分组；
+     * PUT 更新一个设备的状态并只通知这个设备的观察者
+     */
+    @CoapMapping(value = "/devices/*", method = {CoapMethod.GET, CoapMethod.PUT}, observable = true)
+    public void device(CoapExchange exchange, @CoapPath(2) String deviceId) {
+        if (exchange.getRequestCode() == CoAP.Code.PUT) {
+            String text = exchange.getRequestText();
+            if (text.isEmpty()) {
+                exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Empty state");
+                return;
+            }
+            deviceStates.put(deviceId, text);
+            exchange.respond(CoAP.ResponseCode.CHANGED);
+            simpleCoapServer.changed("coap/devices/" + deviceId);
+            return;
+        }
+        String state = deviceStates.get(deviceId);
+        if (state == null) {
+            exchange.respond(CoAP.ResponseCode.NOT_FOUND);
+            return;
+        }
+        exchange.respond(CoAP.ResponseCode.CONTENT, state, MediaTypeRegistry.APPLICATION_JSON);
+    }
+
 }
@@ -0,0 +1,240 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * observe 增量通知的编解码
+ * <p>
+ * 通知的 payload 是一帧：
+ * <pre>
+ * type(1) content-format(2) [base-version-length(1) base-version] body
+ * </pre>
+ * type 为 0 时 body 是完整内容；为 1 时 body 是相对 base-version 那个版本的差量，由一串操作组成，
+ * 每个操作以 varint (len &lt;&lt; 1 | kind) 开头：kind 0 为插入，后跟 len 个字节；kind 1 为复制，后跟 varint 的
+ * base 内偏移，从 base 复制 len 个字节。响应的 ETag 是新版本的版本号。
+ * <p>
+ * 差量用 16 字节分块的滚动哈希在 base 中找相同的片段（类似 rsync），改动集中在几处的配置文档只需要传改动的部分。
+ */
+public final class DeltaCodec {
+
+    /**
+     * 自定义的增量通知格式，取自实验用的 content-format 范围，RFC 7252 12.3
+     */
+    public static final int APPLICATION_OBSERVE_DELTA = 65001;
+
+    private static final int FULL = 0;
+    private static final int DELTA = 1;
+    private static final int INSERT = 0;
+    private static final int COPY = 1;
+    private static final int BLOCK = 16;
+    private static final int PRIME = 31;
+    private static final int UNDEFINED_FORMAT = 0xffff;
+
+    private DeltaCodec() {
+    }
+
+    public static byte[] full(int contentFormat, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 3);
+        writeHeader(out, FULL, contentFormat);
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param baseVersion 客户端持有的版本号
+     * @param base        客户端持有的内容
+     */
+    public static byte[] delta(int contentFormat, byte[] baseVersion, byte[] base, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeHeader(out, DELTA, contentFormat);
+        out.write(baseVersion.length);
+        out.write(baseVersion, 0, baseVersion.length);
+        diff(base, content, out);
+        return out.toByteArray();
+    }
+
+    public static boolean isDelta(byte[] frame) {
+        return frame[0] == DELTA;
+    }
+
+    public static int getContentFormat(byte[] frame) {
+        int contentFormat = ((frame[1] & 0xff) << 8) | (frame[2] & 0xff);
+        return contentFormat == UNDEFINED_FORMAT ? MediaTypeRegistry.UNDEFINED : contentFormat;
+    }
+
+    /**
+     * @return 差量基于的版本号，完整内容时返回 null
+     */
+    public static byte[] getBaseVersion(byte[] frame) {
+        if (!isDelta(frame)) {
+            return null;
+        }
+        int length = frame[3] & 0xff;
+        return Arrays.copyOfRange(frame, 4, 4 + length);
+    }
+
+    /**
+     * 还原新版本的内容，调用方先用 {@link #getBaseVersion} 确认 current 就是差量基于的版本
+     *
+     * @param current 客户端持有的内容，完整内容的帧可以为 null
+     * @throws IllegalArgumentException 帧格式错误
+     */
+    public static byte[] apply(byte[] frame, byte[] current) {
+        if (!isDelta(frame)) {
+            return Arrays.copyOfRange(frame, 3, frame.length);
+        }
+        if (current == null) {
+            throw new IllegalArgumentException("Delta without base");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        buffer.position(4 + (frame[3] & 0xff));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(current.length + 64);
+        try {
+            while (buffer.hasRemaining()) {
+                long header = readVarint(buffer);
+                int length = (int) (header >>> 1);
+                if ((header & 1) == INSERT) {
+                    out.write(frame, buffer.position(), length);
+                    buffer.position(buffer.position() + length);
+                } else {
+                    int offset = (int) readVarint(buffer);
+                    if (offset < 0 || length < 0 || offset + length > current.length) {
+                        throw new IllegalArgumentException("Copy out of range " + offset + "+" + length);
+                    }
+                    out.write(current, offset, length);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated delta", e);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, int type, int contentFormat) {
+        int format = contentFormat < 0 ? UNDEFINED_FORMAT : contentFormat;
+        out.write(type);
+        out.write(format >>> 8);
+        out.write(format);
+    }
+
+    /**
+     * 贪心匹配：target 中每个位置的 16 字节窗口在 base 的分块索引里找到相同的块后，向前后尽量延伸
+     */
+    private static void diff(byte[] base, byte[] target, ByteArrayOutputStream out) {
+        if (base.length < BLOCK || target.length < BLOCK) {
+            insert(out, target, 0, target.length);
+            return;
+        }
+        int[] index = index(base);
+        int mask = index.length - 1;
+        int power = 1;
+        for (int k = 1; k < BLOCK; k++) {
+            power *= PRIME;
+        }
+        int pending = 0;
+        int position = 0;
+        int hash = hash(target, 0);
+        while (position + BLOCK <= target.length) {
+            int candidate = index[mix(hash) & mask] - 1;
+            if (candidate >= 0 && regionEquals(base, candidate, target, position)) {
+                int start = position;
+                int from = candidate;
+                while (start > pending && from > 0 && base[from - 1] == target[start - 1]) {
+                    start--;
+                    from--;
+                }
+                int end = position + BLOCK;
+                int to = candidate + BLOCK;
+                while (end < target.length && to < base.length && base[to] == target[end]) {
+                    end++;
+                    to++;
+                }
+                insert(out, target, pending, start - pending);
+                writeVarint(out, ((long) (end - start) << 1) | COPY);
+                writeVarint(out, from);
+                pending = end;
+                position = end;
+                if (position + BLOCK <= target.length) {
+                    hash = hash(target, position);
+                }
+                continue;
+            }
+            if (position + BLOCK < target.length) {
+                hash = (hash - target[position] * power) * PRIME + target[position + BLOCK];
+            }
+            position++;
+        }
+        insert(out, target, pending, target.length - pending);
+    }
+
+    /**
+     * base 按 16 字节分块，块的哈希到块起始偏移 + 1 的开放表，冲突时保留先出现的块
+     */
+    private static int[] index(byte[] base) {
+        int blocks = base.length / BLOCK;
+        int[] index = new int[Integer.highestOneBit(Math.max(1, blocks) * 2 - 1) << 1];
+        int mask = index.length - 1;
+        for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+            int slot = mix(hash(base, offset)) & mask;
+            if (index[slot] == 0) {
+                index[slot] = offset + 1;
+            }
+        }
+        return index;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int k = 0; k < BLOCK; k++) {
+            hash = hash * PRIME + bytes[offset + k];
+        }
+        return hash;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean regionEquals(byte[] base, int from, byte[] target, int position) {
+        for (int k = 0; k < BLOCK; k++) {
+            if (base[from + k] != target[position + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void insert(ByteArrayOutputStream out, byte[] bytes, int offset, int length) {
+        if (length > 0) {
+            writeVarint(out, ((long) length << 1) | INSERT);
+            out.write(bytes, offset, length);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+}
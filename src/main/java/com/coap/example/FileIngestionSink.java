@@ -0,0 +1,56 @@
+package com.coap.example;
+
+import com.alibaba.fastjson.JSON;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * 默认的写入管道下游：每条记录一行追加写入本地文件，byte[] 原样写入，其它对象写成 JSON
+ * <p>
+ * 一批记录拼成一个缓冲区后一次写入，fsync 为 true 时每批写完再刷盘。
+ */
+public class FileIngestionSink implements IngestionSink {
+
+    private final FileChannel fileChannel;
+    private final boolean fsync;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+
+    public FileIngestionSink(Path path, boolean fsync) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.fsync = fsync;
+    }
+
+    @Override
+    public void write(List<Object> records) throws IOException {
+        buffer.reset();
+        for (Object record : records) {
+            buffer.write(record instanceof byte[] ? (byte[]) record : JSON.toJSONBytes(record));
+            buffer.write('\n');
+        }
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer.toByteArray());
+        while (byteBuffer.hasRemaining()) {
+            fileChannel.write(byteBuffer);
+        }
+        if (fsync) {
+            fileChannel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+
+}
@@ -4,6 +4,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 
 /**
  * IO 工具类
@@ -75,4 +77,17 @@ public class IOUtil {
         return bytes;
     }
 
+    /**
+     * 从文件获取其内容的字节数组，读取的同时更新摘要
+     *
+     * @param filePath      文件路径
+     * @param messageDigest 摘要，读完后调用 digest() 得到文件内容的摘要
+     * @return 文件内容的字节数组
+     */
+    public static byte[] file2Bytes(String filePath, MessageDigest messageDigest) throws IOException {
+        try (InputStream inputStream = new DigestInputStream(new FileInputStream(filePath), messageDigest)) {
+            return stream2Bytes(inputStream);
+        }
+    }
+
 }
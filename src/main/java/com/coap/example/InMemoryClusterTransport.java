@@ -0,0 +1,54 @@
+package com.coap.example;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 同一个进程内的集群通道：同一个 {@link Group} 里的节点直接在发送线程上互相投递消息
+ */
+public class InMemoryClusterTransport implements ClusterTransport {
+
+    private final Group group;
+    private volatile Consumer<byte[]> receiver;
+
+    private InMemoryClusterTransport(Group group) {
+        this.group = group;
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+        group.members.add(this);
+    }
+
+    @Override
+    public void send(byte[] message) {
+        for (InMemoryClusterTransport member : group.members) {
+            Consumer<byte[]> receiver = member.receiver;
+            if (member != this && receiver != null) {
+                receiver.accept(message.clone());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        group.members.remove(this);
+        receiver = null;
+    }
+
+    /**
+     * 一组互相可见的节点
+     */
+    public static class Group {
+
+        private final List<InMemoryClusterTransport> members = new CopyOnWriteArrayList<>();
+
+        public InMemoryClusterTransport join() {
+            return new InMemoryClusterTransport(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 写入管道（write-behind）：handler 把解码后的记录放进有界的无锁队列后立即响应 2.04，
+ * 单独的消费线程按批取出交给 {@link IngestionSink}，请求延迟不再受存储延迟影响。
+ * <p>
+ * 队列满时以 5.03 + Max-Age 拒绝，让客户端过一会儿再发。记录在响应之后才落盘，进程崩溃时队列中的记录会丢失。
+ */
+@Component
+public class IngestionPipeline {
+
+    private static Logger logger = LoggerFactory.getLogger(IngestionPipeline.class);
+
+    @Autowired(required = false)
+    private IngestionSink ingestionSink;
+
+    @Value("${coap.ingest.capacity:65536}")
+    private int capacity = 65536;
+
+    @Value("${coap.ingest.batch-size:512}")
+    private int batchSize = 512;
+
+    @Value("${coap.ingest.max-age:5}")
+    private long maxAge = 5;
+
+    @Value("${coap.ingest.file:ingest/records.log}")
+    private String file = "ingest/records.log";
+
+    @Value("${coap.ingest.fsync:false}")
+    private boolean fsync;
+
+    private MpscArrayQueue<Object> queue;
+    private Thread consumer;
+    private volatile boolean running;
+
+    /**
+     * 已经看到 running 为 true、还没有放完记录的 offer 数，消费线程要等它们放完才退出
+     */
+    private final AtomicInteger offering = new AtomicInteger();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public IngestionPipeline() {
+    }
+
+    public IngestionPipeline(IngestionSink ingestionSink, int capacity, int batchSize, long maxAge) {
+        this.ingestionSink = ingestionSink;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.maxAge = maxAge;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (ingestionSink == null) {
+            ingestionSink = new FileIngestionSink(Paths.get(file), fsync);
+        }
+        queue = new MpscArrayQueue<>(capacity);
+        running = true;
+        consumer = new Thread(this::consume, "CoapIngestion");
+        consumer.setDaemon(true);
+        consumer.start();
+        logger.info(">>>>> INGESTION_START: CAPACITY [{}] BATCH_SIZE [{}] SINK [{}]", queue.capacity(), batchSize,
+                ingestionSink.getClass().getSimpleName());
+    }
+
+    /**
+     * 停止接收，等消费线程写完队列中剩余的记录并退出后关闭下游
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(consumer);
+        consumer.join(TimeUnit.SECONDS.toMillis(30));
+        if (consumer.isAlive()) {
+            // 消费线程还在写，这时关闭下游会和写入并发，交给进程退出处理
+            logger.warn(">>>>> INGESTION_STOP_TIMEOUT: QUEUE [{}]", queue.size());
+        } else {
+            try {
+                ingestionSink.close();
+            } catch (Exception e) {
+                logger.error(">>>>> INGESTION_CLOSE_ERROR: [{}]", e.getMessage());
+            }
+        }
+        logger.info(">>>>> INGESTION_STOP: ACCEPTED [{}] REJECTED [{}] WRITTEN [{}] FAILED [{}] BATCHES [{}]",
+                accepted.get(), rejected.get(), written.get(), failed.get(), batches.get());
+    }
+
+    /**
+     * @return false 表示队列已满或管道已停止，记录没有被接收
+     */
+    public boolean offer(Object record) {
+        offering.incrementAndGet();
+        try {
+            if (running && queue.offer(record)) {
+                accepted.incrementAndGet();
+                return true;
+            }
+        } finally {
+            offering.decrementAndGet();
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 接收记录并响应：成功为 2.04，队列满为 5.03 + Max-Age
+     */
+    public void ingest(CoapExchange exchange, Object record) {
+        if (offer(record)) {
+            exchange.respond(CoAP.ResponseCode.CHANGED);
+        } else {
+            exchange.setMaxAge(maxAge);
+            exchange.respond(CoAP.ResponseCode.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void consume() {
+        List<Object> batch = new ArrayList<>(batchSize);
+        while (true) {
+            int count = queue.drain(batch::add, batchSize);
+            if (count > 0) {
+                write(batch);
+                batch.clear();
+            } else if (running || offering.get() > 0) {
+                // 停止之后还要等已经看到 running 为 true 的 offer 放完
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            } else if (queue.size() == 0) {
+                return;
+            }
+        }
+    }
+
+    private void write(List<Object> batch) {
+        try {
+            ingestionSink.write(batch);
+            written.addAndGet(batch.size());
+        } catch (Exception e) {
+            failed.addAndGet(batch.size());
+            logger.error(">>>>> INGESTION_WRITE_ERROR: RECORDS [{}] [{}]", batch.size(), e.getMessage());
+        }
+        batches.incrementAndGet();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.coap.example;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 写入管道的下游，{@link IngestionPipeline} 的消费线程每次交给它一批记录
+ * <p>
+ * 容器中有 IngestionSink 类型的 bean 时使用它，否则使用 {@link FileIngestionSink}。
+ */
+public interface IngestionSink extends AutoCloseable {
+
+    /**
+     * 只会被消费线程调用，抛出异常时这一批记录计为失败，不会重试
+     */
+    void write(List<Object> records) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+}
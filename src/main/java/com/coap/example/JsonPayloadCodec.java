@@ -0,0 +1,36 @@
+package com.coap.example;
+
+import com.alibaba.fastjson.JSON;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Type;
+
+/**
+ * application/json，使用 fastjson 的字节数组解析，省去 payload 到 String 的解码
+ */
+@Component
+public class JsonPayloadCodec implements PayloadCodec {
+
+    @Override
+    public int getContentFormat() {
+        return MediaTypeRegistry.APPLICATION_JSON;
+    }
+
+    @Override
+    public boolean supports(Type type) {
+        return true;
+    }
+
+    @Override
+    public Object decode(byte[] payload, Type type) {
+        return JSON.parseObject(payload, type);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        // fastjson 的 SerializeWriter 复用线程内的缓冲区
+        return JSON.toJSONBytes(value);
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 只读的 link-format 资源，Uri-Query 作为过滤条件交给 {@link ResourceDirectory}：
+ * /.well-known/core、/rd-lookup/res、/rd-lookup/ep
+ */
+class LinkFormatCoapResource extends SimpleCoapResource {
+
+    private final Function<List<String>, String> lookup;
+
+    LinkFormatCoapResource(String name, String resourceType, Function<List<String>, String> lookup) {
+        super(name);
+        this.lookup = lookup;
+        if (resourceType != null) {
+            getAttributes().addResourceType(resourceType);
+        }
+        getAttributes().addContentType(MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+    }
+
+    @Override
+    public void handleGET(CoapExchange exchange) {
+        OptionSet options = exchange.getRequestOptions();
+        if (options.hasAccept() && options.getAccept() != MediaTypeRegistry.APPLICATION_LINK_FORMAT) {
+            exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE);
+            return;
+        }
+        String links;
+        try {
+            links = lookup.apply(options.getUriQuery());
+        } catch (IllegalArgumentException e) {
+            exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "Invalid count or page");
+            return;
+        }
+        exchange.respond(CoAP.ResponseCode.CONTENT, links, MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+    }
+
+}
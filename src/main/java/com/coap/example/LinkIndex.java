@@ -0,0 +1,212 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.server.resources.ResourceAttributes;
+
+import java.util.*;
+
+/**
+ * link-format 链接的二级索引
+ * <p>
+ * 每个链接在加入时生成好自己的 link-format 片段（{@code <href>;rt="..";if=".."}），之后不再序列化；
+ * 每个属性名（href、rt、if、ep 以及链接上的任意属性）一个按属性值排序的索引，属性值到带有这个值的链接。
+ * rt、if 这类空格分隔的多个值分别建索引，没有值的属性（例如 obs）按空字符串建索引。
+ * <p>
+ * 过滤查询（RFC 6690 4.1，{@code rt=temperature}、{@code href=/sensors/*}、{@code obs}）先在索引里取
+ * 每个过滤条件的候选集合，从最小的集合出发逐个检查其余条件，代价和结果数成正比，和链接总数无关。
+ * 没有过滤条件时返回缓存的完整 link-format，链接变化后第一次查询时重新拼接。
+ */
+class LinkIndex {
+
+    static final String HREF = "href";
+
+    private final Map<String, Link> links = new LinkedHashMap<>();
+    private final Map<String, TreeMap<String, Set<Link>>> index = new HashMap<>();
+    private String serialized;
+
+    /**
+     * 加入链接，替换同一个 key 的旧链接
+     */
+    synchronized void put(Link link) {
+        remove(link.key);
+        links.put(link.key, link);
+        link.values.forEach((name, values) -> {
+            TreeMap<String, Set<Link>> valueIndex = index.computeIfAbsent(name, n -> new TreeMap<>());
+            for (String value : values) {
+                valueIndex.computeIfAbsent(value, v -> new LinkedHashSet<>()).add(link);
+            }
+        });
+        serialized = null;
+    }
+
+    synchronized Link remove(String key) {
+        Link link = links.remove(key);
+        if (link == null) {
+            return null;
+        }
+        link.values.forEach((name, values) -> {
+            TreeMap<String, Set<Link>> valueIndex = index.get(name);
+            for (String value : values) {
+                Set<Link> matched = valueIndex.get(value);
+                matched.remove(link);
+                if (matched.isEmpty()) {
+                    valueIndex.remove(value);
+                }
+            }
+            if (valueIndex.isEmpty()) {
+                index.remove(name);
+            }
+        });
+        serialized = null;
+        return link;
+    }
+
+    synchronized int size() {
+        return links.size();
+    }
+
+    /**
+     * @param filters Uri-Query，形如 "name=value"、"name=prefix*" 或 "name"，不认识的属性名没有结果
+     */
+    synchronized List<Link> query(List<String> filters) {
+        if (filters.isEmpty()) {
+            return new ArrayList<>(links.values());
+        }
+        List<Filter> parsed = new ArrayList<>(filters.size());
+        filters.forEach(filter -> parsed.add(new Filter(filter)));
+
+        // 精确匹配的候选集合直接可得，从最小的一个出发；只有前缀条件时取第一个前缀条件的候选
+        Collection<Link> candidates = null;
+        for (Filter filter : parsed) {
+            if (!filter.prefix) {
+                Collection<Link> matched = filter.candidates();
+                if (candidates == null || matched.size() < candidates.size()) {
+                    candidates = matched;
+                }
+            }
+        }
+        if (candidates == null) {
+            candidates = parsed.get(0).candidates();
+        }
+        List<Link> results = new ArrayList<>(candidates.size());
+        for (Link link : candidates) {
+            if (parsed.stream().allMatch(filter -> filter.matches(link))) {
+                results.add(link);
+            }
+        }
+        return results;
+    }
+
+    synchronized String serialize(List<String> filters) {
+        if (filters.isEmpty()) {
+            if (serialized == null) {
+                serialized = join(links.values());
+            }
+            return serialized;
+        }
+        return join(query(filters));
+    }
+
+    private static String join(Collection<Link> links) {
+        StringBuilder builder = new StringBuilder();
+        for (Link link : links) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(link.fragment);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 一条链接：片段在构造时生成，索引的属性值可以多于片段里的属性（例如注册时的 ep、d）
+     */
+    static class Link {
+
+        final String key;
+        final String href;
+        final String fragment;
+        private final Map<String, List<String>> values = new HashMap<>();
+
+        /**
+         * @param attributes 写进片段并建索引的属性
+         * @param indexed    只建索引、不写进片段的属性
+         * @param suffix     追加在片段末尾的内容，例如 {@code ;anchor="coap://..."}
+         */
+        Link(String key, String href, ResourceAttributes attributes, Map<String, String> indexed, String suffix) {
+            this.key = key;
+            this.href = href;
+            this.fragment = "<" + href + ">" + LinkFormat.serializeAttributes(attributes) + suffix;
+            values.put(HREF, Collections.singletonList(href));
+            for (String name : attributes.getAttributeKeySet()) {
+                List<String> split = new ArrayList<>();
+                for (String value : attributes.getAttributeValues(name)) {
+                    split.addAll(Arrays.asList(value.trim().split("\\s+")));
+                }
+                values.put(name, split.isEmpty() ? Collections.singletonList("") : split);
+            }
+            indexed.forEach((name, value) -> values.put(name, Collections.singletonList(value)));
+        }
+
+        @Override
+        public String toString() {
+            return fragment;
+        }
+
+    }
+
+    private class Filter {
+
+        private final String name;
+        private final String value;
+        private final boolean prefix;
+
+        Filter(String filter) {
+            int separator = filter.indexOf('=');
+            if (separator < 0) {
+                // 只要求有这个属性
+                name = filter;
+                value = "";
+                prefix = true;
+                return;
+            }
+            name = filter.substring(0, separator);
+            String value = filter.substring(separator + 1);
+            if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            prefix = value.endsWith("*");
+            this.value = prefix ? value.substring(0, value.length() - 1) : value;
+        }
+
+        Collection<Link> candidates() {
+            TreeMap<String, Set<Link>> valueIndex = index.get(name);
+            if (valueIndex == null) {
+                return Collections.emptySet();
+            }
+            if (!prefix) {
+                return valueIndex.getOrDefault(value, Collections.emptySet());
+            }
+            Set<Link> matched = new LinkedHashSet<>();
+            for (Set<Link> linkSet : valueIndex.subMap(value, true, value + Character.MAX_VALUE, false).values()) {
+                matched.addAll(linkSet);
+            }
+            return matched;
+        }
+
+        boolean matches(Link link) {
+            List<String> values = link.values.get(name);
+            if (values == null) {
+                return false;
+            }
+            for (String candidate : values) {
+                if (prefix ? candidate.startsWith(value) : candidate.equals(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+}
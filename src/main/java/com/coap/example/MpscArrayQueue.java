@@ -0,0 +1,87 @@
+package com.coap.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 有界、无锁的多生产者单消费者队列
+ * <p>
+ * 生产者用 CAS 抢占下标后写入槽位，消费者按顺序取出并清空槽位后再推进消费下标，
+ * 生产者只有在消费下标推进之后才会复用该槽位。{@link #drain(Consumer, int)} 只能由同一个线程调用。
+ */
+final class MpscArrayQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final int capacity;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    /**
+     * @param capacity 容量，向上取整到 2 的幂
+     */
+    MpscArrayQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.capacity = size;
+    }
+
+    /**
+     * @return false 表示队列已满
+     */
+    boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index - consumerIndex.get() >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(index, index + 1));
+        buffer.lazySet((int) index & mask, e);
+        return true;
+    }
+
+    /**
+     * 取出最多 limit 个元素；遇到已抢占下标但还没写入的槽位就停下，留给下一次
+     *
+     * @return 取出的个数
+     */
+    int drain(Consumer<E> consumer, int limit) {
+        long index = consumerIndex.get();
+        int count = 0;
+        while (count < limit) {
+            int offset = (int) index & mask;
+            E e = buffer.get(offset);
+            if (e == null) {
+                break;
+            }
+            buffer.lazySet(offset, null);
+            index++;
+            consumerIndex.lazySet(index);
+            consumer.accept(e);
+            count++;
+        }
+        return count;
+    }
+
+    int size() {
+        long size = producerIndex.get() - consumerIndex.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+}
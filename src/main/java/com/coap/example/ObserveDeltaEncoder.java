@@ -0,0 +1,268 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * observe 通知的增量编码
+ * <p>
+ * 只对 {@link CoapMapping#observeDelta()} 为 true 的路由、且请求的 Accept 为
+ * {@link DeltaCodec#APPLICATION_OBSERVE_DELTA} 的客户端生效，其它客户端照常收到完整内容。
+ * 服务端为每个观察者（对端地址 + uri）记住它确认收到的最后一个版本，下一次通知只发相对这个版本的差量，
+ * 见 {@link DeltaCodec}：
+ * <ul>
+ * <li>CON 通知在收到 ACK 后、NON 通知和捎带响应在发出后才算客户端收到了这个版本；</li>
+ * <li>客户端发现差量基于的版本和自己持有的不一致（例如 NON 通知丢了）时重新注册，
+ * 注册请求带上自己持有版本的 ETag，服务端还记得这个版本时从它开始发差量，否则发完整内容；</li>
+ * <li>不带 Observe 的 GET 总是收到完整内容，blockwise 的后续块和第一块一致。</li>
+ * </ul>
+ * 记住的版本总共不超过 maxMemory 字节，超过时淘汰最久没有通知的观察者，被淘汰的观察者下次收到完整内容。
+ */
+@Component
+public class ObserveDeltaEncoder {
+
+    private static Logger logger = LoggerFactory.getLogger(ObserveDeltaEncoder.class);
+
+    @Value("${coap.observe.delta.max-memory:16777216}")
+    private long maxMemory = 16 * 1024 * 1024;
+
+    private final LinkedHashMap<String, Version> versions = new LinkedHashMap<>(16, 0.75f, true);
+    private long memory;
+
+    private final AtomicLong fullNotifications = new AtomicLong();
+    private final AtomicLong deltaNotifications = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong contentBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+
+    public ObserveDeltaEncoder() {
+    }
+
+    public ObserveDeltaEncoder(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * 客户端是否要求增量编码
+     */
+    public boolean accepts(Request request) {
+        OptionSet options = request.getOptions();
+        return options.hasAccept() && options.getAccept() == DeltaCodec.APPLICATION_OBSERVE_DELTA;
+    }
+
+    /**
+     * 调用 handler，把它的响应编码成 {@link DeltaCodec} 的帧
+     * <p>
+     * handler 看到的请求没有 Accept 和 ETag，按默认格式响应完整内容；handler 设置的 ETag 被忽略，
+     * 响应的 ETag 是内容的版本号
+     */
+    public void execute(Exchange exchange, CoapResource resource, CoapResponseCache.Invoker invoker)
+            throws Exception {
+        invoker.invoke(new DeltaCoapExchange(exchange, resource));
+    }
+
+    private Response encode(Exchange exchange, Response response) {
+        byte[] content = response.getPayload();
+        int contentFormat = response.getOptions().getContentFormat();
+        byte[] version = ContentAddressedStore.toETag(ContentAddressedStore.newDigest().digest(content));
+        Request request = exchange.getRequest();
+        ObserveRelation relation = exchange.getRelation();
+        String key = null;
+        byte[] frame;
+        if (relation == null || relation.isCanceled() || !request.getOptions().hasObserve()) {
+            frame = DeltaCodec.full(contentFormat, content);
+        } else {
+            key = key(request);
+            Version base = get(key);
+            if (base != null && !relation.isEstablished() && !request.getOptions().containsETag(base.version)) {
+                // 重新注册的客户端持有的不是这个版本
+                resyncs.incrementAndGet();
+                base = null;
+            }
+            if (base == null) {
+                frame = DeltaCodec.full(contentFormat, content);
+            } else {
+                frame = DeltaCodec.delta(contentFormat, base.version, base.content, content);
+                if (frame.length >= content.length + 3) {
+                    // 改动太大，差量不比完整内容小
+                    frame = DeltaCodec.full(contentFormat, content);
+                }
+            }
+        }
+        (DeltaCodec.isDelta(frame) ? deltaNotifications : fullNotifications).incrementAndGet();
+        contentBytes.addAndGet(content.length);
+        wireBytes.addAndGet(frame.length);
+
+        Response encoded = new Response(response.getCode());
+        encoded.setOptions(new OptionSet(response.getOptions()));
+        encoded.getOptions().setContentFormat(DeltaCodec.APPLICATION_OBSERVE_DELTA);
+        encoded.getOptions().clearETags();
+        encoded.getOptions().addETag(version);
+        encoded.setPayload(frame);
+        response.getMessageObservers().forEach(encoded::addMessageObserver);
+        if (key != null) {
+            String observer = key;
+            Version sent = new Version(version, content);
+            encoded.addMessageObserver(new MessageObserverAdapter() {
+                @Override
+                public void onSent() {
+                    if (encoded.getType() != CoAP.Type.CON) {
+                        put(observer, sent);
+                    }
+                }
+
+                @Override
+                public void onAcknowledgement() {
+                    put(observer, sent);
+                }
+            });
+        }
+        return encoded;
+    }
+
+    private static String key(Request request) {
+        return request.getSourceContext().getPeerAddress() + "/" + request.getOptions().getUriPathString() + "?"
+                + request.getOptions().getUriQueryString();
+    }
+
+    private Version get(String key) {
+        synchronized (versions) {
+            return versions.get(key);
+        }
+    }
+
+    private void put(String key, Version version) {
+        synchronized (versions) {
+            Version previous = versions.put(key, version);
+            memory += version.size() - (previous == null ? 0 : previous.size());
+            Iterator<Version> iterator = versions.values().iterator();
+            while (memory > maxMemory && iterator.hasNext()) {
+                memory -= iterator.next().size();
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public int getObservers() {
+        synchronized (versions) {
+            return versions.size();
+        }
+    }
+
+    public long getMemory() {
+        synchronized (versions) {
+            return memory;
+        }
+    }
+
+    public long getFullNotifications() {
+        return fullNotifications.get();
+    }
+
+    public long getDeltaNotifications() {
+        return deltaNotifications.get();
+    }
+
+    public long getResyncs() {
+        return resyncs.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("full", getFullNotifications());
+        metrics.put("delta", getDeltaNotifications());
+        metrics.put("resyncs", getResyncs());
+        metrics.put("evictions", getEvictions());
+        metrics.put("observers", (long) getObservers());
+        metrics.put("memory", getMemory());
+        metrics.put("contentBytes", contentBytes.get());
+        metrics.put("wireBytes", wireBytes.get());
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * 观察者持有的版本
+     */
+    private static class Version {
+
+        private final byte[] version;
+        private final byte[] content;
+
+        Version(byte[] version, byte[] content) {
+            this.version = version;
+            this.content = content;
+        }
+
+        long size() {
+            return version.length + content.length;
+        }
+
+    }
+
+    /**
+     * 对 handler 隐藏 Accept 和 ETag，在响应时编码
+     */
+    private class DeltaCoapExchange extends CoapExchange {
+
+        private final Exchange exchange;
+        private OptionSet requestOptions;
+
+        DeltaCoapExchange(Exchange exchange, CoapResource resource) {
+            super(exchange, resource);
+            this.exchange = exchange;
+        }
+
+        @Override
+        public OptionSet getRequestOptions() {
+            if (requestOptions == null) {
+                OptionSet options = new OptionSet(super.getRequestOptions());
+                options.removeAccept();
+                options.clearETags();
+                requestOptions = options;
+            }
+            return requestOptions;
+        }
+
+        @Override
+        public void setETag(byte[] tag) {
+            // 响应的 ETag 是版本号
+        }
+
+        @Override
+        public void respond(Response response) {
+            if (!CoAP.ResponseCode.isSuccess(response.getCode()) || response.getPayloadSize() == 0) {
+                super.respond(response);
+                return;
+            }
+            Response encoded = encode(exchange, response);
+            logger.debug(">>>>> OBSERVE_DELTA: [{}] [{}] -> [{}] BYTES", exchange.getRequest().getURI(),
+                    response.getPayloadSize(), encoded.getPayloadSize());
+            super.respond(encoded);
+        }
+
+    }
+
+}
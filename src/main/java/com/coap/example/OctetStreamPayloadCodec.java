@@ -0,0 +1,34 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Type;
+
+/**
+ * application/octet-stream，只支持 byte[]，不做拷贝
+ */
+@Component
+public class OctetStreamPayloadCodec implements PayloadCodec {
+
+    @Override
+    public int getContentFormat() {
+        return MediaTypeRegistry.APPLICATION_OCTET_STREAM;
+    }
+
+    @Override
+    public boolean supports(Type type) {
+        return type == byte[].class;
+    }
+
+    @Override
+    public Object decode(byte[] payload, Type type) {
+        return payload;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return (byte[]) value;
+    }
+
+}
@@ -0,0 +1,274 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 并发 Block2 下载：同时请求多个 block，按 block 号定位写入文件
+ * <p>
+ * 一次 Block2 会话每个 RTT 只能取一个 block，大文件的吞吐受 RTT 限制。这里先取 block 0，
+ * 从 Size2 得到总大小，其余 block 由 parallelism 个线程依次领取，各自发请求、用 {@link FileChannel} 按偏移写入，
+ * 丢失或超时的 block 单独重试，不影响其它 block。每个 block 的 ETag 必须和 block 0 一致，否则说明下载期间内容变了。
+ * <p>
+ * 服务器没有返回 Size2 时，按 block 号领取直到某个 block 的 M 位为 0。
+ * endpoint 必须关闭透明分块处理（见 {@link #newEndpoint(Connector)}），否则 block 0 的请求会被协议栈接管成顺序传输。
+ */
+public class ParallelBlockDownloader {
+
+    private static Logger logger = LoggerFactory.getLogger(ParallelBlockDownloader.class);
+
+    private final Endpoint endpoint;
+    private final int parallelism;
+    private final int szx;
+    private final int maxRetries;
+    private final long timeout;
+    private final ExecutorService executor;
+
+    /**
+     * @param blockSize  期望的 block 大小，16 到 1024 之间的 2 的幂，服务器可以选更小的
+     * @param maxRetries 单个 block 的最大重试次数
+     * @param timeout    单个 block 请求的超时时间，单位毫秒
+     */
+    public ParallelBlockDownloader(Endpoint endpoint, int parallelism, int blockSize, int maxRetries, long timeout) {
+        this.endpoint = endpoint;
+        this.parallelism = parallelism;
+        this.szx = BlockOption.size2Szx(blockSize);
+        this.maxRetries = maxRetries;
+        this.timeout = timeout;
+        this.executor = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("CoapDownload#"));
+    }
+
+    /**
+     * 创建关闭了透明分块处理的 endpoint，其它配置和 Californium.properties 一致
+     */
+    public static CoapEndpoint newEndpoint(Connector connector) {
+        NetworkConfig config = new NetworkConfig(NetworkConfig.getStandard());
+        config.setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, 0);
+        return new CoapEndpoint.Builder().setNetworkConfig(config).setConnector(connector).build();
+    }
+
+    /**
+     * 下载 uri 指向的资源到 target，target 已存在时覆盖
+     */
+    public Result download(String uri, Path target) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        AtomicInteger retries = new AtomicInteger();
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Response first = fetch(uri, 0, szx, null, retries);
+            BlockOption block2 = first.getOptions().getBlock2();
+            if (block2 == null || !block2.isM()) {
+                // 一个 block 就装下了，或者服务器不支持分块
+                write(channel, first.getPayload(), 0);
+                return new Result(first.getPayloadSize(), 1, retries.get(), System.nanoTime() - start);
+            }
+
+            Transfer transfer = new Transfer(uri, channel, block2.getSzx(), first.getOptions().getETags(), retries);
+            write(channel, first.getPayload(), 0);
+            transfer.bytes.addAndGet(first.getPayloadSize());
+            Integer size2 = first.getOptions().getSize2();
+            if (size2 != null && size2 > 0) {
+                transfer.last.set((size2 - 1) / transfer.blockSize);
+            }
+
+            List<Future<?>> futures = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                futures.add(executor.submit(() -> {
+                    transfer.run();
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                transfer.last.set(-1);
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            if (!transfer.complete) {
+                throw new IOException("Last block of " + uri + " not received");
+            }
+            channel.truncate(transfer.bytes.get());
+            int blocks = transfer.last.get() + 1;
+            Result result = new Result(transfer.bytes.get(), blocks, retries.get(), System.nanoTime() - start);
+            logger.info(">>>>> PARALLEL_DOWNLOAD: URI [{}] [{}]", uri, result);
+            return result;
+        }
+    }
+
+    /**
+     * 取一个 block，超时、5.xx 和连接错误时重试，4.xx 直接失败；超出末尾的 block 返回 4.02
+     */
+    private Response fetch(String uri, int num, int szx, List<byte[]> etags, AtomicInteger retries)
+            throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            Request request = Request.newGet();
+            request.setURI(uri);
+            request.getOptions().setBlock2(szx, false, num);
+            if (num == 0) {
+                // 请求服务器在第一个 block 带上总大小，RFC 7959 4
+                request.getOptions().setSize2(0);
+            }
+            request.send(endpoint);
+            Response response = request.waitForResponse(timeout);
+            if (response == null) {
+                request.cancel();
+            } else if (CoAP.ResponseCode.isSuccess(response.getCode())) {
+                if (etags != null && !etags.isEmpty() && !sameETag(etags, response.getOptions().getETags())) {
+                    throw new IOException("Resource changed during download, block " + num);
+                }
+                return response;
+            } else if (num > 0 && response.getCode() == CoAP.ResponseCode.BAD_OPTION) {
+                // 超出资源末尾的 block，由调用方判断
+                return response;
+            } else if (response.getCode().codeClass == CoAP.CodeClass.ERROR_RESPONSE.value) {
+                throw new IOException("Block " + num + " failed with " + response.getCode());
+            }
+            if (attempt >= maxRetries) {
+                throw new IOException("Block " + num + " failed after " + (attempt + 1) + " attempts");
+            }
+            retries.incrementAndGet();
+            logger.debug(">>>>> BLOCK_RETRY: URI [{}] BLOCK [{}] ATTEMPT [{}]", uri, num, attempt + 1);
+        }
+    }
+
+    private static boolean sameETag(List<byte[]> expected, List<byte[]> actual) {
+        return actual.size() == expected.size() && Arrays.equals(expected.get(0), actual.get(0));
+    }
+
+    private static void write(FileChannel channel, byte[] payload, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 一次下载的共享状态，last 为最后一个 block 号，未知时为 Integer.MAX_VALUE，出错时为 -1；
+     * complete 表示收到了 M 位为 0 的 block，没有收到时说明服务器提前结束或 Size2 不对
+     */
+    private class Transfer {
+
+        private final String uri;
+        private final FileChannel channel;
+        private final int szx;
+        private final int blockSize;
+        private final List<byte[]> etags;
+        private final AtomicInteger retries;
+        private final AtomicInteger next = new AtomicInteger(1);
+        private final AtomicInteger last = new AtomicInteger(Integer.MAX_VALUE);
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile boolean complete;
+
+        Transfer(String uri, FileChannel channel, int szx, List<byte[]> etags, AtomicInteger retries) {
+            this.uri = uri;
+            this.channel = channel;
+            this.szx = szx;
+            this.blockSize = BlockOption.szx2Size(szx);
+            this.etags = etags;
+            this.retries = retries;
+        }
+
+        void run() throws IOException, InterruptedException {
+            int num;
+            while ((num = next.getAndIncrement()) <= last.get()) {
+                Response response = fetch(uri, num, szx, etags, retries);
+                if (response.getCode() == CoAP.ResponseCode.BAD_OPTION) {
+                    last.accumulateAndGet(num - 1, Math::min);
+                    continue;
+                }
+                BlockOption block2 = response.getOptions().getBlock2();
+                if (block2 == null || block2.getNum() != num || block2.getSzx() != szx) {
+                    throw new IOException("Unexpected block " + block2 + " for block " + num);
+                }
+                write(channel, response.getPayload(), (long) num * blockSize);
+                bytes.addAndGet(response.getPayloadSize());
+                if (!block2.isM()) {
+                    // 没有 Size2 时由最后一个 block 确定总数，之后领取的 block 号都不再请求
+                    last.accumulateAndGet(num, Math::min);
+                    complete = true;
+                }
+            }
+        }
+
+    }
+
+    public static class Result {
+
+        private final long bytes;
+        private final int blocks;
+        private final int retries;
+        private final long elapsedNanos;
+
+        Result(long bytes, int blocks, int retries, long elapsedNanos) {
+            this.bytes = bytes;
+            this.blocks = blocks;
+            this.retries = retries;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public int getBlocks() {
+            return blocks;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return 每秒字节数
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("bytes=%d, blocks=%d, retries=%d, elapsed=%.1fms, throughput=%.1fKB/s", bytes,
+                    blocks, retries, elapsedNanos / 1e6, getThroughput() / 1024);
+        }
+
+    }
+
+}
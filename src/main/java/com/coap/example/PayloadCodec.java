@@ -0,0 +1,25 @@
+package com.coap.example;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * payload 编解码，按 content-format 选择，直接在 payload 的字节数组上操作，不经过 String
+ */
+public interface PayloadCodec {
+
+    /**
+     * @return 对应的 content-format，见 {@link org.eclipse.californium.core.coap.MediaTypeRegistry}
+     */
+    int getContentFormat();
+
+    /**
+     * @return 是否能把 payload 解码成 type 类型，或者把 type 类型的值编码成 payload
+     */
+    boolean supports(Type type);
+
+    Object decode(byte[] payload, Type type) throws IOException;
+
+    byte[] encode(Object value) throws IOException;
+
+}
@@ -0,0 +1,43 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * content-format 到 {@link PayloadCodec} 的映射
+ */
+@Component
+public class PayloadCodecRegistry {
+
+    /**
+     * 请求没有 content-format 时，按 JSON 解码；响应既没有 Accept，请求也没有可用的 content-format 时，按 JSON 编码
+     */
+    public static final int DEFAULT_CONTENT_FORMAT = MediaTypeRegistry.APPLICATION_JSON;
+
+    private final Map<Integer, PayloadCodec> codecs = new HashMap<>();
+
+    public PayloadCodecRegistry(List<PayloadCodec> codecs) {
+        codecs.forEach(codec -> this.codecs.put(codec.getContentFormat(), codec));
+    }
+
+    /**
+     * 注册内置的 JSON、CBOR、octet-stream、text/plain 编解码
+     */
+    public static PayloadCodecRegistry withDefaults() {
+        return new PayloadCodecRegistry(Arrays.asList(new JsonPayloadCodec(), new CborPayloadCodec(),
+                new OctetStreamPayloadCodec(), new TextPlainPayloadCodec()));
+    }
+
+    /**
+     * @return content-format 对应的编解码，没有时返回 null
+     */
+    public PayloadCodec get(int contentFormat) {
+        return codecs.get(contentFormat);
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.coap.example;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 大 payload 的 Deflate 压缩，通过 content-format 协商
+ * <p>
+ * 上传时 Content-Format 为 {@link #APPLICATION_OCTET_STREAM_DEFLATE} 表示 payload 已压缩；
+ * 下载时 Accept 为 {@link #APPLICATION_OCTET_STREAM_DEFLATE} 表示客户端要压缩后的内容。
+ * Deflate 是流式的，接收方可以每收到一个 block 就交给 {@link Inflater}，不需要等整个 payload。
+ */
+@Component
+public class PayloadCompressor {
+
+    /**
+     * 自定义的 application/octet-stream + deflate，取自实验用的 content-format 范围，RFC 7252 12.3
+     */
+    public static final int APPLICATION_OCTET_STREAM_DEFLATE = 65000;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Value("${coap.compression.level:6}")
+    private int level = 6;
+
+    @Value("${coap.compression.max-inflated-size:16777216}")
+    private int maxInflatedSize = 16 * 1024 * 1024;
+
+    private final AtomicLong identityBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+
+    public byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException 解压后超过 coap.compression.max-inflated-size
+     * @throws IOException              不是合法的 Deflate 数据
+     */
+    public byte[] inflate(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflate payload");
+                }
+                if (out.size() + length > maxInflatedSize) {
+                    throw new IllegalArgumentException("Inflated payload exceeds " + maxInflatedSize + " bytes");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflate payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 记录一次压缩传输，identity 为不压缩时的字节数，wire 为实际传输的字节数
+     */
+    public void record(int identity, int wire) {
+        identityBytes.addAndGet(identity);
+        wireBytes.addAndGet(wire);
+    }
+
+    public long getIdentityBytes() {
+        return identityBytes.get();
+    }
+
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * @return 压缩传输节省的字节比例，没有压缩传输时为 0
+     */
+    public double getSavings() {
+        long identity = identityBytes.get();
+        return identity == 0 ? 0 : 1 - (double) wireBytes.get() / identity;
+    }
+
+}
@@ -0,0 +1,455 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.WebLink;
+import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResourceAttributes;
+import org.eclipse.californium.core.server.resources.ResourceObserver;
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 资源目录：本地资源的 /.well-known/core 和 CoRE Resource Directory（RFC 9176）的注册、查找
+ * <p>
+ * 所有链接都放在 {@link LinkIndex} 里，加入时生成 link-format 片段并按属性建索引，查询只看命中的链接：
+ * <ul>
+ * <li>本地资源：监听资源树的 add/delete（{@link ResourceObserver}），增删子树时同步增删它们的链接，
+ * 不再在每次 /.well-known/core 请求时遍历整棵树；</li>
+ * <li>注册的资源：设备 POST /rd?ep=..&amp;lt=.. 带上自己的 link-format，链接的 href 按 base 转成绝对 uri，
+ * 可以按 rt、if、ep、d 和任意链接属性查找（/rd-lookup/res），注册本身也可以按 ep、d 查找（/rd-lookup/ep）；
+ * 到期（lt 秒）没有更新的注册由后台线程清除。</li>
+ * </ul>
+ * 资源的属性在加入资源树时读取，之后修改属性要调用 {@link #changed(Resource)}。
+ */
+@Component
+public class ResourceDirectory {
+
+    private static Logger logger = LoggerFactory.getLogger(ResourceDirectory.class);
+
+    public static final String ENDPOINT = LinkFormat.END_POINT;
+    public static final String SECTOR = LinkFormat.SECTOR;
+    public static final String LIFETIME = LinkFormat.LIFE_TIME;
+    public static final String BASE = LinkFormat.BASE;
+
+    @Value("${coap.rd.lifetime:90000}")
+    private long defaultLifetime = 90000;
+
+    @Value("${coap.rd.max-registrations:10000}")
+    private int maxRegistrations = 10000;
+
+    @Value("${coap.rd.max-links:256}")
+    private int maxLinks = 256;
+
+    @Value("${coap.rd.purge-interval:60000}")
+    private long purgeInterval = 60000;
+
+    private final LinkIndex local = new LinkIndex();
+    private final LinkIndex resources = new LinkIndex();
+    private final LinkIndex endpoints = new LinkIndex();
+    private final Map<Resource, String> localKeys = new IdentityHashMap<>();
+    private final ConcurrentHashMap<String, Registration> registrations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> registrationIds = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private ScheduledExecutorService purger;
+
+    public ResourceDirectory() {
+    }
+
+    public ResourceDirectory(long defaultLifetime, int maxRegistrations, int maxLinks) {
+        this.defaultLifetime = defaultLifetime;
+        this.maxRegistrations = maxRegistrations;
+        this.maxLinks = maxLinks;
+    }
+
+    @PostConstruct
+    public void start() {
+        purger = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ResourceDirectory#"));
+        purger.scheduleWithFixedDelay(this::purge, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (purger != null) {
+            purger.shutdownNow();
+            purger = null;
+        }
+    }
+
+    // --------------------------------- 本地资源 ---------------------------------
+
+    /**
+     * 为资源树建立索引，之后跟随树的增删
+     */
+    public void index(Resource root) {
+        long start = System.nanoTime();
+        root.addObserver(new TreeObserver(root));
+        root.getChildren().forEach(this::addTree);
+        logger.info(">>>>> RESOURCE_DIRECTORY_INDEX: [{}] LINKS IN [{}] MS", local.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * 资源的属性或可见性变化后重新生成它的链接
+     */
+    public void changed(Resource resource) {
+        synchronized (localKeys) {
+            if (localKeys.containsKey(resource)) {
+                putLocal(resource);
+            }
+        }
+    }
+
+    /**
+     * /.well-known/core 的内容
+     *
+     * @param filters Uri-Query 过滤条件，RFC 6690 4.1
+     */
+    public String discover(List<String> filters) {
+        return local.serialize(filters);
+    }
+
+    private void addTree(Resource resource) {
+        synchronized (localKeys) {
+            if (!localKeys.containsKey(resource)) {
+                resource.addObserver(new TreeObserver(resource));
+            }
+            putLocal(resource);
+        }
+        resource.getChildren().forEach(this::addTree);
+    }
+
+    private void removeTree(Resource resource) {
+        synchronized (localKeys) {
+            String key = localKeys.remove(resource);
+            if (key != null) {
+                local.remove(key);
+            }
+        }
+        resource.getChildren().forEach(this::removeTree);
+    }
+
+    /**
+     * 调用方持有 localKeys 的锁。中间节点（{@link NotAllowedCoapResource}）和 Californium 自带的资源不列出
+     */
+    private void putLocal(Resource resource) {
+        String previous = localKeys.put(resource, resource.getURI());
+        if (previous != null) {
+            local.remove(previous);
+        }
+        if (resource.isVisible() && resource instanceof SimpleCoapResource
+                && !(resource instanceof NotAllowedCoapResource)) {
+            local.put(new LinkIndex.Link(resource.getURI(), resource.getURI(), resource.getAttributes(),
+                    Collections.emptyMap(), ""));
+        }
+    }
+
+    /**
+     * 挂在每个已索引的资源上，子资源增删时同步索引
+     */
+    private class TreeObserver implements ResourceObserver {
+
+        private final Resource resource;
+
+        TreeObserver(Resource resource) {
+            this.resource = resource;
+        }
+
+        @Override
+        public void changedName(String old) {
+            changedPath(old);
+        }
+
+        @Override
+        public void changedPath(String old) {
+            // 从树上删除时路径被清空，由父节点的 removedChild 处理
+            boolean indexed;
+            synchronized (localKeys) {
+                indexed = localKeys.containsKey(resource);
+            }
+            if (indexed && resource.getParent() != null) {
+                addTree(resource);
+            }
+        }
+
+        @Override
+        public void addedChild(Resource child) {
+            addTree(child);
+        }
+
+        @Override
+        public void removedChild(Resource child) {
+            removeTree(child);
+        }
+
+        @Override
+        public void addedObserveRelation(ObserveRelation relation) {
+        }
+
+        @Override
+        public void removedObserveRelation(ObserveRelation relation) {
+        }
+
+    }
+
+    // --------------------------------- 注册 ---------------------------------
+
+    /**
+     * 注册或替换一个端点（同一 ep + d 再次注册时沿用原来的注册）
+     *
+     * @param sector   可以为 null
+     * @param base     链接的 href 为相对路径时以它为前缀
+     * @param lifetime 秒，null 时使用默认值
+     * @param links    link-format
+     * @return 注册的 id，注册资源的路径为 rd/{id}
+     * @throws IllegalArgumentException 参数不合法
+     * @throws IllegalStateException    注册数已达上限
+     */
+    public String register(String endpoint, String sector, String base, Long lifetime, String links) {
+        if (endpoint == null || endpoint.isEmpty() || endpoint.length() > 63) {
+            throw new IllegalArgumentException("Invalid ep " + endpoint);
+        }
+        if (base == null || !base.contains("://")) {
+            throw new IllegalArgumentException("Invalid base " + base);
+        }
+        Set<WebLink> webLinks = LinkFormat.parse(links);
+        if (webLinks.size() > maxLinks) {
+            throw new IllegalArgumentException("Too many links " + webLinks.size());
+        }
+        long seconds = lifetime == null ? defaultLifetime : lifetime;
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Invalid lt " + lifetime);
+        }
+        String name = Registration.getName(endpoint, sector);
+        String id;
+        synchronized (registrationIds) {
+            id = registrationIds.get(name);
+            if (id == null) {
+                if (registrations.size() >= maxRegistrations) {
+                    throw new IllegalStateException("Too many registrations");
+                }
+                id = Long.toString(nextId.incrementAndGet(), 36);
+                registrationIds.put(name, id);
+            } else {
+                removeLinks(registrations.get(id));
+            }
+            Registration registration = new Registration(id, endpoint, sector, base, seconds, webLinks);
+            registrations.put(id, registration);
+            putLinks(registration);
+        }
+        logger.info(">>>>> RD_REGISTER: [{}] EP [{}] D [{}] BASE [{}] LINKS [{}]", id, endpoint, sector, base,
+                webLinks.size());
+        return id;
+    }
+
+    /**
+     * 注册更新：刷新到期时间，可以修改 lt 和 base
+     *
+     * @return 注册不存在时返回 false
+     */
+    public boolean update(String id, Long lifetime, String base) {
+        if (lifetime != null && lifetime <= 0 || base != null && !base.contains("://")) {
+            throw new IllegalArgumentException("Invalid lt " + lifetime + " or base " + base);
+        }
+        synchronized (registrationIds) {
+            Registration registration = registrations.get(id);
+            if (registration == null) {
+                return false;
+            }
+            removeLinks(registration);
+            registration = new Registration(id, registration.endpoint, registration.sector,
+                    base == null ? registration.base : base,
+                    lifetime == null ? registration.lifetime : lifetime, registration.links);
+            registrations.put(id, registration);
+            putLinks(registration);
+        }
+        return true;
+    }
+
+    /**
+     * @return 注册不存在时返回 false
+     */
+    public boolean remove(String id) {
+        synchronized (registrationIds) {
+            Registration registration = registrations.remove(id);
+            if (registration == null) {
+                return false;
+            }
+            registrationIds.remove(Registration.getName(registration.endpoint, registration.sector));
+            removeLinks(registration);
+        }
+        logger.info(">>>>> RD_REMOVE: [{}]", id);
+        return true;
+    }
+
+    public boolean contains(String id) {
+        return registrations.containsKey(id);
+    }
+
+    /**
+     * 注册的链接，href 为相对路径
+     */
+    public String getLinks(String id) {
+        Registration registration = registrations.get(id);
+        if (registration == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (WebLink link : registration.links) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append('<').append(link.getURI()).append('>')
+                    .append(LinkFormat.serializeAttributes(link.getAttributes()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 资源查找，/rd-lookup/res
+     *
+     * @param filters 除了链接属性，还可以按 ep、d 过滤；count、page 分页
+     * @throws IllegalArgumentException count 不是正整数或 page 不是非负整数
+     */
+    public String lookupResources(List<String> filters) {
+        return lookup(resources, filters);
+    }
+
+    /**
+     * 端点查找，/rd-lookup/ep
+     */
+    public String lookupEndpoints(List<String> filters) {
+        return lookup(endpoints, filters);
+    }
+
+    private static String lookup(LinkIndex index, List<String> filters) {
+        int count = -1;
+        int page = 0;
+        List<String> attributeFilters = new ArrayList<>(filters.size());
+        for (String filter : filters) {
+            if (filter.startsWith(LinkFormat.COUNT + "=")) {
+                count = Integer.parseInt(filter.substring(LinkFormat.COUNT.length() + 1));
+                if (count <= 0) {
+                    throw new IllegalArgumentException("Invalid count " + count);
+                }
+            } else if (filter.startsWith(LinkFormat.PAGE + "=")) {
+                page = Integer.parseInt(filter.substring(LinkFormat.PAGE.length() + 1));
+                if (page < 0) {
+                    throw new IllegalArgumentException("Invalid page " + page);
+                }
+            } else {
+                attributeFilters.add(filter);
+            }
+        }
+        if (count < 0) {
+            return index.serialize(attributeFilters);
+        }
+        List<LinkIndex.Link> links = index.query(attributeFilters);
+        int from = (int) Math.min(links.size(), (long) page * count);
+        StringJoiner joiner = new StringJoiner(",");
+        links.subList(from, (int) Math.min(links.size(), (long) from + count)).forEach(link -> joiner.add(link.fragment));
+        return joiner.toString();
+    }
+
+    /**
+     * 调用方持有 registrationIds 的锁
+     */
+    private void putLinks(Registration registration) {
+        Map<String, String> indexed = new HashMap<>();
+        indexed.put(ENDPOINT, registration.endpoint);
+        if (registration.sector != null) {
+            indexed.put(SECTOR, registration.sector);
+        }
+        String anchor = ";anchor=\"" + registration.base + "\"";
+        for (WebLink link : registration.links) {
+            String uri = link.getURI();
+            String href = uri.contains("://") ? uri : registration.base + (uri.startsWith("/") ? "" : "/") + uri;
+            resources.put(new LinkIndex.Link(registration.id + " " + uri, href, link.getAttributes(), indexed,
+                    anchor));
+        }
+        ResourceAttributes attributes = new ResourceAttributes();
+        attributes.setAttribute(ENDPOINT, registration.endpoint);
+        if (registration.sector != null) {
+            attributes.setAttribute(SECTOR, registration.sector);
+        }
+        attributes.setAttribute(BASE, registration.base);
+        attributes.setAttribute(LIFETIME, String.valueOf(registration.lifetime));
+        endpoints.put(new LinkIndex.Link(registration.id, "/rd/" + registration.id, attributes,
+                Collections.emptyMap(), ""));
+    }
+
+    private void removeLinks(Registration registration) {
+        for (WebLink link : registration.links) {
+            resources.remove(registration.id + " " + link.getURI());
+        }
+        endpoints.remove(registration.id);
+    }
+
+    private void purge() {
+        long now = System.nanoTime();
+        registrations.values().stream()
+                .filter(registration -> now - registration.expires > 0)
+                .forEach(registration -> {
+                    if (remove(registration.id)) {
+                        expired.incrementAndGet();
+                        logger.info(">>>>> RD_EXPIRE: [{}] EP [{}]", registration.id, registration.endpoint);
+                    }
+                });
+    }
+
+    public int getRegistrations() {
+        return registrations.size();
+    }
+
+    public int getLocalLinks() {
+        return local.size();
+    }
+
+    public int getRegisteredLinks() {
+        return resources.size();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    private static class Registration {
+
+        private final String id;
+        private final String endpoint;
+        private final String sector;
+        private final String base;
+        private final long lifetime;
+        private final long expires;
+        private final Set<WebLink> links;
+
+        Registration(String id, String endpoint, String sector, String base, long lifetime, Set<WebLink> links) {
+            this.id = id;
+            this.endpoint = endpoint;
+            this.sector = sector;
+            this.base = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+            this.lifetime = lifetime;
+            this.expires = System.nanoTime() + TimeUnit.SECONDS.toNanos(lifetime);
+            this.links = links;
+        }
+
+        static String getName(String endpoint, String sector) {
+            return sector == null ? endpoint : endpoint + "@" + sector;
+        }
+
+    }
+
+}
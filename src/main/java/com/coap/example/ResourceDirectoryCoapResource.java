@@ -0,0 +1,140 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * 资源目录的注册接口，RFC 9176 5.3
+ * <p>
+ * POST /rd?ep={名称}&amp;d={扇区}&amp;lt={秒}&amp;base={uri}，payload 为 link-format，成功时返回 2.01 和
+ * Location-Path rd/{id}。注册资源 rd/{id} 不在资源树上，按 id 临时生成：POST 更新（刷新到期时间，可以修改 lt、base），
+ * DELETE 注销，GET 读取注册的链接。
+ */
+class ResourceDirectoryCoapResource extends SimpleCoapResource {
+
+    private static Logger logger = LoggerFactory.getLogger(ResourceDirectoryCoapResource.class);
+
+    private final ResourceDirectory resourceDirectory;
+
+    ResourceDirectoryCoapResource(String name, ResourceDirectory resourceDirectory) {
+        super(name);
+        this.resourceDirectory = resourceDirectory;
+        getAttributes().addResourceType("core.rd");
+        getAttributes().addContentType(MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+    }
+
+    @Override
+    public void handlePOST(CoapExchange exchange) {
+        int contentFormat = exchange.getRequestOptions().getContentFormat();
+        if (contentFormat != MediaTypeRegistry.UNDEFINED
+                && contentFormat != MediaTypeRegistry.APPLICATION_LINK_FORMAT) {
+            exchange.respond(CoAP.ResponseCode.UNSUPPORTED_CONTENT_FORMAT);
+            return;
+        }
+        CoapRequestContext context = new CoapRequestContext(exchange);
+        String base = context.getQueryParameter(ResourceDirectory.BASE);
+        if (base == null) {
+            base = getDefaultBase(exchange);
+        }
+        String id;
+        try {
+            id = resourceDirectory.register(context.getQueryParameter(ResourceDirectory.ENDPOINT),
+                    context.getQueryParameter(ResourceDirectory.SECTOR), base, getLifetime(context),
+                    exchange.getRequestText());
+        } catch (IllegalArgumentException e) {
+            logger.warn(">>>>> RD_REGISTER_REJECT: [{}] [{}]", exchange.getSourceAddress(), e.getMessage());
+            exchange.respond(CoAP.ResponseCode.BAD_REQUEST, e.getMessage());
+            return;
+        } catch (IllegalStateException e) {
+            logger.warn(">>>>> RD_REGISTER_REJECT: [{}] [{}]", exchange.getSourceAddress(), e.getMessage());
+            exchange.respond(CoAP.ResponseCode.SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        }
+        exchange.setLocationPath(getName() + "/" + id);
+        exchange.respond(CoAP.ResponseCode.CREATED);
+    }
+
+    /**
+     * 注册资源按需生成，不占用资源树
+     */
+    @Override
+    public Resource getChild(String name) {
+        if (!resourceDirectory.contains(name)) {
+            return null;
+        }
+        RegistrationCoapResource registration = new RegistrationCoapResource(name);
+        registration.setParent(this);
+        return registration;
+    }
+
+    /**
+     * 没有 base 参数时用请求的来源地址，RFC 9176 5.3
+     */
+    private static String getDefaultBase(CoapExchange exchange) {
+        InetSocketAddress peer = exchange.advanced().getRequest().getSourceContext().getPeerAddress();
+        InetAddress address = peer.getAddress();
+        String host = address instanceof Inet6Address ? "[" + address.getHostAddress() + "]"
+                : address.getHostAddress();
+        String scheme = exchange.advanced().getEndpoint().getUri().getScheme();
+        return scheme + "://" + host + ":" + peer.getPort();
+    }
+
+    private static Long getLifetime(CoapRequestContext context) {
+        String lifetime = context.getQueryParameter(ResourceDirectory.LIFETIME);
+        if (lifetime == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(lifetime);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid lt " + lifetime);
+        }
+    }
+
+    private class RegistrationCoapResource extends SimpleCoapResource {
+
+        RegistrationCoapResource(String id) {
+            super(id, false);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            String links = resourceDirectory.getLinks(getName());
+            if (links == null) {
+                exchange.respond(CoAP.ResponseCode.NOT_FOUND);
+                return;
+            }
+            exchange.respond(CoAP.ResponseCode.CONTENT, links, MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+        }
+
+        @Override
+        public void handlePOST(CoapExchange exchange) {
+            CoapRequestContext context = new CoapRequestContext(exchange);
+            boolean updated;
+            try {
+                updated = resourceDirectory.update(getName(), getLifetime(context),
+                        context.getQueryParameter(ResourceDirectory.BASE));
+            } catch (IllegalArgumentException e) {
+                exchange.respond(CoAP.ResponseCode.BAD_REQUEST, e.getMessage());
+                return;
+            }
+            exchange.respond(updated ? CoAP.ResponseCode.CHANGED : CoAP.ResponseCode.NOT_FOUND);
+        }
+
+        @Override
+        public void handleDELETE(CoapExchange exchange) {
+            exchange.respond(resourceDirectory.remove(getName()) ? CoAP.ResponseCode.DELETED
+                    : CoAP.ResponseCode.NOT_FOUND);
+        }
+
+    }
+
+}
@@ -0,0 +1,512 @@
+package com.coap.example;
+
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 上传文件的追加写存储：所有上传追加写入少量预先分配好大小的段文件，内存中维护文件名到段内位置的索引
+ * <p>
+ * 段文件格式为连续的记录：magic(4) seq(8) nameLength(2) dataLength(4) crc32(4) name data，
+ * 启动时按顺序扫描段文件重建索引，跳过写了一半的记录，同一个文件名以 seq 最大的记录为准。
+ * 开启 fsync 时，并发的写入共用一次 {@link FileChannel#force(boolean)}（group commit）。
+ * 被覆盖的记录由压缩清理：活跃数据比例低于阈值的段，其有效记录复制到当前段后删除。
+ */
+@Component
+public class SegmentedUploadStore {
+
+    private static Logger logger = LoggerFactory.getLogger(SegmentedUploadStore.class);
+
+    private static final int MAGIC = 0x434F4150;
+    private static final int HEADER_SIZE = 4 + 8 + 2 + 4 + 4;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int SCAN_CHUNK_SIZE = 64 * 1024;
+
+    @Value("${coap.upload.dir:upload}")
+    private String dir = "upload";
+
+    @Value("${coap.upload.segment-size:67108864}")
+    private long segmentSize = 64 * 1024 * 1024;
+
+    @Value("${coap.upload.fsync:true}")
+    private boolean fsync = true;
+
+    @Value("${coap.upload.compaction-threshold:0.5}")
+    private double compactionThreshold = 0.5;
+
+    @Value("${coap.upload.compaction-interval:600000}")
+    private long compactionInterval = 600000;
+
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Set<Segment> dirtySegments = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Object syncLock = new Object();
+    private final Object compactionLock = new Object();
+    private Path directory;
+    /**
+     * 只在 synchronized (this) 里切换，压缩线程不持锁读取
+     */
+    private volatile Segment activeSegment;
+    private ScheduledExecutorService compactionExecutor;
+
+    private final AtomicLong writeSequence = new AtomicLong();
+    private long syncedSequence;
+    private final AtomicLong syncs = new AtomicLong();
+
+    public SegmentedUploadStore() {
+    }
+
+    public SegmentedUploadStore(Path directory, long segmentSize, boolean fsync, double compactionThreshold) {
+        this.dir = directory.toString();
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.compactionThreshold = compactionThreshold;
+        this.compactionInterval = 0;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        directory = Paths.get(dir);
+        Files.createDirectories(directory);
+        List<Path> paths;
+        try (Stream<Path> stream = Files.list(directory)) {
+            paths = stream.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted().collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            String fileName = path.getFileName().toString();
+            long id = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(id, path, FileChannel.open(path, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE));
+            segments.put(id, segment);
+            recover(segment);
+        }
+        activeSegment = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+        if (compactionInterval > 0) {
+            compactionExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new NamedThreadFactory("UploadStoreCompaction#"));
+            compactionExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    logger.error(">>>>> UPLOAD_STORE_COMPACTION_ERROR: [{}]", e.getMessage());
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        }
+        logger.info(">>>>> UPLOAD_STORE_OPEN: [{}] SEGMENTS [{}] FILES [{}]", directory.toAbsolutePath(),
+                segments.size(), index.size());
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (compactionExecutor != null) {
+            compactionExecutor.shutdownNow();
+        }
+        synchronized (compactionLock) {
+            sync(writeSequence.get());
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+        logger.info(">>>>> UPLOAD_STORE_CLOSE: WRITES [{}] SYNCS [{}]", writeSequence.get(), syncs.get());
+    }
+
+    /**
+     * 扫描段文件重建索引
+     * <p>
+     * 并发写入各自预留位置后才写数据，崩溃时前面预留的记录可能还是空白或只写了一半，后面的记录却已经落盘并确认。
+     * 所以遇到 magic 不符（空白）或 crc 不符（写了一半）的位置不停止：先按头部记录的长度跳过，
+     * 头部不可用时向后查找下一条完整的记录。之后的写入从最后一条完整记录之后开始。
+     */
+    private void recover(Segment segment) throws IOException {
+        long size = segment.channel.size();
+        long position = 0;
+        long end = 0;
+        while (position + HEADER_SIZE <= size) {
+            int recordSize = readRecord(segment, position, size, true);
+            if (recordSize > 0) {
+                position += recordSize;
+                end = position;
+                continue;
+            }
+            long next = findRecord(segment, position, size);
+            if (next < 0) {
+                // 之后只剩预分配的空白
+                break;
+            }
+            logger.warn(">>>>> UPLOAD_STORE_TORN_RECORD: SEGMENT [{}] POSITION [{}] SKIPPED [{}]", segment.id,
+                    position, next - position);
+            position = next;
+        }
+        segment.writePosition = end;
+        segment.size = Math.max(size, end);
+    }
+
+    /**
+     * 读取 position 处的记录，完整时（crc 相符）可以同时更新索引
+     *
+     * @return 记录的大小，不是完整的记录时返回 -1
+     */
+    private int readRecord(Segment segment, long position, long size, boolean index) throws IOException {
+        if (position + HEADER_SIZE > size) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(segment.channel, header, position);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return -1;
+        }
+        long seq = header.getLong();
+        int nameLength = header.getShort() & 0xFFFF;
+        int dataLength = header.getInt();
+        int crc = header.getInt();
+        if (dataLength < 0 || position + HEADER_SIZE + nameLength + dataLength > size) {
+            return -1;
+        }
+        int recordSize = HEADER_SIZE + nameLength + dataLength;
+        ByteBuffer body = ByteBuffer.allocate(nameLength + dataLength);
+        readFully(segment.channel, body, position + HEADER_SIZE);
+        if (crc(body.array(), nameLength, dataLength) != crc) {
+            return -1;
+        }
+        if (index) {
+            String name = new String(body.array(), 0, nameLength, StandardCharsets.UTF_8);
+            index(name, new Location(segment, seq, position + HEADER_SIZE + nameLength, dataLength, recordSize));
+            sequence.accumulateAndGet(seq + 1, Math::max);
+        }
+        return recordSize;
+    }
+
+    /**
+     * 找 position 之后的下一条完整记录：头部完整时先看它预留的长度之后，否则逐字节查找 magic
+     *
+     * @return 下一条完整记录的位置，没有时返回 -1
+     */
+    private long findRecord(Segment segment, long position, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(segment.channel, header, position);
+        if (header.getInt(0) == MAGIC && header.getInt(14) >= 0) {
+            long next = position + HEADER_SIZE + (header.getShort(12) & 0xFFFF) + header.getInt(14);
+            if (readRecord(segment, next, size, false) > 0) {
+                return next;
+            }
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK_SIZE);
+        long start = position + 1;
+        while (start + HEADER_SIZE <= size) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), size - start));
+            readFully(segment.channel, chunk, start);
+            int length = chunk.position();
+            for (int i = 0; i + 4 <= length; i++) {
+                if (chunk.getInt(i) == MAGIC && readRecord(segment, start + i, size, false) > 0) {
+                    return start + i;
+                }
+            }
+            // 相邻两块重叠 3 个字节，跨块的 magic 不会漏掉
+            start += length - 3;
+        }
+        return -1;
+    }
+
+    /**
+     * 写入文件，同名文件覆盖；开启 fsync 时返回前数据已经落盘
+     *
+     * @throws IllegalArgumentException 文件名或内容超出一个段的大小
+     */
+    public void put(String filename, byte[] data) throws IOException {
+        Location location = append(filename, data, sequence.getAndIncrement());
+        index(filename, location);
+        location.segment.pendingWrites.decrementAndGet();
+        if (fsync) {
+            sync(location.writeSequence);
+        }
+    }
+
+    /**
+     * @return 文件内容，不存在时返回 null
+     */
+    public byte[] get(String filename) throws IOException {
+        while (true) {
+            Location location = index.get(filename);
+            if (location == null) {
+                return null;
+            }
+            try {
+                return read(location);
+            } catch (ClosedChannelException e) {
+                // 所在的段刚被压缩删除，重新查索引
+                if (index.get(filename) == location) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public boolean contains(String filename) {
+        return index.containsKey(filename);
+    }
+
+    /**
+     * @return 文件大小，不存在时返回 -1
+     */
+    public int size(String filename) {
+        Location location = index.get(filename);
+        return location == null ? -1 : location.length;
+    }
+
+    /**
+     * 只从索引中移除，记录所在的段在压缩时清理
+     * <p>
+     * 不写删除标记，重启扫描段文件时被移除的记录会重新出现，需要调用方在启动时自行清理。
+     */
+    public void remove(String filename) {
+        Location location = index.remove(filename);
+        if (location != null) {
+            location.segment.liveBytes.addAndGet(-location.recordSize);
+        }
+    }
+
+    /**
+     * @return 所有文件名的只读视图
+     */
+    public Set<String> filenames() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    private Location append(String filename, byte[] data, long seq) throws IOException {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 0xFFFF) {
+            throw new IllegalArgumentException("Filename too long");
+        }
+        int recordSize = HEADER_SIZE + name.length + data.length;
+        if (recordSize > segmentSize) {
+            throw new IllegalArgumentException("Record of " + recordSize + " bytes exceeds segment size");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.putInt(MAGIC).putLong(seq).putShort((short) name.length).putInt(data.length);
+        CRC32 crc32 = new CRC32();
+        crc32.update(name);
+        crc32.update(data);
+        buffer.putInt((int) crc32.getValue()).put(name).put(data);
+        buffer.flip();
+
+        Segment segment;
+        long position;
+        synchronized (this) {
+            segment = activeSegment;
+            if (segment.writePosition + recordSize > segment.size) {
+                segment = newSegment(segment.id + 1);
+                activeSegment = segment;
+            }
+            position = segment.writePosition;
+            segment.writePosition += recordSize;
+            segment.pendingWrites.incrementAndGet();
+        }
+        // 位置已经预留，写入不需要持锁
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, position + buffer.position());
+        }
+        dirtySegments.add(segment);
+        Location location = new Location(segment, seq, position + HEADER_SIZE + name.length, data.length,
+                recordSize);
+        location.writeSequence = writeSequence.incrementAndGet();
+        return location;
+    }
+
+    /**
+     * 更新索引，只有 seq 更大的记录才会替换已有的记录
+     */
+    private void index(String filename, Location location) {
+        location.segment.liveBytes.addAndGet(location.recordSize);
+        index.merge(filename, location, (old, current) -> {
+            Location stale = old.seq > current.seq ? current : old;
+            stale.segment.liveBytes.addAndGet(-stale.recordSize);
+            return stale == old ? current : old;
+        });
+    }
+
+    /**
+     * group commit：持有 syncLock 的线程一次刷盘覆盖它开始刷盘前完成的所有写入，排队的线程发现自己的写入已被覆盖就直接返回
+     */
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSequence >= seq) {
+                return;
+            }
+            long target = writeSequence.get();
+            Iterator<Segment> iterator = dirtySegments.iterator();
+            while (iterator.hasNext()) {
+                Segment segment = iterator.next();
+                iterator.remove();
+                try {
+                    segment.channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // 段已被压缩删除
+                }
+            }
+            syncedSequence = target;
+            syncs.incrementAndGet();
+        }
+    }
+
+    /**
+     * 压缩活跃数据比例低于阈值的非当前段
+     *
+     * @return 删除的段数
+     */
+    public int compact() throws IOException {
+        synchronized (compactionLock) {
+            int compacted = 0;
+            for (Segment segment : segments.values()) {
+                // 还有写入没更新索引的段不压缩
+                if (segment != activeSegment && segment.pendingWrites.get() == 0
+                        && segment.liveBytes.get() < segment.writePosition * compactionThreshold) {
+                    compact(segment);
+                    compacted++;
+                }
+            }
+            return compacted;
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        long start = System.nanoTime();
+        int moved = 0;
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            if (location.segment != segment) {
+                continue;
+            }
+            // 复制时保留原来的 seq，期间有新的上传时以新的为准
+            Location copy = append(entry.getKey(), read(location), location.seq);
+            copy.segment.liveBytes.addAndGet(copy.recordSize);
+            if (index.replace(entry.getKey(), location, copy)) {
+                moved++;
+            } else {
+                copy.segment.liveBytes.addAndGet(-copy.recordSize);
+            }
+            copy.segment.pendingWrites.decrementAndGet();
+        }
+        // 复制的记录落盘后才能删除旧段
+        sync(writeSequence.get());
+        segments.remove(segment.id);
+        dirtySegments.remove(segment);
+        segment.channel.close();
+        Files.deleteIfExists(segment.path);
+        logger.info(">>>>> UPLOAD_STORE_COMPACT: SEGMENT [{}] MOVED [{}] IN [{}] MS", segment.id, moved,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * 新段文件一次设置好长度，之后的追加写不再改变文件大小，fdatasync 不需要刷文件元数据
+     */
+    private Segment newSegment(long id) throws IOException {
+        Path path = directory.resolve(String.format("%016d%s", id, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.allocate(1), segmentSize - 1);
+        Segment segment = new Segment(id, path, channel);
+        segment.size = segmentSize;
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static byte[] read(Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        readFully(location.segment.channel, buffer, location.position);
+        return buffer.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    private static int crc(byte[] bytes, int nameLength, int dataLength) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, nameLength + dataLength);
+        return (int) crc32.getValue();
+    }
+
+    public int getFileCount() {
+        return index.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getWrites() {
+        return writeSequence.get();
+    }
+
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private final AtomicInteger pendingWrites = new AtomicInteger();
+        private long size;
+        private long writePosition;
+
+        private Segment(long id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private static final class Location {
+
+        private final Segment segment;
+        private final long seq;
+        private final long position;
+        private final int length;
+        private final int recordSize;
+        /**
+         * 写入完成时的序号，用于 group commit 判断是否已经落盘
+         */
+        private long writeSequence;
+
+        private Location(Segment segment, long seq, long position, int length, int recordSize) {
+            this.segment = segment;
+            this.seq = seq;
+            this.position = position;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+
+}
@@ -2,12 +2,12 @@ package com.coap.example;
 
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.PostConstruct;
-
 @Component
 public class SimpleApplicationContextAware implements ApplicationContextAware {
 
@@ -25,7 +25,10 @@ public class SimpleApplicationContextAware implements ApplicationContextAware {
         return applicationContext;
     }
 
-    @PostConstruct
+    /**
+     * 应用完全启动之后再扫描路由、绑定端口，不阻塞 Spring 容器刷新
+     */
+    @EventListener(ApplicationReadyEvent.class)
     public void startSecureCoapServer() {
         simpleCoapServer.start();
     }
@@ -1,5 +1,6 @@
 package com.coap.example;
 
+import com.alibaba.fastjson.JSONObject;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,21 +12,32 @@ public class SimpleCoapHandler {
     private static Logger logger = LoggerFactory.getLogger(SimpleCoapHandler.class);
 
     @CoapMapping(value = "/foo")
-    public void foo(CoapExchange exchange) {
-        logger.info(">>>>> URL_PARAM: [{}]", exchange.getRequestOptions().getUriQueryString());
-        logger.info(">>>>> FOO: [{}]", exchange.getQueryParameter("foo"));
-        logger.info(">>>>> CONTENT_FORMAT: [{}]", exchange.getRequestOptions().getContentFormat());
+    public void foo(CoapExchange exchange, @CoapQuery String query, @CoapQuery("foo") String foo,
+                    @ContentFormat int contentFormat) {
+        logger.info(">>>>> URL_PARAM: [{}]", query);
+        logger.info(">>>>> FOO: [{}]", foo);
+        logger.info(">>>>> CONTENT_FORMAT: [{}]", contentFormat);
         logger.info(">>>>> REQUEST_BODY: [{}]", exchange.getRequestText());
         exchange.respond("FOO");
     }
 
     @CoapMapping("/fooooo")
-    public void fooooo(CoapExchange exchange) {
-        logger.info(">>>>> URL_PARAM: [{}]", exchange.getRequestOptions().getUriQueryString());
-        logger.info(">>>>> FOOOOO: [{}]", exchange.getQueryParameter("fooooo"));
-        logger.info(">>>>> CONTENT_FORMAT: [{}]", exchange.getRequestOptions().getContentFormat());
+    public void fooooo(CoapExchange exchange, @CoapQuery String query, @CoapQuery("fooooo") String fooooo,
+                       @ContentFormat int contentFormat) {
+        logger.info(">>>>> URL_PARAM: [{}]", query);
+        logger.info(">>>>> FOOOOO: [{}]", fooooo);
+        logger.info(">>>>> CONTENT_FORMAT: [{}]", contentFormat);
         logger.info(">>>>> REQUEST_BODY: [{}]", exchange.getRequestText());
         exchange.respond("FOOOOO");
     }
 
+    /**
+     * 按 content-format 解码请求（JSON 或 CBOR），按 Accept 编码响应
+     */
+    @CoapMapping(value = "/echo", method = CoapMethod.POST)
+    public JSONObject echo(JSONObject body) {
+        logger.info(">>>>> ECHO: [{}]", body);
+        return body;
+    }
+
 }
@@ -29,18 +29,20 @@ import static org.eclipse.californium.core.coap.CoAP.Type;
 public class SimpleCoapResource extends CoapResource {
 
     protected static final Logger LOGGER = Logger.getLogger(CoapResource.class.getCanonicalName());
-    private final ResourceAttributes attributes;
-    private final ReentrantLock recursionProtection;
+    private volatile ResourceAttributes attributes;
+    private volatile ReentrantLock recursionProtection;
     private String name;
     private String path;
     private boolean visible;
     private boolean observable;
-    private ConcurrentHashMap<String, Resource> children;
+    private volatile ConcurrentHashMap<String, Resource> children;
+    private volatile SimpleCoapResource wildcard;
     private Resource parent;
     private Type observeType;
-    private List<ResourceObserver> observers;
-    private ObserveRelationContainer observeRelations;
-    private ObserveNotificationOrderer notificationOrderer;
+    private volatile List<ResourceObserver> observers;
+    private volatile ObserveRelationContainer observeRelations;
+    private volatile ObserveNotificationOrderer notificationOrderer;
+    private volatile ConcurrentHashMap<String, Set<ObserveRelation>> childRelations;
 
     public SimpleCoapResource(String name) {
         this(name, true);
@@ -48,16 +50,10 @@ public class SimpleCoapResource extends CoapResource {
 
     public SimpleCoapResource(String name, boolean visible) {
         super(name, visible);
-        this.recursionProtection = new ReentrantLock();
         this.observeType = null;
         this.name = name;
         this.path = "";
         this.visible = visible;
-        this.attributes = new ResourceAttributes();
-        this.children = new ConcurrentHashMap<>();
-        this.observers = new CopyOnWriteArrayList<>();
-        this.observeRelations = new ObserveRelationContainer();
-        this.notificationOrderer = new ObserveNotificationOrderer();
     }
 
     public void handleRequest(Exchange exchange) {
@@ -118,7 +114,7 @@ public class SimpleCoapResource extends CoapResource {
         ObserveRelation relation = exchange.getRelation();
         if (relation != null && !relation.isCanceled()) {
             if (ResponseCode.isSuccess(response.getCode())) {
-                response.getOptions().setObserve(this.notificationOrderer.getCurrent());
+                response.getOptions().setObserve(getNotificationOrderer().getCurrent());
                 if (!relation.isEstablished()) {
                     relation.setEstablished();
                     this.addObserveRelation(relation);
@@ -179,11 +175,11 @@ public class SimpleCoapResource extends CoapResource {
             if (name.equals(childName)) {
                 traverse(child);
             } else {
-                this.children.put(childName, child);
+                getOrCreateChildren().put(childName, child);
             }
             child.setParent(this);
 
-            this.observers.forEach(obs ->obs.addedChild(child));
+            getObservers().forEach(obs ->obs.addedChild(child));
         }
     }
 
@@ -195,7 +191,7 @@ public class SimpleCoapResource extends CoapResource {
             if (existChildNames.contains(childOfChildName)) {
                 traverse(childOfChild);
             } else {
-                this.children.put(childOfChildName, childOfChild);
+                getOrCreateChildren().put(childOfChildName, childOfChild);
             }
         });
     }
@@ -219,14 +215,15 @@ public class SimpleCoapResource extends CoapResource {
             child.setParent(null);
             child.setPath(null);
 
-            this.observers.forEach(obs -> obs.removedChild(child));
+            getObservers().forEach(obs -> obs.removedChild(child));
 
             return true;
         }
     }
 
     public synchronized Resource delete(String name) {
-        return this.children.remove(name);
+        ConcurrentHashMap<String, Resource> children = this.children;
+        return children == null ? null : children.remove(name);
     }
 
     public synchronized void delete() {
@@ -242,14 +239,21 @@ public class SimpleCoapResource extends CoapResource {
     }
 
     public void clearAndNotifyObserveRelations(ResponseCode code) {
-        for (ObserveRelation relation : this.observeRelations) {
+        ObserveRelationContainer observeRelations = this.observeRelations;
+        if (observeRelations == null) {
+            return;
+        }
+        for (ObserveRelation relation : observeRelations) {
             relation.cancel();
             relation.getExchange().sendResponse(new Response(code));
         }
     }
 
     public void clearObserveRelations() {
-        this.observeRelations.forEach(ObserveRelation::cancel);
+        ObserveRelationContainer observeRelations = this.observeRelations;
+        if (observeRelations != null) {
+            observeRelations.forEach(ObserveRelation::cancel);
+        }
     }
 
     public Resource getParent() {
@@ -266,19 +270,43 @@ public class SimpleCoapResource extends CoapResource {
     }
 
     public Resource getChild(String name) {
-        return this.children.get(name);
+        ConcurrentHashMap<String, Resource> children = this.children;
+        Resource child = children == null ? null : children.get(name);
+        return child == null ? wildcard : child;
+    }
+
+    /**
+     * 只按名字查找真正的子资源，不回退到通配子资源，构建资源树时使用
+     */
+    Resource getExactChild(String name) {
+        ConcurrentHashMap<String, Resource> children = this.children;
+        return children == null ? null : children.get(name);
     }
 
     public synchronized void addObserver(ResourceObserver observer) {
+        if (this.observers == null) {
+            this.observers = new CopyOnWriteArrayList<>();
+        }
         this.observers.add(observer);
     }
 
     public synchronized void removeObserver(ResourceObserver observer) {
-        this.observers.remove(observer);
+        if (this.observers != null) {
+            this.observers.remove(observer);
+        }
     }
 
     public ResourceAttributes getAttributes() {
-        return this.attributes;
+        ResourceAttributes attributes = this.attributes;
+        if (attributes == null) {
+            synchronized (this) {
+                if (this.attributes == null) {
+                    this.attributes = new ResourceAttributes();
+                }
+                attributes = this.attributes;
+            }
+        }
+        return attributes;
     }
 
     public String getName() {
@@ -301,7 +329,7 @@ public class SimpleCoapResource extends CoapResource {
         String old = this.path;
         this.path = path;
 
-        this.observers.forEach(obs -> obs.changedPath(old));
+        getObservers().forEach(obs -> obs.changedPath(old));
 
         this.adjustChildrenPath();
     }
@@ -324,16 +352,19 @@ public class SimpleCoapResource extends CoapResource {
 
             this.adjustChildrenPath();
 
-            this.observers.forEach(obs -> obs.changedName(old));
+            getObservers().forEach(obs -> obs.changedName(old));
         }
     }
 
     private void adjustChildrenPath() {
         String childpath = this.path + this.name + "/";
 
-        for (Resource child : this.children.values()) {
+        for (Resource child : getChildren()) {
             child.setPath(childpath);
         }
+        if (wildcard != null) {
+            wildcard.setPath(childpath);
+        }
 
     }
 
@@ -362,23 +393,37 @@ public class SimpleCoapResource extends CoapResource {
     }
 
     public void addObserveRelation(ObserveRelation relation) {
-        if (this.observeRelations.add(relation)) {
+        if (getOrCreateObserveRelations().add(relation)) {
             LOGGER.log(Level.INFO, "Replacing observe relation between {0} and resource {1}", new Object[]{relation.getKey(), this.getURI()});
         } else {
             LOGGER.log(Level.INFO, "Successfully established observe relation between {0} and resource {1}", new Object[]{relation.getKey(), this.getURI()});
         }
 
-        this.observers.forEach(obs -> obs.removedObserveRelation(relation));
+        if (childRelations != null) {
+            childRelations.computeIfAbsent(getChildName(relation), n -> ConcurrentHashMap.newKeySet()).add(relation);
+        }
+
+        getObservers().forEach(obs -> obs.addedObserveRelation(relation));
 
     }
 
     public void removeObserveRelation(ObserveRelation relation) {
-        this.observeRelations.remove(relation);
-        this.observers.forEach(obs -> obs.removedObserveRelation(relation));
+        ObserveRelationContainer observeRelations = this.observeRelations;
+        if (observeRelations != null) {
+            observeRelations.remove(relation);
+        }
+        if (childRelations != null) {
+            childRelations.computeIfPresent(getChildName(relation), (name, relations) -> {
+                relations.remove(relation);
+                return relations.isEmpty() ? null : relations;
+            });
+        }
+        getObservers().forEach(obs -> obs.removedObserveRelation(relation));
     }
 
     public int getObserverCount() {
-        return this.observeRelations.getSize();
+        ObserveRelationContainer observeRelations = this.observeRelations;
+        return observeRelations == null ? 0 : observeRelations.getSize();
     }
 
     public void changed() {
@@ -386,18 +431,23 @@ public class SimpleCoapResource extends CoapResource {
     }
 
     public void changed(final ObserveRelationFilter filter) {
+        if (this.observeRelations == null) {
+            // 从来没有观察者
+            return;
+        }
         Executor executor = this.getExecutor();
         if (executor == null) {
-            if (this.recursionProtection.isHeldByCurrentThread()) {
+            ReentrantLock recursionProtection = getRecursionProtection();
+            if (recursionProtection.isHeldByCurrentThread()) {
                 throw new IllegalStateException("Recursion detected! Please call \"changed()\" using an executor.");
             }
 
-            this.recursionProtection.lock();
+            recursionProtection.lock();
 
             try {
                 this.notifyObserverRelations(filter);
             } finally {
-                this.recursionProtection.unlock();
+                recursionProtection.unlock();
             }
         } else {
             executor.execute(() -> SimpleCoapResource.this.notifyObserverRelations(filter));
@@ -405,9 +455,37 @@ public class SimpleCoapResource extends CoapResource {
 
     }
 
+    /**
+     * 通配资源上某一个虚拟子资源变化，只通知观察这个子资源的观察者，不遍历其它子资源的观察关系
+     *
+     * @param child 子资源的名称，即通配的那一段 Uri-Path
+     */
+    public void changedChild(String child) {
+        if (childRelations == null) {
+            throw new IllegalStateException(getURI() + " is not a wildcard resource");
+        }
+        Set<ObserveRelation> relations = childRelations.get(child);
+        if (relations == null) {
+            return;
+        }
+        ObserveRelation[] snapshot = relations.toArray(new ObserveRelation[0]);
+        Runnable notify = () -> {
+            getNotificationOrderer().getNextObserveNumber();
+            for (ObserveRelation relation : snapshot) {
+                relation.notifyObservers();
+            }
+        };
+        Executor executor = this.getExecutor();
+        if (executor == null) {
+            notify.run();
+        } else {
+            executor.execute(notify);
+        }
+    }
+
     protected void notifyObserverRelations(ObserveRelationFilter filter) {
-        this.notificationOrderer.getNextObserveNumber();
-        Iterator i$ = this.observeRelations.iterator();
+        getNotificationOrderer().getNextObserveNumber();
+        Iterator i$ = getOrCreateObserveRelations().iterator();
 
         while (true) {
             ObserveRelation relation;
@@ -424,7 +502,89 @@ public class SimpleCoapResource extends CoapResource {
     }
 
     public Collection<Resource> getChildren() {
-        return this.children.values();
+        ConcurrentHashMap<String, Resource> children = this.children;
+        return children == null ? Collections.emptyList() : children.values();
+    }
+
+    /**
+     * 把 resource 设为通配子资源：任何不存在的子资源名都交给它处理，一个资源对象代表整棵子树（例如 /devices/*），
+     * 不再为每个设备建一个节点。通配资源不在 {@link #getChildren()} 里，不会列在 /.well-known/core 中；
+     * 它的观察关系按子资源名分组，{@link #changedChild(String)} 只通知一个子资源的观察者。
+     */
+    public synchronized void setWildcard(SimpleCoapResource resource) {
+        resource.setParent(this);
+        resource.childRelations = new ConcurrentHashMap<>();
+        this.wildcard = resource;
+    }
+
+    public SimpleCoapResource getWildcard() {
+        return wildcard;
+    }
+
+    public boolean isWildcard() {
+        return childRelations != null;
+    }
+
+    /**
+     * 通配资源所在那一段 Uri-Path
+     */
+    private String getChildName(ObserveRelation relation) {
+        List<String> uriPath = relation.getExchange().getRequest().getOptions().getUriPath();
+        int depth = getPath().split("/", -1).length - 2;
+        return depth < uriPath.size() ? uriPath.get(depth) : "";
+    }
+
+    // 子节点、监听器和观察关系在第一次用到时才创建，大量没有子节点、没有观察者的叶子节点不占这部分内存
+
+    private synchronized ConcurrentHashMap<String, Resource> getOrCreateChildren() {
+        if (this.children == null) {
+            this.children = new ConcurrentHashMap<>(4);
+        }
+        return this.children;
+    }
+
+    private List<ResourceObserver> getObservers() {
+        List<ResourceObserver> observers = this.observers;
+        return observers == null ? Collections.emptyList() : observers;
+    }
+
+    private ObserveRelationContainer getOrCreateObserveRelations() {
+        ObserveRelationContainer observeRelations = this.observeRelations;
+        if (observeRelations == null) {
+            synchronized (this) {
+                if (this.observeRelations == null) {
+                    this.observeRelations = new ObserveRelationContainer();
+                }
+                observeRelations = this.observeRelations;
+            }
+        }
+        return observeRelations;
+    }
+
+    private ObserveNotificationOrderer getNotificationOrderer() {
+        ObserveNotificationOrderer notificationOrderer = this.notificationOrderer;
+        if (notificationOrderer == null) {
+            synchronized (this) {
+                if (this.notificationOrderer == null) {
+                    this.notificationOrderer = new ClockNotificationOrderer();
+                }
+                notificationOrderer = this.notificationOrderer;
+            }
+        }
+        return notificationOrderer;
+    }
+
+    private ReentrantLock getRecursionProtection() {
+        ReentrantLock recursionProtection = this.recursionProtection;
+        if (recursionProtection == null) {
+            synchronized (this) {
+                if (this.recursionProtection == null) {
+                    this.recursionProtection = new ReentrantLock();
+                }
+                recursionProtection = this.recursionProtection;
+            }
+        }
+        return recursionProtection;
     }
 
     public ExecutorService getExecutor() {
@@ -454,4 +614,27 @@ public class SimpleCoapResource extends CoapResource {
         return this.parent == null ? Collections.emptyList() : this.parent.getEndpoints();
     }
 
+    /**
+     * observe 序号取自毫秒时钟，同一个资源上单调递增，一毫秒内多次通知时顺延
+     * <p>
+     * 集群中观察关系换到另一个节点后，新节点的序号仍然大于客户端收到的最后一个序号，客户端不会把通知当成乱序丢掉
+     * （RFC 7641 3.4：24 位序号按回绕比较，相差超过 2^23 毫秒时客户端按 128 秒的时间规则判断）
+     */
+    private static class ClockNotificationOrderer extends ObserveNotificationOrderer {
+
+        private long last = System.currentTimeMillis();
+
+        @Override
+        public synchronized int getNextObserveNumber() {
+            last = Math.max(System.currentTimeMillis(), last + 1);
+            return (int) (last & 0xFFFFFF);
+        }
+
+        @Override
+        public synchronized int getCurrent() {
+            return (int) (last & 0xFFFFFF);
+        }
+
+    }
+
 }
@@ -5,30 +5,48 @@ import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.network.CoapEndpoint;
 import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResourceAttributes;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.UDPConnector;
 import org.eclipse.californium.scandium.DTLSConnector;
 import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static com.coap.example.CredentialsUtil.DEFAULT_SERVER_MODES;
 import static com.coap.example.CredentialsUtil.SERVER_NAME;
 
 @Component
+// 停机时先排空服务器再停止写入管道，排空期间 handler 收下的记录仍能写完
+@DependsOn("ingestionPipeline")
 public class SimpleCoapServer {
 
     private static Logger logger = LoggerFactory.getLogger(SimpleCoapServer.class);
 
+    private static final int TCP_HEADER_ALLOWANCE = 1024;
+    private static final String WILDCARD = "*";
+
     private static final List<CredentialsUtil.Mode> SUPPORTED_MODES =
             Arrays.asList(Mode.PSK, Mode.ECDHE_PSK, Mode.RPK, Mode.X509, Mode.WANT_AUTH, Mode.NO_AUTH);
 
@@ -37,139 +55,503 @@ public class SimpleCoapServer {
     //         Mode.X509.toString(), Mode.WANT_AUTH.toString()};
     private String[] args = new String[]{Mode.PSK.toString(), Mode.ECDHE_PSK.toString(), Mode.RPK.toString(),
             Mode.WANT_AUTH.toString()};
-    private Map<String, Method> url2MethodMap = new HashMap<>();
 
     @Autowired
     private SimpleApplicationContextAware simpleApplicationContextAware;
 
+    @Autowired
+    private CoapResponseCache coapResponseCache;
+
+    @Autowired
+    private PayloadCodecRegistry payloadCodecRegistry;
+
+    @Autowired
+    private CoapRateLimiter coapRateLimiter;
+
+    @Autowired
+    private CoapRequestScheduler coapRequestScheduler;
+
+    @Autowired
+    private ObserveDeltaEncoder observeDeltaEncoder;
+
+    @Autowired
+    private ResourceDirectory resourceDirectory;
+
+    @Autowired
+    private CoapCluster coapCluster;
+
+    @Autowired
+    private BlockwiseTransferStore blockwiseTransferStore;
+
     @Value("${coap.port}")
     private int port;
 
+    @Value("${coap.address-reuse:false}")
+    private boolean addressReuse;
 
-    public void start() {
-        CoapServer coapServer = new CoapServer();
+    @Value("${coap.drain.timeout:30000}")
+    private long drainTimeout;
 
-        // 添加 DTLS 支持，也就是通过 coaps 安全方式访问
-        CoapEndpoint.Builder endpointBuilder = new CoapEndpoint.Builder();
-        endpointBuilder.setConnector(new DTLSConnector(initDtlsConfigBuilder()));
-        coapServer.addEndpoint(endpointBuilder.build());
+    @Value("${coap.drain.quiet-period:2000}")
+    private long drainQuietPeriod;
+
+    @Value("${coap.drain.max-age:10}")
+    private long drainMaxAge;
+
+    @Value("${coap.batch.path:batch}")
+    private String batchPath;
+
+    @Value("${coap.batch.max-size:64}")
+    private int batchMaxSize;
+
+    @Value("${coap.batch.timeout:10000}")
+    private long batchTimeout;
+
+    @Value("${coap.batch.threads:4}")
+    private int batchThreads;
+
+    @Value("${coap.rd.enabled:true}")
+    private boolean rdEnabled;
+
+    @Value("${coap.udp.enabled:false}")
+    private boolean udpEnabled;
+
+    @Value("${coap.udp.port:5685}")
+    private int udpPort;
 
+    @Value("${coap.udp.batching:true}")
+    private boolean udpBatching;
+
+    @Value("${coap.udp.batch-size:64}")
+    private int udpBatchSize;
+
+    @Value("${coap.udp.queue-capacity:4096}")
+    private int udpQueueCapacity;
+
+    @Value("${coap.tcp.enabled:false}")
+    private boolean tcpEnabled;
+
+    @Value("${coap.tcp.port:5684}")
+    private int tcpPort;
+
+    @Value("${coap.tcp.tls:true}")
+    private boolean tcpTls;
+
+    @Value("${coap.tcp.max-message-size:1048576}")
+    private int tcpMaxMessageSize;
+
+    @Value("${coap.tcp.max-connections:1024}")
+    private int tcpMaxConnections;
+
+    private final CoapServerDrainer coapServerDrainer = new CoapServerDrainer();
+
+    private volatile CoapServer coapServer;
+
+    private BatchCoapResource batchCoapResource;
+
+    public void start() {
+        long start = System.nanoTime();
         Map<String, Object> coapHandlerMap =
                 simpleApplicationContextAware.getApplicationContext().getBeansWithAnnotation(CoapHandler.class);
+        List<CoapRoute> coapRoutes = scanCoapRoutes(coapHandlerMap.values());
+        long scanned = System.nanoTime();
+        logger.info(">>>>> ROUTE_SCAN: [{}] ROUTES OF [{}] HANDLERS IN [{}] MS", coapRoutes.size(),
+                coapHandlerMap.size(), TimeUnit.NANOSECONDS.toMillis(scanned - start));
 
-        // 进行 url 到 method 的映射
-        SimpleCoapResource mainCoapResource = null;
-        for (Object coapHandler : coapHandlerMap.values()) {
-            Class<?> clazz = coapHandler.getClass();
-            CoapMapping classCoapMapping = clazz.getAnnotation(CoapMapping.class);
-            String[] classMappingUrls = classCoapMapping == null ? new String[]{""} : classCoapMapping.value();
-
-            SimpleCoapResource classCoapResource = null;
-            for (Method method : clazz.getMethods()) {
-                CoapMapping methodCoapMapping = method.getAnnotation(CoapMapping.class);
-                if (methodCoapMapping != null) {
-                    CoapMethod[] coapMethods = methodCoapMapping.method();
-                    List<Integer> coapMethodValues = new ArrayList<>();
-                    Stream.of(coapMethods).forEach(coapMethod -> coapMethodValues.add(coapMethod.value));
-
-                    SimpleCoapResource methodCoapResource = null;
-                    for (String classMappingUrl : classMappingUrls) {
-                        SimpleCoapResource classUrlCoapResource = null;
-                        for (String methodMappingUrl : methodCoapMapping.value()) {
-
-                            String url = classMappingUrl + methodMappingUrl;
-                            if (url.startsWith("/")) {
-                                url = url.substring(1);
-                            }
-                            if (url.endsWith("/")) {
-                                url = url.substring(0, url.length() - 1);
-                            }
+        SimpleCoapResource root = buildCoapResource(coapRoutes);
+        long built = System.nanoTime();
+        logger.info(">>>>> RESOURCE_TREE_BUILD: [{}] MS", TimeUnit.NANOSECONDS.toMillis(built - scanned));
 
-                            if (url2MethodMap.containsKey(url)) {
-                                throw new IllegalStateException(">>>>> Ambiguous mapping. Cannot map \n[" + method +
-                                        "] \nto [" + url + "]\n. There is already \n[" + url2MethodMap.get(url) +
-                                        "]\n mapped.");
-                            } else {
-                                url2MethodMap.put(url, method);
-                            }
+        CoapServer coapServer = new CoapServer();
+        boolean clustered = coapCluster != null && coapCluster.isEnabled();
+        SimpleMessageDeliverer messageDeliverer = new SimpleMessageDeliverer(coapServer.getRoot(),
+                coapServerDrainer, drainMaxAge, coapRateLimiter, clustered ? coapCluster : null);
+        coapServer.setMessageDeliverer(messageDeliverer);
+        blockwiseTransferStore.setMessageDeliverer(messageDeliverer);
 
-                            String[] resources = url.split("/");
-
-                            SimpleCoapResource methodUrlCoapResource = null;
-                            for (int i = 0; i < resources.length; i++) {
-                                if (resources.length == 1) {
-                                    methodUrlCoapResource = getBusinessCoapResource(coapHandler, method,
-                                            coapMethodValues, resources[i]);
-                                } else {
-                                    if (i == 0) {
-                                        methodUrlCoapResource = new NotAllowedCoapResource(resources[i]);
-                                    } else if (i == resources.length - 1) {
-                                        methodUrlCoapResource =
-                                                methodUrlCoapResource.add(getBusinessCoapResource(coapHandler, method,
-                                                        coapMethodValues, resources[i]));
-                                    } else {
-                                        methodUrlCoapResource = methodUrlCoapResource.add(new NotAllowedCoapResource(resources[i]));
-                                    }
-                                }
-                            }
+        // 添加 DTLS 支持，也就是通过 coaps 安全方式访问，集群模式下会话票据在节点之间共享
+        CoapEndpoint.Builder endpointBuilder = new CoapEndpoint.Builder();
+        endpointBuilder.setConnector(clustered ? new DTLSConnector(initDtlsConfigBuilder(), coapCluster)
+                : new DTLSConnector(initDtlsConfigBuilder()));
+        // 上传的 Block1 传输状态有内存上限，超出的部分写到临时文件
+        endpointBuilder.setCoapStackFactory(blockwiseTransferStore);
+        CoapEndpoint endpoint = endpointBuilder.build();
+        endpoint.addInterceptor(coapServerDrainer);
+        coapServer.addEndpoint(endpoint);
+        if (udpEnabled) {
+            coapServer.addEndpoint(initUdpEndpoint());
+        }
+        if (tcpEnabled) {
+            coapServer.addEndpoint(initTcpEndpoint());
+        }
 
-                            classUrlCoapResource = adjustParentChild(classUrlCoapResource, methodUrlCoapResource);
-                        }
+        coapServer.add(root.getChildren().toArray(new Resource[0]));
+        if (!batchPath.isEmpty()) {
+            addBatchCoapResource(coapServer);
+        }
+        if (resourceDirectory != null) {
+            addResourceDirectory(coapServer);
+        }
+        coapServer.start();
+        this.coapServer = coapServer;
+        logger.info(">>>>> ENDPOINT_BIND: PORT [{}] IN [{}] MS", port,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - built));
+    }
 
-                        methodCoapResource = adjustParentChild(methodCoapResource, classUrlCoapResource);
-                    }
+    /**
+     * 优雅停机：先拒绝新请求，等进行中的交互完成（或到截止时间），再关闭 endpoint
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        CoapServer coapServer = this.coapServer;
+        if (coapServer == null) {
+            return;
+        }
+        this.coapServer = null;
 
-                    classCoapResource = adjustParentChild(classCoapResource, methodCoapResource);
+        long start = System.nanoTime();
+        coapServerDrainer.startDrain();
+        logger.info(">>>>> DRAIN_START: IN_FLIGHT_HANDLERS [{}] PENDING_RESPONSES [{}]",
+                coapServerDrainer.getInFlightHandlers(), coapServerDrainer.getPendingResponses());
+        if (coapServerDrainer.awaitDrained(drainTimeout, drainQuietPeriod)) {
+            logger.info(">>>>> DRAIN_COMPLETE: [{}] MS", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } else {
+            logger.warn(">>>>> DRAIN_TIMEOUT: IN_FLIGHT_HANDLERS [{}] PENDING_RESPONSES [{}]",
+                    coapServerDrainer.getInFlightHandlers(), coapServerDrainer.getPendingResponses());
+        }
+        coapServer.destroy();
+        if (batchCoapResource != null) {
+            batchCoapResource.shutdown();
+        }
+    }
+
+    /**
+     * 通知某个路由的观察者资源已经变化，路由要标注 {@link CoapMapping#observable()}
+     *
+     * @param path 路由，例如 "coap/config"，首尾的 "/" 可有可无；通配路由下写具体的子资源，例如 "devices/42"，
+     *             只通知观察这个子资源的观察者，写 "devices/*" 时通知全部
+     * @throws IllegalArgumentException 路由不存在
+     */
+    public void changed(String path) {
+        CoapServer coapServer = this.coapServer;
+        if (coapServer == null) {
+            return;
+        }
+        Resource resource = coapServer.getRoot();
+        String child = null;
+        for (String name : path.split("/")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            resource = resource.getChild(name);
+            if (resource == null) {
+                throw new IllegalArgumentException(">>>>> Resource [" + path + "] is not mapped.");
+            }
+            child = name;
+        }
+        SimpleCoapResource changed = (SimpleCoapResource) resource;
+        if (changed.isWildcard() && !WILDCARD.equals(child)) {
+            // 通配资源下的一个设备变化，只通知这个设备的观察者
+            changed.changedChild(child);
+        } else {
+            changed.changed();
+        }
+    }
+
+    /**
+     * 批量请求资源和业务路由挂在同一棵资源树上，子请求按同样的路由分发
+     */
+    private void addBatchCoapResource(CoapServer coapServer) {
+        Resource serverRoot = coapServer.getRoot();
+        if (serverRoot.getChild(batchPath) != null) {
+            throw new IllegalStateException(">>>>> Batch path [" + batchPath + "] is already mapped.");
+        }
+        batchCoapResource = new BatchCoapResource(batchPath, serverRoot, payloadCodecRegistry, batchMaxSize,
+                batchTimeout, batchThreads, coapServerDrainer, coapRateLimiter) {
+            @Override
+            public void handleRequest(Exchange exchange) {
+                coapServerDrainer.enterHandler();
+                try {
+                    super.handleRequest(exchange);
+                } finally {
+                    coapServerDrainer.exitHandler();
                 }
             }
+        };
+        coapServer.add(batchCoapResource);
+    }
 
-            mainCoapResource = adjustParentChild(mainCoapResource, classCoapResource);
+    /**
+     * 用 {@link ResourceDirectory} 的索引代替 Californium 每次遍历资源树的 /.well-known/core，
+     * 启用时再加上资源目录的注册（/rd）和查找（/rd-lookup/res、/rd-lookup/ep）接口
+     */
+    private void addResourceDirectory(CoapServer coapServer) {
+        Resource serverRoot = coapServer.getRoot();
+        Resource wellKnown = serverRoot.getChild(".well-known");
+        wellKnown.delete(wellKnown.getChild("core"));
+        LinkFormatCoapResource wellKnownCore = new LinkFormatCoapResource("core", null, resourceDirectory::discover);
+        wellKnownCore.setVisible(false);
+        wellKnown.add(wellKnownCore);
+        if (rdEnabled) {
+            if (serverRoot.getChild("rd") != null || serverRoot.getChild("rd-lookup") != null) {
+                throw new IllegalStateException(">>>>> Resource directory path [rd] is already mapped.");
+            }
+            SimpleCoapResource lookup = new NotAllowedCoapResource("rd-lookup");
+            lookup.add(new LinkFormatCoapResource("res", "core.rd-lookup-res", resourceDirectory::lookupResources));
+            lookup.add(new LinkFormatCoapResource("ep", "core.rd-lookup-ep", resourceDirectory::lookupEndpoints));
+            coapServer.add(new ResourceDirectoryCoapResource("rd", resourceDirectory), lookup);
         }
+        resourceDirectory.index(serverRoot);
+    }
 
-        coapServer.add(mainCoapResource);
-        coapServer.start();
+    /**
+     * 并行扫描所有 {@link CoapHandler} 上的 {@link CoapMapping}，得到 url 到 method 的路由列表
+     *
+     * @param coapHandlers 标注了 {@link CoapHandler} 的对象
+     * @throws IllegalStateException 同一个 url 映射到多个方法
+     */
+    List<CoapRoute> scanCoapRoutes(Collection<Object> coapHandlers) {
+        List<CoapRoute> coapRoutes = coapHandlers.parallelStream()
+                .flatMap(coapHandler -> scanCoapRoutes(coapHandler).stream())
+                .collect(Collectors.toList());
+
+        Map<String, Method> url2MethodMap = new HashMap<>(coapRoutes.size() * 2);
+        for (CoapRoute coapRoute : coapRoutes) {
+            Method method = url2MethodMap.putIfAbsent(coapRoute.url, coapRoute.method);
+            if (method != null) {
+                throw new IllegalStateException(">>>>> Ambiguous mapping. Cannot map \n[" + coapRoute.method +
+                        "] \nto [" + coapRoute.url + "]\n. There is already \n[" + method + "]\n mapped.");
+            }
+        }
+        return coapRoutes;
     }
 
-    private SimpleCoapResource adjustParentChild(SimpleCoapResource parent, SimpleCoapResource child) {
-        if (parent == null) {
-            parent = child;
-        } else if (child != null) {
-            parent.add(child);
+    private List<CoapRoute> scanCoapRoutes(Object coapHandler) {
+        Class<?> clazz = coapHandler.getClass();
+        CoapMapping classCoapMapping = clazz.getAnnotation(CoapMapping.class);
+        String[] classMappingUrls = classCoapMapping == null ? new String[]{""} : classCoapMapping.value();
+
+        List<CoapRoute> coapRoutes = new ArrayList<>();
+        for (Method method : clazz.getMethods()) {
+            CoapMapping methodCoapMapping = method.getAnnotation(CoapMapping.class);
+            if (methodCoapMapping != null) {
+                CoapMethod[] coapMethods = methodCoapMapping.method();
+                List<Integer> coapMethodValues = new ArrayList<>();
+                Stream.of(coapMethods).forEach(coapMethod -> coapMethodValues.add(coapMethod.value));
+
+                for (String classMappingUrl : classMappingUrls) {
+                    for (String methodMappingUrl : methodCoapMapping.value()) {
+                        String url = classMappingUrl + methodMappingUrl;
+                        if (url.startsWith("/")) {
+                            url = url.substring(1);
+                        }
+                        if (url.endsWith("/")) {
+                            url = url.substring(0, url.length() - 1);
+                        }
+                        coapRoutes.add(new CoapRoute(url, coapHandler, method, methodCoapMapping,
+                                coapMethodValues));
+                    }
+                }
+            }
         }
-        return parent;
+        return coapRoutes;
+    }
+
+    /**
+     * 按 url 逐段插入资源树，中间节点为 {@link NotAllowedCoapResource}
+     *
+     * @return 资源树的根，根本身不对外，它的子节点才是顶层资源
+     */
+    SimpleCoapResource buildCoapResource(List<CoapRoute> coapRoutes) {
+        SimpleCoapResource root = new NotAllowedCoapResource("");
+        for (CoapRoute coapRoute : coapRoutes) {
+            String[] resources = coapRoute.url.split("/");
+            SimpleCoapResource parent = root;
+            for (int i = 0; i < resources.length - 1; i++) {
+                Resource child = parent.getExactChild(resources[i]);
+                if (child == null) {
+                    child = new NotAllowedCoapResource(resources[i]);
+                    parent.add(child);
+                }
+                parent = (SimpleCoapResource) child;
+            }
+
+            String name = resources[resources.length - 1];
+            SimpleCoapResource businessCoapResource = getBusinessCoapResource(coapRoute.coapHandler,
+                    coapRoute.method, coapRoute.coapMapping, coapRoute.coapMethodValues, name);
+            if (WILDCARD.equals(name)) {
+                // 一个资源对象代表所有子资源，例如 /devices/*，不为每个设备建节点
+                if (parent == root || parent.getWildcard() != null) {
+                    throw new IllegalStateException(">>>>> Wildcard url [" + coapRoute.url + "] is not allowed.");
+                }
+                parent.setWildcard(businessCoapResource);
+                continue;
+            }
+            Resource placeholder = parent.getExactChild(name);
+            if (placeholder != null) {
+                // 更长的 url 先插入时已经建了中间节点，把它的子节点挪过来
+                parent.delete(placeholder);
+                new ArrayList<>(placeholder.getChildren()).forEach(businessCoapResource::add);
+                SimpleCoapResource wildcard = ((SimpleCoapResource) placeholder).getWildcard();
+                if (wildcard != null) {
+                    businessCoapResource.setWildcard(wildcard);
+                }
+            }
+            parent.add(businessCoapResource);
+        }
+        return root;
     }
 
     // https://github.com/eclipse/californium/blob/master/demo-apps/cf-secure/src/main/java/org/eclipse/californium/examples/SecureServer.java
     private DtlsConnectorConfig initDtlsConfigBuilder() {
         DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
         CredentialsUtil.setupCid(args, builder);
+        if (coapCluster != null && coapCluster.isEnabled()) {
+            // CID 带上节点号，负载均衡按它把报文送回本节点
+            builder.setConnectionIdGenerator(coapCluster.getConnectionIdGenerator());
+        }
         builder.setAddress(new InetSocketAddress(port));
+        // 新进程可以在旧进程排空期间绑定同一端口
+        builder.setEnableAddressReuse(addressReuse);
         builder.setRecommendedCipherSuitesOnly(false);
         List<Mode> modes = CredentialsUtil.parse(args, DEFAULT_SERVER_MODES, SUPPORTED_MODES);
         CredentialsUtil.setupCredentials(builder, SERVER_NAME, modes);
         return builder.build();
     }
 
-    private SimpleCoapResource getBusinessCoapResource(Object coapHandler, Method method,
-                                                       List<Integer> coapMethodValues, String resource) {
-        return new SimpleCoapResource(resource) {
+    /**
+     * 不加密的 coap:// endpoint，和 DTLS endpoint 共用资源树，默认使用批量收发的 {@link BatchingUdpConnector}
+     */
+    private CoapEndpoint initUdpEndpoint() {
+        NetworkConfig config = NetworkConfig.getStandard();
+        InetSocketAddress address = new InetSocketAddress(udpPort);
+        Connector connector;
+        if (udpBatching) {
+            connector = new BatchingUdpConnector(address, udpBatchSize,
+                    config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_DATAGRAM_SIZE), udpQueueCapacity,
+                    config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_RECEIVE_BUFFER));
+        } else {
+            connector = new UDPConnector(address);
+        }
+        CoapEndpoint endpoint = new CoapEndpoint.Builder().setNetworkConfig(config).setConnector(connector)
+                .setCoapStackFactory(blockwiseTransferStore).build();
+        endpoint.addInterceptor(coapServerDrainer);
+        logger.info(">>>>> UDP_ENDPOINT: [{}] PORT [{}]", connector.getClass().getSimpleName(), udpPort);
+        return endpoint;
+    }
+
+    /**
+     * CoAP over TCP/TLS 的 endpoint，和 DTLS endpoint 共用资源树，RFC 8323
+     * <p>
+     * 流式传输没有 UDP 报文的大小限制，不超过 Max-Message-Size 的消息整条发送，不再分块；
+     * 更大的消息按 1024 字节分块，客户端请求 BERT（SZX=7）时也按 1024 字节的 block 响应
+     */
+    private CoapEndpoint initTcpEndpoint() {
+        NetworkConfig config = new NetworkConfig(NetworkConfig.getStandard());
+        // 给选项和帧头留出余量，payload 加上它们不超过声明的 Max-Message-Size
+        int maxPayloadSize = tcpMaxMessageSize - TCP_HEADER_ALLOWANCE;
+        config.setInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE, maxPayloadSize);
+        config.setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, Math.max(maxPayloadSize,
+                config.getInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE)));
+        config.setInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, 1024);
+        SSLContext sslContext = null;
+        if (tcpTls) {
+            try {
+                sslContext = CredentialsUtil.createSslContext(SERVER_NAME);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException(">>>>> TLS credentials are invalid.", e);
+            }
+        }
+        CoapTcpConnector connector = new CoapTcpConnector(new InetSocketAddress(tcpPort), sslContext,
+                tcpMaxMessageSize, tcpMaxConnections,
+                TimeUnit.SECONDS.toMillis(config.getInt(NetworkConfig.Keys.TCP_CONNECTION_IDLE_TIMEOUT)),
+                config.getInt(NetworkConfig.Keys.TCP_CONNECT_TIMEOUT));
+        CoapEndpoint endpoint = new CoapEndpoint.Builder().setNetworkConfig(config).setConnector(connector).build();
+        endpoint.addInterceptor(coapServerDrainer);
+        logger.info(">>>>> TCP_ENDPOINT: [{}] PORT [{}]", connector.getProtocol(), tcpPort);
+        return endpoint;
+    }
+
+    SimpleCoapResource getBusinessCoapResource(Object coapHandler, Method method, CoapMapping coapMapping,
+                                               List<Integer> coapMethodValues, String resource) {
+        boolean cacheable = coapMapping.cacheable();
+        boolean singleFlight = coapMapping.singleFlight();
+        boolean observeDelta = coapMapping.observeDelta();
+        CoapQos qos = coapMapping.qos();
+        CoapHandlerMethod coapHandlerMethod = new CoapHandlerMethod(coapHandler, method, payloadCodecRegistry);
+        SimpleCoapResource businessCoapResource = new SimpleCoapResource(resource) {
+            /**
+             * 按路由的服务等级交给 {@link CoapRequestScheduler}，排队的请求也算作执行中的 handler，排空时会等它们
+             */
             @Override
             public void handleRequest(Exchange exchange) {
+                coapServerDrainer.enterHandler();
+                if (coapRequestScheduler == null) {
+                    invoke(exchange);
+                } else if (!coapRequestScheduler.execute(qos, () -> invoke(exchange))) {
+                    coapServerDrainer.exitHandler();
+                    logger.warn(">>>>> SCHEDULER_REJECT: [{}] [{}]", method.getName(), qos);
+                    CoapExchange coapExchange = new CoapExchange(exchange, this);
+                    coapExchange.setMaxAge(coapRequestScheduler.getMaxAge());
+                    coapExchange.respond(CoAP.ResponseCode.SERVICE_UNAVAILABLE);
+                }
+            }
+
+            private void invoke(Exchange exchange) {
                 CoAP.Code code = exchange.getRequest().getCode();
                 try {
                     if (coapMethodValues.size() == 0 || coapMethodValues.contains(code.value)) {
-                        method.invoke(coapHandler, new CoapExchange(exchange, this));
+                        if (observeDelta && observeDeltaEncoder != null
+                                && observeDeltaEncoder.accepts(exchange.getRequest())) {
+                            observeDeltaEncoder.execute(exchange, this, coapHandlerMethod::invoke);
+                        } else if (cacheable && coapResponseCache.isCacheable(exchange.getRequest())) {
+                            coapResponseCache.execute(exchange, this, coapHandlerMethod::invoke);
+                        } else if (singleFlight && coapResponseCache.isCacheable(exchange.getRequest())) {
+                            coapResponseCache.coalesce(exchange, this, coapHandlerMethod::invoke);
+                        } else {
+                            if (cacheable && code != CoAP.Code.GET && code != CoAP.Code.FETCH) {
+                                // 非幂等请求可能修改了资源，先让缓存失效
+                                coapResponseCache.invalidate(exchange.getRequest().getOptions().getUriPathString());
+                            }
+                            coapHandlerMethod.invoke(new CoapExchange(exchange, this));
+                        }
                     } else {
                         super.handleRequest(exchange);
                     }
+                } catch (CoapResponseException e) {
+                    logger.warn(">>>>> INVOKE_METHOD_REJECT: [{}] [{}] [{}]", method.getName(), e.getCode(),
+                            e.getMessage());
+                    new CoapExchange(exchange, this).respond(e.getCode(), e.getMessage());
                 } catch (Exception e) {
                     StringWriter stringWriter = new StringWriter();
                     e.printStackTrace(new PrintWriter(stringWriter, true));
                     logger.error(">>>>> INVOKE_METHOD_ERROR: [{}]", method.getName());
                     logger.error(stringWriter.toString());
+                    if (exchange.getResponse() == null) {
+                        // 不回响应的话设备会一直重传，上传的请求体也要等响应发出才归还内存
+                        new CoapExchange(exchange, this).respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR);
+                    }
+                } finally {
+                    coapServerDrainer.exitHandler();
                 }
             }
+
+            @Override
+            public boolean isCachable() {
+                return cacheable;
+            }
         };
+        businessCoapResource.setObservable(coapMapping.observable());
+        if (coapMapping.observable() && coapCluster != null && coapCluster.isEnabled()) {
+            businessCoapResource.addObserver(coapCluster.getResourceObserver());
+        }
+        ResourceAttributes attributes = businessCoapResource.getAttributes();
+        Stream.of(coapMapping.resourceType()).forEach(attributes::addResourceType);
+        Stream.of(coapMapping.interfaceDescription()).forEach(attributes::addInterfaceDescription);
+        if (coapMapping.observable()) {
+            attributes.setObservable();
+        }
+        return businessCoapResource;
     }
 
 }
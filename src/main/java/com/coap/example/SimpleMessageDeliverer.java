@@ -0,0 +1,103 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.ServerMessageDeliverer;
+import org.eclipse.californium.core.server.resources.Resource;
+
+import java.util.Map;
+
+/**
+ * 在请求分发到资源之前做统一处理
+ * <p>
+ * 排空期间拒绝新的请求，返回 5.03 和 Max-Age，让设备稍后重试，而不是等到 MAX_TRANSMIT_WAIT 超时。
+ * 其余请求先经过 {@link CoapRateLimiter}，被限流或过载时直接返回它给出的响应，不进入资源。
+ * <p>
+ * {@link Block1TransferLayer} 接收的多块上传在第 0 块到达时由 {@link #admitTransfer} 检查一次，
+ * 组装出的完整请求带着 {@link #ADMITTED_TRANSFER} 标记，不再受这两项限制。BlockwiseLayer 组装的上传
+ * 第 0 块到不了这里，组装出的请求和普通请求一样检查。Block2 的后续块如果有已经生成的响应，
+ * 由 BlockwiseLayer 直接返回，到不了这里；到了这里的会重新调用 handler，和普通请求一样检查。
+ * <p>
+ * 集群模式下设备的请求通过限流后，先恢复它在别的节点上的观察关系，见 {@link CoapCluster#restore}。
+ */
+public class SimpleMessageDeliverer extends ServerMessageDeliverer {
+
+    /**
+     * {@link Block1TransferLayer} 在组装出的请求的 user context 里放的标记，表示第 0 块已经通过 {@link #admitTransfer}；
+     * user context 只在本地，不会出现在报文里
+     */
+    static final String ADMITTED_TRANSFER = "coap.example.admitted-transfer";
+
+    private final CoapServerDrainer coapServerDrainer;
+    private final long drainMaxAge;
+    private final CoapRateLimiter coapRateLimiter;
+    private final CoapCluster coapCluster;
+
+    public SimpleMessageDeliverer(Resource root, CoapServerDrainer coapServerDrainer, long drainMaxAge,
+                                  CoapRateLimiter coapRateLimiter) {
+        this(root, coapServerDrainer, drainMaxAge, coapRateLimiter, null);
+    }
+
+    public SimpleMessageDeliverer(Resource root, CoapServerDrainer coapServerDrainer, long drainMaxAge,
+                                  CoapRateLimiter coapRateLimiter, CoapCluster coapCluster) {
+        super(root);
+        this.coapServerDrainer = coapServerDrainer;
+        this.drainMaxAge = drainMaxAge;
+        this.coapRateLimiter = coapRateLimiter;
+        this.coapCluster = coapCluster;
+    }
+
+    @Override
+    protected boolean preDeliverRequest(Exchange exchange) {
+        Request request = exchange.getRequest();
+        if (isAdmittedTransfer(request)) {
+            return false;
+        }
+        if (coapServerDrainer.isDraining()) {
+            exchange.sendResponse(drainResponse());
+            return true;
+        }
+        if (coapRateLimiter != null) {
+            Response response = coapRateLimiter.admit(request, coapServerDrainer.getInFlightHandlers());
+            if (response != null) {
+                exchange.sendResponse(response);
+                return true;
+            }
+        }
+        // 恢复观察关系也要重新调用 handler，放在限流之后
+        if (coapCluster != null) {
+            coapCluster.restore(exchange, this);
+        }
+        return false;
+    }
+
+    /**
+     * 协议栈开始接收一个多块上传之前做排空和限流检查，整个上传只计一次，之后的块和组装出的请求都不再检查
+     *
+     * @return 要直接返回给第 0 块的响应，null 表示可以开始
+     */
+    public Response admitTransfer(Request request) {
+        if (coapServerDrainer.isDraining()) {
+            return drainResponse();
+        }
+        return coapRateLimiter == null ? null
+                : coapRateLimiter.admit(request, coapServerDrainer.getInFlightHandlers());
+    }
+
+    private Response drainResponse() {
+        Response response = new Response(CoAP.ResponseCode.SERVICE_UNAVAILABLE);
+        response.getOptions().setMaxAge(drainMaxAge);
+        return response;
+    }
+
+    /**
+     * 是否是第 0 块已经检查过的上传组装出的请求
+     */
+    private static boolean isAdmittedTransfer(Request request) {
+        Map<String, String> userContext = request.getUserContext();
+        return userContext != null && userContext.containsKey(ADMITTED_TRANSFER);
+    }
+
+}
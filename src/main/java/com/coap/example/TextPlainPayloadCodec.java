@@ -0,0 +1,35 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * text/plain，只支持 String
+ */
+@Component
+public class TextPlainPayloadCodec implements PayloadCodec {
+
+    @Override
+    public int getContentFormat() {
+        return MediaTypeRegistry.TEXT_PLAIN;
+    }
+
+    @Override
+    public boolean supports(Type type) {
+        return type == String.class;
+    }
+
+    @Override
+    public Object decode(byte[] payload, Type type) {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return ((String) value).getBytes(StandardCharsets.UTF_8);
+    }
+
+}
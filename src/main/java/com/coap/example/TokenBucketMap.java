@@ -0,0 +1,175 @@
+package com.coap.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 以 long 为键的令牌桶表，用于按对端限流
+ * <p>
+ * 十几万个对端如果用 {@code ConcurrentHashMap<String, Bucket>}，每个对端要一个 String、一个 Node、一个桶对象。
+ * 这里按键的高位分成若干段，每段是一张开放寻址表，键、最近访问时间、剩余令牌分别放在三个基本类型数组里，
+ * 每个对端只占 24 字节。段内的读写由段上的锁保护，不同段之间互不竞争。
+ * <p>
+ * 超过 expiry 没有访问的条目在扩容时清除，补满令牌后的桶和新建的桶没有区别，所以清除不影响限流结果。
+ * 段已满且没有可清除的条目时不再记录新的键，直接放行（计入 untracked），宁可少限流也不拒绝正常设备。
+ */
+class TokenBucketMap {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final double tokensPerNano;
+    private final double burst;
+    private final long expiryNanos;
+    private final AtomicLong untracked = new AtomicLong();
+
+    /**
+     * @param maxEntries    最多记录的键数
+     * @param ratePerSecond 每秒补充的令牌数
+     * @param burst         桶容量，也就是允许的突发请求数
+     * @param expiryMillis  多久没有访问的条目可以清除，单位毫秒
+     */
+    TokenBucketMap(int maxEntries, double ratePerSecond, double burst, long expiryMillis) {
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        // 桶补满之前清除会让对端多得到令牌
+        long refillNanos = (long) Math.ceil(burst / tokensPerNano);
+        this.expiryNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(expiryMillis), refillNanos);
+        int perSegment = Math.max(1, (maxEntries + segments.length - 1) / segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * 从 key 的桶中取一个令牌
+     *
+     * @return false 表示令牌不足
+     */
+    boolean tryAcquire(long key, long nanoTime) {
+        long hash = mix(key);
+        Segment segment = segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+        synchronized (segment) {
+            return segment.tryAcquire(hash == 0 ? 1 : hash, nanoTime);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return 因为表满没有记录而直接放行的次数
+     */
+    long getUntracked() {
+        return untracked.get();
+    }
+
+    /**
+     * 打散键的各个位，IPv4 地址和端口拼成的键高位几乎相同
+     */
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    /**
+     * 开放寻址表，键 0 表示空槽
+     */
+    private class Segment {
+
+        private final int maxSize;
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private long[] stamps = new long[INITIAL_CAPACITY];
+        private double[] tokens = new double[INITIAL_CAPACITY];
+        private int size;
+        private long nextPurge;
+
+        Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        boolean tryAcquire(long key, long now) {
+            int mask = keys.length - 1;
+            int index = (int) key & mask;
+            while (keys[index] != 0) {
+                if (keys[index] == key) {
+                    double available = Math.min(burst, tokens[index] + (now - stamps[index]) * tokensPerNano);
+                    stamps[index] = now;
+                    if (available < 1) {
+                        tokens[index] = available;
+                        return false;
+                    }
+                    tokens[index] = available - 1;
+                    return true;
+                }
+                index = (index + 1) & mask;
+            }
+            if (size >= maxSize || (size + 1) * 4 > keys.length * 3) {
+                // 已经记满，短时间内反复清除只是白白扫描整张表
+                if ((size >= maxSize || keys.length * 3L / 4 >= maxSize) && now - nextPurge < 0) {
+                    untracked.incrementAndGet();
+                    return true;
+                }
+                rehash(now);
+                nextPurge = now + expiryNanos / 8;
+                if (size >= maxSize || (size + 1) * 4 > keys.length * 3) {
+                    untracked.incrementAndGet();
+                    return true;
+                }
+                return tryAcquire(key, now);
+            }
+            keys[index] = key;
+            stamps[index] = now;
+            tokens[index] = burst - 1;
+            size++;
+            return true;
+        }
+
+        /**
+         * 清除过期条目，清除后仍然超过一半时扩容（不超过 maxSize 对应的容量）
+         */
+        private void rehash(long now) {
+            int live = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0 && now - stamps[i] < expiryNanos) {
+                    live++;
+                }
+            }
+            int capacity = keys.length;
+            while (live * 2 > capacity && capacity * 3L / 4 < maxSize) {
+                capacity <<= 1;
+            }
+            long[] oldKeys = keys;
+            long[] oldStamps = stamps;
+            double[] oldTokens = tokens;
+            keys = new long[capacity];
+            stamps = new long[capacity];
+            tokens = new double[capacity];
+            size = 0;
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0 && now - oldStamps[i] < expiryNanos) {
+                    int index = (int) oldKeys[i] & mask;
+                    while (keys[index] != 0) {
+                        index = (index + 1) & mask;
+                    }
+                    keys[index] = oldKeys[i];
+                    stamps[index] = oldStamps[i];
+                    tokens[index] = oldTokens[i];
+                    size++;
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,159 @@
+package com.coap.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 节点之间用 UDP 单播复制状态，每条消息发给配置的每个对端
+ * <p>
+ * 复制的会话票据里有 DTLS 主密钥，消息用共享密钥做 AES-GCM 加密和认证：
+ * {@code nonce(12) ciphertext}，密钥为 coap.cluster.secret 的 SHA-256，认证失败的报文直接丢弃。
+ * 消息里发送节点的序号也在密文里，重放的报文由 {@link CoapCluster} 按序号丢弃。
+ */
+public class UdpClusterTransport implements ClusterTransport {
+
+    private static Logger logger = LoggerFactory.getLogger(UdpClusterTransport.class);
+
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final InetSocketAddress address;
+    private final List<InetSocketAddress> peers;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private DatagramSocket socket;
+    private Thread receiverThread;
+
+    /**
+     * @param secret 所有节点相同的共享密钥，不能为空
+     */
+    public UdpClusterTransport(InetSocketAddress address, List<InetSocketAddress> peers, String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException(">>>>> Cluster secret is required.");
+        }
+        this.address = address;
+        this.peers = peers;
+        try {
+            this.key = new SecretKeySpec(MessageDigest.getInstance("SHA-256")
+                    .digest(secret.getBytes(StandardCharsets.UTF_8)), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) throws IOException {
+        socket = new DatagramSocket(address);
+        receiverThread = new Thread(() -> receive(receiver), "CoapClusterReceiver");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+        logger.info(">>>>> CLUSTER_TRANSPORT: [{}] PEERS [{}]", socket.getLocalSocketAddress(), peers);
+    }
+
+    @Override
+    public void send(byte[] message) {
+        DatagramSocket socket = this.socket;
+        if (socket == null) {
+            return;
+        }
+        byte[] datagram;
+        try {
+            datagram = seal(message);
+        } catch (GeneralSecurityException e) {
+            logger.error(">>>>> CLUSTER_SEAL_ERROR: [{}]", e.toString());
+            return;
+        }
+        for (InetSocketAddress peer : peers) {
+            try {
+                socket.send(new DatagramPacket(datagram, datagram.length, peer));
+            } catch (IOException e) {
+                logger.warn(">>>>> CLUSTER_SEND_ERROR: [{}] [{}]", peer, e.toString());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        DatagramSocket socket = this.socket;
+        if (socket == null) {
+            return;
+        }
+        this.socket = null;
+        socket.close();
+        try {
+            receiverThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void receive(Consumer<byte[]> receiver) {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            DatagramSocket socket = this.socket;
+            if (socket == null) {
+                return;
+            }
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (SocketException e) {
+                // 关闭
+                return;
+            } catch (IOException e) {
+                logger.warn(">>>>> CLUSTER_RECEIVE_ERROR: [{}]", e.toString());
+                continue;
+            }
+            byte[] message;
+            try {
+                message = open(Arrays.copyOf(buffer, packet.getLength()));
+            } catch (GeneralSecurityException e) {
+                logger.warn(">>>>> CLUSTER_AUTH_FAILED: [{}]", packet.getSocketAddress());
+                continue;
+            }
+            try {
+                receiver.accept(message);
+            } catch (RuntimeException e) {
+                logger.error(">>>>> CLUSTER_MESSAGE_ERROR: [{}]", e.toString());
+            }
+        }
+    }
+
+    private byte[] seal(byte[] message) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+        byte[] datagram = Arrays.copyOf(nonce, NONCE_LENGTH + cipher.getOutputSize(message.length));
+        cipher.doFinal(message, 0, message.length, datagram, NONCE_LENGTH);
+        return datagram;
+    }
+
+    private byte[] open(byte[] datagram) throws GeneralSecurityException {
+        if (datagram.length < NONCE_LENGTH + TAG_BITS / 8) {
+            throw new GeneralSecurityException("Datagram too short");
+        }
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, datagram, 0, NONCE_LENGTH));
+        return cipher.doFinal(datagram, NONCE_LENGTH, datagram.length - NONCE_LENGTH);
+    }
+
+}
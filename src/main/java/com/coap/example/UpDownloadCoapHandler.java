@@ -2,11 +2,21 @@ package com.coap.example;
 
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 
 @CoapHandler
 @CoapMapping("/coap")
@@ -14,27 +24,188 @@ public class UpDownloadCoapHandler {
 
     private static Logger logger = LoggerFactory.getLogger(UpDownloadCoapHandler.class);
 
-    @CoapMapping("/upload")
-    public void upload(CoapExchange exchange) throws IOException {
-        logger.info(">>>>> URL_PARAM: [{}]", exchange.getRequestOptions().getUriQueryString());
-        logger.info(">>>>> CONTENT_FORMAT: [{}]", exchange.getRequestOptions().getContentFormat());
-        String filename = exchange.getQueryParameter("filename");
-        byte[] bytes = exchange.getRequestPayload();
-        String uploadPath = "D:\\" + filename;
-        IOUtil.write2File(bytes, uploadPath);
+    private static final String DEFLATE = "deflate";
+
+    @Autowired
+    private ContentAddressedStore contentAddressedStore;
+
+    @Autowired
+    private PayloadCompressor payloadCompressor;
+
+    @Value("${coap.download.dir:D:\\download}")
+    private String downloadDir;
+
+    @CoapMapping(value = "/upload", qos = CoapQos.BULK)
+    public void upload(CoapExchange exchange, @CoapQuery String query,
+                       @CoapQuery(value = "filename", required = true) String filename,
+                       @ContentFormat int contentFormat, @CoapPayload byte[] bytes) throws IOException {
+        logger.info(">>>>> URL_PARAM: [{}]", query);
+        logger.info(">>>>> CONTENT_FORMAT: [{}]", contentFormat);
+        if (exchange.getRequestOptions().hasIfNoneMatch() && contentAddressedStore.contains(filename)) {
+            // If-None-Match：只在文件不存在时写入
+            exchange.respond(CoAP.ResponseCode.PRECONDITION_FAILED);
+            return;
+        }
+        if (bytes == null) {
+            bytes = new byte[0];
+        }
+        if (contentFormat == PayloadCompressor.APPLICATION_OCTET_STREAM_DEFLATE) {
+            bytes = inflate(filename, bytes);
+        }
+        byte[] hash;
+        try {
+            hash = contentAddressedStore.put(filename, bytes);
+        } catch (IllegalArgumentException e) {
+            throw new CoapResponseException(CoAP.ResponseCode.REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+        }
+        exchange.setETag(ContentAddressedStore.toETag(hash));
         exchange.respond("UPLOAD_SUCCESS");
     }
 
-    @CoapMapping("/download")
-    public void download(CoapExchange exchange) throws IOException {
-        logger.info(">>>>> URL_PARAM: [{}]", exchange.getRequestOptions().getUriQueryString());
-        logger.info(">>>>> CONTENT_FORMAT: [{}]", exchange.getRequestOptions().getContentFormat());
+    @CoapMapping(value = "/download", qos = CoapQos.BULK, singleFlight = true)
+    public void download(CoapExchange exchange, @CoapQuery String query,
+                         @CoapQuery(value = "filename", required = true) String filename,
+                         @ContentFormat int contentFormat) throws IOException {
+        logger.info(">>>>> URL_PARAM: [{}]", query);
+        logger.info(">>>>> CONTENT_FORMAT: [{}]", contentFormat);
         logger.info(">>>>> REQUEST_BODY: [{}]", exchange.getRequestText());
-        String filename = exchange.getQueryParameter("filename");
-        String downloadFilePath = "D:\\download\\" + filename;
-        IOUtil.file2Bytes(downloadFilePath);
-        exchange.respond(CoAP.ResponseCode.CONTENT,
-                IOUtil.file2Bytes(downloadFilePath), MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+        boolean deflate = accept(exchange);
+        // 只从下载目录取文件，设备上传的同名文件不影响下载的内容；读到的文件按内容去重后存入内容存储，
+        // 修改时间和大小没变时不再读盘算摘要，运维替换了文件后重新读取
+        Path downloadFile = getDownloadFile(filename);
+        BasicFileAttributes attributes = readAttributes(downloadFile);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        byte[] hash = contentAddressedStore.getDownloadHash(filename, lastModified, attributes.size());
+        if (hash != null && respond(exchange, filename, hash, null, deflate)) {
+            return;
+        }
+        // 没读过这个文件、文件变了，或者按摘要取内容时内容刚好被释放了，都重新读盘
+        MessageDigest messageDigest = ContentAddressedStore.newDigest();
+        byte[] bytes;
+        try {
+            bytes = IOUtil.file2Bytes(downloadFile.toString(), messageDigest);
+        } catch (FileNotFoundException e) {
+            // 读属性之后文件被删除了
+            throw new CoapResponseException(CoAP.ResponseCode.NOT_FOUND, "File not found");
+        }
+        hash = contentAddressedStore.putDownload(filename, bytes, messageDigest.digest(), lastModified,
+                attributes.size());
+        respond(exchange, filename, hash, bytes, deflate);
+    }
+
+    /**
+     * @param bytes 已经读到的内容，为 null 时按摘要从内容存储取
+     * @return 内容已经被释放、没有响应时返回 false
+     */
+    private boolean respond(CoapExchange exchange, String filename, byte[] hash, byte[] bytes, boolean deflate)
+            throws IOException {
+        byte[] eTag = deflate ? ContentAddressedStore.toETag(hash, DEFLATE) : ContentAddressedStore.toETag(hash);
+        exchange.setETag(eTag);
+        if (exchange.getRequestOptions().containsETag(eTag)) {
+            // 客户端缓存的内容仍然有效
+            exchange.respond(CoAP.ResponseCode.VALID);
+            return true;
+        }
+        if (deflate) {
+            byte[] compressed = deflate(filename, hash, bytes);
+            if (compressed == null) {
+                return false;
+            }
+            exchange.respond(CoAP.ResponseCode.CONTENT, compressed,
+                    PayloadCompressor.APPLICATION_OCTET_STREAM_DEFLATE);
+            return true;
+        }
+        if (bytes == null) {
+            // 按摘要取内容，和 ETag 保持一致
+            bytes = contentAddressedStore.getBlob(hash);
+            if (bytes == null) {
+                return false;
+            }
+        }
+        exchange.respond(CoAP.ResponseCode.CONTENT, bytes, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+        return true;
+    }
+
+    /**
+     * @return 下载目录里的文件，文件名不能跳出下载目录
+     */
+    private Path getDownloadFile(String filename) {
+        Path directory = Paths.get(downloadDir).normalize();
+        Path file = directory.resolve(filename).normalize();
+        if (!file.startsWith(directory) || file.equals(directory)) {
+            throw new CoapResponseException(CoAP.ResponseCode.BAD_REQUEST, "Invalid filename");
+        }
+        return file;
+    }
+
+    /**
+     * 文件不存在（或者不是普通文件）时返回 4.04，否则设备收不到响应会一直重传
+     */
+    private static BasicFileAttributes readAttributes(Path downloadFile) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(downloadFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new CoapResponseException(CoAP.ResponseCode.NOT_FOUND, "File not found");
+        }
+        if (!attributes.isRegularFile()) {
+            throw new CoapResponseException(CoAP.ResponseCode.NOT_FOUND, "File not found");
+        }
+        return attributes;
+    }
+
+    /**
+     * @return 客户端是否要压缩后的内容
+     */
+    private boolean accept(CoapExchange exchange) {
+        OptionSet options = exchange.getRequestOptions();
+        if (!options.hasAccept() || options.getAccept() == MediaTypeRegistry.APPLICATION_OCTET_STREAM) {
+            return false;
+        }
+        if (options.getAccept() == PayloadCompressor.APPLICATION_OCTET_STREAM_DEFLATE) {
+            return true;
+        }
+        throw new CoapResponseException(CoAP.ResponseCode.NOT_ACCEPTABLE,
+                "Not acceptable " + MediaTypeRegistry.toString(options.getAccept()));
+    }
+
+    private byte[] inflate(String filename, byte[] compressed) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = payloadCompressor.inflate(compressed);
+        } catch (IllegalArgumentException e) {
+            throw new CoapResponseException(CoAP.ResponseCode.REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+        } catch (IOException e) {
+            throw new CoapResponseException(CoAP.ResponseCode.BAD_REQUEST, e.getMessage());
+        }
+        payloadCompressor.record(bytes.length, compressed.length);
+        logger.info(">>>>> COMPRESSED_UPLOAD: [{}] IDENTITY [{}] WIRE [{}]", filename, bytes.length,
+                compressed.length);
+        return bytes;
+    }
+
+    /**
+     * 压缩后的内容按摘要缓存，同一份内容只压缩一次
+     *
+     * @return 内容已经被释放时返回 null
+     */
+    private byte[] deflate(String filename, byte[] hash, byte[] bytes) throws IOException {
+        byte[] compressed = contentAddressedStore.getVariant(hash, DEFLATE);
+        if (compressed == null) {
+            if (bytes == null) {
+                bytes = contentAddressedStore.getBlob(hash);
+                if (bytes == null) {
+                    return null;
+                }
+            }
+            compressed = payloadCompressor.deflate(bytes);
+            contentAddressedStore.putVariant(hash, DEFLATE, compressed);
+        }
+        int identity = bytes == null ? contentAddressedStore.getBlobSize(hash) : bytes.length;
+        payloadCompressor.record(identity, compressed.length);
+        logger.info(">>>>> COMPRESSED_DOWNLOAD: [{}] IDENTITY [{}] WIRE [{}]", filename, identity,
+                compressed.length);
+        return compressed;
     }
 
 }
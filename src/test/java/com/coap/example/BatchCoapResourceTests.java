@@ -0,0 +1,246 @@
+package com.coap.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class BatchCoapResourceTests {
+
+    private final PayloadCodecRegistry payloadCodecRegistry = PayloadCodecRegistry.withDefaults();
+    private final List<String> readings = Collections.synchronizedList(new ArrayList<>());
+    private BatchCoapResource batchCoapResource;
+    private Endpoint endpoint;
+
+    @BeforeEach
+    void setUp() {
+        SimpleCoapResource root = new SimpleCoapResource("");
+        SimpleCoapResource coap = new NotAllowedCoapResource("coap");
+        coap.add(new SimpleCoapResource("foo") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                readings.add(exchange.getQueryParameter("foo") + ":" + exchange.getRequestText());
+                exchange.respond(CoAP.ResponseCode.CHANGED);
+            }
+        });
+        coap.add(new SimpleCoapResource("bar") {
+            @Override
+            public void handleGET(CoapExchange exchange) {
+                exchange.respond(CoAP.ResponseCode.CONTENT, "BAR", MediaTypeRegistry.TEXT_PLAIN);
+            }
+        });
+        root.add(coap);
+        batchCoapResource = new BatchCoapResource("batch", root, payloadCodecRegistry, 8, 1000, 2);
+        root.add(batchCoapResource);
+        endpoint = mock(Endpoint.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        batchCoapResource.shutdown();
+    }
+
+    private Response post(byte[] payload, int contentFormat) {
+        Request request = new Request(CoAP.Code.POST, CoAP.Type.CON);
+        request.setMID(1);
+        request.getOptions().addUriPath("batch").setContentFormat(contentFormat);
+        request.setPayload(payload);
+        request.setSourceContext(new AddressEndpointContext(new InetSocketAddress("127.0.0.1", 5684)));
+        Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE, Runnable::run);
+        exchange.setEndpoint(endpoint);
+        batchCoapResource.handleRequest(exchange);
+
+        // 外层响应在子请求都响应后异步发送
+        ArgumentCaptor<Response> captor = ArgumentCaptor.forClass(Response.class);
+        verify(endpoint, timeout(5000)).sendResponse(any(Exchange.class), captor.capture());
+        return captor.getValue();
+    }
+
+    private static CoapBatchRequest subRequest(String method, String path, String payload) {
+        CoapBatchRequest coapBatchRequest = new CoapBatchRequest();
+        coapBatchRequest.setMethod(method);
+        coapBatchRequest.setPath(path);
+        coapBatchRequest.setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+        coapBatchRequest.setPayload(payload == null ? null : payload.getBytes());
+        return coapBatchRequest;
+    }
+
+    @Test
+    void dispatchesCborBatch() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper(new CBORFactory());
+        CoapBatchRequest[] batch = {
+                subRequest(null, "coap/foo?foo=1", "10"),
+                subRequest("GET", "coap/bar", null),
+                subRequest("POST", "coap/foo?foo=2", "20"),
+                subRequest("POST", "coap/missing", null),
+                subRequest("POST", "batch", null),
+        };
+
+        Response response = post(objectMapper.writeValueAsBytes(batch), MediaTypeRegistry.APPLICATION_CBOR);
+
+        assertEquals(CoAP.ResponseCode.CONTENT, response.getCode());
+        assertEquals(MediaTypeRegistry.APPLICATION_CBOR, response.getOptions().getContentFormat());
+        CoapBatchResponse[] results = objectMapper.readValue(response.getPayload(), CoapBatchResponse[].class);
+        assertEquals(5, results.length);
+        assertEquals("2.04", results[0].getCode());
+        assertEquals("2.05", results[1].getCode());
+        assertArrayEquals("BAR".getBytes(), results[1].getPayload());
+        assertEquals("2.04", results[2].getCode());
+        assertEquals("4.04", results[3].getCode());
+        assertEquals("4.04", results[4].getCode());
+        // 同一资源上的子请求保持顺序
+        assertEquals(Arrays.asList("1:10", "2:20"), readings);
+    }
+
+    @Test
+    void ordersSubRequestsOfAsynchronousHandler() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        batchCoapResource.getParent().getChild("coap").add(new SimpleCoapResource("slow") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                // 和交给 CoapRequestScheduler 的 handler 一样，handler 返回后才在别的线程上执行和响应
+                workers.execute(() -> {
+                    if (running.incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    readings.add(exchange.getRequestText());
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    exchange.respond(CoAP.ResponseCode.CHANGED);
+                });
+            }
+        });
+        PayloadCodec json = payloadCodecRegistry.get(MediaTypeRegistry.APPLICATION_JSON);
+        CoapBatchRequest[] batch = {subRequest("POST", "coap/slow", "1"), subRequest("POST", "coap/slow", "2"),
+                subRequest("POST", "coap/slow", "3")};
+
+        try {
+            Response response = post(json.encode(batch), MediaTypeRegistry.APPLICATION_JSON);
+
+            CoapBatchResponse[] results = (CoapBatchResponse[]) json.decode(response.getPayload(),
+                    CoapBatchResponse[].class);
+            Arrays.stream(results).forEach(result -> assertEquals("2.04", result.getCode()));
+            assertEquals(0, overlaps.get());
+            assertEquals(Arrays.asList("1", "2", "3"), readings);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    @Test
+    void completesSubRequestWhoseHandlerFails() throws Exception {
+        // 业务 handler 走 SimpleCoapServer 的分发，失败时不能让同组后面的子请求等到超时
+        SimpleCoapServer simpleCoapServer = new SimpleCoapServer();
+        Resource business = simpleCoapServer.buildCoapResource(
+                simpleCoapServer.scanCoapRoutes(Collections.singletonList(new FailingHandler())))
+                .getChild("coap").getChild("failing");
+        batchCoapResource.getParent().getChild("coap").add(business);
+        PayloadCodec json = payloadCodecRegistry.get(MediaTypeRegistry.APPLICATION_JSON);
+        CoapBatchRequest[] batch = {subRequest("POST", "coap/failing", "1"), subRequest("POST", "coap/failing", "2")};
+
+        long start = System.nanoTime();
+        Response response = post(json.encode(batch), MediaTypeRegistry.APPLICATION_JSON);
+
+        CoapBatchResponse[] results = (CoapBatchResponse[]) json.decode(response.getPayload(),
+                CoapBatchResponse[].class);
+        assertEquals("5.00", results[0].getCode());
+        assertEquals("5.00", results[1].getCode());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    void dispatchesJsonBatch() throws Exception {
+        PayloadCodec json = payloadCodecRegistry.get(MediaTypeRegistry.APPLICATION_JSON);
+        CoapBatchRequest[] batch = {subRequest("GET", "coap/bar", null), subRequest("DELETE", "coap/bar", null)};
+
+        Response response = post(json.encode(batch), MediaTypeRegistry.APPLICATION_JSON);
+
+        CoapBatchResponse[] results = (CoapBatchResponse[]) json.decode(response.getPayload(),
+                CoapBatchResponse[].class);
+        assertEquals("2.05", results[0].getCode());
+        assertArrayEquals("BAR".getBytes(), results[0].getPayload());
+        assertEquals("4.05", results[1].getCode());
+        // 外层响应异步发送，CON 请求先回空 ACK，客户端不再重传整个批量请求
+        verify(endpoint).sendEmptyMessage(any(Exchange.class), any(EmptyMessage.class));
+    }
+
+    @Test
+    void chargesEachSubRequestAgainstRateLimiter() throws Exception {
+        CoapRateLimiter coapRateLimiter = mock(CoapRateLimiter.class);
+        Response throttled = new Response(CoAP.ResponseCode.TOO_MANY_REQUESTS);
+        when(coapRateLimiter.admit(any(Request.class), anyInt())).thenReturn(null, throttled);
+        batchCoapResource.shutdown();
+        batchCoapResource = new BatchCoapResource("batch", batchCoapResource.getParent(), payloadCodecRegistry, 8,
+                1000, 2, new CoapServerDrainer(), coapRateLimiter);
+        PayloadCodec json = payloadCodecRegistry.get(MediaTypeRegistry.APPLICATION_JSON);
+        CoapBatchRequest[] batch = {subRequest("POST", "coap/foo?foo=1", "10"),
+                subRequest("POST", "coap/foo?foo=2", "20")};
+
+        Response response = post(json.encode(batch), MediaTypeRegistry.APPLICATION_JSON);
+
+        CoapBatchResponse[] results = (CoapBatchResponse[]) json.decode(response.getPayload(),
+                CoapBatchResponse[].class);
+        assertEquals("2.04", results[0].getCode());
+        assertEquals("4.29", results[1].getCode());
+        assertEquals(Collections.singletonList("1:10"), readings);
+        verify(coapRateLimiter, times(2)).admit(any(Request.class), anyInt());
+    }
+
+    @Test
+    void rejectsOversizedBatch() throws Exception {
+        PayloadCodec json = payloadCodecRegistry.get(MediaTypeRegistry.APPLICATION_JSON);
+        CoapBatchRequest[] batch = new CoapBatchRequest[9];
+        Arrays.fill(batch, subRequest("GET", "coap/bar", null));
+
+        Response response = post(json.encode(batch), MediaTypeRegistry.APPLICATION_JSON);
+
+        assertEquals(CoAP.ResponseCode.REQUEST_ENTITY_TOO_LARGE, response.getCode());
+    }
+
+    /**
+     * 没有标注 {@link com.coap.example.CoapHandler}，不会被 Spring 扫描到
+     */
+    static class FailingHandler {
+
+        @CoapMapping(value = "/coap/failing", method = CoapMethod.POST)
+        public void failing(CoapExchange exchange) {
+            throw new IllegalStateException("failing");
+        }
+
+    }
+
+}
@@ -0,0 +1,283 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.elements.UDPConnector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 经过 {@link Block1TransferLayer} 的上传：客户端按 512 字节分块，服务端的 MAX_RESOURCE_BODY_SIZE 只有 2048，
+ * 这条路径上的请求体大小只受 {@link BlockwiseTransferStore} 的上限限制
+ */
+class BlockwiseTransferStoreTests {
+
+    @TempDir
+    Path spillDirectory;
+
+    private final AtomicReference<byte[]> received = new AtomicReference<>();
+    private BlockwiseTransferStore blockwiseTransferStore;
+    private CoapServer coapServer;
+    private CoapEndpoint clientEndpoint;
+
+    @BeforeEach
+    void setUp() {
+        NetworkConfig config = new NetworkConfig();
+        config.setInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE, 512);
+        config.setInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, 512);
+        clientEndpoint = new CoapEndpoint.Builder().setNetworkConfig(config).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        clientEndpoint.destroy();
+        if (coapServer != null) {
+            coapServer.destroy();
+        }
+        if (blockwiseTransferStore != null) {
+            blockwiseTransferStore.stop();
+        }
+    }
+
+    @Test
+    void uploadsWithinMemoryBudget() throws Exception {
+        start(1 << 20, 1 << 20);
+        byte[] body = randomBytes(8192);
+        CoapResponse response = upload(body);
+        assertEquals(CoAP.ResponseCode.CHANGED, response.getCode());
+        assertArrayEquals(body, received.get());
+        assertEquals(1, blockwiseTransferStore.getCompleted());
+        assertEquals(0, blockwiseTransferStore.getSpilled());
+        assertEquals(0, blockwiseTransferStore.getMemoryBytes());
+        assertEquals(0, blockwiseTransferStore.getTransfers());
+    }
+
+    @Test
+    void spillsTransferOverMemoryBudget() throws Exception {
+        start(4096, 1 << 20);
+        byte[] body = randomBytes(65536);
+        CoapResponse response = upload(body);
+        assertEquals(CoAP.ResponseCode.CHANGED, response.getCode());
+        assertArrayEquals(body, received.get());
+        assertEquals(1, blockwiseTransferStore.getSpilled());
+        assertEquals(0, blockwiseTransferStore.getSpilledBytes());
+        assertEquals(0, blockwiseTransferStore.getMemoryBytes());
+        try (java.util.stream.Stream<Path> files = Files.list(spillDirectory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void rejectsBodyOverMaxSize() throws Exception {
+        start(1 << 20, 16384);
+        CoapResponse response = upload(randomBytes(32768));
+        assertEquals(CoAP.ResponseCode.REQUEST_ENTITY_TOO_LARGE, response.getCode());
+        assertEquals(16384, response.getOptions().getSize1());
+        assertNull(received.get());
+        assertEquals(0, blockwiseTransferStore.getTransfers());
+        assertEquals(0, blockwiseTransferStore.getMemoryBytes());
+    }
+
+    @Test
+    void evictsAbandonedTransfer() throws Exception {
+        blockwiseTransferStore = new BlockwiseTransferStore("upload", 4096, 1 << 20, 2, 50, spillDirectory);
+        blockwiseTransferStore.start();
+        BlockwiseTransferStore.Transfer abandoned = blockwiseTransferStore.open("a", 0);
+        synchronized (abandoned) {
+            assertTrue(blockwiseTransferStore.append(abandoned, 0, randomBytes(1024)));
+            assertFalse(blockwiseTransferStore.append(abandoned, 2048, randomBytes(1024)));
+            assertTrue(blockwiseTransferStore.append(abandoned, 1024, randomBytes(4096)));
+        }
+        assertEquals(1, blockwiseTransferStore.getSpilled());
+        assertEquals(5120, blockwiseTransferStore.getSpilledBytes());
+
+        // 传输数超过上限时清除最久没有新块的传输
+        blockwiseTransferStore.open("b", 0);
+        blockwiseTransferStore.open("c", 0);
+        assertNull(blockwiseTransferStore.get("a"));
+        assertEquals(0, blockwiseTransferStore.getSpilledBytes());
+
+        // 没有新块的传输等不到 BLOCKWISE_STATUS_LIFETIME 就被清除
+        long deadline = System.currentTimeMillis() + 5000;
+        while (blockwiseTransferStore.getTransfers() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, blockwiseTransferStore.getTransfers());
+        assertEquals(3, blockwiseTransferStore.getEvicted());
+        assertEquals(0, blockwiseTransferStore.getMemoryBytes());
+    }
+
+    @Test
+    void defersBodyThatDoesNotFitMemoryBudget() throws Exception {
+        blockwiseTransferStore = new BlockwiseTransferStore("upload", 4096, 1 << 20, 100, 60000, spillDirectory);
+        blockwiseTransferStore.start();
+        BlockwiseTransferStore.Transfer small = blockwiseTransferStore.open("a", 0);
+        BlockwiseTransferStore.Transfer large = blockwiseTransferStore.open("b", 0);
+        synchronized (small) {
+            assertTrue(blockwiseTransferStore.append(small, 0, randomBytes(3000)));
+        }
+        synchronized (large) {
+            assertTrue(blockwiseTransferStore.append(large, 0, randomBytes(2048)));
+            assertTrue(blockwiseTransferStore.append(large, 2048, randomBytes(2048)));
+            assertEquals(4096, blockwiseTransferStore.getSpilledBytes());
+            // 读回临时文件需要 4096 字节，内存里还有 3000，传输保留等重发的最后一块
+            assertNull(blockwiseTransferStore.complete(large));
+        }
+        assertSame(large, blockwiseTransferStore.get("b"));
+        assertEquals(1, blockwiseTransferStore.getDeferred());
+
+        byte[] smallBody;
+        synchronized (small) {
+            smallBody = blockwiseTransferStore.complete(small);
+        }
+        assertEquals(3000, smallBody.length);
+        // 交给 handler 的请求体在响应之前仍然计入内存
+        assertEquals(3000, blockwiseTransferStore.getMemoryBytes());
+        blockwiseTransferStore.releaseBody(smallBody);
+        assertEquals(0, blockwiseTransferStore.getMemoryBytes());
+
+        byte[] largeBody;
+        synchronized (large) {
+            assertTrue(blockwiseTransferStore.append(large, 2048, randomBytes(2048)));
+            largeBody = blockwiseTransferStore.complete(large);
+        }
+        assertEquals(4096, largeBody.length);
+        assertEquals(4096, blockwiseTransferStore.getMemoryBytes());
+        assertEquals(0, blockwiseTransferStore.getSpilledBytes());
+        assertEquals(0, blockwiseTransferStore.getTransfers());
+        blockwiseTransferStore.releaseBody(largeBody);
+        assertEquals(0, blockwiseTransferStore.getMemoryBytes());
+    }
+
+    @Test
+    void chargesUploadOnceWhenItStarts() throws Exception {
+        CoapRateLimiter coapRateLimiter = new CoapRateLimiter(0.01, 1, 0, 0, 0, 0);
+        coapRateLimiter.start();
+        CoapServerDrainer coapServerDrainer = new CoapServerDrainer();
+        start(1 << 20, 1 << 20, root -> new SimpleMessageDeliverer(root, coapServerDrainer, 10, coapRateLimiter));
+
+        // 多个块只在第 0 块计一次，组装出的请求不再计入
+        byte[] body = randomBytes(8192);
+        assertEquals(CoAP.ResponseCode.CHANGED, upload(body).getCode());
+        assertArrayEquals(body, received.get());
+        assertEquals(CoAP.ResponseCode.TOO_MANY_REQUESTS, upload(randomBytes(16)).getCode());
+
+        // 排空期间不开始新的上传
+        received.set(null);
+        coapServerDrainer.startDrain();
+        CoapResponse response = upload(randomBytes(8192));
+        assertEquals(CoAP.ResponseCode.SERVICE_UNAVAILABLE, response.getCode());
+        assertNull(received.get());
+        assertEquals(0, blockwiseTransferStore.getTransfers());
+        assertEquals(0, blockwiseTransferStore.getMemoryBytes());
+    }
+
+    @Test
+    void releasesBodyWhenHandlerFails() throws Exception {
+        start(1 << 20, 1 << 20);
+        coapServer.add(new SimpleCoapResource("failing") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                throw new IllegalStateException("handler failed");
+            }
+        });
+        InetSocketAddress address = coapServer.getEndpoints().get(0).getAddress();
+        CoapClient coapClient = new CoapClient("coap://" + address.getHostString() + ":" + address.getPort()
+                + "/failing");
+        coapClient.setEndpoint(clientEndpoint);
+        coapClient.setTimeout(1000L);
+        assertNull(coapClient.post(randomBytes(8192), MediaTypeRegistry.APPLICATION_OCTET_STREAM));
+        assertEquals(1, blockwiseTransferStore.getCompleted());
+        // 没有响应的请求体也要归还内存
+        assertEquals(0, blockwiseTransferStore.getMemoryBytes());
+    }
+
+    @Test
+    void limitsUploadsAssembledByBlockwiseLayer() throws Exception {
+        CoapRateLimiter coapRateLimiter = new CoapRateLimiter(0.01, 1, 0, 0, 0, 0);
+        coapRateLimiter.start();
+        CoapServerDrainer coapServerDrainer = new CoapServerDrainer();
+        start(1 << 20, 1 << 20, root -> new SimpleMessageDeliverer(root, coapServerDrainer, 10, coapRateLimiter));
+        coapServer.add(new SimpleCoapResource("other") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                exchange.respond(CoAP.ResponseCode.CHANGED);
+            }
+        });
+
+        // 不在 coap.blockwise.paths 上的两块上传由 BlockwiseLayer 组装，组装出的请求照常计入限流
+        assertEquals(CoAP.ResponseCode.CHANGED, post("other", randomBytes(16)).getCode());
+        assertEquals(CoAP.ResponseCode.TOO_MANY_REQUESTS, post("other", randomBytes(1024)).getCode());
+        coapServerDrainer.startDrain();
+        assertEquals(CoAP.ResponseCode.SERVICE_UNAVAILABLE, post("other", randomBytes(1024)).getCode());
+    }
+
+    private void start(long maxMemory, int maxBodySize) throws Exception {
+        start(maxMemory, maxBodySize, null);
+    }
+
+    private void start(long maxMemory, int maxBodySize,
+                       Function<Resource, SimpleMessageDeliverer> messageDelivererFactory) throws Exception {
+        blockwiseTransferStore = new BlockwiseTransferStore("upload,failing", maxMemory, maxBodySize, 100, 60000,
+                spillDirectory);
+        blockwiseTransferStore.start();
+        coapServer = new CoapServer();
+        if (messageDelivererFactory != null) {
+            SimpleMessageDeliverer messageDeliverer = messageDelivererFactory.apply(coapServer.getRoot());
+            coapServer.setMessageDeliverer(messageDeliverer);
+            blockwiseTransferStore.setMessageDeliverer(messageDeliverer);
+        }
+        coapServer.addEndpoint(new CoapEndpoint.Builder().setNetworkConfig(NetworkConfig.getStandard())
+                .setConnector(new UDPConnector(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)))
+                .setCoapStackFactory(blockwiseTransferStore).build());
+        coapServer.add(new SimpleCoapResource("upload") {
+            @Override
+            public void handlePOST(CoapExchange exchange) {
+                received.set(exchange.getRequestPayload());
+                exchange.respond(CoAP.ResponseCode.CHANGED);
+            }
+        });
+        coapServer.start();
+    }
+
+    private CoapResponse upload(byte[] body) throws Exception {
+        return post("upload", body);
+    }
+
+    private CoapResponse post(String path, byte[] body) throws Exception {
+        InetSocketAddress address = coapServer.getEndpoints().get(0).getAddress();
+        CoapClient coapClient = new CoapClient("coap://" + address.getHostString() + ":" + address.getPort()
+                + "/" + path);
+        coapClient.setEndpoint(clientEndpoint);
+        coapClient.setTimeout(10000L);
+        CoapResponse response = coapClient.post(body, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+        assertNotNull(response);
+        return response;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,350 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.elements.UDPConnector;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.ConnectionId;
+import org.eclipse.californium.scandium.dtls.ConnectionIdGenerator;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.SingleNodeConnectionIdGenerator;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.eclipse.californium.elements.util.DatagramReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 同一个 JVM 里的多节点集群：节点之间用 {@link InMemoryClusterTransport}，
+ * 设备经过一个可以切换后端的 UDP 转发器访问节点，模拟负载均衡把设备换到另一个节点
+ */
+class CoapClusterTests {
+
+    private final InMemoryClusterTransport.Group group = new InMemoryClusterTransport.Group();
+    private final List<AutoCloseable> closeables = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (int i = closeables.size() - 1; i >= 0; i--) {
+            closeables.get(i).close();
+        }
+    }
+
+    @Test
+    void connectionIdCarriesNodeId() throws Exception {
+        ConnectionIdGenerator generator = newCluster(7).getConnectionIdGenerator();
+        ConnectionId connectionId = generator.createConnectionId();
+        assertEquals(6, connectionId.length());
+        assertEquals(7, CoapCluster.getNodeId(connectionId.getBytes()));
+        assertEquals(connectionId, generator.read(new DatagramReader(connectionId.getBytes())));
+        // 别的节点发出的 CID 在本节点上读不出来
+        assertNull(newCluster(8).getConnectionIdGenerator().read(new DatagramReader(connectionId.getBytes())));
+    }
+
+    @Test
+    void resumesDtlsSessionOnAnotherNode() throws Exception {
+        CoapCluster clusterA = newCluster(1);
+        CoapCluster clusterB = newCluster(2);
+        CoapServer nodeA = newNode("a", newDtlsEndpoint(clusterA), clusterA);
+        CoapServer nodeB = newNode("b", newDtlsEndpoint(clusterB), clusterB);
+        Relay relay = new Relay(address(nodeA));
+
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setClientOnly();
+        builder.setConnectionIdGenerator(new SingleNodeConnectionIdGenerator(0));
+        builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY, CredentialsUtil.OPEN_PSK_SECRET));
+        DTLSConnector clientConnector = new DTLSConnector(builder.build());
+        CoapEndpoint clientEndpoint = new CoapEndpoint.Builder().setConnector(clientConnector).build();
+        closeables.add(clientEndpoint::destroy);
+        CoapClient coapClient = new CoapClient("coaps://" + relay.getHostString() + "/node");
+        coapClient.setEndpoint(clientEndpoint);
+
+        assertEquals("a", coapClient.get().getResponseText());
+        SessionId sessionId = clientConnector.getSessionByAddress(relay.address()).getSessionIdentifier();
+        assertEquals(1, clusterB.getSessions());
+
+        relay.switchTo(address(nodeB));
+        clientConnector.forceResumeSessionFor(relay.address());
+        CoapResponse response = coapClient.get();
+        assertNotNull(response);
+        assertEquals("b", response.getResponseText());
+        // 会话 ID 没变：节点 b 用复制过来的票据做了简化握手
+        assertEquals(sessionId, clientConnector.getSessionByAddress(relay.address()).getSessionIdentifier());
+    }
+
+    @Test
+    void restoresObserveRelationOnAnotherNode() throws Exception {
+        CoapCluster clusterA = newCluster(1);
+        CoapCluster clusterB = newCluster(2);
+        CoapServer nodeA = newNode("a", newUdpEndpoint(), clusterA);
+        CoapServer nodeB = newNode("b", newUdpEndpoint(), clusterB);
+        Relay relay = new Relay(address(nodeA));
+
+        BlockingQueue<String> notifications = new LinkedBlockingQueue<>();
+        CoapClient coapClient = new CoapClient("coap://" + relay.getHostString() + "/node");
+        CoapObserveRelation relation = coapClient.observe(new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                notifications.add(response.getResponseText());
+            }
+
+            @Override
+            public void onError() {
+            }
+        });
+        closeables.add(relation::proactiveCancel);
+        assertEquals("a", notifications.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, clusterA.getLocalObserves());
+        assertEquals(1, clusterB.getObserves());
+
+        // 节点 a 下线，设备的下一个请求到了节点 b
+        relay.switchTo(address(nodeB));
+        nodeA.destroy();
+        assertEquals("b", new CoapClient("coap://" + relay.getHostString() + "/node").get().getResponseText());
+        assertEquals(1, clusterB.getRestored());
+        assertEquals("b", notifications.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, clusterB.getLocalObserves());
+
+        node(nodeB).changed();
+        assertEquals("b", notifications.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void restoresOnlyOverSameSchemeAndIdentity() throws Exception {
+        CoapCluster clusterA = newCluster(1);
+        CoapCluster clusterB = newCluster(2);
+        CoapServer nodeA = newNode("a", newDtlsEndpoint(clusterA), clusterA);
+        CoapServer nodeB = newNode("b", newUdpEndpoint(), clusterB);
+        Relay relay = new Relay(address(nodeA));
+
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setClientOnly();
+        builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY, CredentialsUtil.OPEN_PSK_SECRET));
+        CoapEndpoint clientEndpoint = new CoapEndpoint.Builder().setConnector(new DTLSConnector(builder.build()))
+                .build();
+        closeables.add(clientEndpoint::destroy);
+        CoapClient coapClient = new CoapClient("coaps://" + relay.getHostString() + "/node");
+        coapClient.setEndpoint(clientEndpoint);
+        BlockingQueue<String> notifications = new LinkedBlockingQueue<>();
+        CoapObserveRelation relation = coapClient.observe(new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                notifications.add(response.getResponseText());
+            }
+
+            @Override
+            public void onError() {
+            }
+        });
+        closeables.add(relation::proactiveCancel);
+        assertEquals("a", notifications.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, clusterB.getObserves());
+
+        // 同一个地址上的明文请求接不走 DTLS 上建立的观察关系
+        relay.switchTo(address(nodeB));
+        assertEquals("b", new CoapClient("coap://" + relay.getHostString() + "/node").get().getResponseText());
+        assertEquals(0, clusterB.getRestored());
+        assertEquals(0, clusterB.getLocalObserves());
+        assertEquals(1, clusterB.getObserves());
+    }
+
+    @Test
+    void cancelsRelationMovedToAnotherNode() throws Exception {
+        CoapCluster clusterA = newCluster(1);
+        CoapCluster clusterB = newCluster(2);
+        CoapServer nodeA = newNode("a", newUdpEndpoint(), clusterA);
+        CoapServer nodeB = newNode("b", newUdpEndpoint(), clusterB);
+        Relay relay = new Relay(address(nodeA));
+
+        BlockingQueue<String> notifications = new LinkedBlockingQueue<>();
+        CoapClient coapClient = new CoapClient("coap://" + relay.getHostString() + "/node");
+        CoapObserveRelation relation = coapClient.observe(new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                notifications.add(response.getResponseText());
+            }
+
+            @Override
+            public void onError() {
+            }
+        });
+        closeables.add(relation::proactiveCancel);
+        assertEquals("a", notifications.poll(5, TimeUnit.SECONDS));
+
+        // 节点 a 还在，设备被换到节点 b 后 a 不再发通知
+        relay.switchTo(address(nodeB));
+        assertEquals("b", new CoapClient("coap://" + relay.getHostString() + "/node").get().getResponseText());
+        assertEquals("b", notifications.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, clusterA.getLocalObserves());
+        assertEquals(1, clusterA.getMoved());
+        assertEquals(0, node(nodeA).getObserverCount());
+    }
+
+    @Test
+    void dropsReplayedMessages() throws Exception {
+        // 截获节点之间全部消息的旁听者
+        InMemoryClusterTransport tap = group.join();
+        List<byte[]> captured = new CopyOnWriteArrayList<>();
+        tap.start(captured::add);
+        closeables.add(tap::close);
+        CoapCluster clusterA = newCluster(1);
+        CoapCluster clusterB = newCluster(2);
+        CoapServer nodeA = newNode("a", newDtlsEndpoint(clusterA), clusterA);
+
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setClientOnly();
+        builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY, CredentialsUtil.OPEN_PSK_SECRET));
+        DTLSConnector clientConnector = new DTLSConnector(builder.build());
+        CoapEndpoint clientEndpoint = new CoapEndpoint.Builder().setConnector(clientConnector).build();
+        closeables.add(clientEndpoint::destroy);
+        CoapClient coapClient = new CoapClient("coaps://" + address(nodeA).getHostString() + ":"
+                + address(nodeA).getPort() + "/node");
+        coapClient.setEndpoint(clientEndpoint);
+        assertEquals("a", coapClient.get().getResponseText());
+        SessionId sessionId = clientConnector.getSessionByAddress(address(nodeA)).getSessionIdentifier();
+        assertEquals(1, clusterB.getSessions());
+
+        clusterA.remove(sessionId);
+        assertEquals(0, clusterB.getSessions());
+        // 重放截获的 SESSION_PUT（type 1）不能让删掉的会话复活
+        captured.stream().filter(message -> message[0] == 1).forEach(tap::send);
+        assertEquals(0, clusterB.getSessions());
+        assertEquals(1, clusterB.getReplayed());
+        assertEquals("a", coapClient.get().getResponseText());
+    }
+
+    private CoapCluster newCluster(int nodeId) throws Exception {
+        CoapCluster coapCluster = new CoapCluster(nodeId, 6, 1000, group.join());
+        coapCluster.start();
+        closeables.add(coapCluster::stop);
+        return coapCluster;
+    }
+
+    /**
+     * 一个节点：资源 /node 返回节点名，可以观察
+     */
+    private CoapServer newNode(String name, Endpoint endpoint, CoapCluster coapCluster) {
+        CoapServer coapServer = new CoapServer();
+        coapServer.setMessageDeliverer(new SimpleMessageDeliverer(coapServer.getRoot(), new CoapServerDrainer(),
+                10, null, coapCluster));
+        coapServer.addEndpoint(endpoint);
+        SimpleCoapResource resource = new SimpleCoapResource("node") {
+            @Override
+            public void handleGET(CoapExchange exchange) {
+                exchange.respond(name);
+            }
+        };
+        resource.setObservable(true);
+        resource.addObserver(coapCluster.getResourceObserver());
+        coapServer.add(resource);
+        coapServer.start();
+        closeables.add(coapServer::destroy);
+        return coapServer;
+    }
+
+    private static SimpleCoapResource node(CoapServer coapServer) {
+        return (SimpleCoapResource) coapServer.getRoot().getChild("node");
+    }
+
+    private static CoapEndpoint newUdpEndpoint() {
+        return new CoapEndpoint.Builder().setNetworkConfig(NetworkConfig.getStandard())
+                .setConnector(new UDPConnector(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))).build();
+    }
+
+    private static CoapEndpoint newDtlsEndpoint(CoapCluster coapCluster) {
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        builder.setConnectionIdGenerator(coapCluster.getConnectionIdGenerator());
+        builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY, CredentialsUtil.OPEN_PSK_SECRET));
+        return new CoapEndpoint.Builder().setConnector(new DTLSConnector(builder.build(), coapCluster)).build();
+    }
+
+    private static InetSocketAddress address(CoapServer coapServer) {
+        return coapServer.getEndpoints().get(0).getAddress();
+    }
+
+    /**
+     * 只服务一个设备的 UDP 转发器，后端可以随时切换，设备看到的始终是转发器的地址
+     */
+    private class Relay {
+
+        private final DatagramSocket front;
+        private final DatagramSocket back;
+        private volatile InetSocketAddress backend;
+        private volatile SocketAddress device;
+
+        Relay(InetSocketAddress backend) throws SocketException {
+            this.backend = backend;
+            front = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            back = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            start(front, true);
+            start(back, false);
+            closeables.add(() -> {
+                front.close();
+                back.close();
+            });
+        }
+
+        void switchTo(InetSocketAddress backend) {
+            this.backend = backend;
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) front.getLocalSocketAddress();
+        }
+
+        String getHostString() {
+            return address().getHostString() + ":" + address().getPort();
+        }
+
+        private void start(DatagramSocket socket, boolean fromDevice) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[2048];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                while (!socket.isClosed()) {
+                    try {
+                        packet.setLength(buffer.length);
+                        socket.receive(packet);
+                        byte[] data = Arrays.copyOf(buffer, packet.getLength());
+                        if (fromDevice) {
+                            device = packet.getSocketAddress();
+                            back.send(new DatagramPacket(data, data.length, backend));
+                        } else if (packet.getSocketAddress().equals(backend) && device != null) {
+                            front.send(new DatagramPacket(data, data.length, device));
+                        }
+                    } catch (IOException e) {
+                        // 关闭
+                    }
+                }
+            }, "Relay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.coap.example;
+
+import com.coap.example.CredentialsUtil.Mode;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 和 {@link CoapLoadTests} 使用同样的配置，共用同一个 Spring 上下文和服务器
+ */
+@SpringBootTest(properties = {"coap.port=" + CoapLoadTests.PORT,
+        "coap.udp.enabled=true",
+        "coap.udp.port=" + CoapLoadTests.UDP_PORT,
+        "coap.udp.batching=${coap.load.udp-batching:true}",
+        "logging.level.com.coap.example.SimpleCoapHandler=WARN",
+        "logging.level.com.coap.example.DefaultCoapHandler=WARN"})
+class CoapEndpointPoolTests {
+
+    private static final String BASE_URI = "coaps://127.0.0.1:" + CoapLoadTests.PORT;
+
+    @Test
+    void reusesEndpointPerServerAndMode() throws Exception {
+        CoapEndpointPool pool = new CoapEndpointPool(60000, 6, 2);
+        try {
+            CoapClient first = pool.client(BASE_URI + "/coap/foo?foo=foo", Mode.PSK);
+            CoapResponse response = first.get();
+            assertNotNull(response);
+            assertTrue(response.isSuccess());
+            first.shutdown();
+
+            CoapClient second = pool.client(BASE_URI + "/coap/bar?bar=bar", Mode.PSK);
+            assertSame(first.getEndpoint(), second.getEndpoint());
+            assertNotNull(second.get());
+            second.shutdown();
+
+            CoapEndpoint rpk = pool.acquire(BASE_URI + "/coap/foo", Mode.RPK);
+            assertNotSame(first.getEndpoint(), rpk);
+            assertEquals(2, pool.getCreated());
+            assertEquals(1, pool.getHits());
+            assertEquals(2, pool.getSize());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void expiresIdleEndpoints() throws Exception {
+        CoapEndpointPool pool = new CoapEndpointPool(0, 6, 1);
+        try {
+            CoapEndpoint endpoint = pool.acquire(BASE_URI + "/coap/foo", Mode.PSK);
+            Thread.sleep(5);
+            pool.expireIdle();
+            assertEquals(0, pool.getSize());
+            assertEquals(1, pool.getExpired());
+            assertFalse(endpoint.isStarted());
+            assertNotSame(endpoint, pool.acquire(BASE_URI + "/coap/foo", Mode.PSK));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void keepsLeasedEndpoints() throws Exception {
+        CoapEndpointPool pool = new CoapEndpointPool(0, 6, 1);
+        try {
+            CoapClient client = pool.client(BASE_URI + "/coap/foo?foo=foo", Mode.PSK);
+            Thread.sleep(5);
+            pool.expireIdle();
+            // 客户端还没有 shutdown，endpoint 不能被销毁
+            assertEquals(1, pool.getSize());
+            assertTrue(client.getEndpoint().isStarted());
+            assertNotNull(client.get());
+
+            client.shutdown();
+            Thread.sleep(5);
+            pool.expireIdle();
+            assertEquals(0, pool.getSize());
+            assertFalse(client.getEndpoint().isStarted());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
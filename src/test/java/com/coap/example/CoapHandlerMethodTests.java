@@ -0,0 +1,94 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class CoapHandlerMethodTests {
+
+    static class Handler {
+
+        Object[] args;
+
+        public void segment(@CoapPath(2) long segment) {
+            args = new Object[]{segment};
+        }
+
+        public void bind(@CoapQuery String query, @CoapQuery("id") int id, @CoapQuery("flag") Boolean flag,
+                         @CoapPath String path, @CoapPath(1) String device, @ContentFormat int contentFormat,
+                         @CoapPayload byte[] payload) {
+            args = new Object[]{query, id, flag, path, device, contentFormat, payload};
+        }
+
+    }
+
+    private final Handler handler = new Handler();
+    private final CoapResource resource = new SimpleCoapResource("bind");
+
+    private CoapHandlerMethod newHandlerMethod() throws NoSuchMethodException {
+        Method method = Handler.class.getMethod("bind", String.class, int.class, Boolean.class, String.class,
+                String.class, int.class, byte[].class);
+        return new CoapHandlerMethod(handler, method, PayloadCodecRegistry.withDefaults());
+    }
+
+    private CoapExchange newExchange(String query) {
+        Request request = new Request(CoAP.Code.POST);
+        request.getOptions().addUriPath("devices").addUriPath("d1").setUriQuery(query)
+                .setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+        request.setPayload("hello");
+        request.setSourceContext(new AddressEndpointContext(new InetSocketAddress("127.0.0.1", 5684)));
+        Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE, Runnable::run);
+        exchange.setEndpoint(mock(Endpoint.class));
+        return new CoapExchange(exchange, resource);
+    }
+
+    @Test
+    void bindsOptions() throws Exception {
+        newHandlerMethod().invoke(newExchange("id=7&flag"));
+
+        assertEquals("id=7&flag", handler.args[0]);
+        assertEquals(7, handler.args[1]);
+        assertEquals(Boolean.FALSE, handler.args[2]);
+        assertEquals("devices/d1", handler.args[3]);
+        assertEquals("d1", handler.args[4]);
+        assertEquals(MediaTypeRegistry.TEXT_PLAIN, handler.args[5]);
+        assertArrayEquals("hello".getBytes(), (byte[]) handler.args[6]);
+    }
+
+    @Test
+    void rejectsMissingOrMalformedQuery() throws Exception {
+        CoapHandlerMethod handlerMethod = newHandlerMethod();
+
+        CoapResponseException missing = assertThrows(CoapResponseException.class,
+                () -> handlerMethod.invoke(newExchange("flag=true")));
+        assertEquals(CoAP.ResponseCode.BAD_REQUEST, missing.getCode());
+        CoapResponseException malformed = assertThrows(CoapResponseException.class,
+                () -> handlerMethod.invoke(newExchange("id=x")));
+        assertEquals(CoAP.ResponseCode.BAD_REQUEST, malformed.getCode());
+        assertNull(handler.args);
+    }
+
+    @Test
+    void rejectsMissingPrimitivePathSegment() throws Exception {
+        CoapHandlerMethod handlerMethod = new CoapHandlerMethod(handler,
+                Handler.class.getMethod("segment", long.class), PayloadCodecRegistry.withDefaults());
+
+        CoapResponseException missing = assertThrows(CoapResponseException.class,
+                () -> handlerMethod.invoke(newExchange("")));
+        assertEquals(CoAP.ResponseCode.BAD_REQUEST, missing.getCode());
+        assertNull(handler.args);
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.SingleNodeConnectionIdGenerator;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 负载均衡后面是两个用集群 CID 的 DTLS 节点，设备经过一个可以换出口端口的 NAT 访问负载均衡
+ */
+class CoapLoadBalancerTests {
+
+    private final InMemoryClusterTransport.Group group = new InMemoryClusterTransport.Group();
+    private final List<AutoCloseable> closeables = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (int i = closeables.size() - 1; i >= 0; i--) {
+            closeables.get(i).close();
+        }
+    }
+
+    @Test
+    void readsNodeIdFromConnectionId() {
+        ByteBuffer record = ByteBuffer.allocate(32);
+        record.put((byte) 25).put((byte) 0xFE).put((byte) 0xFD).put(new byte[8]);
+        record.put(new byte[]{(byte) 200, 1, 2, 3, 4, 5}).putShort((short) 0);
+        record.flip();
+        assertEquals(200, CoapLoadBalancer.getNodeId(record, 6));
+        assertEquals(-1, CoapLoadBalancer.getNodeId(record, 0));
+        // 握手记录不带 CID
+        record.put(0, (byte) 22);
+        assertEquals(-1, CoapLoadBalancer.getNodeId(record, 6));
+    }
+
+    @Test
+    void routesByConnectionIdAfterAddressChange() throws Exception {
+        Map<Integer, InetSocketAddress> backends = new LinkedHashMap<>();
+        backends.put(1, address(newNode(1)));
+        backends.put(2, address(newNode(2)));
+        CoapLoadBalancer loadBalancer = newLoadBalancer(backends, 60000);
+        Nat nat = new Nat(loadBalancer.getAddress());
+
+        CoapClient coapClient = newClient(nat.address());
+        String node = coapClient.get().getResponseText();
+        assertTrue(node.equals("1") || node.equals("2"));
+        assertEquals(1, loadBalancer.getSessions());
+
+        // NAT 换了出口端口，负载均衡按地址会把设备当成新设备，按 CID 仍回到原来的节点
+        for (int i = 0; i < 8; i++) {
+            nat.rebind();
+            CoapResponse response = coapClient.get();
+            assertNotNull(response);
+            assertEquals(node, response.getResponseText());
+        }
+        assertTrue(loadBalancer.getCidRouted() >= 8);
+        assertTrue(loadBalancer.getBatches() > 0);
+        assertEquals(0, loadBalancer.getDropped());
+    }
+
+    @Test
+    void marksBackendDownAndSkipsIt() throws Exception {
+        DatagramSocket unused = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        InetSocketAddress down = (InetSocketAddress) unused.getLocalSocketAddress();
+        unused.close();
+        Map<Integer, InetSocketAddress> backends = new LinkedHashMap<>();
+        backends.put(1, down);
+        backends.put(2, address(newNode(2)));
+        CoapLoadBalancer loadBalancer = newLoadBalancer(backends, 50);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (loadBalancer.isHealthy(1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(loadBalancer.isHealthy(1));
+        assertTrue(loadBalancer.isHealthy(2));
+        // 新设备都分到健康的节点
+        for (int i = 0; i < 4; i++) {
+            assertEquals("2", newClient(loadBalancer.getAddress()).get().getResponseText());
+        }
+    }
+
+    private CoapLoadBalancer newLoadBalancer(Map<Integer, InetSocketAddress> backends, long healthInterval)
+            throws IOException {
+        CoapLoadBalancer loadBalancer = new CoapLoadBalancer(0, backends, 6, 64, 60000, healthInterval, 200, 2);
+        loadBalancer.start();
+        closeables.add(loadBalancer::stop);
+        return loadBalancer;
+    }
+
+    /**
+     * 一个 DTLS 节点：CID 第一个字节是节点号，资源 /node 返回节点号
+     */
+    private CoapServer newNode(int nodeId) throws Exception {
+        CoapCluster coapCluster = new CoapCluster(nodeId, 6, 1000, group.join());
+        coapCluster.start();
+        closeables.add(coapCluster::stop);
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        builder.setConnectionIdGenerator(coapCluster.getConnectionIdGenerator());
+        builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY, CredentialsUtil.OPEN_PSK_SECRET));
+        CoapServer coapServer = new CoapServer();
+        coapServer.addEndpoint(new CoapEndpoint.Builder()
+                .setConnector(new DTLSConnector(builder.build(), coapCluster)).build());
+        coapServer.add(new SimpleCoapResource("node") {
+            @Override
+            public void handleGET(CoapExchange exchange) {
+                exchange.respond(String.valueOf(nodeId));
+            }
+        });
+        coapServer.start();
+        closeables.add(coapServer::destroy);
+        return coapServer;
+    }
+
+    private CoapClient newClient(InetSocketAddress address) {
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setClientOnly();
+        builder.setConnectionIdGenerator(new SingleNodeConnectionIdGenerator(0));
+        builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY, CredentialsUtil.OPEN_PSK_SECRET));
+        CoapEndpoint clientEndpoint = new CoapEndpoint.Builder().setConnector(new DTLSConnector(builder.build()))
+                .build();
+        closeables.add(clientEndpoint::destroy);
+        // 负载均衡监听在通配地址上
+        CoapClient coapClient = new CoapClient("coaps://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + address.getPort() + "/node");
+        coapClient.setEndpoint(clientEndpoint);
+        return coapClient;
+    }
+
+    private static InetSocketAddress address(CoapServer coapServer) {
+        return coapServer.getEndpoints().get(0).getAddress();
+    }
+
+    /**
+     * 只服务一个设备的 NAT：{@link #rebind()} 换一个出口端口，之前的端口不再转发
+     */
+    private class Nat {
+
+        private final DatagramSocket inside;
+        private final InetSocketAddress outsidePeer;
+        private volatile DatagramSocket outside;
+        private volatile SocketAddress device;
+
+        Nat(InetSocketAddress outsidePeer) throws SocketException {
+            this.outsidePeer = new InetSocketAddress(InetAddress.getLoopbackAddress(), outsidePeer.getPort());
+            inside = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            closeables.add(() -> {
+                inside.close();
+                outside.close();
+            });
+            rebind();
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[2048];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                while (!inside.isClosed()) {
+                    try {
+                        packet.setLength(buffer.length);
+                        inside.receive(packet);
+                        device = packet.getSocketAddress();
+                        byte[] data = Arrays.copyOf(buffer, packet.getLength());
+                        outside.send(new DatagramPacket(data, data.length, this.outsidePeer));
+                    } catch (IOException e) {
+                        // 关闭或正在换端口
+                    }
+                }
+            }, "Nat");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) inside.getLocalSocketAddress();
+        }
+
+        void rebind() throws SocketException {
+            DatagramSocket previous = outside;
+            DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            outside = socket;
+            if (previous != null) {
+                previous.close();
+            }
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[2048];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                while (!socket.isClosed()) {
+                    try {
+                        packet.setLength(buffer.length);
+                        socket.receive(packet);
+                        byte[] data = Arrays.copyOf(buffer, packet.getLength());
+                        inside.send(new DatagramPacket(data, data.length, device));
+                    } catch (IOException e) {
+                        // 关闭
+                    }
+                }
+            }, "NatOutside");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+    }
+
+}
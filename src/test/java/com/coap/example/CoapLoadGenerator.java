@@ -0,0 +1,370 @@
+package com.coap.example;
+
+import com.coap.example.CredentialsUtil.Mode;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.UDPConnector;
+import org.eclipse.californium.elements.util.NamedThreadFactory;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内 CoAP 压测工具
+ * <p>
+ * 模拟 N 个 DTLS 客户端（PSK/RPK 交替），先并发完成握手，再按 GET/POST/OBSERVE/BLOCKWISE 的比例发请求，
+ * 最后输出吞吐量、p50/p99/p999 延迟以及握手速率。
+ */
+public class CoapLoadGenerator {
+
+    private static Logger logger = LoggerFactory.getLogger(CoapLoadGenerator.class);
+
+    private static final List<Mode> SUPPORTED_MODES = Arrays.asList(Mode.PSK, Mode.ECDHE_PSK, Mode.RPK, Mode.X509,
+            Mode.RPK_TRUST, Mode.X509_TRUST);
+
+    /**
+     * 请求类型
+     */
+    public enum Operation {
+        GET, POST, OBSERVE, BLOCKWISE
+    }
+
+    private final String host;
+    private final int port;
+    private String baseUri;
+    // false 时使用不加密的 coap://，"握手"阶段只是一次 ping
+    private boolean secure = true;
+    private int clients = 100;
+    private int requestsPerClient = 100;
+    private int concurrency = Runtime.getRuntime().availableProcessors() * 4;
+    private long timeoutMillis = 10000;
+    // 各类请求的权重，顺序同 Operation
+    private int[] weights = new int[]{60, 25, 5, 10};
+    // 超过 PREFERRED_BLOCK_SIZE，但不超过 MAX_RESOURCE_BODY_SIZE，确保走 block1
+    private byte[] blockwisePayload = new byte[1536];
+
+    public CoapLoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.baseUri = "coaps://" + host + ":" + port;
+        Arrays.fill(blockwisePayload, (byte) 'x');
+    }
+
+    public CoapLoadGenerator secure(boolean secure) {
+        this.secure = secure;
+        this.baseUri = (secure ? "coaps://" : "coap://") + host + ":" + port;
+        return this;
+    }
+
+    public CoapLoadGenerator clients(int clients) {
+        this.clients = clients;
+        return this;
+    }
+
+    public CoapLoadGenerator requestsPerClient(int requestsPerClient) {
+        this.requestsPerClient = requestsPerClient;
+        return this;
+    }
+
+    public CoapLoadGenerator concurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public CoapLoadGenerator timeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public CoapLoadGenerator weights(int get, int post, int observe, int blockwise) {
+        this.weights = new int[]{get, post, observe, blockwise};
+        return this;
+    }
+
+    public Report run() throws InterruptedException {
+        NetworkConfig config = NetworkConfig.getStandard();
+        ScheduledExecutorService endpointExecutor = Executors.newScheduledThreadPool(concurrency,
+                new NamedThreadFactory("LoadEndpoint#"));
+        ScheduledExecutorService secondaryExecutor = Executors.newScheduledThreadPool(2,
+                new NamedThreadFactory("LoadTimer#"));
+        ExecutorService dtlsExecutor = Executors.newFixedThreadPool(concurrency,
+                new NamedThreadFactory("LoadDtls#"));
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("LoadWorker#"));
+
+        List<CoapEndpoint> endpoints = new ArrayList<>(clients);
+        Report report = new Report(clients);
+        try {
+            for (int i = 0; i < clients; i++) {
+                Connector connector;
+                if (secure) {
+                    DTLSConnector dtlsConnector = newDtlsConnector(i % 2 == 0 ? Mode.PSK : Mode.RPK);
+                    dtlsConnector.setExecutor(dtlsExecutor);
+                    connector = dtlsConnector;
+                } else {
+                    connector = new UDPConnector();
+                }
+                CoapEndpoint endpoint = new CoapEndpoint.Builder().setNetworkConfig(config)
+                        .setConnector(connector).build();
+                endpoint.setExecutors(endpointExecutor, secondaryExecutor);
+                endpoints.add(endpoint);
+            }
+
+            // 阶段一：握手，ping 会触发 DTLS 握手
+            long handshakeStart = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>(clients);
+            for (CoapEndpoint endpoint : endpoints) {
+                futures.add(workers.submit(() -> {
+                    CoapClient client = new CoapClient(baseUri).setEndpoint(endpoint);
+                    if (client.ping(timeoutMillis)) {
+                        report.handshakes.incrementAndGet();
+                    } else {
+                        report.handshakeFailures.incrementAndGet();
+                    }
+                }));
+            }
+            await(futures);
+            report.handshakeNanos = System.nanoTime() - handshakeStart;
+
+            // 阶段二：请求混合
+            long requestStart = System.nanoTime();
+            futures.clear();
+            for (int i = 0; i < clients; i++) {
+                CoapEndpoint endpoint = endpoints.get(i);
+                long seed = i;
+                futures.add(workers.submit(() -> runClient(endpoint, new Random(seed), report)));
+            }
+            await(futures);
+            report.requestNanos = System.nanoTime() - requestStart;
+        } finally {
+            endpoints.forEach(CoapEndpoint::destroy);
+            workers.shutdownNow();
+            dtlsExecutor.shutdownNow();
+            endpointExecutor.shutdownNow();
+            secondaryExecutor.shutdownNow();
+        }
+        return report;
+    }
+
+    private void runClient(CoapEndpoint endpoint, Random random, Report report) {
+        CoapClient client = new CoapClient().setEndpoint(endpoint).setTimeout(timeoutMillis);
+        long[] latencies = new long[requestsPerClient];
+        int count = 0;
+        for (int i = 0; i < requestsPerClient; i++) {
+            Operation operation = nextOperation(random);
+            long start = System.nanoTime();
+            boolean success;
+            try {
+                success = execute(client, operation);
+            } catch (Exception e) {
+                logger.debug(">>>>> LOAD_REQUEST_ERROR: [{}]", e.toString());
+                success = false;
+            }
+            long cost = System.nanoTime() - start;
+            if (success) {
+                latencies[count++] = cost;
+            } else {
+                report.failures.incrementAndGet();
+            }
+            report.operations[operation.ordinal()].incrementAndGet();
+        }
+        report.addLatencies(latencies, count);
+    }
+
+    private boolean execute(CoapClient client, Operation operation) throws Exception {
+        CoapResponse response;
+        switch (operation) {
+            case GET:
+                client.setURI(baseUri + "/coap/foo?foo=load");
+                response = client.get();
+                break;
+            case POST:
+                client.setURI(baseUri + "/coap/bar?bar=load");
+                response = client.post("{\"message\":\"load\"}", MediaTypeRegistry.APPLICATION_JSON);
+                break;
+            case OBSERVE:
+                client.setURI(baseUri + "/coap/baz?baz=load");
+                CoapObserveRelation relation = client.observeAndWait(new org.eclipse.californium.core.CoapHandler() {
+                    @Override
+                    public void onLoad(CoapResponse response) {
+                    }
+
+                    @Override
+                    public void onError() {
+                    }
+                });
+                response = relation.getCurrent();
+                relation.reactiveCancel();
+                break;
+            case BLOCKWISE:
+                client.setURI(baseUri + "/coap/fooooo?fooooo=load");
+                response = client.post(blockwisePayload, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+        return response != null && response.isSuccess();
+    }
+
+    private Operation nextOperation(Random random) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int value = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            value -= weights[i];
+            if (value < 0) {
+                return Operation.values()[i];
+            }
+        }
+        return Operation.GET;
+    }
+
+    private DTLSConnector newDtlsConnector(Mode mode) {
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setClientOnly();
+        builder.setSniEnabled(false);
+        builder.setRecommendedCipherSuitesOnly(false);
+        builder.setReceiverThreadCount(1);
+        builder.setConnectionThreadCount(1);
+        builder.setMaxConnections(16);
+        List<Mode> modes = CredentialsUtil.parse(new String[]{mode.toString()}, CredentialsUtil.DEFAULT_CLIENT_MODES,
+                SUPPORTED_MODES);
+        if (modes.contains(Mode.PSK)) {
+            builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY,
+                    CredentialsUtil.OPEN_PSK_SECRET));
+        } else {
+            builder.setSupportedCipherSuites(CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256);
+        }
+        CredentialsUtil.setupCredentials(builder, CredentialsUtil.CLIENT_NAME, modes);
+        return new DTLSConnector(builder.build());
+    }
+
+    private void await(List<Future<?>> futures) throws InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                logger.error(">>>>> LOAD_TASK_ERROR", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * 压测结果
+     */
+    public static class Report {
+
+        private final int clients;
+        private final AtomicLong handshakes = new AtomicLong();
+        private final AtomicLong handshakeFailures = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong[] operations = new AtomicLong[Operation.values().length];
+        private final List<long[]> latencyChunks = Collections.synchronizedList(new ArrayList<>());
+        private long handshakeNanos;
+        private long requestNanos;
+        private long[] sortedLatencies;
+
+        Report(int clients) {
+            this.clients = clients;
+            for (int i = 0; i < operations.length; i++) {
+                operations[i] = new AtomicLong();
+            }
+        }
+
+        void addLatencies(long[] latencies, int count) {
+            latencyChunks.add(Arrays.copyOf(latencies, count));
+        }
+
+        private synchronized long[] sorted() {
+            if (sortedLatencies == null) {
+                int size = 0;
+                for (long[] chunk : latencyChunks) {
+                    size += chunk.length;
+                }
+                long[] all = new long[size];
+                int index = 0;
+                for (long[] chunk : latencyChunks) {
+                    System.arraycopy(chunk, 0, all, index, chunk.length);
+                    index += chunk.length;
+                }
+                Arrays.sort(all);
+                sortedLatencies = all;
+            }
+            return sortedLatencies;
+        }
+
+        public long getSuccesses() {
+            return sorted().length;
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getHandshakes() {
+            return handshakes.get();
+        }
+
+        public long getHandshakeFailures() {
+            return handshakeFailures.get();
+        }
+
+        public double getThroughput() {
+            return requestNanos == 0 ? 0 : getSuccesses() * 1e9 / requestNanos;
+        }
+
+        public double getHandshakeRate() {
+            return handshakeNanos == 0 ? 0 : handshakes.get() * 1e9 / handshakeNanos;
+        }
+
+        /**
+         * @param quantile 0 ~ 1 之间的分位
+         * @return 对应分位的延迟，单位微秒
+         */
+        public long getLatencyMicros(double quantile) {
+            long[] latencies = sorted();
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(quantile * latencies.length) - 1;
+            return TimeUnit.NANOSECONDS.toMicros(latencies[Math.max(0, Math.min(index, latencies.length - 1))]);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("clients=").append(clients);
+            builder.append(", handshakes=").append(handshakes.get());
+            builder.append(", handshakeFailures=").append(handshakeFailures.get());
+            builder.append(String.format(", handshakeRate=%.1f/s", getHandshakeRate()));
+            for (Operation operation : Operation.values()) {
+                builder.append(", ").append(operation).append('=').append(operations[operation.ordinal()].get());
+            }
+            builder.append(", successes=").append(getSuccesses());
+            builder.append(", failures=").append(failures.get());
+            builder.append(String.format(", throughput=%.1f req/s", getThroughput()));
+            builder.append(", p50=").append(getLatencyMicros(0.5)).append("us");
+            builder.append(", p99=").append(getLatencyMicros(0.99)).append("us");
+            builder.append(", p999=").append(getLatencyMicros(0.999)).append("us");
+            return builder.toString();
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.coap.example;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 在本机回环地址上启动 {@link SimpleCoapServer}，用 {@link CoapLoadGenerator} 压测。
+ * <p>
+ * 默认规模很小，可以放在 CI 里跑；需要基线数据时通过系统属性放大，例如：
+ * <pre>
+ * mvn test -Dtest=CoapLoadTests -Dcoap.load.clients=2000 -Dcoap.load.requests=200
+ * </pre>
+ * 不加密的 coap:// 默认使用 {@link BatchingUdpConnector}，和 Californium 自带的 UDPConnector 对比时：
+ * <pre>
+ * mvn test -Dtest=CoapLoadTests#plainUdp -Dcoap.load.udp-batching=false
+ * </pre>
+ */
+@SpringBootTest(properties = {"coap.port=" + CoapLoadTests.PORT,
+        "coap.udp.enabled=true",
+        "coap.udp.port=" + CoapLoadTests.UDP_PORT,
+        "coap.udp.batching=${coap.load.udp-batching:true}",
+        "logging.level.com.coap.example.SimpleCoapHandler=WARN",
+        "logging.level.com.coap.example.DefaultCoapHandler=WARN"})
+class CoapLoadTests {
+
+    static final int PORT = 15684;
+    static final int UDP_PORT = 15688;
+
+    private static Logger logger = LoggerFactory.getLogger(CoapLoadTests.class);
+
+    @Test
+    void load() throws InterruptedException {
+        int clients = Integer.getInteger("coap.load.clients", 20);
+        int requests = Integer.getInteger("coap.load.requests", 20);
+
+        CoapLoadGenerator.Report report = new CoapLoadGenerator("127.0.0.1", PORT)
+                .clients(clients)
+                .requestsPerClient(requests)
+                .run();
+        logger.info(">>>>> LOAD_REPORT: [{}]", report);
+
+        assertEquals(clients, report.getHandshakes());
+        assertTrue(report.getSuccesses() > 0);
+    }
+
+    @Test
+    void plainUdp() throws InterruptedException {
+        int clients = Integer.getInteger("coap.load.clients", 20);
+        int requests = Integer.getInteger("coap.load.requests", 20);
+
+        CoapLoadGenerator.Report report = new CoapLoadGenerator("127.0.0.1", UDP_PORT)
+                .secure(false)
+                .clients(clients)
+                .requestsPerClient(requests)
+                .run();
+        logger.info(">>>>> UDP_LOAD_REPORT: [{}]", report);
+
+        assertEquals(clients, report.getHandshakes());
+        assertTrue(report.getSuccesses() > 0);
+    }
+
+}
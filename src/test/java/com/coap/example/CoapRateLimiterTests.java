@@ -0,0 +1,167 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.eclipse.californium.elements.auth.PreSharedKeyIdentity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class CoapRateLimiterTests {
+
+    private CoapRateLimiter coapRateLimiter;
+
+    @AfterEach
+    void tearDown() {
+        if (coapRateLimiter != null) {
+            coapRateLimiter.stop();
+        }
+    }
+
+    @Test
+    void refillsTokensOverTime() {
+        TokenBucketMap buckets = new TokenBucketMap(1000, 10, 5, 60000);
+        long now = 0;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(buckets.tryAcquire(42, now));
+        }
+        assertFalse(buckets.tryAcquire(42, now));
+        assertTrue(buckets.tryAcquire(43, now));
+        // 每秒 10 个令牌，100 毫秒补一个
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertTrue(buckets.tryAcquire(42, now));
+        assertFalse(buckets.tryAcquire(42, now));
+    }
+
+    @Test
+    void purgesExpiredEntriesAndFailsOpenWhenFull() {
+        TokenBucketMap buckets = new TokenBucketMap(64 * 16, 1, 1, 1000);
+        long now = 0;
+        for (long key = 1; key <= 100000; key++) {
+            assertTrue(buckets.tryAcquire(key, now));
+        }
+        assertTrue(buckets.size() <= 64 * 16);
+        assertTrue(buckets.getUntracked() > 0);
+
+        // 过期之后旧条目被清除，新的键重新被记录
+        now += TimeUnit.SECONDS.toNanos(10);
+        long untracked = buckets.getUntracked();
+        for (long key = 200001; key <= 200100; key++) {
+            assertTrue(buckets.tryAcquire(key, now));
+        }
+        assertEquals(untracked, buckets.getUntracked());
+        assertFalse(buckets.tryAcquire(200001, now));
+    }
+
+    @Test
+    void throttlesPeerWithTooManyRequests() {
+        coapRateLimiter = new CoapRateLimiter(1, 3, 0, 0, 0, 0);
+        coapRateLimiter.start();
+        for (int i = 0; i < 3; i++) {
+            assertNull(coapRateLimiter.admit(request(5000, null), 0));
+        }
+        Response response = coapRateLimiter.admit(request(5000, null), 0);
+        assertNotNull(response);
+        assertEquals(CoAP.ResponseCode.TOO_MANY_REQUESTS, response.getCode());
+        assertTrue(response.getOptions().hasMaxAge());
+        // 其他对端不受影响
+        assertNull(coapRateLimiter.admit(request(5001, null), 0));
+
+        assertEquals(4, coapRateLimiter.getAllowed());
+        assertEquals(1, coapRateLimiter.getThrottled());
+        assertEquals(1L, coapRateLimiter.getThrottledPeers(10).values().iterator().next().longValue());
+    }
+
+    @Test
+    void throttlesIdentityAcrossPorts() {
+        coapRateLimiter = new CoapRateLimiter(100, 100, 1, 2, 0, 0);
+        coapRateLimiter.start();
+        PreSharedKeyIdentity identity = new PreSharedKeyIdentity("device-1");
+        assertNull(coapRateLimiter.admit(request(6000, identity), 0));
+        assertNull(coapRateLimiter.admit(request(6001, identity), 0));
+        Response response = coapRateLimiter.admit(request(6002, identity), 0);
+        assertNotNull(response);
+        assertEquals(CoAP.ResponseCode.TOO_MANY_REQUESTS, response.getCode());
+        assertNull(coapRateLimiter.admit(request(6002, new PreSharedKeyIdentity("device-2")), 0));
+    }
+
+    @Test
+    void shedsWhenOverloaded() {
+        coapRateLimiter = new CoapRateLimiter(100, 100, 0, 0, 8, 0);
+        coapRateLimiter.start();
+        assertNull(coapRateLimiter.admit(request(7000, null), 7));
+        Response response = coapRateLimiter.admit(request(7000, null), 8);
+        assertNotNull(response);
+        assertEquals(CoAP.ResponseCode.SERVICE_UNAVAILABLE, response.getCode());
+        assertEquals(5, response.getOptions().getMaxAge().longValue());
+        assertEquals(1, coapRateLimiter.getShed());
+
+        // 排队时间超过 max-queue-delay
+        Request queued = request(7001, null);
+        queued.setNanoTimestamp(System.nanoTime() - TimeUnit.SECONDS.toNanos(2));
+        assertEquals(CoAP.ResponseCode.SERVICE_UNAVAILABLE, coapRateLimiter.admit(queued, 0).getCode());
+        assertEquals(2, coapRateLimiter.getShed());
+    }
+
+    @Test
+    void exemptsOnlyAssembledUploads() {
+        coapRateLimiter = new CoapRateLimiter(1, 1, 0, 0, 0, 0);
+        coapRateLimiter.start();
+        CoapServerDrainer coapServerDrainer = new CoapServerDrainer();
+        SimpleMessageDeliverer deliverer = new SimpleMessageDeliverer(new SimpleCoapResource(""), coapServerDrainer,
+                10, coapRateLimiter);
+        Endpoint endpoint = mock(Endpoint.class);
+
+        assertFalse(deliverer.preDeliverRequest(exchange(request(8000, null), endpoint)));
+        // 自己加上 Block2 的请求不能绕过限流
+        Request block2 = request(8000, null);
+        block2.getOptions().setBlock2(BlockOption.size2Szx(64), false, 1);
+        assertTrue(deliverer.preDeliverRequest(exchange(block2, endpoint)));
+        // BlockwiseLayer 组装的上传第 0 块没有检查过，组装出的请求照常计入限流
+        Exchange blockwise = exchange(request(8000, null), endpoint);
+        blockwise.setBlock1ToAck(new BlockOption(BlockOption.size2Szx(64), false, 3));
+        assertTrue(deliverer.preDeliverRequest(blockwise));
+        // 排空之前开始、排空期间收齐的上传照常处理，也不再计入限流
+        coapServerDrainer.startDrain();
+        Request admitted = request(8000, null);
+        admitted.setUserContext(Collections.singletonMap(SimpleMessageDeliverer.ADMITTED_TRANSFER, "true"));
+        Exchange assembled = exchange(admitted, endpoint);
+        assembled.setBlock1ToAck(new BlockOption(BlockOption.size2Szx(64), false, 3));
+        assertFalse(deliverer.preDeliverRequest(assembled));
+        Exchange single = exchange(request(8000, null), endpoint);
+        single.setBlock1ToAck(new BlockOption(BlockOption.size2Szx(64), false, 0));
+        assertTrue(deliverer.preDeliverRequest(single));
+
+        ArgumentCaptor<Response> captor = ArgumentCaptor.forClass(Response.class);
+        verify(endpoint, times(3)).sendResponse(any(Exchange.class), captor.capture());
+        assertEquals(CoAP.ResponseCode.TOO_MANY_REQUESTS, captor.getAllValues().get(0).getCode());
+        assertEquals(CoAP.ResponseCode.TOO_MANY_REQUESTS, captor.getAllValues().get(1).getCode());
+        assertEquals(CoAP.ResponseCode.SERVICE_UNAVAILABLE, captor.getAllValues().get(2).getCode());
+    }
+
+    private static Exchange exchange(Request request, Endpoint endpoint) {
+        Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE, Runnable::run);
+        exchange.setEndpoint(endpoint);
+        return exchange;
+    }
+
+    private static Request request(int port, PreSharedKeyIdentity identity) {
+        Request request = Request.newPost();
+        request.setSourceContext(new AddressEndpointContext(new InetSocketAddress("10.0.0.1", port), identity));
+        return request;
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.coap.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoapRequestSchedulerTests {
+
+    private CoapRequestScheduler coapRequestScheduler;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        coapRequestScheduler.stop();
+    }
+
+    @Test
+    void bulkCannotTakeAllThreads() throws InterruptedException {
+        coapRequestScheduler = new CoapRequestScheduler(4, 100, new int[]{8, 4, 1}, new int[]{4, 4, 2});
+        coapRequestScheduler.start();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger bulkRunning = new AtomicInteger();
+        AtomicInteger maxBulkRunning = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(coapRequestScheduler.execute(CoapQos.BULK, () -> {
+                maxBulkRunning.accumulateAndGet(bulkRunning.incrementAndGet(), Math::max);
+                await(release);
+                bulkRunning.decrementAndGet();
+            }));
+        }
+
+        // BULK 只能占 2 个线程，剩下的线程立即执行 CONTROL
+        CountDownLatch control = new CountDownLatch(1);
+        assertTrue(coapRequestScheduler.execute(CoapQos.CONTROL, control::countDown));
+        assertTrue(control.await(1, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (bulkRunning.get() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(8, coapRequestScheduler.getQueued(CoapQos.BULK));
+
+        release.countDown();
+        while (coapRequestScheduler.getExecuted(CoapQos.BULK) < 10 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, coapRequestScheduler.getExecuted(CoapQos.BULK));
+        assertEquals(2, maxBulkRunning.get());
+    }
+
+    @Test
+    void dequeuesByWeight() throws InterruptedException {
+        coapRequestScheduler = new CoapRequestScheduler(1, 100, new int[]{3, 1, 1}, new int[]{1, 1, 1});
+        coapRequestScheduler.start();
+        // 先占住唯一的线程，让三个等级都排上队
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        coapRequestScheduler.execute(CoapQos.DEFAULT, () -> {
+            started.countDown();
+            await(release);
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        List<CoapQos> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 5; i++) {
+            for (CoapQos qos : new CoapQos[]{CoapQos.BULK, CoapQos.DEFAULT, CoapQos.CONTROL}) {
+                coapRequestScheduler.execute(qos, () -> order.add(qos));
+            }
+        }
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (order.size() < 15 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(15, order.size());
+        // 前 5 个里 CONTROL 占 3 个，BULK 和 DEFAULT 也没有饿死
+        List<CoapQos> first = order.subList(0, 5);
+        assertEquals(3, Collections.frequency(first, CoapQos.CONTROL));
+        assertEquals(1, Collections.frequency(first, CoapQos.DEFAULT));
+        assertEquals(1, Collections.frequency(first, CoapQos.BULK));
+    }
+
+    @Test
+    void rejectsWhenQueueIsFull() throws InterruptedException {
+        coapRequestScheduler = new CoapRequestScheduler(1, 2, new int[]{1, 1, 1}, new int[]{1, 1, 1});
+        coapRequestScheduler.start();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        assertTrue(coapRequestScheduler.execute(CoapQos.BULK, () -> {
+            started.countDown();
+            await(release);
+        }));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertTrue(coapRequestScheduler.execute(CoapQos.BULK, () -> { }));
+        assertTrue(coapRequestScheduler.execute(CoapQos.BULK, () -> { }));
+        assertFalse(coapRequestScheduler.execute(CoapQos.BULK, () -> { }));
+        assertEquals(1, coapRequestScheduler.getRejected(CoapQos.BULK));
+        release.countDown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
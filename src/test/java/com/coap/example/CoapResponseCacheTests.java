@@ -0,0 +1,215 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class CoapResponseCacheTests {
+
+    private CoapResponseCache cache;
+    private CoapResource resource;
+    private Endpoint endpoint;
+    private AtomicInteger invocations;
+
+    @BeforeEach
+    void setUp() {
+        cache = new CoapResponseCache();
+        resource = new SimpleCoapResource("foo");
+        endpoint = mock(Endpoint.class);
+        invocations = new AtomicInteger();
+    }
+
+    private Exchange newExchange(CoAP.Code code, String query) {
+        Request request = new Request(code);
+        request.getOptions().addUriPath("coap").addUriPath("foo").setUriQuery(query);
+        request.setSourceContext(new AddressEndpointContext(new InetSocketAddress("127.0.0.1", 5684)));
+        Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE, Runnable::run);
+        exchange.setEndpoint(endpoint);
+        return exchange;
+    }
+
+    private List<Response> sentResponses(int times) {
+        ArgumentCaptor<Response> captor = ArgumentCaptor.forClass(Response.class);
+        verify(endpoint, times(times)).sendResponse(any(Exchange.class), captor.capture());
+        return captor.getAllValues();
+    }
+
+    @Test
+    void cachesPerQuery() throws Exception {
+        CoapResponseCache.Invoker invoker = exchange -> {
+            invocations.incrementAndGet();
+            exchange.setMaxAge(30);
+            exchange.respond("FOO-" + exchange.getQueryParameter("foo"));
+        };
+
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        cache.execute(newExchange(CoAP.Code.GET, "foo=2"), resource, invoker);
+
+        assertEquals(2, invocations.get());
+        assertEquals(1, cache.getHits());
+        List<Response> responses = sentResponses(3);
+        assertEquals("FOO-1", responses.get(1).getPayloadString());
+        assertTrue(responses.get(1).getOptions().getMaxAge() <= 30);
+        assertEquals("FOO-2", responses.get(2).getPayloadString());
+    }
+
+    @Test
+    void conditionalRequestsDoNotShareEntries() throws Exception {
+        CoapResponseCache.Invoker invoker = exchange -> {
+            invocations.incrementAndGet();
+            exchange.respond("FOO");
+        };
+
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        Exchange conditional = newExchange(CoAP.Code.GET, "foo=1");
+        conditional.getRequest().getOptions().addETag(new byte[]{1});
+        cache.execute(conditional, resource, invoker);
+
+        assertEquals(2, invocations.get());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    void invalidateRoute() throws Exception {
+        CoapResponseCache.Invoker invoker = exchange -> {
+            invocations.incrementAndGet();
+            exchange.respond("FOO");
+        };
+
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        cache.invalidate("/coap/foo");
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+
+        assertEquals(2, invocations.get());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    void invalidateFencesRunningInvocation() throws Exception {
+        CoapResponseCache.Invoker invoker = exchange -> {
+            if (invocations.incrementAndGet() == 1) {
+                // 读到写之前的内容后路由失效了
+                cache.invalidate("coap/foo");
+                exchange.respond("OLD");
+            } else {
+                exchange.respond("NEW");
+            }
+        };
+
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+
+        assertEquals(2, invocations.get());
+        assertEquals(0, cache.getHits());
+        List<Response> responses = sentResponses(2);
+        assertEquals("OLD", responses.get(0).getPayloadString());
+        assertEquals("NEW", responses.get(1).getPayloadString());
+    }
+
+    @Test
+    void doesNotCacheErrors() throws Exception {
+        CoapResponseCache.Invoker invoker = exchange -> {
+            invocations.incrementAndGet();
+            exchange.respond(CoAP.ResponseCode.NOT_FOUND);
+        };
+
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+
+        assertEquals(2, invocations.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void concurrentMissesShareOneInvocation() throws Exception {
+        CountDownLatch invoked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CoapResponseCache.Invoker invoker = exchange -> {
+            invocations.incrementAndGet();
+            invoked.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            exchange.respond("FOO");
+        };
+
+        Thread leader = new Thread(() -> {
+            try {
+                cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        leader.start();
+        assertTrue(invoked.await(5, TimeUnit.SECONDS));
+
+        cache.execute(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        release.countDown();
+        leader.join(5000);
+
+        assertEquals(1, invocations.get());
+        assertEquals(1, cache.getWaits());
+        List<Response> responses = sentResponses(2);
+        responses.forEach(response -> assertEquals("FOO", response.getPayloadString()));
+    }
+
+    @Test
+    void coalescesConcurrentRequestsWithoutCaching() throws Exception {
+        CountDownLatch invoked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CoapResponseCache.Invoker invoker = exchange -> {
+            if (invocations.incrementAndGet() == 1) {
+                invoked.countDown();
+                release.await(5, TimeUnit.SECONDS);
+            }
+            exchange.respond("FOO");
+        };
+
+        Thread leader = new Thread(() -> {
+            try {
+                cache.coalesce(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        leader.start();
+        assertTrue(invoked.await(5, TimeUnit.SECONDS));
+
+        cache.coalesce(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        cache.coalesce(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        // 带 ETag 的请求不合并
+        Exchange conditional = newExchange(CoAP.Code.GET, "foo=1");
+        conditional.getRequest().getOptions().addETag(new byte[]{1});
+        cache.coalesce(conditional, resource, invoker);
+        release.countDown();
+        leader.join(5000);
+
+        assertEquals(2, invocations.get());
+        assertEquals(2, cache.getCoalesced());
+        sentResponses(4).forEach(response -> assertEquals("FOO", response.getPayloadString()));
+
+        // 调用结束后不保留响应
+        cache.coalesce(newExchange(CoAP.Code.GET, "foo=1"), resource, invoker);
+        assertEquals(3, invocations.get());
+        assertEquals(3, cache.getFlights());
+        assertEquals(0, cache.size());
+    }
+
+}
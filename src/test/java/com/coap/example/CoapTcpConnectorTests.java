@@ -0,0 +1,203 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.eclipse.californium.elements.EndpointContext;
+import org.eclipse.californium.elements.MessageCallback;
+import org.eclipse.californium.elements.RawData;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * certs 下的演示证书已经过期，JSSE 会拒绝，这里用不加密的 TCP，分帧和信令与 TLS 相同
+ */
+@SpringBootTest(properties = {"coap.port=" + CoapTcpConnectorTests.UDP_PORT,
+        "coap.tcp.enabled=true",
+        "coap.tcp.port=" + CoapTcpConnectorTests.TCP_PORT,
+        "coap.tcp.tls=false",
+        "coap.upload.dir=target/tcp-upload",
+        "coap.download.dir=target/tcp-download",
+        "logging.level.com.coap.example.SimpleCoapHandler=WARN",
+        "logging.level.com.coap.example.DefaultCoapHandler=WARN",
+        "logging.level.com.coap.example.UpDownloadCoapHandler=WARN"})
+class CoapTcpConnectorTests {
+
+    static final int UDP_PORT = 15687;
+    static final int TCP_PORT = 15686;
+
+    private static final String BASE_URI = "coap+tcp://127.0.0.1:" + TCP_PORT;
+
+    private CoapTcpConnector connector;
+    private CoapEndpoint endpoint;
+
+    @BeforeEach
+    void connect() throws Exception {
+        NetworkConfig config = new NetworkConfig(NetworkConfig.getStandard());
+        config.setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, 4 * 1024 * 1024);
+        connector = new CoapTcpConnector(null, null, 1024 * 1024, 1, 0, 5000);
+        endpoint = new CoapEndpoint.Builder().setNetworkConfig(config).setConnector(connector).build();
+        endpoint.start();
+    }
+
+    @AfterEach
+    void close() {
+        endpoint.destroy();
+    }
+
+    @Test
+    void pipelinesRequestsOverOneConnection() throws Exception {
+        int requests = 200;
+        CountDownLatch latch = new CountDownLatch(requests);
+        AtomicInteger successes = new AtomicInteger();
+        CoapClient client = new CoapClient(BASE_URI + "/coap/foo?foo=foo").setEndpoint(endpoint);
+        for (int i = 0; i < requests; i++) {
+            client.get(new CoapHandler() {
+                @Override
+                public void onLoad(CoapResponse response) {
+                    if (response.isSuccess()) {
+                        successes.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public void onError() {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        client.shutdown();
+
+        assertEquals(requests, successes.get());
+        assertEquals(1, connector.getConnectionCount());
+    }
+
+    @Test
+    void slowPeerDoesNotBlockOtherConnections() throws Exception {
+        // Ping 信令，服务端回 Pong
+        byte[] ping = {0x00, (byte) 0xE2};
+        // 连接进入 backlog 但从不发送 CSM，建立连接的一方要等到 connectTimeout
+        try (ServerSocket silent = new ServerSocket(0)) {
+            SentCallback slowSent = new SentCallback();
+            Thread slow = new Thread(() -> connector.send(RawData.outbound(ping,
+                    new AddressEndpointContext(new InetSocketAddress("127.0.0.1", silent.getLocalPort())), slowSent,
+                    false)));
+            slow.start();
+            Thread.sleep(200);
+
+            SentCallback sent = new SentCallback();
+            connector.send(RawData.outbound(ping,
+                    new AddressEndpointContext(new InetSocketAddress("127.0.0.1", TCP_PORT)), sent, false));
+
+            assertTrue(sent.latch.await(2, TimeUnit.SECONDS));
+            // 慢的对端还在等 CSM
+            assertEquals(1, slowSent.latch.getCount());
+            slow.join();
+        }
+    }
+
+    @Test
+    void advertisesOnlyMaxMessageSize() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", TCP_PORT)) {
+            socket.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int first = in.readUnsignedByte();
+            assertEquals(0xE1, in.readUnsignedByte());
+            byte[] options = new byte[first >>> 4];
+            in.readFully(options);
+
+            // 只有 Max-Message-Size 一个选项，没有声明还不支持的 BERT
+            assertEquals(2, (options[0] & 0xFF) >>> 4);
+            assertEquals(1 + (options[0] & 0x0F), options.length);
+        }
+    }
+
+    @Test
+    void abortsOnMalformedCsm() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", TCP_PORT)) {
+            socket.setSoTimeout(5000);
+            // Max-Message-Size 声明 4 字节的值，帧里却没有
+            socket.getOutputStream().write(new byte[]{0x10, (byte) 0xE1, 0x24});
+            socket.getOutputStream().flush();
+
+            // 服务端先发自己的 CSM，然后以 Abort 关闭连接
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = socket.getInputStream().read(buffer)) >= 0) {
+                received.write(buffer, 0, read);
+            }
+            byte[] bytes = received.toByteArray();
+            assertArrayEquals(new byte[]{0x00, (byte) 0xE5}, Arrays.copyOfRange(bytes, bytes.length - 2,
+                    bytes.length));
+        }
+    }
+
+    @Test
+    void transfersLargeBodyInOneMessage() throws Exception {
+        byte[] data = new byte[256 * 1024];
+        new Random(11).nextBytes(data);
+        Path downloadDir = Files.createDirectories(Paths.get("target/tcp-download"));
+        Files.write(downloadDir.resolve("tcp.bin"), data);
+
+        CoapClient client = new CoapClient(BASE_URI + "/coap/download?filename=tcp.bin").setEndpoint(endpoint);
+        CoapResponse response = client.get();
+        client.shutdown();
+
+        assertNotNull(response);
+        assertArrayEquals(data, response.getPayload());
+        // 没有经过分块
+        assertFalse(response.getOptions().hasBlock2());
+    }
+
+    private static class SentCallback implements MessageCallback {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void onConnecting() {
+        }
+
+        @Override
+        public void onDtlsRetransmission(int flight) {
+        }
+
+        @Override
+        public void onContextEstablished(EndpointContext context) {
+        }
+
+        @Override
+        public void onSent() {
+            latch.countDown();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.coap.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentAddressedStoreTests {
+
+    @TempDir
+    Path directory;
+
+    private SegmentedUploadStore segmentedUploadStore;
+
+    private ContentAddressedStore open() throws Exception {
+        segmentedUploadStore = new SegmentedUploadStore(directory, 1024 * 1024, false, 0.5);
+        segmentedUploadStore.open();
+        ContentAddressedStore store = new ContentAddressedStore(segmentedUploadStore);
+        store.open();
+        return store;
+    }
+
+    @Test
+    void storesIdenticalContentOnce() throws Exception {
+        ContentAddressedStore store = open();
+        byte[] firmware = "firmware-v1".getBytes();
+        byte[] hash = store.put("device-1.bin", firmware);
+        assertArrayEquals(hash, store.put("device-2.bin", firmware));
+
+        assertEquals(2, store.getFileCount());
+        assertEquals(1, store.getBlobCount());
+        assertEquals(1, store.getDeduplicated());
+        assertArrayEquals(firmware, store.get("device-2.bin"));
+        assertEquals(ContentAddressedStore.ETAG_LENGTH, ContentAddressedStore.toETag(hash).length);
+        segmentedUploadStore.close();
+    }
+
+    @Test
+    void releasesOverwrittenContentAcrossRestart() throws Exception {
+        ContentAddressedStore store = open();
+        store.put("config.json", "v1".getBytes());
+        store.put("config.json", "v2".getBytes());
+        assertEquals(1, store.getBlobCount());
+        segmentedUploadStore.close();
+
+        ContentAddressedStore reopened = open();
+        assertEquals(1, reopened.getFileCount());
+        assertEquals(1, reopened.getBlobCount());
+        assertArrayEquals("v2".getBytes(), reopened.get("config.json"));
+        assertNull(reopened.get("missing"));
+        segmentedUploadStore.close();
+    }
+
+    @Test
+    void keepsDownloadsApartFromUploads() throws Exception {
+        ContentAddressedStore store = open();
+        byte[] firmware = "firmware-v1".getBytes();
+        byte[] hash = store.putDownload("firmware.bin", firmware, ContentAddressedStore.newDigest().digest(firmware),
+                1000, firmware.length);
+        // 设备上传同名文件不影响下载的内容
+        store.put("firmware.bin", "evil".getBytes());
+        assertArrayEquals(hash, store.getDownloadHash("firmware.bin", 1000, firmware.length));
+        assertArrayEquals(firmware, store.getBlob(hash));
+        assertNull(store.getDownloadHash("other.bin", 1000, firmware.length));
+        // 文件被替换后（修改时间或大小变了）不再使用读过的内容
+        assertNull(store.getDownloadHash("firmware.bin", 2000, firmware.length));
+        assertNull(store.getDownloadHash("firmware.bin", 1000, firmware.length + 1));
+        byte[] v2 = "firmware-v2".getBytes();
+        byte[] hash2 = store.putDownload("firmware.bin", v2, ContentAddressedStore.newDigest().digest(v2), 2000,
+                v2.length);
+        assertArrayEquals(hash2, store.getDownloadHash("firmware.bin", 2000, v2.length));
+        assertNull(store.getBlob(hash));
+        segmentedUploadStore.close();
+
+        // 下载的文件名不持久化，重启后重新从下载目录读取
+        ContentAddressedStore reopened = open();
+        assertNull(reopened.getDownloadHash("firmware.bin", 2000, v2.length));
+        assertEquals(1, reopened.getBlobCount());
+        assertNull(reopened.getBlob(hash2));
+        segmentedUploadStore.close();
+    }
+
+    @Test
+    void migratesPlainUploads() throws Exception {
+        SegmentedUploadStore legacy = new SegmentedUploadStore(directory, 1024 * 1024, false, 0.5);
+        legacy.open();
+        legacy.put("shiro.properties", "a=b".getBytes());
+        legacy.close();
+
+        ContentAddressedStore store = open();
+        assertArrayEquals("a=b".getBytes(), store.get("shiro.properties"));
+        assertFalse(segmentedUploadStore.contains("shiro.properties"));
+        store.put("shiro.properties", "a=c".getBytes());
+        segmentedUploadStore.close();
+
+        // 旧记录的移除不持久，重启后旧记录还在，但不能覆盖之后写入的内容
+        ContentAddressedStore reopened = open();
+        assertArrayEquals("a=c".getBytes(), reopened.get("shiro.properties"));
+        assertEquals(1, reopened.getBlobCount());
+        assertFalse(segmentedUploadStore.contains("shiro.properties"));
+        segmentedUploadStore.close();
+    }
+
+}
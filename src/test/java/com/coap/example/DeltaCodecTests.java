@@ -0,0 +1,72 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaCodecTests {
+
+    private static final byte[] VERSION = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    @Test
+    void roundTripsSmallEdits() {
+        StringBuilder config = new StringBuilder("{");
+        for (int i = 0; i < 200; i++) {
+            config.append("\"key").append(i).append("\":\"value").append(i).append("\",");
+        }
+        byte[] base = config.append("\"end\":0}").toString().getBytes(StandardCharsets.UTF_8);
+        byte[] target = new String(base, StandardCharsets.UTF_8)
+                .replace("\"value42\"", "\"changed\"")
+                .replace("\"key150\":\"value150\",", "")
+                .replace("\"end\":0", "\"end\":0,\"added\":true")
+                .getBytes(StandardCharsets.UTF_8);
+
+        byte[] frame = DeltaCodec.delta(MediaTypeRegistry.APPLICATION_JSON, VERSION, base, target);
+
+        assertTrue(DeltaCodec.isDelta(frame));
+        assertEquals(MediaTypeRegistry.APPLICATION_JSON, DeltaCodec.getContentFormat(frame));
+        assertArrayEquals(VERSION, DeltaCodec.getBaseVersion(frame));
+        assertArrayEquals(target, DeltaCodec.apply(frame, base));
+        // 三处改动，差量远小于完整内容
+        assertTrue(frame.length < target.length / 20, frame.length + " of " + target.length);
+    }
+
+    @Test
+    void roundTripsUnrelatedContent() {
+        Random random = new Random(42);
+        byte[] base = new byte[4096];
+        byte[] target = new byte[3000];
+        random.nextBytes(base);
+        random.nextBytes(target);
+        // 把 base 的一段挪到 target 的其它位置
+        System.arraycopy(base, 1000, target, 2000, 500);
+
+        assertArrayEquals(target, DeltaCodec.apply(DeltaCodec.delta(-1, VERSION, base, target), base));
+        assertArrayEquals(target, DeltaCodec.apply(DeltaCodec.delta(-1, VERSION, new byte[0], target), base));
+        assertArrayEquals(new byte[0], DeltaCodec.apply(DeltaCodec.delta(-1, VERSION, base, new byte[0]), base));
+
+        byte[] full = DeltaCodec.full(-1, target);
+        assertFalse(DeltaCodec.isDelta(full));
+        assertNull(DeltaCodec.getBaseVersion(full));
+        assertEquals(MediaTypeRegistry.UNDEFINED, DeltaCodec.getContentFormat(full));
+        assertArrayEquals(target, DeltaCodec.apply(full, null));
+    }
+
+    @Test
+    void rejectsMalformedDelta() {
+        byte[] base = new byte[64];
+        byte[] target = Arrays.copyOf(base, 80);
+        byte[] frame = DeltaCodec.delta(-1, VERSION, base, target);
+
+        assertThrows(IllegalArgumentException.class, () -> DeltaCodec.apply(frame, new byte[16]));
+        assertThrows(IllegalArgumentException.class, () -> DeltaCodec.apply(frame, null));
+        assertThrows(IllegalArgumentException.class,
+                () -> DeltaCodec.apply(Arrays.copyOf(frame, frame.length - 1), base));
+    }
+
+}
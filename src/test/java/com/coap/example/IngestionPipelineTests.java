@@ -0,0 +1,159 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class IngestionPipelineTests {
+
+    @Test
+    void queueKeepsEveryRecordOfEachProducer() throws Exception {
+        MpscArrayQueue<long[]> queue = new MpscArrayQueue<>(1000);
+        assertEquals(1024, queue.capacity());
+        int producers = 4;
+        int perProducer = 100000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            long producer = p;
+            Thread thread = new Thread(() -> {
+                for (long i = 0; i < perProducer; i++) {
+                    while (!queue.offer(new long[]{producer, i})) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            received += queue.drain(e -> {
+                // 同一个生产者的记录保持顺序且不丢失
+                assertEquals(next[(int) e[0]]++, e[1]);
+            }, 256);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void respondsServiceUnavailableWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Object> written = Collections.synchronizedList(new ArrayList<>());
+        IngestionPipeline pipeline = new IngestionPipeline(records -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.addAll(records);
+        }, 4, 2, 7);
+        pipeline.start();
+
+        Endpoint endpoint = mock(Endpoint.class);
+        CoapResource resource = new SimpleCoapResource("telemetry");
+        int total = 0;
+        while (pipeline.getRejected() == 0) {
+            Request request = new Request(CoAP.Code.POST);
+            request.setSourceContext(new AddressEndpointContext(new InetSocketAddress("127.0.0.1", 5684)));
+            Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE, Runnable::run);
+            exchange.setEndpoint(endpoint);
+            pipeline.ingest(new CoapExchange(exchange, resource), total++);
+        }
+        release.countDown();
+        pipeline.stop();
+
+        ArgumentCaptor<Response> captor = ArgumentCaptor.forClass(Response.class);
+        verify(endpoint, times(total)).sendResponse(any(Exchange.class), captor.capture());
+        Response last = captor.getValue();
+        assertEquals(CoAP.ResponseCode.SERVICE_UNAVAILABLE, last.getCode());
+        assertEquals(7, last.getOptions().getMaxAge());
+        assertEquals(CoAP.ResponseCode.CHANGED, captor.getAllValues().get(0).getCode());
+        // 被接收的记录在停止时全部写完
+        assertEquals(pipeline.getAccepted(), written.size());
+        assertEquals(pipeline.getAccepted(), pipeline.getWritten());
+    }
+
+    @Test
+    void writesEveryAcceptedRecordWhenStoppedDuringOffers() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            List<Object> written = Collections.synchronizedList(new ArrayList<>());
+            IngestionPipeline pipeline = new IngestionPipeline(written::addAll, 1 << 16, 64, 5);
+            pipeline.start();
+            List<Thread> producers = new ArrayList<>();
+            for (int p = 0; p < 4; p++) {
+                Thread producer = new Thread(() -> {
+                    while (pipeline.offer(Boolean.TRUE)) {
+                        Thread.yield();
+                    }
+                });
+                producers.add(producer);
+                producer.start();
+            }
+            Thread.sleep(5);
+            pipeline.stop();
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            // 停止时正在放的记录也写完，没有响应了 2.04 却丢掉的记录
+            assertEquals(pipeline.getAccepted(), written.size());
+        }
+    }
+
+    @Test
+    void closesSinkAfterConsumerExits() throws Exception {
+        AtomicBoolean writing = new AtomicBoolean();
+        AtomicBoolean closedDuringWrite = new AtomicBoolean();
+        AtomicInteger closed = new AtomicInteger();
+        IngestionPipeline pipeline = new IngestionPipeline(new IngestionSink() {
+            @Override
+            public void write(List<Object> records) {
+                writing.set(true);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                writing.set(false);
+            }
+
+            @Override
+            public void close() {
+                closedDuringWrite.set(writing.get());
+                closed.incrementAndGet();
+            }
+        }, 16, 1, 5);
+        pipeline.start();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(pipeline.offer(i));
+        }
+        pipeline.stop();
+
+        assertEquals(3, pipeline.getWritten());
+        assertEquals(1, closed.get());
+        assertFalse(closedDuringWrite.get());
+    }
+
+}
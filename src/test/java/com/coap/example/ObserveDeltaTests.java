@@ -0,0 +1,126 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 和 {@link CoapLoadTests} 使用相同的配置，共用同一个 Spring 上下文
+ */
+@SpringBootTest(properties = {"coap.port=" + CoapLoadTests.PORT,
+        "coap.udp.enabled=true",
+        "coap.udp.port=" + CoapLoadTests.UDP_PORT,
+        "coap.udp.batching=${coap.load.udp-batching:true}",
+        "logging.level.com.coap.example.SimpleCoapHandler=WARN",
+        "logging.level.com.coap.example.DefaultCoapHandler=WARN"})
+class ObserveDeltaTests {
+
+    private static final String URI = "coap://127.0.0.1:" + CoapLoadTests.UDP_PORT + "/coap/config";
+
+    @Autowired
+    private ObserveDeltaEncoder observeDeltaEncoder;
+
+    @Test
+    void pushesDeltaToObserver() throws Exception {
+        CoapClient coapClient = new CoapClient(URI);
+        String config = config(0);
+        assertEquals(CoAP.ResponseCode.CHANGED,
+                coapClient.put(config, MediaTypeRegistry.APPLICATION_JSON).getCode());
+
+        BlockingQueue<CoapResponse> notifications = new LinkedBlockingQueue<>();
+        CoapObserveRelation relation = coapClient.observe(observeRequest(null), handler(notifications));
+        CoapResponse first = notifications.poll(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertEquals(DeltaCodec.APPLICATION_OBSERVE_DELTA, first.getOptions().getContentFormat());
+        assertFalse(DeltaCodec.isDelta(first.getPayload()));
+        byte[] current = DeltaCodec.apply(first.getPayload(), null);
+        byte[] version = first.getOptions().getETags().get(0);
+        assertEquals(config, new String(current, StandardCharsets.UTF_8));
+        // 不要求增量编码的客户端照常收到完整内容
+        assertEquals(config, new CoapClient(URI).get().getResponseText());
+
+        long deltas = observeDeltaEncoder.getDeltaNotifications();
+        String changed = config(1);
+        assertEquals(CoAP.ResponseCode.CHANGED,
+                new CoapClient(URI).put(changed, MediaTypeRegistry.APPLICATION_JSON).getCode());
+        CoapResponse second = notifications.poll(5, TimeUnit.SECONDS);
+        assertNotNull(second);
+        byte[] frame = second.getPayload();
+        assertTrue(DeltaCodec.isDelta(frame));
+        assertArrayEquals(version, DeltaCodec.getBaseVersion(frame));
+        current = DeltaCodec.apply(frame, current);
+        version = second.getOptions().getETags().get(0);
+        assertEquals(changed, new String(current, StandardCharsets.UTF_8));
+        assertTrue(frame.length < current.length / 4, frame.length + " of " + current.length);
+        assertEquals(deltas + 1, observeDeltaEncoder.getDeltaNotifications());
+        // 取消时的响应也会交给原来的 handler
+        relation.proactiveCancel();
+
+        // 带着持有的版本重新注册，直接收到差量
+        BlockingQueue<CoapResponse> resumedNotifications = new LinkedBlockingQueue<>();
+        CoapObserveRelation resumed = coapClient.observe(observeRequest(version), handler(resumedNotifications));
+        CoapResponse third = resumedNotifications.poll(5, TimeUnit.SECONDS);
+        assertNotNull(third);
+        assertTrue(DeltaCodec.isDelta(third.getPayload()));
+        assertArrayEquals(current, DeltaCodec.apply(third.getPayload(), current));
+        resumed.proactiveCancel();
+
+        // 持有的版本服务端不认识，重新收到完整内容
+        long resyncs = observeDeltaEncoder.getResyncs();
+        BlockingQueue<CoapResponse> resyncedNotifications = new LinkedBlockingQueue<>();
+        CoapObserveRelation resynced = coapClient.observe(observeRequest(new byte[]{1}),
+                handler(resyncedNotifications));
+        CoapResponse fourth = resyncedNotifications.poll(5, TimeUnit.SECONDS);
+        assertNotNull(fourth);
+        assertFalse(DeltaCodec.isDelta(fourth.getPayload()));
+        assertArrayEquals(current, DeltaCodec.apply(fourth.getPayload(), null));
+        assertEquals(resyncs + 1, observeDeltaEncoder.getResyncs());
+        resynced.proactiveCancel();
+    }
+
+    private static Request observeRequest(byte[] eTag) {
+        Request request = Request.newGet();
+        request.setObserve();
+        request.getOptions().setAccept(DeltaCodec.APPLICATION_OBSERVE_DELTA);
+        if (eTag != null) {
+            request.getOptions().addETag(eTag);
+        }
+        return request;
+    }
+
+    private static CoapHandler handler(BlockingQueue<CoapResponse> notifications) {
+        return new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                notifications.add(response);
+            }
+
+            @Override
+            public void onError() {
+            }
+        };
+    }
+
+    private static String config(int revision) {
+        StringBuilder config = new StringBuilder("{\"revision\":").append(revision);
+        for (int i = 0; i < 16; i++) {
+            config.append(",\"sensor").append(i).append("\":{\"interval\":60,\"enabled\":true}");
+        }
+        return config.append('}').toString();
+    }
+
+}
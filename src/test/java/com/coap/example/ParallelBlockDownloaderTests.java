@@ -0,0 +1,103 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * 在本机回环地址上启动 {@link SimpleCoapServer}，比较顺序下载和并发下载的吞吐。
+ * <p>
+ * 回环地址的 RTT 很小，并发的收益远小于真实网络；需要更大的文件时通过系统属性指定，例如：
+ * <pre>
+ * mvn test -Dtest=ParallelBlockDownloaderTests -Dcoap.download.size=4194304 -Dcoap.download.parallelism=16
+ * </pre>
+ */
+@SpringBootTest(properties = {"coap.port=" + ParallelBlockDownloaderTests.PORT,
+        "coap.upload.dir=target/parallel-download",
+        "coap.download.dir=target/parallel-download-files",
+        "logging.level.com.coap.example.SimpleCoapHandler=WARN",
+        "logging.level.com.coap.example.UpDownloadCoapHandler=WARN"})
+class ParallelBlockDownloaderTests {
+
+    static final int PORT = 15685;
+
+    private static Logger logger = LoggerFactory.getLogger(ParallelBlockDownloaderTests.class);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void throughput() throws Exception {
+        int size = Integer.getInteger("coap.download.size", 256 * 1024);
+        int parallelism = Integer.getInteger("coap.download.parallelism", 8);
+        byte[] data = new byte[size];
+        new Random(7).nextBytes(data);
+        Path downloadDir = Files.createDirectories(Paths.get("target/parallel-download-files"));
+        Files.write(downloadDir.resolve("parallel.bin"), data);
+        String uri = "coaps://127.0.0.1:" + PORT + "/coap/download?filename=parallel.bin";
+
+        ParallelBlockDownloader.Result sequential = download(uri, 1, directory.resolve("sequential.bin"));
+        ParallelBlockDownloader.Result parallel = download(uri, parallelism, directory.resolve("parallel.bin"));
+        logger.info(">>>>> DOWNLOAD_SEQUENTIAL: [{}]", sequential);
+        logger.info(">>>>> DOWNLOAD_PARALLEL: PARALLELISM [{}] [{}]", parallelism, parallel);
+
+        assertEquals(size, parallel.getBytes());
+        assertEquals((size + 1023) / 1024, parallel.getBlocks());
+        assertArrayEquals(data, Files.readAllBytes(directory.resolve("sequential.bin")));
+        assertArrayEquals(data, Files.readAllBytes(directory.resolve("parallel.bin")));
+    }
+
+    @Test
+    void missingFileIsNotFound() throws Exception {
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setClientOnly();
+        builder.setSniEnabled(false);
+        builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY, CredentialsUtil.OPEN_PSK_SECRET));
+        CoapEndpoint endpoint = new CoapEndpoint.Builder().setConnector(new DTLSConnector(builder.build())).build();
+        try {
+            CoapClient coapClient = new CoapClient("coaps://127.0.0.1:" + PORT + "/coap/download?filename=missing.bin");
+            coapClient.setEndpoint(endpoint);
+            coapClient.setTimeout(5000L);
+            CoapResponse response = coapClient.get();
+            assertNotNull(response);
+            assertEquals(CoAP.ResponseCode.NOT_FOUND, response.getCode());
+        } finally {
+            endpoint.destroy();
+        }
+    }
+
+    private ParallelBlockDownloader.Result download(String uri, int parallelism, Path target) throws Exception {
+        DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
+        builder.setClientOnly();
+        builder.setSniEnabled(false);
+        builder.setPskStore(new StaticPskStore(CredentialsUtil.OPEN_PSK_IDENTITY, CredentialsUtil.OPEN_PSK_SECRET));
+        CoapEndpoint endpoint = ParallelBlockDownloader.newEndpoint(new DTLSConnector(builder.build()));
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(endpoint, parallelism, 1024, 3, 5000);
+        try {
+            endpoint.start();
+            return downloader.download(uri, target);
+        } finally {
+            downloader.shutdown();
+            endpoint.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.coap.example;
+
+import com.alibaba.fastjson.JSONObject;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PayloadCodecTests {
+
+    private final PayloadCodecRegistry registry = PayloadCodecRegistry.withDefaults();
+
+    @Test
+    void jsonAndCborRoundTrip() throws IOException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("message", "I am coap client");
+        jsonObject.put("value", 42);
+
+        for (int contentFormat : new int[]{MediaTypeRegistry.APPLICATION_JSON, MediaTypeRegistry.APPLICATION_CBOR}) {
+            PayloadCodec codec = registry.get(contentFormat);
+            byte[] payload = codec.encode(jsonObject);
+            JSONObject decoded = (JSONObject) codec.decode(payload, JSONObject.class);
+            assertEquals("I am coap client", decoded.getString("message"));
+            assertEquals(42, decoded.getIntValue("value"));
+        }
+    }
+
+    @Test
+    void octetStreamOnlySupportsBytes() {
+        PayloadCodec codec = registry.get(MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+        assertTrue(codec.supports(byte[].class));
+        assertFalse(codec.supports(JSONObject.class));
+    }
+
+}
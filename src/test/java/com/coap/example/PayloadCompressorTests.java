@@ -0,0 +1,42 @@
+package com.coap.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PayloadCompressorTests {
+
+    private final PayloadCompressor payloadCompressor = new PayloadCompressor();
+
+    @Test
+    void roundTripsLogFile() throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            log.append("2019-10-23 20:57:42,").append(i % 1000)
+                    .append(" INFO [CoapServer#1] SimpleCoapHandler.java:19 : >>>>> FOO: [").append(i).append("]\n");
+        }
+        byte[] identity = log.toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = payloadCompressor.deflate(identity);
+        payloadCompressor.record(identity.length, compressed.length);
+
+        assertArrayEquals(identity, payloadCompressor.inflate(compressed));
+        // 日志类文本压缩后的 block 数远少于原文
+        assertTrue(payloadCompressor.getSavings() > 0.8, "savings " + payloadCompressor.getSavings());
+    }
+
+    @Test
+    void rejectsTruncatedAndOversizedPayloads() {
+        byte[] bomb = payloadCompressor.deflate(new byte[32 * 1024 * 1024]);
+        byte[] compressed = payloadCompressor.deflate("FOOOOO".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(IllegalArgumentException.class, () -> payloadCompressor.inflate(bomb));
+        assertThrows(IOException.class,
+                () -> payloadCompressor.inflate(Arrays.copyOf(compressed, compressed.length / 2)));
+    }
+
+}
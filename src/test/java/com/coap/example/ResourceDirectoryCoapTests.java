@@ -0,0 +1,61 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 和 {@link CoapLoadTests} 使用相同的配置，共用同一个 Spring 上下文
+ */
+@SpringBootTest(properties = {"coap.port=" + CoapLoadTests.PORT,
+        "coap.udp.enabled=true",
+        "coap.udp.port=" + CoapLoadTests.UDP_PORT,
+        "coap.udp.batching=${coap.load.udp-batching:true}",
+        "logging.level.com.coap.example.SimpleCoapHandler=WARN",
+        "logging.level.com.coap.example.DefaultCoapHandler=WARN"})
+class ResourceDirectoryCoapTests {
+
+    private static final String URI = "coap://127.0.0.1:" + CoapLoadTests.UDP_PORT;
+
+    @Test
+    void discoversLocalResources() throws Exception {
+        CoapResponse response = new CoapClient(URI + "/.well-known/core?rt=core.rd*").get();
+        assertEquals(CoAP.ResponseCode.CONTENT, response.getCode());
+        assertEquals(MediaTypeRegistry.APPLICATION_LINK_FORMAT, response.getOptions().getContentFormat());
+        assertTrue(response.getResponseText().contains("</rd>;ct=40;rt=\"core.rd\""), response.getResponseText());
+        assertTrue(response.getResponseText().contains("</rd-lookup/res>"), response.getResponseText());
+        assertFalse(response.getResponseText().contains("</coap/config>"), response.getResponseText());
+
+        String links = new CoapClient(URI + "/.well-known/core").get().getResponseText();
+        assertTrue(links.contains("</coap/config>;obs"), links);
+        assertFalse(links.contains("</coap>"), links);
+    }
+
+    @Test
+    void registersAndLooksUp() throws Exception {
+        CoapResponse created = new CoapClient(URI + "/rd?ep=rd-test&lt=60")
+                .post("</sensors/temp>;rt=\"temperature-c\";if=\"core.s\"",
+                        MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+        assertEquals(CoAP.ResponseCode.CREATED, created.getCode());
+        String location = created.getOptions().getLocationPathString();
+        assertTrue(location.startsWith("rd/"), location);
+
+        String links = new CoapClient(URI + "/rd-lookup/res?ep=rd-test").get().getResponseText();
+        assertTrue(links.matches("<coap://127\\.0\\.0\\.1:\\d+/sensors/temp>;if=\"core.s\";rt=\"temperature-c\""
+                + ";anchor=\"coap://127\\.0\\.0\\.1:\\d+\""), links);
+
+        CoapClient registration = new CoapClient(URI + "/" + location);
+        assertEquals(CoAP.ResponseCode.CHANGED, registration.post("", MediaTypeRegistry.UNDEFINED).getCode());
+        assertEquals(CoAP.ResponseCode.DELETED, registration.delete().getCode());
+        assertEquals(CoAP.ResponseCode.NOT_FOUND, registration.delete().getCode());
+        assertEquals("", new CoapClient(URI + "/rd-lookup/res?ep=rd-test").get().getResponseText());
+        assertEquals(CoAP.ResponseCode.BAD_REQUEST,
+                new CoapClient(URI + "/rd").post("</temp>", MediaTypeRegistry.APPLICATION_LINK_FORMAT).getCode());
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapResource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceDirectoryTests {
+
+    private ResourceDirectory resourceDirectory;
+
+    @BeforeEach
+    void setUp() {
+        resourceDirectory = new ResourceDirectory(60, 2, 8);
+        resourceDirectory.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        resourceDirectory.stop();
+    }
+
+    @Test
+    void followsResourceTree() {
+        CoapResource root = new CoapResource("");
+        SimpleCoapResource sensors = new NotAllowedCoapResource("sensors");
+        SimpleCoapResource temperature = new SimpleCoapResource("temperature");
+        temperature.getAttributes().addResourceType("temperature-c");
+        temperature.getAttributes().setObservable();
+        sensors.add(temperature);
+        root.add(sensors);
+        resourceDirectory.index(root);
+
+        // 中间节点不列出
+        assertEquals("</sensors/temperature>;obs;rt=\"temperature-c\"",
+                resourceDirectory.discover(Collections.emptyList()));
+
+        SimpleCoapResource humidity = new SimpleCoapResource("humidity");
+        humidity.getAttributes().addResourceType("humidity");
+        sensors.add(humidity);
+        assertEquals("</sensors/humidity>;rt=\"humidity\"",
+                resourceDirectory.discover(Collections.singletonList("rt=humidity")));
+        assertEquals(2, resourceDirectory.discover(Collections.singletonList("href=/sensors/*")).split(",").length);
+        assertEquals("</sensors/temperature>;obs;rt=\"temperature-c\"",
+                resourceDirectory.discover(Collections.singletonList("obs")));
+
+        // 删除子树时它的链接一起删除
+        root.delete(sensors);
+        assertEquals("", resourceDirectory.discover(Collections.emptyList()));
+        assertEquals(0, resourceDirectory.getLocalLinks());
+    }
+
+    @Test
+    void looksUpRegisteredResources() {
+        String first = resourceDirectory.register("node1", null, "coap://[2001:db8::1]:5683", null,
+                "</temp>;rt=\"temperature-c\";if=\"core.s\",</light>;rt=\"light-lux\";if=\"core.s\"");
+        String second = resourceDirectory.register("node2", "floor1", "coap://10.0.0.2:5683", 120L,
+                "</temp>;rt=\"temperature-c\";if=\"core.s\"");
+
+        assertEquals("<coap://[2001:db8::1]:5683/light>;if=\"core.s\";rt=\"light-lux\""
+                        + ";anchor=\"coap://[2001:db8::1]:5683\"",
+                resourceDirectory.lookupResources(Collections.singletonList("rt=light-lux")));
+        assertEquals(2, resourceDirectory.lookupResources(Collections.singletonList("rt=temperature*"))
+                .split(",").length);
+        assertEquals("<coap://10.0.0.2:5683/temp>;if=\"core.s\";rt=\"temperature-c\""
+                        + ";anchor=\"coap://10.0.0.2:5683\"",
+                resourceDirectory.lookupResources(Arrays.asList("if=core.s", "d=floor1")));
+        assertEquals(1, resourceDirectory.lookupResources(Arrays.asList("if=core.s", "count=1", "page=2"))
+                .split(",").length);
+        assertEquals("", resourceDirectory.lookupResources(Arrays.asList("if=core.s", "count=1", "page=3")));
+        assertEquals(3, resourceDirectory.lookupResources(Arrays.asList("count=" + Integer.MAX_VALUE, "page=0"))
+                .split(",").length);
+        // 分页参数不合法时 LinkFormatCoapResource 回 4.00
+        assertThrows(IllegalArgumentException.class,
+                () -> resourceDirectory.lookupResources(Arrays.asList("count=1", "page=-1")));
+        assertThrows(IllegalArgumentException.class,
+                () -> resourceDirectory.lookupResources(Collections.singletonList("count=0")));
+        assertEquals("</rd/" + second + ">;base=\"coap://10.0.0.2:5683\";d=\"floor1\";ep=\"node2\";lt=120",
+                resourceDirectory.lookupEndpoints(Collections.singletonList("ep=node2")));
+
+        // 同一个 ep 再次注册时替换原来的链接
+        assertEquals(first, resourceDirectory.register("node1", null, "coap://[2001:db8::1]:5683", null,
+                "</temp>;rt=\"temperature-c\""));
+        assertEquals("", resourceDirectory.lookupResources(Collections.singletonList("rt=light-lux")));
+        assertThrows(IllegalStateException.class,
+                () -> resourceDirectory.register("node3", null, "coap://10.0.0.3", null, "</temp>"));
+
+        assertTrue(resourceDirectory.update(first, 30L, "coap://10.0.0.1:5683"));
+        assertEquals("<coap://10.0.0.1:5683/temp>;rt=\"temperature-c\";anchor=\"coap://10.0.0.1:5683\"",
+                resourceDirectory.lookupResources(Collections.singletonList("ep=node1")));
+        assertTrue(resourceDirectory.remove(first));
+        assertFalse(resourceDirectory.remove(first));
+        assertEquals(1, resourceDirectory.getRegisteredLinks());
+        assertThrows(IllegalArgumentException.class,
+                () -> resourceDirectory.register("", null, "coap://10.0.0.3", null, "</temp>"));
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.coap.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentedUploadStoreTests {
+
+    @TempDir
+    Path directory;
+
+    private SegmentedUploadStore open() throws Exception {
+        SegmentedUploadStore store = new SegmentedUploadStore(directory, 1024, true, 0.5);
+        store.open();
+        return store;
+    }
+
+    @Test
+    void recoversIndexAfterReopen() throws Exception {
+        SegmentedUploadStore store = open();
+        for (int i = 0; i < 100; i++) {
+            store.put("file" + (i % 10), ("content-" + i).getBytes());
+        }
+        assertTrue(store.getSegmentCount() > 1);
+        store.close();
+
+        SegmentedUploadStore reopened = open();
+        assertEquals(10, reopened.getFileCount());
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(("content-" + (90 + i)).getBytes(), reopened.get("file" + i));
+        }
+        assertNull(reopened.get("missing"));
+        reopened.close();
+    }
+
+    @Test
+    void skipsTornRecordsInTheMiddleOfSegment() throws Exception {
+        SegmentedUploadStore store = new SegmentedUploadStore(directory, 1024 * 1024, true, 0.5);
+        store.open();
+        store.put("a", "content-a".getBytes());
+        store.put("b", "content-b".getBytes());
+        store.put("c", "content-c".getBytes());
+        store.put("d", "content-d".getBytes());
+        store.put("e", "content-e".getBytes());
+        store.close();
+        // 每条记录 22 字节头部 + 1 字节文件名 + 9 字节内容
+        int recordSize = 22 + 1 + 9;
+        Path segment = directory.resolve(String.format("%016d.seg", 0));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // b 只写了头部，d 预留了位置还没有写，c 和 e 已经落盘
+            channel.write(ByteBuffer.wrap(new byte[9]), recordSize + 23);
+            channel.write(ByteBuffer.wrap(new byte[recordSize]), recordSize * 3);
+        }
+
+        SegmentedUploadStore reopened = new SegmentedUploadStore(directory, 1024 * 1024, true, 0.5);
+        reopened.open();
+        assertArrayEquals("content-a".getBytes(), reopened.get("a"));
+        assertNull(reopened.get("b"));
+        assertArrayEquals("content-c".getBytes(), reopened.get("c"));
+        assertNull(reopened.get("d"));
+        assertArrayEquals("content-e".getBytes(), reopened.get("e"));
+        // 新的写入在最后一条完整记录之后，不覆盖 e
+        reopened.put("f", "content-f".getBytes());
+        reopened.close();
+
+        SegmentedUploadStore again = new SegmentedUploadStore(directory, 1024 * 1024, true, 0.5);
+        again.open();
+        assertArrayEquals("content-e".getBytes(), again.get("e"));
+        assertArrayEquals("content-f".getBytes(), again.get("f"));
+        assertEquals(4, again.getFileCount());
+        again.close();
+    }
+
+    @Test
+    void compactsOverwrittenSegments() throws Exception {
+        SegmentedUploadStore store = open();
+        for (int i = 0; i < 200; i++) {
+            store.put("same", new byte[100]);
+        }
+        store.put("same", "last".getBytes());
+        int segments = store.getSegmentCount();
+
+        assertTrue(store.compact() > 0);
+        assertTrue(store.getSegmentCount() < segments);
+        assertArrayEquals("last".getBytes(), store.get("same"));
+        store.close();
+
+        SegmentedUploadStore reopened = open();
+        assertArrayEquals("last".getBytes(), reopened.get("same"));
+        reopened.close();
+    }
+
+    @Test
+    void groupsConcurrentSyncs() throws Exception {
+        SegmentedUploadStore store = new SegmentedUploadStore(directory, 1024 * 1024, true, 0.5);
+        store.open();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            String name = "device-" + i;
+            futures.add(executor.submit(() -> {
+                store.put(name, name.getBytes());
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(400, store.getWrites());
+        assertTrue(store.getSyncs() <= store.getWrites());
+        assertArrayEquals("device-7".getBytes(), store.get("device-7"));
+        store.close();
+    }
+
+    @Test
+    void rejectsRecordLargerThanSegment() throws Exception {
+        SegmentedUploadStore store = open();
+        assertThrows(IllegalArgumentException.class, () -> store.put("big", new byte[2048]));
+        store.close();
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.coap.example;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 和 {@link CoapLoadTests} 使用相同的配置，共用同一个 Spring 上下文
+ */
+@SpringBootTest(properties = {"coap.port=" + CoapLoadTests.PORT,
+        "coap.udp.enabled=true",
+        "coap.udp.port=" + CoapLoadTests.UDP_PORT,
+        "coap.udp.batching=${coap.load.udp-batching:true}",
+        "logging.level.com.coap.example.SimpleCoapHandler=WARN",
+        "logging.level.com.coap.example.DefaultCoapHandler=WARN"})
+class WildcardResourceTests {
+
+    private static final String URI = "coap://127.0.0.1:" + CoapLoadTests.UDP_PORT + "/coap/devices/";
+
+    @Test
+    void notifiesOnlyChangedDevice() throws Exception {
+        CoapClient first = new CoapClient(URI + "first");
+        CoapClient second = new CoapClient(URI + "second");
+        assertEquals(CoAP.ResponseCode.NOT_FOUND, new CoapClient(URI + "unknown").get().getCode());
+        assertEquals(CoAP.ResponseCode.CHANGED, first.put("{\"on\":false}", MediaTypeRegistry.APPLICATION_JSON).getCode());
+        assertEquals(CoAP.ResponseCode.CHANGED, second.put("{\"on\":false}", MediaTypeRegistry.APPLICATION_JSON).getCode());
+
+        BlockingQueue<CoapResponse> firstNotifications = new LinkedBlockingQueue<>();
+        BlockingQueue<CoapResponse> secondNotifications = new LinkedBlockingQueue<>();
+        CoapObserveRelation firstRelation = first.observe(handler(firstNotifications));
+        CoapObserveRelation secondRelation = second.observe(handler(secondNotifications));
+        assertEquals("{\"on\":false}", firstNotifications.poll(5, TimeUnit.SECONDS).getResponseText());
+        assertEquals("{\"on\":false}", secondNotifications.poll(5, TimeUnit.SECONDS).getResponseText());
+
+        assertEquals(CoAP.ResponseCode.CHANGED,
+                new CoapClient(URI + "first").put("{\"on\":true}", MediaTypeRegistry.APPLICATION_JSON).getCode());
+        CoapResponse notification = firstNotifications.poll(5, TimeUnit.SECONDS);
+        assertNotNull(notification);
+        assertEquals("{\"on\":true}", notification.getResponseText());
+        // 另一个设备的观察者不受影响
+        assertNull(secondNotifications.poll(500, TimeUnit.MILLISECONDS));
+
+        firstRelation.proactiveCancel();
+        secondRelation.proactiveCancel();
+    }
+
+    @Test
+    void wildcardIsSingleNode() {
+        SimpleCoapResource devices = new SimpleCoapResource("devices");
+        SimpleCoapResource device = new SimpleCoapResource("*");
+        devices.setWildcard(device);
+
+        assertSame(device, devices.getChild("42"));
+        assertSame(device, devices.getChild("43"));
+        assertNull(device.getChild("42"));
+        assertTrue(devices.getChildren().isEmpty());
+        assertTrue(device.isWildcard());
+        assertEquals("devices/", device.getPath());
+        assertEquals(0, device.getObserverCount());
+        // 没有观察者时变化什么也不做
+        device.changedChild("42");
+    }
+
+    @Test
+    void exactRoutesDoNotAttachUnderWildcard() {
+        SimpleCoapServer simpleCoapServer = new SimpleCoapServer();
+        List<CoapRoute> coapRoutes = simpleCoapServer.scanCoapRoutes(Collections.singletonList(new DevicesHandler()));
+        coapRoutes.sort(Comparator.comparing(coapRoute -> coapRoute.url));
+        assertEquals("coap/devices/*", coapRoutes.get(0).url);
+
+        // 两种注册顺序得到同一棵树：special 是 devices 的真正子节点，不挂在通配节点下面
+        for (int i = 0; i < 2; i++) {
+            SimpleCoapResource devices = (SimpleCoapResource) simpleCoapServer.buildCoapResource(coapRoutes)
+                    .getChild("coap").getChild("devices");
+            SimpleCoapResource wildcard = devices.getWildcard();
+            assertNotNull(wildcard);
+            assertTrue(wildcard.getChildren().isEmpty());
+            Resource special = devices.getExactChild("special");
+            assertNotNull(special);
+            assertNotSame(wildcard, special);
+            assertNotNull(special.getChild("x"));
+            assertSame(wildcard, devices.getChild("42"));
+            Collections.reverse(coapRoutes);
+        }
+    }
+
+    /**
+     * 没有标注 {@link com.coap.example.CoapHandler}，不会被 Spring 扫描到
+     */
+    static class DevicesHandler {
+
+        @CoapMapping("/coap/devices/*")
+        public void device(CoapExchange exchange) {
+            exchange.respond("DEVICE");
+        }
+
+        @CoapMapping("/coap/devices/special/x")
+        public void special(CoapExchange exchange) {
+            exchange.respond("SPECIAL");
+        }
+
+    }
+
+    private static CoapHandler handler(BlockingQueue<CoapResponse> notifications) {
+        return new CoapHandler() {
+            @Override
+            public void onLoad(CoapResponse response) {
+                notifications.add(response);
+            }
+
+            @Override
+            public void onError() {
+            }
+        };
+    }
+
+}